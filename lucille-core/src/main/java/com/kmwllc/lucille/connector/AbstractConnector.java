@@ -4,9 +4,11 @@ import com.kmwllc.lucille.core.Connector;
 import com.kmwllc.lucille.core.ConnectorException;
 import com.typesafe.config.Config;
 
+import java.util.List;
+
 /**
  * Base class for use by Connector implementations, providing basic Config parsing behavior
- * for obtaining connector name, pipeline name, doc ID prefix, and collapsing mode.
+ * for obtaining connector name, pipeline name, doc ID prefix, collapsing mode, and dependencies.
  *
  */
 public abstract class AbstractConnector implements Connector {
@@ -15,6 +17,7 @@ public abstract class AbstractConnector implements Connector {
   private String pipelineName;
   private String docIdPrefix;
   private boolean collapse;
+  private List<String> dependencies;
   private String message = null;
 
   public AbstractConnector(Config config) {
@@ -22,6 +25,7 @@ public abstract class AbstractConnector implements Connector {
     this.pipelineName = config.hasPath("pipeline") ? config.getString("pipeline") : null;
     this.docIdPrefix = config.hasPath("docIdPrefix") ? config.getString("docIdPrefix") : "";
     this.collapse = config.hasPath("collapse") ? config.getBoolean("collapse") : false;
+    this.dependencies = config.hasPath("dependsOn") ? config.getStringList("dependsOn") : List.of();
   }
 
   @Override
@@ -39,6 +43,11 @@ public abstract class AbstractConnector implements Connector {
     return collapse;
   }
 
+  @Override
+  public List<String> getDependencies() {
+    return dependencies;
+  }
+
   @Override
   public void postExecute(String runId) throws ConnectorException {
     // no-op
@@ -0,0 +1,104 @@
+package com.kmwllc.lucille.core;
+
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A Stage whose operation completes asynchronously, intended for Stages that spend most of their time waiting on a
+ * remote service.
+ * <p>
+ * When a Worker is configured with worker.maxInFlight greater than 1, the Pipeline will not block on the
+ * CompletableFuture returned by processDocumentAsync(); instead, the Worker moves on to other Documents and resumes the
+ * Pipeline once the future completes. This allows a single Worker thread to keep several requests to a slow service
+ * outstanding at once. When the Pipeline is executed synchronously, processDocument() simply waits for the future.
+ * <p>
+ * The future may be completed by any thread (e.g. an I/O thread owned by an async client), so implementations should
+ * only modify the given Document, and any children it generates, from within the future's completion.
+ * Subsequent Stages are always resumed on the Worker's own thread.
+ */
+public abstract class AsyncStage extends Stage {
+
+  public AsyncStage(Config config) {
+    super(config);
+  }
+
+  protected AsyncStage(Config config, StageSpec spec) {
+    super(config, spec);
+  }
+
+  /**
+   * Starts an operation on the given Document and returns a future that completes when the Document has been
+   * updated in place. The future's value is an Iterator over any child Documents generated, or null if there are none.
+   */
+  public abstract CompletableFuture<Iterator<Document>> processDocumentAsync(Document doc) throws StageException;
+
+  @Override
+  public Iterator<Document> processDocument(Document doc) throws StageException {
+    try {
+      return processDocumentAsync(doc).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StageException("Interrupted while waiting for asynchronous stage " + getName(), e);
+    } catch (ExecutionException e) {
+      throw toStageException(e.getCause());
+    }
+  }
+
+  /**
+   * Starts processDocumentAsync() for every Document in the batch that satisfies this Stage's conditions and returns a
+   * future over the resulting children, followed by all of the input Documents in their original order.
+   */
+  @Override
+  public CompletableFuture<List<Document>> applyAsync(List<Document> docs) {
+    List<CompletableFuture<Iterator<Document>>> futures = new ArrayList<>(docs.size());
+    long start = System.nanoTime();
+
+    try {
+      for (Document doc : docs) {
+        if (shouldProcess(doc)) {
+          futures.add(processDocumentAsync(doc));
+        }
+      }
+    } catch (StageException e) {
+      futures.forEach(f -> f.cancel(false));
+      recordError();
+      return CompletableFuture.failedFuture(e);
+    }
+
+    if (futures.isEmpty()) {
+      return CompletableFuture.completedFuture(docs);
+    }
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+        .handle((ignored, error) -> {
+          recordTiming(start, futures.size());
+
+          if (error != null) {
+            recordError();
+            throw new CompletionException(toStageException(error));
+          }
+
+          List<Iterator<Document>> children = new ArrayList<>(futures.size());
+          for (CompletableFuture<Iterator<Document>> future : futures) {
+            children.add(future.join());
+          }
+          return collectResults(docs, children);
+        });
+  }
+
+  private StageException toStageException(Throwable t) {
+    if (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    if (t instanceof StageException) {
+      return (StageException) t;
+    }
+    return new StageException("Asynchronous stage " + getName() + " failed", t);
+  }
+}
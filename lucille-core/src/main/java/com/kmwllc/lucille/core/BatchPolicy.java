@@ -0,0 +1,241 @@
+package com.kmwllc.lucille.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.kmwllc.lucille.util.LogUtils;
+import com.typesafe.config.Config;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when an Indexer's batches are full. It is shared by all of an Indexer's batches.
+ * <p>
+ * A batch is full once it holds the current size limit of Documents, or once adding the next Document would take its
+ * estimated size in bytes past indexer.batchMaxBytes, if that is set. A Document that is larger than
+ * indexer.batchMaxBytes on its own is sent in a batch by itself.
+ * <p>
+ * The size limit is indexer.batchSize unless indexer.adaptiveBatchSize is true. In that case the limit is adjusted
+ * after each batch is sent, in the manner of additive-increase/multiplicative-decrease congestion control. The limit
+ * is halved, but not below indexer.minBatchSize, if a batch fails, takes longer than indexer.batchTargetLatency
+ * milliseconds to send, or has Documents that the destination rejected as overloaded, even if they were sent on a
+ * retry. It grows by a tenth of indexer.batchSize, up to indexer.batchSize, when a full batch is sent within the
+ * target latency.
+ * <p>
+ * The current limit is published as a gauge named &lt;prefix&gt;.indexer.batchLimit. The reasons batches were
+ * flushed are counted in &lt;prefix&gt;.indexer.batchesFlushedBySize, batchesFlushedByBytes and
+ * batchesFlushedByTimeout. Changes to the limit are counted in &lt;prefix&gt;.indexer.batchLimitIncreases and
+ * batchLimitDecreases.
+ */
+public class BatchPolicy {
+
+  public static final long DEFAULT_TARGET_LATENCY_MS = 1000;
+
+  private final int maxSize;
+  private final int minSize;
+  private final long maxBytes;
+  private final boolean adaptive;
+  private final long targetLatencyNanos;
+
+  private volatile int limit;
+
+  private final Counter flushedBySize;
+  private final Counter flushedByBytes;
+  private final Counter flushedByTimeout;
+  private final Counter increases;
+  private final Counter decreases;
+
+  /**
+   * Creates a policy that fills batches up to the given number of Documents, with no limit on their size in bytes,
+   * and that does not publish metrics.
+   */
+  public BatchPolicy(int maxSize) {
+    this(maxSize, maxSize, 0, false, DEFAULT_TARGET_LATENCY_MS, null);
+  }
+
+  /**
+   * Creates a policy from the given Indexer config, publishing metrics under the given prefix.
+   */
+  public BatchPolicy(Config config, String metricsPrefix) {
+    this(
+        ConfigUtils.getOrDefault(config, "indexer.batchSize", Indexer.DEFAULT_BATCH_SIZE),
+        ConfigUtils.getOrDefault(config, "indexer.minBatchSize", 1),
+        config.hasPath("indexer.batchMaxBytes") ? config.getBytes("indexer.batchMaxBytes") : 0,
+        ConfigUtils.getOrDefault(config, "indexer.adaptiveBatchSize", false),
+        config.hasPath("indexer.batchTargetLatency")
+            ? config.getLong("indexer.batchTargetLatency")
+            : DEFAULT_TARGET_LATENCY_MS,
+        metricsPrefix);
+  }
+
+  BatchPolicy(int maxSize, int minSize, long maxBytes, boolean adaptive, long targetLatencyMs,
+      String metricsPrefix) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("indexer.batchSize must be at least 1");
+    }
+    if (minSize < 1 || minSize > maxSize) {
+      throw new IllegalArgumentException("indexer.minBatchSize must be between 1 and indexer.batchSize");
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("indexer.batchMaxBytes must not be negative");
+    }
+    if (targetLatencyMs < 1) {
+      throw new IllegalArgumentException("indexer.batchTargetLatency must be at least 1");
+    }
+    this.maxSize = maxSize;
+    this.minSize = minSize;
+    this.maxBytes = maxBytes;
+    this.adaptive = adaptive;
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+    this.limit = maxSize;
+
+    if (metricsPrefix == null) {
+      this.flushedBySize = new Counter();
+      this.flushedByBytes = new Counter();
+      this.flushedByTimeout = new Counter();
+      this.increases = new Counter();
+      this.decreases = new Counter();
+    } else {
+      MetricRegistry metrics = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG);
+      this.flushedBySize = metrics.counter(metricsPrefix + ".indexer.batchesFlushedBySize");
+      this.flushedByBytes = metrics.counter(metricsPrefix + ".indexer.batchesFlushedByBytes");
+      this.flushedByTimeout = metrics.counter(metricsPrefix + ".indexer.batchesFlushedByTimeout");
+      this.increases = metrics.counter(metricsPrefix + ".indexer.batchLimitIncreases");
+      this.decreases = metrics.counter(metricsPrefix + ".indexer.batchLimitDecreases");
+      String name = metricsPrefix + ".indexer.batchLimit";
+      // a previous indexer with the same prefix may have registered a gauge for its own policy
+      metrics.remove(name);
+      metrics.register(name, (Gauge<Integer>) this::getLimit);
+    }
+  }
+
+  /**
+   * Returns the largest number of Documents a batch may ever hold: indexer.batchSize.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the number of Documents at which a batch is currently considered full.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the estimated size in bytes past which a batch should not grow, or 0 if there is no such limit.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns whether the given batch, holding the given number of Documents of the given estimated size in bytes,
+   * should be flushed before a Document of the given estimated size is added to it, counting the reason it should be.
+   */
+  boolean isFull(int size, long bytes, long docBytes) {
+    if (size >= limit) {
+      flushedBySize.inc();
+      return true;
+    }
+    if (maxBytes > 0 && size > 0 && bytes + docBytes > maxBytes) {
+      flushedByBytes.inc();
+      return true;
+    }
+    return false;
+  }
+
+  void flushedByTimeout() {
+    flushedByTimeout.inc();
+  }
+
+  /**
+   * Records that a batch of the given number of Documents was sent in the given number of nanoseconds.
+   */
+  public synchronized void recordSent(int size, long nanos) {
+    if (!adaptive) {
+      return;
+    }
+    if (nanos > targetLatencyNanos) {
+      decrease();
+    } else if (size == limit && limit < maxSize) {
+      // a batch larger than the limit was filled before the limit was lowered, so it says nothing about the new limit
+      limit = Math.min(maxSize, limit + Math.max(1, maxSize / 10));
+      increases.inc();
+    }
+  }
+
+  /**
+   * Records that a batch could not be sent.
+   */
+  public synchronized void recordFailed() {
+    if (adaptive) {
+      decrease();
+    }
+  }
+
+  /**
+   * Records that the destination rejected some of a batch's Documents because it was overloaded, as with a 429 or
+   * 503 for a bulk item. The Documents may still be sent on a retry.
+   */
+  public synchronized void recordThrottled() {
+    if (adaptive) {
+      decrease();
+    }
+  }
+
+  private void decrease() {
+    if (limit > minSize) {
+      limit = Math.max(minSize, limit / 2);
+      decreases.inc();
+    }
+  }
+
+  /**
+   * Returns a rough estimate of the size of the given Document once it is encoded as JSON, counting the characters
+   * in its field names and text values, and the base64-encoded length of its binary values.
+   */
+  public static long estimateBytes(Document doc) {
+    long bytes = 2;
+    for (String name : doc.getFieldNames()) {
+      bytes += name.length() + 4 + estimateBytes(doc.getJson(name));
+    }
+    return bytes;
+  }
+
+  private static long estimateBytes(JsonNode node) {
+    switch (node.getNodeType()) {
+      case STRING:
+        return node.textValue().length() + 2;
+      case BINARY:
+        try {
+          return (node.binaryValue().length + 2) / 3 * 4 + 2;
+        } catch (IOException e) {
+          return 2;
+        }
+      case ARRAY:
+        long arrayBytes = 2;
+        for (JsonNode element : node) {
+          arrayBytes += estimateBytes(element) + 1;
+        }
+        return arrayBytes;
+      case OBJECT:
+        long objectBytes = 2;
+        for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+          Map.Entry<String, JsonNode> field = it.next();
+          objectBytes += field.getKey().length() + 4 + estimateBytes(field.getValue());
+        }
+        return objectBytes;
+      case NUMBER:
+        return 8;
+      default:
+        // booleans and nulls
+        return 5;
+    }
+  }
+}
@@ -0,0 +1,1291 @@
+package com.kmwllc.lucille.core;
+
+import com.api.jsonata4java.expressions.EvaluateException;
+import com.api.jsonata4java.expressions.Expressions;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.FloatNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import java.sql.Timestamp;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Document implementation that keeps its fields in a few flat arrays rather than in a tree of JsonNodes, for
+ * pipelines that handle large numbers of Documents with many small fields.
+ * <p>
+ * Field names are interned through a {@link FieldNameTable} shared by every CompactDocument in the JVM, so each
+ * distinct name is held once. The table lives as long as the JVM, across runs, and holds at most
+ * {@link FieldNameTable#MAX_NAMES} names; names seen after it is full, such as generated ones, are kept as given,
+ * which is correct but costs a String per Document for each of them. Each value occupies a slot made up of a one-byte type tag, a long holding the bits of a
+ * boolean, integer, or floating-point value, and a reference holding a String, byte[], or anything else. Boxed
+ * numbers and per-value JsonNodes are never allocated for primitive values, and the long array is only allocated
+ * once a field holds a nonzero primitive. A multi-valued field is a nested set of slots rather than a list of nodes.
+ * Values that are neither primitives, Strings, nor byte[] (JSON objects, nested arrays, BigDecimals) are kept as
+ * JsonNodes. Children are kept as CompactDocuments.
+ * <p>
+ * Getters follow the conversion rules of {@link JsonDocument}, so a field returns the same value from either
+ * implementation; reading a value as the type it was stored as takes a fast path that does not touch Jackson.
+ * A CompactDocument serializes to the same JSON as a JsonDocument with the same fields, and can be converted to and
+ * from one with {@link #toJsonDocument()} and {@link #CompactDocument(Document)}.
+ * <p>
+ * Unlike JsonDocument, a CompactDocument copies the contents of an ObjectNode or JSON array it is given, except for
+ * nested JSON objects and arrays, which are held by reference and must not be modified afterwards.
+ * <p>
+ * Selected for every Document created through {@link Document#create(String)} and related methods when
+ * document.implementation is set to "compact". See {@link DocumentImplementation}.
+ */
+public class CompactDocument implements Document {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final TypeReference<Map<String, Object>> TYPE = new TypeReference<Map<String, Object>>() {
+  };
+  private static final Logger log = LoggerFactory.getLogger(CompactDocument.class);
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  // value types
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte BOOLEAN = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte FLOAT = 5;
+  private static final byte DOUBLE = 6;
+  private static final byte BYTES = 7;
+  private static final byte JSON = 8;
+  private static final byte LIST = 9;
+  private static final byte DOCUMENT = 10;
+
+  // names[i] is the name of the field whose value is in slot i of values
+  private String[] names;
+  private Values values;
+
+  public CompactDocument(String id) {
+    if (id == null) {
+      throw new NullPointerException("ID cannot be null");
+    }
+    this.names = new String[INITIAL_CAPACITY];
+    this.values = new Values(INITIAL_CAPACITY);
+    values.set(addField(ID_FIELD), STRING, 0, id);
+  }
+
+  public CompactDocument(String id, String runId) {
+    this(id);
+    values.set(addField(RUNID_FIELD), runId == null ? NULL : STRING, 0, runId);
+  }
+
+  /**
+   * Creates a new {@link CompactDocument} holding the fields of the given ObjectNode.
+   *
+   * @param data the data to be stored in the document
+   * @throws DocumentException if document is missing a nonempty {@link Document#ID_FIELD}
+   */
+  public CompactDocument(ObjectNode data) throws DocumentException {
+    load(data);
+  }
+
+  /**
+   * Creates a new {@link CompactDocument} holding a copy of the fields of the given Document, which may be a
+   * CompactDocument, a JsonDocument, or any other implementation.
+   *
+   * @param document document to copy
+   * @throws DocumentException if document is missing a nonempty {@link Document#ID_FIELD}
+   */
+  public CompactDocument(Document document) throws DocumentException {
+    if (document == null) {
+      throw new IllegalStateException("Document is null");
+    }
+    if (document instanceof CompactDocument) {
+      CompactDocument other = (CompactDocument) document;
+      this.names = other.names.clone();
+      this.values = other.values.copy();
+    } else if (document instanceof JsonDocument) {
+      load(((JsonDocument) document).data().deepCopy());
+    } else {
+      load(MAPPER.valueToTree(document.asMap()));
+    }
+  }
+
+  public static CompactDocument fromJsonString(String json) throws DocumentException, JsonProcessingException {
+    return fromJsonString(json, null);
+  }
+
+  public static CompactDocument fromJsonString(String json, UnaryOperator<String> idUpdater)
+      throws DocumentException, JsonProcessingException {
+    CompactDocument doc = new CompactDocument((ObjectNode) MAPPER.readTree(json));
+    if (idUpdater != null) {
+      doc.values.set(doc.indexOf(ID_FIELD), STRING, 0, idUpdater.apply(doc.getId()));
+    }
+    return doc;
+  }
+
+  /**
+   * Replaces the fields of this document with those of the given ObjectNode.
+   */
+  private void load(ObjectNode data) throws DocumentException {
+    JsonDocument.checkId(data);
+    int capacity = Math.max(data.size(), INITIAL_CAPACITY);
+    this.names = new String[capacity];
+    this.values = new Values(capacity);
+    for (Iterator<Map.Entry<String, JsonNode>> it = data.fields(); it.hasNext(); ) {
+      Map.Entry<String, JsonNode> field = it.next();
+      int i = addField(field.getKey());
+      if (CHILDREN_FIELD.equals(field.getKey()) && field.getValue().isArray()) {
+        values.set(i, LIST, 0, children((ArrayNode) field.getValue()));
+      } else {
+        values.setField(i, field.getValue());
+      }
+    }
+  }
+
+  private static Values children(ArrayNode array) {
+    Values children = new Values(array.size());
+    for (JsonNode element : array) {
+      if (element.isObject()) {
+        try {
+          children.append(DOCUMENT, 0, new CompactDocument((ObjectNode) element));
+          continue;
+        } catch (DocumentException e) {
+          // kept as JSON, and reported when the children are retrieved, as JsonDocument does
+        }
+      }
+      children.appendNode(element);
+    }
+    return children;
+  }
+
+  /**
+   * Returns a new ObjectNode holding the fields of this document. Nested JSON objects and arrays are not copied.
+   */
+  @JsonValue
+  public ObjectNode toObjectNode() {
+    ObjectNode node = MAPPER.createObjectNode();
+    for (int i = 0; i < values.size; i++) {
+      node.set(names[i], values.node(i));
+    }
+    return node;
+  }
+
+  /**
+   * Returns a JsonDocument holding a copy of the fields of this document.
+   */
+  public JsonDocument toJsonDocument() {
+    try {
+      return new JsonDocument(toObjectNode().deepCopy());
+    } catch (DocumentException e) {
+      throw new IllegalStateException("Document not convertible", e);
+    }
+  }
+
+  /**
+   * Returns the slot of the given field, or -1 if it is absent. Field names are usually interned, so they are
+   * compared by reference before they are compared by value.
+   */
+  private int indexOf(String name) {
+    int size = values.size;
+    for (int i = 0; i < size; i++) {
+      if (names[i] == name) {
+        return i;
+      }
+    }
+    if (name == null) {
+      return -1;
+    }
+    for (int i = 0; i < size; i++) {
+      if (name.equals(names[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds an absent field, holding null, and returns its slot.
+   */
+  private int addField(String name) {
+    int i = values.size;
+    if (i == names.length) {
+      names = Arrays.copyOf(names, i * 2);
+    }
+    names[i] = FieldNameTable.intern(name);
+    values.append(NULL, 0, null);
+    return i;
+  }
+
+  private void removeAt(int i) {
+    int size = values.size;
+    System.arraycopy(names, i + 1, names, i, size - i - 1);
+    names[size - 1] = null;
+    values.remove(i);
+  }
+
+  /**
+   * Returns the values of the given field as a list, creating the field if it is absent and converting it if it is
+   * single-valued.
+   */
+  private Values toList(String name) {
+    int i = indexOf(name);
+    if (i < 0) {
+      Values list = new Values(INITIAL_CAPACITY);
+      values.set(addField(name), LIST, 0, list);
+      return list;
+    }
+    if (values.types[i] == LIST) {
+      return (Values) values.refs[i];
+    }
+    Values list = new Values(INITIAL_CAPACITY);
+    list.move(0, values, i);
+    values.set(i, LIST, 0, list);
+    return list;
+  }
+
+  private void set(String name, byte type, long bits, Object ref) {
+    validateFieldNames(name);
+    int i = indexOf(name);
+    if (i < 0) {
+      i = addField(name);
+    }
+    values.set(i, type, bits, ref);
+  }
+
+  private void add(String name, byte type, long bits, Object ref) {
+    validateFieldNames(name);
+    toList(name).append(type, bits, ref);
+  }
+
+  private static String format(Instant value) {
+    return DateTimeFormatter.ISO_INSTANT.format(value);
+  }
+
+  @Override
+  public void removeField(String name) {
+    validateFieldNames(name);
+    int i = indexOf(name);
+    if (i >= 0) {
+      removeAt(i);
+    }
+  }
+
+  @Override
+  public void removeFromArray(String name, int index) {
+    validateFieldNames(name);
+    int i = indexOf(name);
+    if (i < 0) {
+      return;
+    }
+    if (values.types[i] != LIST) {
+      throw new UnsupportedOperationException("Field " + name + " is not multivalued");
+    }
+    Values list = (Values) values.refs[i];
+    if (index >= 0 && index < list.size) {
+      list.remove(index);
+    }
+  }
+
+  @Override
+  public void initializeRunId(String value) {
+    if (indexOf(RUNID_FIELD) >= 0) {
+      throw new IllegalStateException();
+    }
+    values.set(addField(RUNID_FIELD), value == null ? NULL : STRING, 0, value);
+  }
+
+  @Override
+  public void clearRunId() {
+    int i = indexOf(RUNID_FIELD);
+    if (i >= 0) {
+      removeAt(i);
+    }
+  }
+
+  @Override
+  public void setField(String name, String value) {
+    set(name, value == null ? NULL : STRING, 0, value);
+  }
+
+  @Override
+  public void setField(String name, Long value) {
+    set(name, value == null ? NULL : LONG, value == null ? 0 : value, null);
+  }
+
+  @Override
+  public void setField(String name, Integer value) {
+    set(name, value == null ? NULL : INT, value == null ? 0 : value, null);
+  }
+
+  @Override
+  public void setField(String name, Boolean value) {
+    set(name, value == null ? NULL : BOOLEAN, value != null && value ? 1 : 0, null);
+  }
+
+  @Override
+  public void setField(String name, Double value) {
+    set(name, value == null ? NULL : DOUBLE, value == null ? 0 : Double.doubleToRawLongBits(value), null);
+  }
+
+  @Override
+  public void setField(String name, Float value) {
+    set(name, value == null ? NULL : FLOAT, value == null ? 0 : Float.floatToRawIntBits(value), null);
+  }
+
+  @Override
+  public void setField(String name, JsonNode value) {
+    validateFieldNames(name);
+    int i = indexOf(name);
+    if (i < 0) {
+      i = addField(name);
+    }
+    values.setField(i, value);
+  }
+
+  @Override
+  public void setField(String name, Instant value) {
+    set(name, STRING, 0, format(value));
+  }
+
+  @Override
+  public void setField(String name, byte[] value) {
+    set(name, value == null ? NULL : BYTES, 0, value);
+  }
+
+  @Override
+  public void setField(String name, Date value) {
+    setField(name, Instant.ofEpochMilli(value.getTime()));
+  }
+
+  @Override
+  public void setField(String name, Timestamp value) {
+    setField(name, Instant.ofEpochMilli(value.getTime()));
+  }
+
+  @Override
+  public void renameField(String oldName, String newName, UpdateMode mode) {
+    validateFieldNames(oldName, newName);
+    int i = indexOf(oldName);
+    if (i < 0) {
+      return;
+    }
+    int j = indexOf(newName);
+    if (j < 0) {
+      names[i] = FieldNameTable.intern(newName);
+      return;
+    }
+
+    if (mode.equals(UpdateMode.APPEND)) {
+      Values list = toList(newName);
+      if (values.types[i] == LIST) {
+        Values old = (Values) values.refs[i];
+        for (int k = 0; k < old.size; k++) {
+          list.move(list.size, old, k);
+        }
+      } else {
+        list.move(list.size, values, i);
+      }
+    } else if (mode.equals(UpdateMode.OVERWRITE)) {
+      values.move(j, values, i);
+    }
+    removeAt(i);
+  }
+
+  /**
+   * Reads the value in a slot as a particular type.
+   */
+  @FunctionalInterface
+  private interface Reader<T> {
+    T read(Values values, int i);
+  }
+
+  private <T> T get(String name, Reader<T> reader) {
+    int i = indexOf(name);
+    if (i < 0) {
+      return null;
+    }
+    if (values.types[i] == LIST) {
+      Values list = (Values) values.refs[i];
+      return list.size == 0 ? null : reader.read(list, 0);
+    }
+    return reader.read(values, i);
+  }
+
+  private <T> List<T> getList(String name, Reader<T> reader) {
+    int i = indexOf(name);
+    if (i < 0) {
+      return null;
+    }
+    if (values.types[i] != LIST) {
+      return Collections.singletonList(reader.read(values, i));
+    }
+    Values list = (Values) values.refs[i];
+    List<T> result = new ArrayList<>(list.size);
+    for (int j = 0; j < list.size; j++) {
+      result.add(reader.read(list, j));
+    }
+    return result;
+  }
+
+  @Override
+  public String getString(String name) {
+    return get(name, Values::asString);
+  }
+
+  @Override
+  public List<String> getStringList(String name) {
+    return getList(name, Values::asString);
+  }
+
+  @Override
+  public boolean anyStringValueMatches(String name, Predicate<String> predicate) {
+    int i = indexOf(name);
+    if (i < 0) {
+      return false;
+    }
+    if (values.types[i] != LIST) {
+      return predicate.test(values.asString(i));
+    }
+    Values list = (Values) values.refs[i];
+    for (int j = 0; j < list.size; j++) {
+      if (predicate.test(list.asString(j))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Integer getInt(String name) {
+    return get(name, Values::asInt);
+  }
+
+  @Override
+  public List<Integer> getIntList(String name) {
+    return getList(name, Values::asInt);
+  }
+
+  @Override
+  public Double getDouble(String name) {
+    return get(name, Values::asDouble);
+  }
+
+  @Override
+  public List<Double> getDoubleList(String name) {
+    return getList(name, Values::asDouble);
+  }
+
+  @Override
+  public Float getFloat(String name) {
+    return get(name, Values::asFloat);
+  }
+
+  @Override
+  public List<Float> getFloatList(String name) {
+    return getList(name, Values::asFloat);
+  }
+
+  @Override
+  public Boolean getBoolean(String name) {
+    return get(name, Values::asBoolean);
+  }
+
+  @Override
+  public List<Boolean> getBooleanList(String name) {
+    return getList(name, Values::asBoolean);
+  }
+
+  @Override
+  public Long getLong(String name) {
+    return get(name, Values::asLong);
+  }
+
+  @Override
+  public List<Long> getLongList(String name) {
+    return getList(name, Values::asLong);
+  }
+
+  @Override
+  public Instant getInstant(String name) {
+    return get(name, Values::asInstant);
+  }
+
+  @Override
+  public List<Instant> getInstantList(String name) {
+    return getList(name, Values::asInstant);
+  }
+
+  @Override
+  public byte[] getBytes(String name) {
+    return get(name, Values::asBytes);
+  }
+
+  @Override
+  public List<byte[]> getBytesList(String name) {
+    return getList(name, Values::asBytes);
+  }
+
+  /**
+   * Returns the value of the given field as a JsonNode. As with JsonDocument, a multi-valued field is returned as a
+   * JSON array rather than as its first value.
+   */
+  @Override
+  public JsonNode getJson(String name) {
+    int i = indexOf(name);
+    return i < 0 ? null : values.node(i);
+  }
+
+  /**
+   * Returns a list of JsonNodes.
+   *
+   * If the field was set to a JsonArray value, a list containing contents of that JsonArray will be returned,
+   * as opposed to a List containing the JsonArray itself.
+   */
+  @Override
+  public List<JsonNode> getJsonList(String name) {
+    return getList(name, Values::node);
+  }
+
+  @Override
+  public Date getDate(String name) {
+    Instant instant = getInstant(name);
+    return instant == null ? null : Date.from(instant);
+  }
+
+  @Override
+  public List<Date> getDateList(String name) {
+    List<Instant> instants = getInstantList(name);
+    if (instants == null) {
+      return null;
+    } else {
+      return instants.stream()
+          .map(instant -> instant == null ? null : Date.from(instant))
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public Timestamp getTimestamp(String name) {
+    Instant instant = getInstant(name);
+    return instant == null ? null : Timestamp.from(instant);
+  }
+
+  @Override
+  public List<Timestamp> getTimestampList(String name) {
+    List<Instant> instants = getInstantList(name);
+    if (instants == null) {
+      return null;
+    } else {
+      return instants.stream()
+          .map(instant -> instant == null ? null : Timestamp.from(instant))
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public int length(String name) {
+    int i = indexOf(name);
+    if (i < 0) {
+      return 0;
+    }
+    return values.types[i] == LIST ? ((Values) values.refs[i]).size : 1;
+  }
+
+  @Override
+  public String getId() {
+    return getString(ID_FIELD);
+  }
+
+  @Override
+  public String getRunId() {
+    return getString(RUNID_FIELD);
+  }
+
+  @Override
+  public boolean has(String name) {
+    return indexOf(name) >= 0;
+  }
+
+  @Override
+  public boolean hasNonNull(String name) {
+    int i = indexOf(name);
+    return i >= 0 && values.types[i] != NULL;
+  }
+
+  @Override
+  public boolean isMultiValued(String name) {
+    int i = indexOf(name);
+    return i >= 0 && values.types[i] == LIST;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (other instanceof CompactDocument) {
+      return toObjectNode().equals(((CompactDocument) other).toObjectNode());
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return toObjectNode().hashCode();
+  }
+
+  @Override
+  public void addToField(String name, String value) {
+    add(name, value == null ? NULL : STRING, 0, value);
+  }
+
+  @Override
+  public void addToField(String name, Long value) {
+    add(name, value == null ? NULL : LONG, value == null ? 0 : value, null);
+  }
+
+  @Override
+  public void addToField(String name, Integer value) {
+    add(name, value == null ? NULL : INT, value == null ? 0 : value, null);
+  }
+
+  @Override
+  public void addToField(String name, Boolean value) {
+    add(name, value == null ? NULL : BOOLEAN, value != null && value ? 1 : 0, null);
+  }
+
+  @Override
+  public void addToField(String name, Double value) {
+    add(name, value == null ? NULL : DOUBLE, value == null ? 0 : Double.doubleToRawLongBits(value), null);
+  }
+
+  @Override
+  public void addToField(String name, Float value) {
+    add(name, value == null ? NULL : FLOAT, value == null ? 0 : Float.floatToRawIntBits(value), null);
+  }
+
+  @Override
+  public void addToField(String name, Instant value) {
+    add(name, STRING, 0, format(value));
+  }
+
+  @Override
+  public void addToField(String name, byte[] value) {
+    add(name, value == null ? NULL : BYTES, 0, value);
+  }
+
+  @Override
+  public void addToField(String name, JsonNode value) {
+    validateFieldNames(name);
+    toList(name).appendNode(value);
+  }
+
+  @Override
+  public void addToField(String name, Date value) {
+    addToField(name, Instant.ofEpochMilli(value.getTime()));
+  }
+
+  @Override
+  public void addToField(String name, Timestamp value) {
+    addToField(name, Instant.ofEpochMilli(value.getTime()));
+  }
+
+  @Override
+  public void setOrAdd(String name, String value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Long value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Integer value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Boolean value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Double value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Float value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Instant value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, byte[] value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, JsonNode value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Date value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  @Override
+  public void setOrAdd(String name, Timestamp value) {
+    if (has(name)) {
+      addToField(name, value);
+    } else {
+      setField(name, value);
+    }
+  }
+
+  /**
+   * Sets the given field to the value(s) the given Document has for it, or adds them if this document already has
+   * the field. Values are copied slot by slot from another CompactDocument, and taken from getJson() for any other
+   * implementation.
+   */
+  @Override
+  public void setOrAdd(String name, Document other) throws IllegalArgumentException {
+    validateFieldNames(name);
+    if (other == null) {
+      throw new IllegalStateException("Document is null");
+    }
+
+    if (other instanceof CompactDocument) {
+      Values source = ((CompactDocument) other).values;
+      int j = ((CompactDocument) other).indexOf(name);
+      if (j < 0) {
+        return;
+      }
+      int i = indexOf(name);
+      if (i < 0) {
+        values.copy(addField(name), source, j);
+        return;
+      }
+      Values list = toList(name);
+      if (source.types[j] == LIST) {
+        Values otherList = (Values) source.refs[j];
+        for (int k = 0; k < otherList.size; k++) {
+          list.copy(list.size, otherList, k);
+        }
+      } else {
+        list.copy(list.size, source, j);
+      }
+      return;
+    }
+
+    JsonNode otherValue = other.getJson(name);
+    if (otherValue == null) {
+      return;
+    }
+    if (!has(name)) {
+      setField(name, otherValue);
+    } else if (otherValue.isArray()) {
+      Values list = toList(name);
+      for (JsonNode element : otherValue) {
+        list.appendNode(element);
+      }
+    } else {
+      toList(name).appendNode(otherValue);
+    }
+  }
+
+  @Override
+  public void setOrAddAll(Document other) {
+    for (String name : other.getFieldNames()) {
+      if (RESERVED_FIELDS.contains(name)) {
+        continue;
+      }
+      setOrAdd(name, other);
+    }
+  }
+
+  @Override
+  public Map<String, Object> asMap() {
+    return MAPPER.convertValue(toObjectNode(), TYPE);
+  }
+
+  /**
+   * Adds the given Document as a child of this one. A CompactDocument is added as is; any other implementation is
+   * converted to a CompactDocument first.
+   */
+  @Override
+  public void addChild(Document document) {
+    CompactDocument child;
+    if (document instanceof CompactDocument) {
+      child = (CompactDocument) document;
+    } else {
+      try {
+        child = new CompactDocument(document);
+      } catch (DocumentException e) {
+        throw new IllegalStateException("Child not convertible", e);
+      }
+    }
+    toList(CHILDREN_FIELD).append(DOCUMENT, 0, child);
+  }
+
+  @Override
+  public boolean hasChildren() {
+    int i = indexOf(CHILDREN_FIELD);
+    return i >= 0 && values.types[i] == LIST && ((Values) values.refs[i]).size > 0;
+  }
+
+  @Override
+  public List<Document> getChildren() {
+    ArrayList<Document> children = new ArrayList<>();
+    int i = indexOf(CHILDREN_FIELD);
+    if (i < 0 || values.types[i] != LIST) {
+      return children;
+    }
+    Values list = (Values) values.refs[i];
+    for (int j = 0; j < list.size; j++) {
+      if (list.types[j] == DOCUMENT) {
+        children.add(((CompactDocument) list.refs[j]).deepCopy());
+        continue;
+      }
+      try {
+        children.add(new CompactDocument((ObjectNode) list.node(j).deepCopy()));
+      } catch (DocumentException | ClassCastException e) {
+        log.error("Unable to instantiate child Document", e);
+      }
+    }
+    return children;
+  }
+
+  @Override
+  public void removeChildren() {
+    int i = indexOf(CHILDREN_FIELD);
+    if (i >= 0) {
+      removeAt(i);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return toObjectNode().toString();
+  }
+
+  @Override
+  public CompactDocument deepCopy() {
+    try {
+      return new CompactDocument(this);
+    } catch (DocumentException e) {
+      throw new IllegalStateException("Document not copyable", e);
+    }
+  }
+
+  @Override
+  public Set<String> getFieldNames() {
+    Set<String> fieldNames = new HashSet<>();
+    for (int i = 0; i < values.size; i++) {
+      fieldNames.add(names[i]);
+    }
+    return fieldNames;
+  }
+
+  @Override
+  public boolean isDropped() {
+    return indexOf(DROP_FIELD) >= 0;
+  }
+
+  @Override
+  public void setDropped(boolean status) {
+    int i = indexOf(DROP_FIELD);
+    if (status) {
+      values.set(i < 0 ? addField(DROP_FIELD) : i, BOOLEAN, 1, null);
+    } else if (i >= 0) {
+      removeAt(i);
+    }
+  }
+
+  @Override
+  public void removeDuplicateValues(String fieldName, String targetFieldName) {
+    int i = indexOf(fieldName);
+    if (i < 0 || values.types[i] != LIST) {
+      return;
+    }
+
+    Values list = (Values) values.refs[i];
+    LinkedHashMap<JsonNode, Integer> unique = new LinkedHashMap<>();
+    for (int j = 0; j < list.size; j++) {
+      unique.putIfAbsent(list.node(j), j);
+    }
+
+    if (targetFieldName == null || fieldName.equals(targetFieldName)) {
+      if (unique.size() == list.size) {
+        return;
+      }
+      Values deduplicated = new Values(unique.size());
+      for (int j : unique.values()) {
+        deduplicated.move(deduplicated.size, list, j);
+      }
+      values.set(i, LIST, 0, deduplicated);
+    } else {
+      Values target = toList(targetFieldName);
+      for (int j : unique.values()) {
+        target.copy(target.size, list, j);
+      }
+    }
+  }
+
+  @Override
+  public void transform(Expressions expr) throws DocumentException {
+    ObjectNode data = toObjectNode();
+    HashMap<String, JsonNode> reserved = new HashMap<>();
+    RESERVED_FIELDS.stream().filter(field -> has(field)).forEach(field -> reserved.put(field, data.get(field)));
+    JsonNode transformed = null;
+    try {
+      transformed = expr.evaluate(data);
+    } catch (EvaluateException e) {
+      throw new DocumentException("Evaluation exception when applying transformation: " + e.getLocalizedMessage());
+    }
+
+    if (!transformed.isObject()) {
+      throw new DocumentException("Transformation must return a JSON object, not array or literal");
+    }
+
+    for (Map.Entry<String, JsonNode> entry : reserved.entrySet()) {
+      if (!entry.getValue().equals(transformed.get(entry.getKey()))) {
+        throw new DocumentException("The given transformation mutates a reserved field");
+      }
+    }
+
+    load((ObjectNode) transformed);
+  }
+
+  /**
+   * A growable sequence of value slots: the fields of a document, or the values of a multi-valued field.
+   */
+  private static final class Values {
+
+    private byte[] types;
+    // allocated once a slot holds nonzero bits
+    private long[] bits;
+    private Object[] refs;
+    private int size;
+
+    Values(int capacity) {
+      capacity = Math.max(capacity, 1);
+      this.types = new byte[capacity];
+      this.refs = new Object[capacity];
+    }
+
+    private long bits(int i) {
+      return bits == null ? 0 : bits[i];
+    }
+
+    /**
+     * Sets slot i, which may be the slot just past the end.
+     */
+    void set(int i, byte type, long bits, Object ref) {
+      if (i == size) {
+        if (size == types.length) {
+          int capacity = size * 2;
+          types = Arrays.copyOf(types, capacity);
+          refs = Arrays.copyOf(refs, capacity);
+          if (this.bits != null) {
+            this.bits = Arrays.copyOf(this.bits, capacity);
+          }
+        }
+        size++;
+      }
+      if (bits != 0 && this.bits == null) {
+        this.bits = new long[types.length];
+      }
+      types[i] = type;
+      refs[i] = ref;
+      if (this.bits != null) {
+        this.bits[i] = bits;
+      }
+    }
+
+    void append(byte type, long bits, Object ref) {
+      set(size, type, bits, ref);
+    }
+
+    void remove(int i) {
+      System.arraycopy(types, i + 1, types, i, size - i - 1);
+      System.arraycopy(refs, i + 1, refs, i, size - i - 1);
+      if (bits != null) {
+        System.arraycopy(bits, i + 1, bits, i, size - i - 1);
+      }
+      size--;
+      refs[size] = null;
+    }
+
+    /**
+     * Sets slot i to the value in slot j of source, without copying it, for a value that leaves source.
+     */
+    void move(int i, Values source, int j) {
+      set(i, source.types[j], source.bits(j), source.refs[j]);
+    }
+
+    /**
+     * Sets slot i to a copy of the value in slot j of source, which continues to hold it.
+     */
+    void copy(int i, Values source, int j) {
+      Object ref = source.refs[j];
+      switch (source.types[j]) {
+        case LIST:
+          ref = ((Values) ref).copy();
+          break;
+        case JSON:
+          ref = ((JsonNode) ref).deepCopy();
+          break;
+        case DOCUMENT:
+          ref = ((CompactDocument) ref).deepCopy();
+          break;
+        default:
+          break;
+      }
+      set(i, source.types[j], source.bits(j), ref);
+    }
+
+    Values copy() {
+      Values copy = new Values(types.length);
+      for (int i = 0; i < size; i++) {
+        copy.copy(i, this, i);
+      }
+      return copy;
+    }
+
+    /**
+     * Sets slot i to the given value of a field, which becomes a list if the value is a JSON array.
+     */
+    void setField(int i, JsonNode node) {
+      if (node != null && node.isArray()) {
+        Values list = new Values(node.size());
+        for (JsonNode element : node) {
+          list.appendNode(element);
+        }
+        set(i, LIST, 0, list);
+      } else {
+        setNode(i, node);
+      }
+    }
+
+    void appendNode(JsonNode node) {
+      setNode(size, node);
+    }
+
+    /**
+     * Sets slot i to the given value, unpacking it from its JsonNode if it is a primitive, String, or byte[].
+     */
+    private void setNode(int i, JsonNode node) {
+      if (node == null || node.isNull()) {
+        set(i, NULL, 0, null);
+      } else if (node.isTextual()) {
+        set(i, STRING, 0, node.textValue());
+      } else if (node.isBoolean()) {
+        set(i, BOOLEAN, node.booleanValue() ? 1 : 0, null);
+      } else if (node.isInt()) {
+        set(i, INT, node.intValue(), null);
+      } else if (node.isLong()) {
+        set(i, LONG, node.longValue(), null);
+      } else if (node.isDouble()) {
+        set(i, DOUBLE, Double.doubleToRawLongBits(node.doubleValue()), null);
+      } else if (node.isFloat()) {
+        set(i, FLOAT, Float.floatToRawIntBits(node.floatValue()), null);
+      } else if (node.isBinary()) {
+        set(i, BYTES, 0, ((BinaryNode) node).binaryValue());
+      } else {
+        set(i, JSON, 0, node);
+      }
+    }
+
+    /**
+     * Returns the value in slot i as a JsonNode.
+     */
+    JsonNode node(int i) {
+      switch (types[i]) {
+        case STRING:
+          return TextNode.valueOf((String) refs[i]);
+        case BOOLEAN:
+          return BooleanNode.valueOf(bits(i) != 0);
+        case INT:
+          return IntNode.valueOf((int) bits(i));
+        case LONG:
+          return LongNode.valueOf(bits(i));
+        case FLOAT:
+          return FloatNode.valueOf(Float.intBitsToFloat((int) bits(i)));
+        case DOUBLE:
+          return DoubleNode.valueOf(Double.longBitsToDouble(bits(i)));
+        case BYTES:
+          return BinaryNode.valueOf((byte[]) refs[i]);
+        case JSON:
+          return (JsonNode) refs[i];
+        case LIST:
+          Values list = (Values) refs[i];
+          ArrayNode array = MAPPER.createArrayNode();
+          for (int j = 0; j < list.size; j++) {
+            array.add(list.node(j));
+          }
+          return array;
+        case DOCUMENT:
+          return ((CompactDocument) refs[i]).toObjectNode();
+        default:
+          return NullNode.getInstance();
+      }
+    }
+
+    String asString(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case STRING:
+          return (String) refs[i];
+        default:
+          return node(i).asText();
+      }
+    }
+
+    Integer asInt(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case INT:
+        case LONG:
+          return (int) bits(i);
+        default:
+          return node(i).asInt();
+      }
+    }
+
+    Long asLong(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case INT:
+        case LONG:
+          return bits(i);
+        default:
+          return node(i).asLong();
+      }
+    }
+
+    Double asDouble(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case INT:
+        case LONG:
+          return (double) bits(i);
+        case FLOAT:
+          return (double) Float.intBitsToFloat((int) bits(i));
+        case DOUBLE:
+          return Double.longBitsToDouble(bits(i));
+        default:
+          return node(i).asDouble();
+      }
+    }
+
+    Float asFloat(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case FLOAT:
+          return Float.intBitsToFloat((int) bits(i));
+        default:
+          return node(i).floatValue();
+      }
+    }
+
+    Boolean asBoolean(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case BOOLEAN:
+          return bits(i) != 0;
+        default:
+          return node(i).asBoolean();
+      }
+    }
+
+    Instant asInstant(int i) {
+      String value = asString(i);
+      return value == null ? null : Instant.from(DateTimeFormatter.ISO_INSTANT.parse(value));
+    }
+
+    byte[] asBytes(int i) {
+      switch (types[i]) {
+        case NULL:
+          return null;
+        case BYTES:
+          return (byte[]) refs[i];
+        default:
+          try {
+            return node(i).binaryValue();
+          } catch (IOException e) {
+            log.error("Error accessing byte[] field", e);
+            return null;
+          }
+      }
+    }
+  }
+}
@@ -16,6 +16,10 @@ public class Condition implements Predicate<Document> {
   private final List<String> fields;
   private final Set<String> values;
   private final Operator operator;
+
+  // compiled forms of fields and values, built once so that test() does not allocate
+  private final String[] fieldArray;
+  private final Predicate<String> valueMatcher;
   private enum Operator {
     MUST("must"), MUST_NOT("must_not");
 
@@ -60,41 +64,41 @@ public class Condition implements Predicate<Document> {
     this.fields = fields;
     this.values = values;
     this.operator = operator;
+    this.fieldArray = fields.toArray(new String[0]);
+    this.valueMatcher = values == null ? null : values::contains;
   }
 
   public static Condition fromConfig(Config config) {
     return new Condition(config);
   }
 
+  /**
+   * Evaluates this condition without allocating: field values are read via Document.anyStringValueMatches()
+   * rather than being copied into a List.
+   */
   @Override
   public boolean test(Document doc) {
-    boolean resultWhenValueFound = operator.equals(Operator.MUST);
+    boolean resultWhenValueFound = operator == Operator.MUST;
 
-    if (fields.isEmpty()) {
+    if (fieldArray.length == 0) {
       return true;
     }
 
-    if (values != null) {
-      for (String field : fields) {
-        if (!doc.has(field)) {
-          continue;
-        }
-
-        for (String value : doc.getStringList(field)) {
-          if (values.contains(value)) {
-            return resultWhenValueFound;
-          }
+    if (valueMatcher != null) {
+      for (String field : fieldArray) {
+        if (doc.anyStringValueMatches(field, valueMatcher)) {
+          return resultWhenValueFound;
         }
       }
-    } else {
-      if (resultWhenValueFound) {
-        return fields.stream().allMatch(field -> doc.has(field));
-      } else {
-        return fields.stream().allMatch(field -> !doc.has(field));
-      }
+      return !resultWhenValueFound;
     }
 
-
-    return !resultWhenValueFound;
+    // with no values, must requires every field to be present and must_not requires every field to be absent
+    for (String field : fieldArray) {
+      if (doc.has(field) != resultWhenValueFound) {
+        return false;
+      }
+    }
+    return true;
   }
 }
@@ -0,0 +1,129 @@
+package com.kmwllc.lucille.core;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Combines the conditions configured on a Stage into a single predicate, under either the "all" or the "any"
+ * condition policy, and reorders them as Documents are evaluated so that conditions which are cheap and likely to
+ * decide the outcome are tested first.
+ * <p>
+ * Under "all", a condition decides the outcome when it is false; under "any", when it is true. For independent
+ * conditions, evaluating them in ascending order of cost divided by the probability of deciding the outcome minimizes
+ * the expected cost of a short-circuiting evaluation. The evaluator tracks how often each condition decides the
+ * outcome, samples the cost of each condition on one evaluation in every SAMPLE_INTERVAL, and re-sorts every
+ * REORDER_INTERVAL evaluations, after which its statistics are halved so that the order can follow changes
+ * in the data. The result of test() never depends on the order.
+ * <p>
+ * Each Stage instance belongs to a single thread, so the statistics are not synchronized.
+ */
+final class ConditionEvaluator implements Predicate<Document> {
+
+  static final int SAMPLE_INTERVAL = 64;
+  static final int REORDER_INTERVAL = 4096;
+
+  private final boolean all;
+  private Entry[] entries;
+  private long evaluations = 0;
+
+  private ConditionEvaluator(List<Predicate<Document>> conditions, boolean all) {
+    this.all = all;
+    this.entries = conditions.stream().map(Entry::new).toArray(Entry[]::new);
+  }
+
+  /**
+   * Returns a predicate that is true when all (or, if all is false, any) of the given conditions are true.
+   * An empty list of conditions always passes; a single condition is returned as is.
+   */
+  static Predicate<Document> of(List<Predicate<Document>> conditions, boolean all) {
+    if (conditions.isEmpty()) {
+      return doc -> true;
+    }
+    if (conditions.size() == 1) {
+      return conditions.get(0);
+    }
+    return new ConditionEvaluator(conditions, all);
+  }
+
+  @Override
+  public boolean test(Document doc) {
+    evaluations++;
+    boolean sample = evaluations % SAMPLE_INTERVAL == 0;
+
+    boolean result = all;
+    for (Entry entry : entries) {
+      boolean value;
+      if (sample) {
+        long start = System.nanoTime();
+        value = entry.condition.test(doc);
+        entry.sampledNanos += System.nanoTime() - start;
+        entry.samples++;
+      } else {
+        value = entry.condition.test(doc);
+      }
+      entry.evaluations++;
+
+      // under "all" a false condition decides the outcome; under "any" a true one does
+      if (value != all) {
+        entry.decisions++;
+        result = !all;
+        break;
+      }
+    }
+
+    if (evaluations % REORDER_INTERVAL == 0) {
+      reorder();
+    }
+
+    return result;
+  }
+
+  private void reorder() {
+    Entry[] sorted = entries.clone();
+    Arrays.sort(sorted, Comparator.comparingDouble(Entry::rank));
+    for (Entry entry : sorted) {
+      entry.decay();
+    }
+    entries = sorted;
+  }
+
+  /**
+   * Returns the conditions in the order in which they are currently evaluated.
+   */
+  List<Predicate<Document>> getOrder() {
+    return Arrays.stream(entries).map(e -> e.condition).collect(Collectors.toList());
+  }
+
+  private static final class Entry {
+
+    private final Predicate<Document> condition;
+    private long evaluations;
+    private long decisions;
+    private long samples;
+    private long sampledNanos;
+
+    Entry(Predicate<Document> condition) {
+      this.condition = condition;
+    }
+
+    /**
+     * Expected cost of evaluating this condition per outcome it decides; lower ranks are evaluated first.
+     * Both estimates are smoothed so that a condition which has rarely been reached starts from neutral values.
+     */
+    double rank() {
+      double probability = (decisions + 1.0) / (evaluations + 2.0);
+      double cost = (sampledNanos + 1.0) / (samples + 1.0);
+      return cost / probability;
+    }
+
+    void decay() {
+      evaluations /= 2;
+      decisions /= 2;
+      samples /= 2;
+      sampledNanos /= 2;
+    }
+  }
+}
@@ -45,6 +45,15 @@ public interface Connector extends AutoCloseable {
    */
   boolean requiresCollapsingPublisher();
 
+  /**
+   * Returns the names of the Connectors that must complete successfully before this Connector may begin,
+   * as specified by the "dependsOn" setting in its configuration. Connectors that do not depend on one another
+   * may run concurrently when runner.maxConcurrentConnectors is greater than 1.
+   */
+  default List<String> getDependencies() {
+    return List.of();
+  }
+
   /**
    * Performs any logic that should occur before execute().
    */
@@ -0,0 +1,99 @@
+package com.kmwllc.lucille.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Determines which of a run's Connectors may begin, given the Connectors that have completed and those that are
+ * currently running. A Connector is ready when every Connector it depends on has completed successfully and no
+ * running Connector shares its conflict key. Connectors are offered in the order in which they were configured,
+ * so a run whose Connectors declare no dependencies and which runs one Connector at a time behaves exactly like
+ * a sequential run.
+ * <p>
+ * The conflict key identifies a resource that two Connectors cannot use at the same time, such as the Kafka topics
+ * of the pipeline they feed. A null key never conflicts.
+ */
+class ConnectorGraph {
+
+  private final List<Connector> connectors;
+  private final Function<Connector, String> conflictKey;
+
+  /**
+   * Creates a graph over the given Connectors, throwing a ConnectorException if a Connector depends on itself,
+   * on an unknown Connector, or on a cycle of Connectors.
+   */
+  ConnectorGraph(List<Connector> connectors, Function<Connector, String> conflictKey) throws ConnectorException {
+    this.connectors = connectors;
+    this.conflictKey = conflictKey;
+    validate();
+  }
+
+  private void validate() throws ConnectorException {
+    Map<String, Connector> byName = new HashMap<>();
+    for (Connector connector : connectors) {
+      byName.put(connector.getName(), connector);
+    }
+
+    for (Connector connector : connectors) {
+      for (String dependency : connector.getDependencies()) {
+        if (!byName.containsKey(dependency)) {
+          throw new ConnectorException("Connector " + connector.getName() + " depends on unknown connector: "
+              + dependency);
+        }
+      }
+    }
+
+    // repeatedly remove connectors whose dependencies have all been removed; anything left over is on a cycle
+    Set<String> resolved = new HashSet<>();
+    List<Connector> remaining = new ArrayList<>(connectors);
+    boolean progress = true;
+    while (!remaining.isEmpty() && progress) {
+      progress = remaining.removeIf(c -> {
+        if (resolved.containsAll(c.getDependencies())) {
+          resolved.add(c.getName());
+          return true;
+        }
+        return false;
+      });
+    }
+
+    if (!remaining.isEmpty()) {
+      List<String> names = new ArrayList<>();
+      for (Connector connector : remaining) {
+        names.add(connector.getName());
+      }
+      throw new ConnectorException("Connector dependencies contain a cycle among: " + names);
+    }
+  }
+
+  /**
+   * Returns the first Connector, in configuration order, that has not been started and that may begin now,
+   * or null if there is none.
+   */
+  Connector getNext(Set<String> succeeded, Set<String> started, Collection<Connector> running) {
+    Set<String> busyKeys = new HashSet<>();
+    for (Connector connector : running) {
+      String key = conflictKey.apply(connector);
+      if (key != null) {
+        busyKeys.add(key);
+      }
+    }
+
+    for (Connector connector : connectors) {
+      if (started.contains(connector.getName()) || !succeeded.containsAll(connector.getDependencies())) {
+        continue;
+      }
+      String key = conflictKey.apply(connector);
+      if (key == null || !busyKeys.contains(key)) {
+        return connector;
+      }
+    }
+    return null;
+  }
+}
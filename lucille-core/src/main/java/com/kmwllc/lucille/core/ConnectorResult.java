@@ -6,6 +6,8 @@ package com.kmwllc.lucille.core;
  */
 public class ConnectorResult {
 
+  private final String connectorName;
+
   // true indicates success, false indicates failure
   private final boolean status;
 
@@ -21,6 +23,7 @@ public class ConnectorResult {
 
   public ConnectorResult(Connector connector, Publisher publisher,
       boolean status, String errMsg, Double durationSecs) {
+    this.connectorName = connector.getName();
     this.status = status;
     this.message = formatMessage(connector, publisher, status, errMsg, durationSecs);
     if (publisher != null) {
@@ -32,6 +35,10 @@ public class ConnectorResult {
     }
   }
 
+  public String getConnectorName() {
+    return connectorName;
+  }
+
   public boolean getStatus() {
     return status;
   }
@@ -0,0 +1,246 @@
+package com.kmwllc.lucille.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe multiset of Document IDs with constant-time add and remove, used by PublisherImpl to track
+ * documents that have not yet reached a terminal state.
+ * <p>
+ * IDs are not stored. Each ID is reduced to a 64-bit hash, which selects its slot, and a 32-bit check value
+ * (String.hashCode(), which is cached by String), which is stored alongside the slot's count. Two IDs that share a
+ * 64-bit hash but differ in their check value are detected as a collision, and the later of the two is counted in a
+ * small overflow map keyed by the ID itself. The overflow map is expected to stay empty in practice.
+ * <p>
+ * The table is split into segments, selected by the high bits of the hash, that are locked independently, so that
+ * a thread publishing Documents and a thread handling Events rarely contend. Each segment is an open-addressing
+ * table with linear probing that grows when half full and shrinks when mostly empty.
+ */
+final class DocIdMultiset {
+
+  private static final int SEGMENTS = 16;
+  private static final int SEGMENT_SHIFT = 60;
+  private static final int MIN_CAPACITY = 16;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final ToLongFunction<String> hashFunction;
+
+  DocIdMultiset() {
+    this(DocIdMultiset::hash);
+  }
+
+  /**
+   * Creates a multiset that uses the given 64-bit hash function; allows tests to force collisions.
+   */
+  DocIdMultiset(ToLongFunction<String> hashFunction) {
+    this.hashFunction = hashFunction;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Adds one occurrence of the given ID.
+   */
+  void add(String id) {
+    long hash = hashFunction.applyAsLong(id);
+    segmentFor(hash).add(id, hash, id.hashCode());
+  }
+
+  /**
+   * Removes one occurrence of the given ID. Returns false, leaving the multiset unchanged, if the ID is not present.
+   */
+  boolean remove(String id) {
+    long hash = hashFunction.applyAsLong(id);
+    return segmentFor(hash).remove(id, hash, id.hashCode());
+  }
+
+  /**
+   * Returns the number of occurrences of the given ID.
+   */
+  int count(String id) {
+    long hash = hashFunction.applyAsLong(id);
+    return segmentFor(hash).count(id, hash, id.hashCode());
+  }
+
+  /**
+   * Returns the total number of occurrences of all IDs.
+   */
+  long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  boolean isEmpty() {
+    for (Segment segment : segments) {
+      if (segment.size() > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Segment segmentFor(long hash) {
+    return segments[(int) (hash >>> SEGMENT_SHIFT)];
+  }
+
+  /**
+   * 64-bit FNV-1a over the UTF-16 code units of the ID, followed by the MurmurHash3 finalizer so that
+   * both the high bits (segment) and the low bits (slot) are well mixed.
+   */
+  static long hash(String id) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      h ^= id.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static final class Segment {
+
+    // a slot is empty when its count is zero
+    private long[] hashes = new long[MIN_CAPACITY];
+    private int[] checks = new int[MIN_CAPACITY];
+    private int[] counts = new int[MIN_CAPACITY];
+    private int occupied = 0;
+
+    // total number of occurrences in this segment, including the overflow map; read without locking
+    private volatile long size = 0;
+
+    // IDs whose hash collides with a different ID already occupying a slot
+    private Map<String, Integer> overflow = null;
+
+    long size() {
+      return size;
+    }
+
+    synchronized void add(String id, long hash, int check) {
+      size++;
+      if (overflow != null && overflow.containsKey(id)) {
+        overflow.merge(id, 1, Integer::sum);
+        return;
+      }
+
+      int slot = find(hash);
+      if (counts[slot] == 0) {
+        hashes[slot] = hash;
+        checks[slot] = check;
+        counts[slot] = 1;
+        occupied++;
+        if (occupied * 2 > counts.length) {
+          resize(counts.length * 2);
+        }
+      } else if (checks[slot] == check) {
+        counts[slot]++;
+      } else {
+        if (overflow == null) {
+          overflow = new HashMap<>();
+        }
+        overflow.put(id, 1);
+      }
+    }
+
+    synchronized boolean remove(String id, long hash, int check) {
+      if (overflow != null) {
+        Integer count = overflow.get(id);
+        if (count != null) {
+          if (count == 1) {
+            overflow.remove(id);
+            if (overflow.isEmpty()) {
+              overflow = null;
+            }
+          } else {
+            overflow.put(id, count - 1);
+          }
+          size--;
+          return true;
+        }
+      }
+
+      int slot = find(hash);
+      if (counts[slot] == 0 || checks[slot] != check) {
+        return false;
+      }
+
+      size--;
+      if (--counts[slot] == 0) {
+        occupied--;
+        deleteSlot(slot);
+        if (counts.length > MIN_CAPACITY && occupied * 8 < counts.length) {
+          resize(counts.length / 2);
+        }
+      }
+      return true;
+    }
+
+    synchronized int count(String id, long hash, int check) {
+      if (overflow != null && overflow.containsKey(id)) {
+        return overflow.get(id);
+      }
+      int slot = find(hash);
+      return counts[slot] != 0 && checks[slot] == check ? counts[slot] : 0;
+    }
+
+    /**
+     * Returns the slot holding the given hash, or the empty slot where it would be inserted.
+     */
+    private int find(long hash) {
+      int mask = counts.length - 1;
+      int slot = (int) hash & mask;
+      while (counts[slot] != 0 && hashes[slot] != hash) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    /**
+     * Empties the given slot and shifts back any later entries in its probe sequence, so that lookups
+     * never need tombstones.
+     */
+    private void deleteSlot(int slot) {
+      int mask = counts.length - 1;
+      int gap = slot;
+      int next = (gap + 1) & mask;
+      while (counts[next] != 0) {
+        int home = (int) hashes[next] & mask;
+        // move the entry into the gap if its home slot does not lie cyclically in (gap, next]
+        if (((next - home) & mask) >= ((next - gap) & mask)) {
+          hashes[gap] = hashes[next];
+          checks[gap] = checks[next];
+          counts[gap] = counts[next];
+          counts[next] = 0;
+          gap = next;
+        }
+        next = (next + 1) & mask;
+      }
+      counts[gap] = 0;
+    }
+
+    private void resize(int capacity) {
+      long[] oldHashes = hashes;
+      int[] oldChecks = checks;
+      int[] oldCounts = counts;
+      hashes = new long[capacity];
+      checks = new int[capacity];
+      counts = new int[capacity];
+      for (int i = 0; i < oldCounts.length; i++) {
+        if (oldCounts[i] != 0) {
+          int slot = find(oldHashes[i]);
+          hashes[slot] = oldHashes[i];
+          checks[slot] = oldChecks[i];
+          counts[slot] = oldCounts[i];
+        }
+      }
+    }
+  }
+}
@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 
 /**
@@ -89,6 +90,26 @@ public interface Document {
    */
   List<String> getStringList(String name);
 
+  /**
+   * Returns true if the designated field is present and at least one of its values, converted to a String as by
+   * getStringList(), satisfies the given predicate. Returns false if the field is absent.
+   *
+   * Implementations should avoid materializing a List of values, since this is called for every Document
+   * that reaches a conditional Stage.
+   */
+  default boolean anyStringValueMatches(String name, Predicate<String> predicate) {
+    List<String> values = getStringList(name);
+    if (values == null) {
+      return false;
+    }
+    for (String value : values) {
+      if (predicate.test(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   List<Boolean> getBooleanList(String name);
 
   List<Integer> getIntList(String name);
@@ -517,16 +538,20 @@ public interface Document {
 
   /* --- CREATORS --- */
 
+  /*
+   * These produce Documents of the implementation selected through DocumentImplementation, JsonDocument by default.
+   */
+
   static Document create(ObjectNode node) throws DocumentException {
-    return new JsonDocument(node);
+    return DocumentImplementation.get().create(node);
   }
 
   static Document create(String id) {
-    return new JsonDocument(id);
+    return DocumentImplementation.get().create(id);
   }
 
   static Document create(String id, String runId) {
-    return new JsonDocument(id, runId);
+    return DocumentImplementation.get().create(id, runId);
   }
 
   static Document createFromJson(String json) throws DocumentException, JsonProcessingException {
@@ -534,7 +559,7 @@ public interface Document {
   }
 
   static Document createFromJson(String json, UnaryOperator<String> idUpdater) throws DocumentException, JsonProcessingException {
-    return JsonDocument.fromJsonString(json, idUpdater);
+    return DocumentImplementation.get().createFromJson(json, idUpdater);
   }
 
 }
@@ -0,0 +1,105 @@
+package com.kmwllc.lucille.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * The Document implementations that {@link Document#create(String)} and related methods can produce. The
+ * implementation in use applies to the whole JVM; it is JSON ({@link JsonDocument}) unless configured otherwise.
+ * <p>
+ * Set with document.implementation ("json" or "compact"), which is read by the Runner and by the Worker, Indexer,
+ * and WorkerIndexer entry points before any Documents are created. Documents of either implementation can be
+ * converted to the other, and either may be added as a child of the other.
+ */
+public enum DocumentImplementation {
+
+  JSON {
+    @Override
+    Document create(String id) {
+      return new JsonDocument(id);
+    }
+
+    @Override
+    Document create(String id, String runId) {
+      return new JsonDocument(id, runId);
+    }
+
+    @Override
+    Document create(ObjectNode node) throws DocumentException {
+      return new JsonDocument(node);
+    }
+
+    @Override
+    Document createFromJson(String json, UnaryOperator<String> idUpdater)
+        throws DocumentException, JsonProcessingException {
+      return JsonDocument.fromJsonString(json, idUpdater);
+    }
+  },
+
+  COMPACT {
+    @Override
+    Document create(String id) {
+      return new CompactDocument(id);
+    }
+
+    @Override
+    Document create(String id, String runId) {
+      return new CompactDocument(id, runId);
+    }
+
+    @Override
+    Document create(ObjectNode node) throws DocumentException {
+      return new CompactDocument(node);
+    }
+
+    @Override
+    Document createFromJson(String json, UnaryOperator<String> idUpdater)
+        throws DocumentException, JsonProcessingException {
+      return CompactDocument.fromJsonString(json, idUpdater);
+    }
+  };
+
+  public static final String CONFIG_PATH = "document.implementation";
+
+  private static volatile DocumentImplementation current = JSON;
+
+  abstract Document create(String id);
+
+  abstract Document create(String id, String runId);
+
+  abstract Document create(ObjectNode node) throws DocumentException;
+
+  abstract Document createFromJson(String json, UnaryOperator<String> idUpdater)
+      throws DocumentException, JsonProcessingException;
+
+  /**
+   * Returns the implementation that Document.create() currently produces.
+   */
+  public static DocumentImplementation get() {
+    return current;
+  }
+
+  public static void set(DocumentImplementation implementation) {
+    current = implementation;
+  }
+
+  /**
+   * Selects the implementation named by document.implementation in the given config, or JSON if it is not set.
+   *
+   * @throws IllegalArgumentException if the name is not that of an implementation
+   */
+  public static void configure(Config config) {
+    set(config.hasPath(CONFIG_PATH) ? fromName(config.getString(CONFIG_PATH)) : JSON);
+  }
+
+  public static DocumentImplementation fromName(String name) {
+    try {
+      return valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown " + CONFIG_PATH + ": " + name);
+    }
+  }
+}
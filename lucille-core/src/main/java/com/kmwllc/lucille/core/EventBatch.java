@@ -0,0 +1,166 @@
+package com.kmwllc.lucille.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A compact envelope carrying the Events produced by a batch of Documents, all relating to the same run, so that
+ * a worker micro-batch or an indexer batch can notify the Publisher with a single message instead of one
+ * message per Document.
+ * <p>
+ * Events are grouped by type, and each group lists the IDs of its Documents. When every Event in a group has the
+ * same message, which is the common case (e.g. "SUCCEEDED"), the message is stored once:
+ * <pre>
+ * {"runId": "...", "events": {
+ *   "CREATE": {"ids": ["doc1-1", "doc1-2"]},
+ *   "FINISH": {"ids": ["doc1-1", "doc1-2", "doc1"], "message": "SUCCEEDED"},
+ *   "FAIL": {"ids": ["doc2", "doc3"], "messages": ["FAILED: x", "FAILED: y"]}}}
+ * </pre>
+ * When expanded back into Events, CREATE events come first, so that the Publisher learns of every child in the
+ * batch before any terminal event. Per-Document Kafka metadata and timestamps are not carried in the envelope.
+ */
+public class EventBatch {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String runId;
+  private final Map<Event.Type, List<String>> ids = new EnumMap<>(Event.Type.class);
+  private final Map<Event.Type, List<String>> messages = new EnumMap<>(Event.Type.class);
+
+  public EventBatch(String runId) {
+    this.runId = runId;
+  }
+
+  /**
+   * Adds the given Event to this batch. The Event must relate to the same run as the batch.
+   */
+  public void add(Event event) {
+    if (!Objects.equals(runId, event.getRunId())) {
+      throw new IllegalArgumentException("Event for run " + event.getRunId() + " cannot be added to batch for run "
+          + runId);
+    }
+    ids.computeIfAbsent(event.getType(), t -> new ArrayList<>()).add(event.getDocumentId());
+    messages.computeIfAbsent(event.getType(), t -> new ArrayList<>()).add(event.getMessage());
+  }
+
+  public String getRunId() {
+    return runId;
+  }
+
+  public int size() {
+    return ids.values().stream().mapToInt(List::size).sum();
+  }
+
+  public boolean isEmpty() {
+    return ids.isEmpty();
+  }
+
+  /**
+   * Returns the Events in this batch, with CREATE events first and the remaining types in declaration order.
+   */
+  public List<Event> getEvents() {
+    List<Event> events = new ArrayList<>(size());
+    for (Event.Type type : Event.Type.values()) {
+      List<String> typeIds = ids.get(type);
+      if (typeIds == null) {
+        continue;
+      }
+      List<String> typeMessages = messages.get(type);
+      for (int i = 0; i < typeIds.size(); i++) {
+        events.add(new Event(typeIds.get(i), runId, typeMessages.get(i), type));
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Groups the given Events by run, preserving the order in which each run first appears.
+   */
+  public static List<EventBatch> of(List<Event> events) {
+    List<EventBatch> batches = new ArrayList<>();
+    for (Event event : events) {
+      EventBatch batch = null;
+      for (EventBatch candidate : batches) {
+        if (Objects.equals(candidate.runId, event.getRunId())) {
+          batch = candidate;
+          break;
+        }
+      }
+      if (batch == null) {
+        batch = new EventBatch(event.getRunId());
+        batches.add(batch);
+      }
+      batch.add(event);
+    }
+    return batches;
+  }
+
+  public String toString() {
+    ObjectNode root = MAPPER.createObjectNode();
+    root.put("runId", runId);
+    ObjectNode groups = root.putObject("events");
+
+    for (Map.Entry<Event.Type, List<String>> entry : ids.entrySet()) {
+      ObjectNode group = groups.putObject(entry.getKey().name());
+      ArrayNode idArray = group.putArray("ids");
+      entry.getValue().forEach(idArray::add);
+
+      List<String> typeMessages = messages.get(entry.getKey());
+      String first = typeMessages.get(0);
+      if (typeMessages.stream().allMatch(m -> Objects.equals(m, first))) {
+        if (first != null) {
+          group.put("message", first);
+        }
+      } else {
+        ArrayNode messageArray = group.putArray("messages");
+        typeMessages.forEach(messageArray::add);
+      }
+    }
+
+    try {
+      return MAPPER.writeValueAsString(root);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("EventBatch could not be serialized.");
+    }
+  }
+
+  /**
+   * Parses a message from the event channel, which may hold either a single Event or an EventBatch,
+   * and returns the Events it contains.
+   */
+  public static List<Event> parseEvents(String json) throws Exception {
+    JsonNode root = MAPPER.readTree(json);
+    if (!root.has("events")) {
+      return List.of(Event.fromJsonString(json));
+    }
+
+    String runId = root.hasNonNull("runId") ? root.get("runId").asText() : null;
+    List<Event> events = new ArrayList<>();
+    JsonNode groups = root.get("events");
+    for (Event.Type type : Event.Type.values()) {
+      JsonNode group = groups.get(type.name());
+      if (group == null) {
+        continue;
+      }
+      JsonNode idArray = group.get("ids");
+      JsonNode messageArray = group.get("messages");
+      String message = group.hasNonNull("message") ? group.get("message").asText() : null;
+      for (int i = 0; i < idArray.size(); i++) {
+        if (messageArray != null) {
+          message = messageArray.get(i).isNull() ? null : messageArray.get(i).asText();
+        }
+        events.add(new Event(idArray.get(i).asText(), runId, message, type));
+      }
+    }
+    return events;
+  }
+}
@@ -21,12 +21,26 @@ public class ExponentialBackoffRetryHandler implements HttpRequestRetryHandler {
     this.maxExpiry = maxExpiry;
   }
 
+  /**
+   * Returns whether a request may be retried for the given time, counting from 1.
+   */
+  public boolean canRetry(int numRetries) {
+    return numRetries <= this.maxNumRetries;
+  }
+
+  /**
+   * Returns the number of milliseconds to wait before retrying a request for the given time, counting from 1.
+   */
+  public long getDelay(int numRetries) {
+    return (long) Math.min(this.initialExpiry * Math.pow(2, numRetries - 1), this.maxExpiry);
+  }
+
   @Override
   public boolean retryRequest(IOException exception, int numRetries, HttpContext httpContext) {
-    if (numRetries > this.maxNumRetries) {
+    if (!canRetry(numRetries)) {
       return false;
     } else {
-      long delay = (long) Math.min(this.initialExpiry * Math.pow(2, numRetries - 1), this.maxExpiry);
+      long delay = getDelay(numRetries);
       HttpClientContext clientContext = HttpClientContext.adapt(httpContext);
       log.info("Retrying request path '{}'........waiting {}ms", clientContext.getRequest().getRequestLine().getUri(), delay);
       try {
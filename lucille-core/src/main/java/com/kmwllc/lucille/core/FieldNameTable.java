@@ -0,0 +1,41 @@
+package com.kmwllc.lucille.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table shared by every CompactDocument in the JVM, which maps each field name to a single canonical String
+ * instance. Documents passing through a pipeline tend to have the same handful of field names, so a field name is
+ * held in memory once rather than once per Document, and a lookup with a name that came from the table, or from the
+ * same Stage configuration, can be decided by reference comparison.
+ * <p>
+ * The table is bounded so that Documents with generated field names cannot grow it without limit: once it holds
+ * MAX_NAMES names, further names are returned as given and are simply not shared.
+ */
+final class FieldNameTable {
+
+  static final int MAX_NAMES = 100_000;
+
+  private static final ConcurrentHashMap<String, String> NAMES = new ConcurrentHashMap<>();
+
+  private FieldNameTable() {
+  }
+
+  /**
+   * Returns the canonical instance of the given field name.
+   */
+  static String intern(String name) {
+    String canonical = NAMES.get(name);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (NAMES.size() >= MAX_NAMES) {
+      return name;
+    }
+    canonical = NAMES.putIfAbsent(name, name);
+    return canonical == null ? name : canonical;
+  }
+
+  static int size() {
+    return NAMES.size();
+  }
+}
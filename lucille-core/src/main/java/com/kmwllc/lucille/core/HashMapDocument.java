@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import javax.naming.OperationNotSupportedException;
@@ -321,6 +322,25 @@ public class HashMapDocument implements Document, Serializable {
     return getValues(name, String::valueOf);
   }
 
+  @Override
+  public boolean anyStringValueMatches(String name, Predicate<String> predicate) {
+    if (!has(name)) {
+      return false;
+    }
+
+    if (!data.isMultiValued(name)) {
+      return predicate.test(convertOrNull(data.getOne(name), String::valueOf));
+    }
+
+    List<?> values = data.getMany(name);
+    for (int i = 0; i < values.size(); i++) {
+      if (predicate.test(convertOrNull(values.get(i), String::valueOf))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public Integer getInt(String name) {
     return getValue(name, TO_INT);
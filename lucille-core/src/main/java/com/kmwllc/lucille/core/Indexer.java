@@ -11,16 +11,36 @@ import com.kmwllc.lucille.message.KafkaIndexerMessenger;
 import com.kmwllc.lucille.util.LogUtils;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
-import org.apache.commons.lang3.time.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import sun.misc.Signal;
 
+/**
+ * Polls Documents that have completed a pipeline, gathers them into batches, and sends each batch to the destination
+ * search engine, emitting a FINISH or FAIL event for every Document once its batch has been sent.
+ * <p>
+ * By default a batch is sent on the polling thread, which waits for the search engine to respond before polling
+ * again. When indexer.sendThreads is greater than 1, batches are instead sent by that many sender threads, or
+ * "lanes," so that several bulk requests can be outstanding at once, up to indexer.maxInFlightBatches. Each lane has
+ * its own batch, and a Document always goes to the lane chosen by the ID it will be indexed under, so updates and
+ * deletions of the same ID reach the search engine in the order they were polled. The outcome of each batch is still
+ * reported on the polling thread, as messengers expect: events are sent and messenger.batchComplete() is called for
+ * each batch once it has been sent, in the order the batches were handed to the lanes. A batch that one lane finishes
+ * early waits for the batches handed out before it, as messengers that commit offsets treat each completed batch as
+ * covering everything before it. Delete-by-query requests may match Documents in any lane, so they are not ordered
+ * with respect to other lanes' batches.
+ */
 public abstract class Indexer implements Runnable {
 
   public static final int DEFAULT_BATCH_SIZE = 100;
@@ -29,13 +49,21 @@ public abstract class Indexer implements Runnable {
   private static final Logger log = LoggerFactory.getLogger(Indexer.class);
 
   private final IndexerMessenger messenger;
-  private final Batch batch;
+
+  // one batch per lane, all filled according to the same policy
+  private final Batch[] batches;
+  private final BatchPolicy batchPolicy;
+  // one single-threaded sender per lane, created on first use; always null if there is only one lane, as batches
+  // are then sent on the polling thread
+  private ExecutorService[] lanes;
+  private final int maxInFlightBatches;
+  // batches handed to a lane whose outcome has not yet been reported; only accessed on the polling thread
+  private final ArrayDeque<InFlightBatch> inFlight = new ArrayDeque<>();
 
   private volatile boolean running = true;
 
   private final int logSeconds;
 
-  private final StopWatch stopWatch;
   private final Meter meter;
   private final Histogram histogram;
 
@@ -86,18 +114,26 @@ public abstract class Indexer implements Runnable {
         config.hasPath("indexer.deleteByFieldValue")
             ? config.getString("indexer.deleteByFieldValue")
             : null;
-    int batchSize =
-        config.hasPath("indexer.batchSize")
-            ? config.getInt("indexer.batchSize")
-            : DEFAULT_BATCH_SIZE;
     int batchTimeout =
         config.hasPath("indexer.batchTimeout")
             ? config.getInt("indexer.batchTimeout")
             : DEFAULT_BATCH_TIMEOUT;
-    this.batch =
-        (indexOverrideField == null)
-            ? new SingleBatch(batchSize, batchTimeout)
-            : new MultiBatch(batchSize, batchTimeout, indexOverrideField);
+    int sendThreads = ConfigUtils.getOrDefault(config, "indexer.sendThreads", 1);
+    if (sendThreads < 1) {
+      throw new IllegalArgumentException("indexer.sendThreads must be at least 1");
+    }
+    this.maxInFlightBatches = ConfigUtils.getOrDefault(config, "indexer.maxInFlightBatches", sendThreads);
+    if (maxInFlightBatches < 1) {
+      throw new IllegalArgumentException("indexer.maxInFlightBatches must be at least 1");
+    }
+    this.batchPolicy = new BatchPolicy(config, metricsPrefix);
+    this.batches = new Batch[sendThreads];
+    for (int i = 0; i < sendThreads; i++) {
+      batches[i] =
+          (indexOverrideField == null)
+              ? new SingleBatch(batchTimeout, batchPolicy)
+              : new MultiBatch(batchTimeout, indexOverrideField, batchPolicy);
+    }
     // validate config deletionFields that must be present together
     if ((deleteByFieldField != null && deleteByFieldValue == null)
         || (deleteByFieldField == null && deleteByFieldValue != null)) {
@@ -112,7 +148,6 @@ public abstract class Indexer implements Runnable {
 
     this.logSeconds = ConfigUtils.getOrDefault(config, "log.seconds", LogUtils.DEFAULT_LOG_SECONDS);
     MetricRegistry metrics = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG);
-    this.stopWatch = new StopWatch();
     this.meter = metrics.meter(metricsPrefix + ".indexer.docsIndexed");
     this.histogram = metrics.histogram(metricsPrefix + ".indexer.batchTimeOverSize");
   }
@@ -127,6 +162,12 @@ public abstract class Indexer implements Runnable {
    * Send a batch of documents to the destination search engine. Implementations should use a single
    * call to the batch API provided by the search engine client, if available, as opposed to sending
    * each document individually.
+   *
+   * When indexer.sendThreads is greater than 1, this is called concurrently from that many sender
+   * threads, each with its own batch, so implementations must be thread-safe.
+   *
+   * If an exception is thrown, every document in the batch is reported as failed, unless it is a
+   * PartialIndexingException, in which case only the documents it lists are.
    */
   protected abstract void sendToIndex(List<Document> documents) throws Exception;
 
@@ -134,6 +175,11 @@ public abstract class Indexer implements Runnable {
   public abstract void closeConnection();
 
   private void close() {
+    if (lanes != null) {
+      for (ExecutorService lane : lanes) {
+        lane.shutdownNow();
+      }
+    }
     if (messenger != null) {
       try {
         messenger.close();
@@ -150,7 +196,7 @@ public abstract class Indexer implements Runnable {
       while (running) {
         checkForDoc();
       }
-      sendToIndexWithAccounting(batch.flush()); // handle final batch
+      flushAll(); // handle final batches
     } finally {
       close();
     }
@@ -161,12 +207,21 @@ public abstract class Indexer implements Runnable {
       for (int i = 0; i < iterations; i++) {
         checkForDoc();
       }
-      sendToIndexWithAccounting(batch.flush()); // handle final batch
+      flushAll(); // handle final batches
     } finally {
       close();
     }
   }
 
+  private void flushAll() {
+    for (int i = 0; i < batches.length; i++) {
+      dispatch(i, batches[i].flush());
+    }
+    while (!inFlight.isEmpty()) {
+      completeOldest();
+    }
+  }
+
   private void checkForDoc() {
     Document doc;
     try {
@@ -179,15 +234,108 @@ public abstract class Indexer implements Runnable {
       return;
     }
 
+    completeFinished();
+
     if (doc == null) {
-      sendToIndexWithAccounting(batch.flushIfExpired());
+      for (int i = 0; i < batches.length; i++) {
+        dispatch(i, batches[i].flushIfExpired());
+      }
       return;
     }
 
-    sendToIndexWithAccounting(batch.add(doc));
+    int lane = laneOf(doc);
+    dispatch(lane, batches[lane].add(doc));
+  }
+
+  /**
+   * Returns the lane for the given document, chosen by the ID it will be indexed under.
+   */
+  private int laneOf(Document doc) {
+    if (batches.length == 1) {
+      return 0;
+    }
+    String idOverride = getDocIdOverride(doc);
+    String id = idOverride != null ? idOverride : doc.getId();
+    return Math.floorMod(id.hashCode(), batches.length);
   }
 
-  private void sendToIndexWithAccounting(List<Document> batchedDocs) {
+  /**
+   * Sends the given batch on the polling thread, or hands it to the given lane once fewer than maxInFlightBatches
+   * batches are in flight.
+   */
+  private void dispatch(int lane, List<Document> batchedDocs) {
+    logProgress();
+
+    if (batchedDocs.isEmpty()) {
+      return;
+    }
+
+    if (batches.length == 1) {
+      complete(batchedDocs, send(batchedDocs));
+      return;
+    }
+
+    if (lanes == null) {
+      lanes = new ExecutorService[batches.length];
+      for (int i = 0; i < lanes.length; i++) {
+        lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "indexer-sender");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+    }
+
+    while (inFlight.size() >= maxInFlightBatches) {
+      completeOldest();
+    }
+    inFlight.add(new InFlightBatch(batchedDocs, lanes[lane].submit(() -> send(batchedDocs))));
+  }
+
+  /**
+   * Sends the given batch and returns the exception that sending it raised, or null if it succeeded.
+   */
+  private Exception send(List<Document> batchedDocs) {
+    long start = System.nanoTime();
+    try {
+      sendToIndex(batchedDocs);
+      long nanos = System.nanoTime() - start;
+      batchPolicy.recordSent(batchedDocs.size(), nanos);
+      histogram.update(nanos / batchedDocs.size());
+      meter.mark(batchedDocs.size());
+      return null;
+    } catch (PartialIndexingException e) {
+      // the destination accepted the batch, so its latency is still a signal; the failures are the documents' own
+      long nanos = System.nanoTime() - start;
+      batchPolicy.recordSent(batchedDocs.size(), nanos);
+      histogram.update(nanos / batchedDocs.size());
+      meter.mark(batchedDocs.size() - e.getFailureCount());
+      return e;
+    } catch (Exception e) {
+      batchPolicy.recordFailed();
+      return e;
+    }
+  }
+
+  /**
+   * Reports the outcome of the in-flight batches that have been sent, oldest first, stopping at the first batch that
+   * its lane has not finished sending.
+   */
+  private void completeFinished() {
+    while (!inFlight.isEmpty() && inFlight.peek().result.isDone()) {
+      completeOldest();
+    }
+  }
+
+  /**
+   * Waits for the oldest in-flight batch to be sent and reports its outcome.
+   */
+  private void completeOldest() {
+    InFlightBatch batch = inFlight.poll();
+    complete(batch.docs, batch.outcome());
+  }
+
+  private void logProgress() {
     if (ChronoUnit.SECONDS.between(lastLog, Instant.now()) > logSeconds) {
       log.info(
           String.format(
@@ -197,49 +345,97 @@ public abstract class Indexer implements Runnable {
               histogram.getSnapshot().getMean() / 1000000));
       lastLog = Instant.now();
     }
+  }
 
-    if (batchedDocs.isEmpty()) {
+  /**
+   * Sends events for a batch that has been sent, given the exception sending it raised, if any, and marks it
+   * complete. Called on the polling thread.
+   */
+  private void complete(List<Document> batchedDocs, Exception e) {
+    if (e instanceof PartialIndexingException) {
+      completePartially(batchedDocs, (PartialIndexingException) e);
       return;
     }
 
-    try {
-      stopWatch.reset();
-      stopWatch.start();
-      sendToIndex(batchedDocs);
-      stopWatch.stop();
-      histogram.update(stopWatch.getNanoTime() / batchedDocs.size());
-      meter.mark(batchedDocs.size());
-    } catch (Exception e) {
+    if (e != null) {
       log.error("Error sending documents to index: " + e.getMessage(), e);
+      sendEvents(batchedDocs, "FAILED: " + e.getMessage(), Event.Type.FAIL);
+    }
 
-      for (Document d : batchedDocs) {
-        try {
-          messenger.sendEvent(d, "FAILED: " + e.getMessage(), Event.Type.FAIL);
-        } catch (Exception e2) {
-          // TODO: The run won't be able to finish if this event isn't received; can we do something
-          // special here?
-          log.error("Couldn't send failure event for doc " + d.getId(), e2);
-        }
-      }
-      return;
-    } finally {
-      try {
-        // for now we add offsets whether or not the batch was successfully indexed
-        messenger.batchComplete(batchedDocs);
-      } catch (Exception e) {
-        log.error("Error marking batch complete.", e);
-      }
+    try {
+      // for now we add offsets whether or not the batch was successfully indexed
+      messenger.batchComplete(batchedDocs);
+    } catch (Exception ex) {
+      log.error("Error marking batch complete.", ex);
+    }
+
+    if (e == null) {
+      sendEvents(batchedDocs, "SUCCEEDED", Event.Type.FINISH);
     }
+  }
 
+  /**
+   * Sends events for a batch in which only the documents listed by the given exception could not be sent: a FAIL
+   * event for each of those, with the reason it failed, and a FINISH event for each of the rest.
+   */
+  private void completePartially(List<Document> batchedDocs, PartialIndexingException e) {
+    log.error("Error sending {} of {} documents to index: {}", e.getFailureCount(), batchedDocs.size(),
+        e.getMessage());
+
+    List<Document> succeeded = new ArrayList<>(batchedDocs.size());
+    List<Event> failEvents = new ArrayList<>(e.getFailureCount());
     for (Document d : batchedDocs) {
-      try {
-        messenger.sendEvent(d, "SUCCEEDED", Event.Type.FINISH);
-      } catch (Exception e) {
-        // TODO: The run won't be able to finish if this event isn't received; can we do something
-        // special here?
-        log.error("Error sending completion event for doc " + d.getId(), e);
+      if (e.isFailed(d)) {
+        failEvents.add(new Event(d, "FAILED: " + e.getFailure(d), Event.Type.FAIL));
+      } else {
+        succeeded.add(d);
       }
     }
+    if (!failEvents.isEmpty()) {
+      sendEvents(failEvents, Event.Type.FAIL);
+    }
+
+    try {
+      messenger.batchComplete(batchedDocs);
+    } catch (Exception ex) {
+      log.error("Error marking batch complete.", ex);
+    }
+
+    if (!succeeded.isEmpty()) {
+      sendEvents(succeeded, "SUCCEEDED", Event.Type.FINISH);
+    }
+  }
+
+  /**
+   * Sends an Event of the given type for every document in the batch, together as one EventBatch
+   * where the messenger supports it.
+   */
+  private void sendEvents(List<Document> batchedDocs, String message, Event.Type type) {
+    List<Event> events = new ArrayList<>(batchedDocs.size());
+    for (Document d : batchedDocs) {
+      events.add(new Event(d, message, type));
+    }
+    sendEvents(events, type);
+  }
+
+  private void sendEvents(List<Event> events, Event.Type type) {
+    try {
+      messenger.sendEvents(events);
+    } catch (Exception e) {
+      // TODO: The run won't be able to finish if these events aren't received; can we do something
+      // special here?
+      log.error("Error sending " + type + " events for batch of " + events.size() + " docs starting with "
+          + events.get(0).getDocumentId(), e);
+    }
+  }
+
+  /**
+   * Called from sendToIndex() when the destination rejected some of the documents because it was overloaded, even if
+   * they were then sent on a retry, so that an adaptive batch size shrinks as it would if the whole batch had failed.
+   * Should be called at most once per batch.
+   */
+  protected void recordThrottled() {
+    batchPolicy.recordThrottled();
   }
 
   /**
@@ -265,6 +461,13 @@ public abstract class Indexer implements Runnable {
     return null;
   }
 
+  /**
+   * Returns true if the given field is listed in indexer.ignoreFields and should not be sent to the destination.
+   */
+  protected boolean isIgnoredField(String name) {
+    return ignoreFields != null && ignoreFields.contains(name);
+  }
+
   protected Map<String, Object> getIndexerDoc(Document doc) {
     Map<String, Object> indexerDoc = doc.asMap();
     if (ignoreFields != null) {
@@ -277,6 +480,7 @@ public abstract class Indexer implements Runnable {
     Config config = ConfigFactory.load();
     String pipelineName = args.length > 0 ? args[0] : config.getString("indexer.pipeline");
     log.info("Starting Indexer for pipeline: " + pipelineName);
+    DocumentImplementation.configure(config);
     IndexerMessenger messenger = new KafkaIndexerMessenger(config, pipelineName);
     Indexer indexer = IndexerFactory.fromConfig(config, messenger, false, pipelineName);
 
@@ -303,6 +507,31 @@ public abstract class Indexer implements Runnable {
   }
 
   public int getBatchCapacity() {
-    return batch.getCapacity();
+    return batches[0].getCapacity();
+  }
+
+  private static class InFlightBatch {
+
+    final List<Document> docs;
+    final Future<Exception> result;
+
+    InFlightBatch(List<Document> docs, Future<Exception> result) {
+      this.docs = docs;
+      this.result = result;
+    }
+
+    /**
+     * Waits for the batch to be sent and returns the exception sending it raised, or null if it succeeded.
+     */
+    Exception outcome() {
+      try {
+        return result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return e;
+      } catch (ExecutionException e) {
+        return e;
+      }
+    }
   }
 }
@@ -20,6 +20,7 @@ import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 
 /**
@@ -34,7 +35,7 @@ public class JsonDocument implements Document {
   };
   private static final Logger log = LoggerFactory.getLogger(JsonDocument.class);
 
-  @JsonValue
+  // accessed through data(), which subclasses may override to materialize the fields on first use
   protected ObjectNode data;
 
   /**
@@ -56,7 +57,14 @@ public class JsonDocument implements Document {
    * @throws DocumentException if document is missing a nonempty {@link Document#ID_FIELD}
    */
   public JsonDocument(ObjectNode data) throws DocumentException {
+    checkId(data);
+    this.data = data;
+  }
 
+  /**
+   * Verifies that the given ObjectNode holds a nonempty string {@link Document#ID_FIELD}.
+   */
+  protected static void checkId(ObjectNode data) throws DocumentException {
     if (!data.hasNonNull(ID_FIELD)) {
       throw new DocumentException("id is missing");
     }
@@ -65,8 +73,12 @@ public class JsonDocument implements Document {
     if (!id.isTextual() || id.asText().isEmpty()) {
       throw new DocumentException("id is present but null or empty or not a string");
     }
+  }
 
-    this.data = data;
+  /**
+   * Creates a document whose data will be supplied by a subclass, which must override {@link #data()}.
+   */
+  protected JsonDocument() {
   }
 
   public JsonDocument(String id) {
@@ -94,87 +106,95 @@ public class JsonDocument implements Document {
     return doc;
   }
 
+  /**
+   * Returns the ObjectNode holding this document's fields. All field access goes through this method.
+   */
+  @JsonValue
+  protected ObjectNode data() {
+    return data;
+  }
+
   @Override
   public void removeField(String name) {
     validateFieldNames(name);
-    data.remove(name);
+    data().remove(name);
   }
 
   @Override
   public void removeFromArray(String name, int index) {
     validateFieldNames(name);
-    data.withArray(name).remove(index);
+    data().withArray(name).remove(index);
   }
 
 
   @Override
   public void initializeRunId(String value) {
-    if (data.has(RUNID_FIELD)) {
+    if (data().has(RUNID_FIELD)) {
       throw new IllegalStateException();
     }
-    data.put(RUNID_FIELD, value);
+    data().put(RUNID_FIELD, value);
   }
 
   @Override
   public void clearRunId() {
-    if (data.has(RUNID_FIELD)) {
-      data.remove(RUNID_FIELD);
+    if (data().has(RUNID_FIELD)) {
+      data().remove(RUNID_FIELD);
     }
   }
 
   @Override
   public void setField(String name, String value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
   public void setField(String name, Long value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
   public void setField(String name, Integer value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
   public void setField(String name, Boolean value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
   public void setField(String name, Double value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
   public void setField(String name, Float value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
   public void setField(String name, JsonNode value) {
     validateFieldNames(name);
-    data.set(name, value);
+    data().set(name, value);
   }
 
   @Override
   public void setField(String name, Instant value) {
     validateFieldNames(name);
     String instantStr = DateTimeFormatter.ISO_INSTANT.format(value);
-    data.put(name, instantStr);
+    data().put(name, instantStr);
   }
 
   @Override
   public void setField(String name, byte[] value) {
     validateFieldNames(name);
-    data.put(name, value);
+    data().put(name, value);
   }
 
   @Override
@@ -192,8 +212,8 @@ public class JsonDocument implements Document {
   @Override
   public void renameField(String oldName, String newName, UpdateMode mode) {
     validateFieldNames(oldName, newName);
-    JsonNode oldValues = data.get(oldName);
-    data.remove(oldName);
+    JsonNode oldValues = data().get(oldName);
+    data().remove(oldName);
 
     if (has(newName)) {
       if (mode.equals(UpdateMode.SKIP)) {
@@ -202,20 +222,20 @@ public class JsonDocument implements Document {
         convertToList(newName);
 
         if (oldValues.getNodeType() == JsonNodeType.ARRAY) {
-          data.withArray(newName).addAll((ArrayNode) oldValues);
+          data().withArray(newName).addAll((ArrayNode) oldValues);
         } else {
-          data.withArray(newName).add(oldValues);
+          data().withArray(newName).add(oldValues);
         }
         return;
       }
     }
 
-    data.set(newName, oldValues);
+    data().set(newName, oldValues);
   }
 
   @Override
   public String getString(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -226,7 +246,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<String> getStringList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -234,7 +254,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getString(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<String> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node.isNull() ? null : node.asText());
@@ -242,9 +262,29 @@ public class JsonDocument implements Document {
     return result;
   }
 
+  @Override
+  public boolean anyStringValueMatches(String name, Predicate<String> predicate) {
+    JsonNode node = data().get(name);
+    if (node == null) {
+      return false;
+    }
+
+    if (!node.isArray()) {
+      return predicate.test(node.isNull() ? null : node.asText());
+    }
+
+    for (int i = 0; i < node.size(); i++) {
+      JsonNode value = node.get(i);
+      if (predicate.test(value.isNull() ? null : value.asText())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public Integer getInt(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -255,7 +295,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Integer> getIntList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -263,7 +303,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getInt(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<Integer> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node.isNull() ? null : node.asInt());
@@ -273,7 +313,7 @@ public class JsonDocument implements Document {
 
   @Override
   public Double getDouble(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -284,7 +324,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Double> getDoubleList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -292,7 +332,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getDouble(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<Double> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node.isNull() ? null : node.asDouble());
@@ -302,7 +342,7 @@ public class JsonDocument implements Document {
 
   @Override
   public Float getFloat(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -313,7 +353,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Float> getFloatList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -321,7 +361,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getFloat(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<Float> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node.isNull() ? null : node.floatValue());
@@ -331,7 +371,7 @@ public class JsonDocument implements Document {
 
   @Override
   public Boolean getBoolean(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -342,7 +382,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Boolean> getBooleanList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -350,7 +390,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getBoolean(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<Boolean> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node.isNull() ? null : node.asBoolean());
@@ -360,7 +400,7 @@ public class JsonDocument implements Document {
 
   @Override
   public Long getLong(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -371,7 +411,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Long> getLongList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -379,7 +419,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getLong(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<Long> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node.isNull() ? null : node.asLong());
@@ -389,7 +429,7 @@ public class JsonDocument implements Document {
 
   @Override
   public Instant getInstant(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -402,7 +442,7 @@ public class JsonDocument implements Document {
 
   @Override
   public byte[] getBytes(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -418,7 +458,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Instant> getInstantList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -426,7 +466,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getInstant(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<Instant> result = new ArrayList<>();
     for (JsonNode node : array) {
       String instantStr = node.asText();
@@ -438,7 +478,7 @@ public class JsonDocument implements Document {
 
   @Override
   public List<byte[]> getBytesList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -446,7 +486,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getBytes(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<byte[]> result = new ArrayList<>();
     for (JsonNode node : array) {
       try {
@@ -466,7 +506,7 @@ public class JsonDocument implements Document {
    */
   @Override
   public List<JsonNode> getJsonList(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
 
@@ -474,7 +514,7 @@ public class JsonDocument implements Document {
       return Collections.singletonList(getJson(name));
     }
 
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     List<JsonNode> result = new ArrayList<>();
     for (JsonNode node : array) {
       result.add(node);
@@ -483,13 +523,13 @@ public class JsonDocument implements Document {
   }
 
   public JsonNode getJson(String name) {
-    if (!data.has(name)) {
+    if (!data().has(name)) {
       return null;
     }
     // Json is handled differently from other value types
     // we don't call getSingleNode(name) to retrieve the first value from a JsonArray
     // instead, we simply return the internal JsonNode itself, whether it is an array or not
-    return data.get(name);
+    return data().get(name);
   }
 
   @Override
@@ -530,7 +570,7 @@ public class JsonDocument implements Document {
   }
 
   private JsonNode getSingleNode(String name) {
-    return isMultiValued(name) ? data.withArray(name).get(0) : data.get(name);
+    return isMultiValued(name) ? data().withArray(name).get(0) : data().get(name);
   }
 
   @Override
@@ -540,7 +580,7 @@ public class JsonDocument implements Document {
     } else if (!isMultiValued(name)) {
       return 1;
     } else {
-      return data.get(name).size();
+      return data().get(name).size();
     }
   }
 
@@ -556,17 +596,17 @@ public class JsonDocument implements Document {
 
   @Override
   public boolean has(String name) {
-    return data.has(name);
+    return data().has(name);
   }
 
   @Override
   public boolean hasNonNull(String name) {
-    return data.hasNonNull(name);
+    return data().hasNonNull(name);
   }
 
   @Override
   public boolean isMultiValued(String name) {
-    return data.has(name) && JsonNodeType.ARRAY.equals(data.get(name).getNodeType());
+    return data().has(name) && JsonNodeType.ARRAY.equals(data().get(name).getNodeType());
   }
 
   @Override
@@ -575,35 +615,35 @@ public class JsonDocument implements Document {
       return true;
     }
     if (other instanceof JsonDocument) {
-      return data.equals(((JsonDocument) other).data);
+      return data().equals(((JsonDocument) other).data());
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    return data.hashCode();
+    return data().hashCode();
   }
 
   private void convertToList(String name) {
-    if (!data.has(name)) {
-      data.set(name, MAPPER.createArrayNode());
+    if (!data().has(name)) {
+      data().set(name, MAPPER.createArrayNode());
       return;
     }
-    JsonNode field = data.get(name);
+    JsonNode field = data().get(name);
     if (field.isArray()) {
       return;
     }
     ArrayNode array = MAPPER.createArrayNode();
     array.add(field);
-    data.set(name, array);
+    data().set(name, array);
   }
 
   @Override
   public void addToField(String name, String value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -611,7 +651,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, Long value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -619,7 +659,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, Integer value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -627,7 +667,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, Boolean value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -635,7 +675,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, Double value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -643,7 +683,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, Float value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -651,7 +691,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, Instant value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     String dateStr = DateTimeFormatter.ISO_INSTANT.format(value);
     array.add(dateStr);
   }
@@ -660,7 +700,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, byte[] value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -668,7 +708,7 @@ public class JsonDocument implements Document {
   public void addToField(String name, JsonNode value) {
     validateFieldNames(name);
     convertToList(name);
-    ArrayNode array = data.withArray(name);
+    ArrayNode array = data().withArray(name);
     array.add(value);
   }
 
@@ -792,14 +832,14 @@ public class JsonDocument implements Document {
       if (!other.has(name)) {
         return;
       } else {
-        data.set(name, getData(other).get(name));
+        data().set(name, getData(other).get(name));
         return;
       }
 
     } else {
 
       convertToList(name);
-      ArrayNode currentValues = (ArrayNode) data.get(name);
+      ArrayNode currentValues = (ArrayNode) data().get(name);
       JsonNode otherValue = getData(other).get(name);
 
       if (otherValue.getNodeType() == JsonNodeType.ARRAY) {
@@ -813,7 +853,7 @@ public class JsonDocument implements Document {
 
   @Override
   public void setOrAddAll(Document other) {
-    for (Iterator<String> it = ((JsonDocument) other).data.fieldNames(); it.hasNext(); ) {
+    for (Iterator<String> it = getData(other).fieldNames(); it.hasNext(); ) {
       String name = it.next();
       if (RESERVED_FIELDS.contains(name)) {
         continue;
@@ -824,18 +864,18 @@ public class JsonDocument implements Document {
 
   @Override
   public Map<String, Object> asMap() {
-    return MAPPER.convertValue(data, TYPE);
+    return MAPPER.convertValue(data(), TYPE);
   }
 
   @Override
   public void addChild(Document document) {
-    ArrayNode node = data.withArray(CHILDREN_FIELD);
+    ArrayNode node = data().withArray(CHILDREN_FIELD);
     node.add(getData(document));
   }
 
   @Override
   public boolean hasChildren() {
-    if (!data.has(CHILDREN_FIELD)) {
+    if (!data().has(CHILDREN_FIELD)) {
       return false;
     }
     if (getChildren().isEmpty()) {
@@ -846,10 +886,10 @@ public class JsonDocument implements Document {
 
   @Override
   public List<Document> getChildren() {
-    if (!data.has(CHILDREN_FIELD)) {
+    if (!data().has(CHILDREN_FIELD)) {
       return new ArrayList<>();
     }
-    ArrayNode node = data.withArray(CHILDREN_FIELD);
+    ArrayNode node = data().withArray(CHILDREN_FIELD);
     ArrayList<Document> children = new ArrayList<>();
     for (Iterator<JsonNode> it = node.elements(); it.hasNext(); ) {
       JsonNode element = it.next();
@@ -864,7 +904,7 @@ public class JsonDocument implements Document {
 
   @Override
   public String toString() {
-    return data.toString();
+    return data().toString();
   }
 
   @Override
@@ -879,7 +919,7 @@ public class JsonDocument implements Document {
   @Override
   public Set<String> getFieldNames() {
     Set<String> fieldNames = new HashSet<String>();
-    Iterator<String> it = data.fieldNames();
+    Iterator<String> it = data().fieldNames();
     while (it.hasNext()) {
       String fieldName = it.next();
       fieldNames.add(fieldName);
@@ -889,15 +929,15 @@ public class JsonDocument implements Document {
 
   @Override
   public boolean isDropped() {
-    return data.has(DROP_FIELD);
+    return data().has(DROP_FIELD);
   }
 
   @Override
   public void setDropped(boolean status) {
     if (status) {
-      data.put(DROP_FIELD, true);
+      data().put(DROP_FIELD, true);
     } else {
-      data.remove(DROP_FIELD);
+      data().remove(DROP_FIELD);
     }
   }
 
@@ -907,7 +947,7 @@ public class JsonDocument implements Document {
       return;
     }
 
-    ArrayNode arrayNode = data.withArray(fieldName);
+    ArrayNode arrayNode = data().withArray(fieldName);
     LinkedHashSet<JsonNode> set = new LinkedHashSet<>();
     int length = 0;
     for (JsonNode jsonNode : arrayNode) {
@@ -919,13 +959,13 @@ public class JsonDocument implements Document {
       if (set.size() == length) {
         return;
       }
-      data.remove(fieldName);
-      arrayNode = data.withArray(fieldName);
+      data().remove(fieldName);
+      arrayNode = data().withArray(fieldName);
       for (JsonNode jsonNode : set) {
         arrayNode.add(jsonNode);
       }
     } else {
-      arrayNode = data.withArray(targetFieldName);
+      arrayNode = data().withArray(targetFieldName);
       for (JsonNode jsonNode : set) {
         arrayNode.add(jsonNode);
       }
@@ -935,10 +975,10 @@ public class JsonDocument implements Document {
   @Override
   public void transform(Expressions expr) throws DocumentException {
     HashMap<String, JsonNode> reserved = new HashMap<>();
-    RESERVED_FIELDS.stream().filter(field -> has(field)).forEach(field -> reserved.put(field, data.get(field)));
+    RESERVED_FIELDS.stream().filter(field -> has(field)).forEach(field -> reserved.put(field, data().get(field)));
     JsonNode transformed = null;
     try {
-      transformed = expr.evaluate(data);
+      transformed = expr.evaluate(data());
     } catch (EvaluateException e) {
       throw new DocumentException("Evaluation exception when applying transformation: " + e.getLocalizedMessage());
     }
@@ -960,14 +1000,17 @@ public class JsonDocument implements Document {
     if (other == null) {
       throw new IllegalStateException("Document is null");
     }
+    if (other instanceof CompactDocument) {
+      return ((CompactDocument) other).toObjectNode();
+    }
     if (!(other instanceof JsonDocument)) {
       throw new IllegalStateException("Documents are not of the same type");
     }
-    return ((JsonDocument) other).data;
+    return ((JsonDocument) other).data();
   }
 
   @Override
   public void removeChildren() {
-   data.remove(CHILDREN_FIELD); 
+   data().remove(CHILDREN_FIELD); 
   }
 }
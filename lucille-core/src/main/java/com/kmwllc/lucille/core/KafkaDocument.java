@@ -1,8 +1,10 @@
 package com.kmwllc.lucille.core;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 
+import java.io.IOException;
 import java.util.Objects;
 
 /**
@@ -12,6 +14,12 @@ import java.util.Objects;
  * In Lucille, plain (non-Kafka) Documents are written to Kafka. Those same Documents are then retrieved/deserialized
  * from kafka as KafkaDocuments. The topic, partition, offset, and key is copied from the Kafka ConsumerRecord onto the
  * KafkaDocument after deserialization.
+ *
+ * A KafkaDocument may also be created from its serialized payload along with its ID, run ID, and drop status, which
+ * KafkaDocumentSerializer writes to the record headers. Such a document is not parsed until one of its fields is
+ * first accessed, so a document that is only routed (sent to a dead letter queue, counted for retries, reported in
+ * an Event, or passed through unchanged) is never parsed, and an unparsed document is written back out as its
+ * original payload.
  */
 public class KafkaDocument extends JsonDocument {
 
@@ -20,10 +28,38 @@ public class KafkaDocument extends JsonDocument {
   private long offset;
   private String key;
 
+  // the generation of the consumer that delivered this document, as counted by the messenger that polled it
+  private int consumerGeneration;
+
+  // the serialized fields and the mapper that reads them, held until the fields are first accessed; null afterwards
+  private byte[] payload;
+  private ObjectMapper payloadMapper;
+
+  // taken from the record headers; used only while the payload is unparsed
+  private String id;
+  private String runId;
+  private boolean dropped;
+
   public KafkaDocument(ObjectNode data) throws DocumentException {
     super(data);
   }
 
+  /**
+   * Creates a KafkaDocument whose fields will be read from the given payload, using the given mapper, when they are
+   * first accessed.
+   */
+  public KafkaDocument(byte[] payload, ObjectMapper payloadMapper, String id, String runId, boolean dropped) {
+    super();
+    if (id == null) {
+      throw new NullPointerException("ID cannot be null");
+    }
+    this.payload = payload;
+    this.payloadMapper = payloadMapper;
+    this.id = id;
+    this.runId = runId;
+    this.dropped = dropped;
+  }
+
   public void setKafkaMetadata(ConsumerRecord<String, ?> record) {
     this.topic = record.topic();
     this.partition = record.partition();
@@ -31,6 +67,19 @@ public class KafkaDocument extends JsonDocument {
     this.key = record.key();
   }
 
+  /**
+   * Records the generation of the consumer that delivered this document, as counted by the messenger that polled it.
+   * A messenger that rewinds its consumer starts a new generation, and ignores the completion of any document that was
+   * delivered before the rewind. The generation is not serialized and is not compared by equals().
+   */
+  public void setConsumerGeneration(int consumerGeneration) {
+    this.consumerGeneration = consumerGeneration;
+  }
+
+  public int getConsumerGeneration() {
+    return consumerGeneration;
+  }
+
   public KafkaDocument(ConsumerRecord<String, String> record) throws Exception {
     super((ObjectNode) MAPPER.readTree(record.value()));
     setKafkaMetadata(record);
@@ -56,6 +105,49 @@ public class KafkaDocument extends JsonDocument {
   }
 
 
+  @Override
+  protected ObjectNode data() {
+    if (payload != null) {
+      parse();
+    }
+    return data;
+  }
+
+  private void parse() {
+    try {
+      ObjectNode parsed = (ObjectNode) payloadMapper.readTree(payload);
+      checkId(parsed);
+      data = parsed;
+    } catch (IOException | DocumentException | ClassCastException e) {
+      throw new IllegalStateException("Error deserializing document " + id, e);
+    }
+    payload = null;
+    payloadMapper = null;
+  }
+
+  /**
+   * Returns the serialized payload this document was created from if none of its fields have been accessed,
+   * or null otherwise.
+   */
+  public byte[] getUnparsedPayload() {
+    return payload;
+  }
+
+  @Override
+  public String getId() {
+    return payload != null ? id : super.getId();
+  }
+
+  @Override
+  public String getRunId() {
+    return payload != null ? runId : super.getRunId();
+  }
+
+  @Override
+  public boolean isDropped() {
+    return payload != null ? dropped : super.isDropped();
+  }
+
   public String getTopic() {
     return topic;
   }
@@ -85,20 +177,32 @@ public class KafkaDocument extends JsonDocument {
               Objects.equals(partition, doc.partition) &&
               Objects.equals(offset, doc.offset) &&
               Objects.equals(key, doc.key) &&
-              data.equals(doc.data);
+              data().equals(doc.data());
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(data, topic, partition, offset, key);
+    return Objects.hash(data(), topic, partition, offset, key);
   }
 
   @Override
   public KafkaDocument clone() {
+    if (payload != null) {
+      // the payload is never modified, so an unparsed clone can share it
+      KafkaDocument copy = new KafkaDocument(payload, payloadMapper, id, runId, dropped);
+      copy.topic = topic;
+      copy.partition = partition;
+      copy.offset = offset;
+      copy.key = key;
+      copy.consumerGeneration = consumerGeneration;
+      return copy;
+    }
     try {
-      return new KafkaDocument(data.deepCopy(), topic, partition, offset, key);
+      KafkaDocument copy = new KafkaDocument(data().deepCopy(), topic, partition, offset, key);
+      copy.consumerGeneration = consumerGeneration;
+      return copy;
     } catch (DocumentException e) {
       throw new IllegalStateException("Document not cloneable", e);
     }
@@ -0,0 +1,144 @@
+package com.kmwllc.lucille.core;
+
+import com.kmwllc.lucille.message.KafkaUtils;
+import com.typesafe.config.Config;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * RetryCounter that records processing attempts in a compacted Kafka topic instead of ZooKeeper.
+ * <p>
+ * Each attempt is written as a record keyed by the document's source location, whose value is the number of attempts
+ * so far; removing a counter writes a tombstone, and compaction eventually discards both. Writes are asynchronous, so
+ * neither add() nor remove() waits on the broker: the producer batches them with the worker's other traffic.
+ * Every RetryCounter reads the whole topic into memory when it is created and keeps following it in a background
+ * thread, so add() consults a local map to learn of attempts made by other workers, such as one that failed while
+ * processing a document whose partition has since been reassigned.
+ * <p>
+ * Because the attempt record is not acknowledged before processing begins, a worker that fails within moments of
+ * starting on a document may not have recorded that attempt; such a document is sent to the failure topic after at
+ * most one more attempt than configured.
+ */
+public class KafkaRetryCounter implements RetryCounter {
+
+  private static final Logger log = LoggerFactory.getLogger(KafkaRetryCounter.class);
+
+  private final int maxRetries;
+  private final String retryTopicName;
+  private final KafkaProducer<String, String> producer;
+  private final Consumer<String, String> consumer;
+
+  // the number of attempts recorded for each document whose counter has not been removed
+  private final Map<String, Integer> counts = new ConcurrentHashMap<>();
+
+  private final Thread readerThread;
+  private volatile boolean running = true;
+
+  public KafkaRetryCounter(Config config) throws Exception {
+    this.maxRetries = config.hasPath("worker.maxRetries") ? config.getInt("worker.maxRetries") : 3;
+    this.retryTopicName = KafkaUtils.getRetryTopicName(config);
+    KafkaUtils.createRetryTopic(config);
+    this.producer = KafkaUtils.createRetryProducer(config);
+    this.consumer = KafkaUtils.createEventConsumer(config, "com.kmwllc.lucille-retries-" + retryTopicName);
+
+    // load the counters that are already recorded before any document is checked against them
+    List<TopicPartition> partitions = consumer.partitionsFor(retryTopicName).stream()
+        .map(p -> new TopicPartition(p.topic(), p.partition()))
+        .collect(Collectors.toList());
+    consumer.assign(partitions);
+    consumer.seekToBeginning(partitions);
+    Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+    while (endOffsets.entrySet().stream().anyMatch(e -> consumer.position(e.getKey()) < e.getValue())) {
+      apply(consumer.poll(KafkaUtils.POLL_INTERVAL));
+    }
+    log.info("Loaded {} retry counters from {}", counts.size(), retryTopicName);
+
+    this.readerThread = new Thread(this::follow, "KafkaRetryCounter");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  @Override
+  public boolean add(Document document) {
+    String key = getCounterKey(document);
+    int retryCount = counts.merge(key, 1, Integer::sum);
+    try {
+      producer.send(new ProducerRecord<>(retryTopicName, key, Integer.toString(retryCount)), (metadata, e) -> {
+        if (e != null) {
+          log.error("Couldn't record attempt for doc " + document.getId(), e);
+        }
+      });
+    } catch (Exception e) {
+      log.error("Couldn't record attempt for doc " + document.getId(), e);
+    }
+    return retryCount > maxRetries;
+  }
+
+  @Override
+  public void remove(Document document) {
+    String key = getCounterKey(document);
+    counts.remove(key);
+    try {
+      producer.send(new ProducerRecord<>(retryTopicName, key, null));
+    } catch (Exception e) {
+      log.error("Couldn't delete retry counter for doc " + document.getId(), e);
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    consumer.wakeup();
+    try {
+      readerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    producer.close();
+  }
+
+  private void follow() {
+    try {
+      while (running) {
+        apply(consumer.poll(KafkaUtils.POLL_INTERVAL));
+      }
+    } catch (WakeupException e) {
+      // close() was called
+    } catch (Exception e) {
+      log.error("Stopped reading retry counters from " + retryTopicName, e);
+    } finally {
+      consumer.close();
+    }
+  }
+
+  private void apply(Iterable<ConsumerRecord<String, String>> records) {
+    for (ConsumerRecord<String, String> record : records) {
+      if (record.value() == null) {
+        counts.remove(record.key());
+      } else {
+        // our own writes come back to us as well; a count never moves backwards
+        counts.merge(record.key(), Integer.parseInt(record.value()), Math::max);
+      }
+    }
+  }
+
+  static String getCounterKey(Document document) {
+    if (document instanceof KafkaDocument) {
+      KafkaDocument doc = (KafkaDocument) document;
+      return doc.getTopic() + "/" + doc.getRunId() + "/" + doc.getKey() + "___" + doc.getPartition() + "_"
+          + doc.getOffset();
+    }
+    return "NON_KAFKA/" + document.getRunId() + "/" + document.getId();
+  }
+}
@@ -6,7 +6,7 @@ public class MultiBatch implements Batch {
 
   private final Map<String, Batch> batches;
 
-  private final int capacity;
+  private final BatchPolicy policy;
   private final int timeout;
   private final String indexField;
 
@@ -21,8 +21,15 @@ public class MultiBatch implements Batch {
    * it will be flushed during the next call to add() or flushIfExpired().
    */
   public MultiBatch(int capacity, int timeout, String indexField) {
+    this(timeout, indexField, new BatchPolicy(capacity));
+  }
+
+  /**
+   * Creates a batch of batches, each of which is flushed when the given policy considers it full.
+   */
+  public MultiBatch(int timeout, String indexField, BatchPolicy policy) {
     this.batches = new HashMap<>();
-    this.capacity = capacity;
+    this.policy = policy;
     this.timeout = timeout;
     this.indexField = indexField;
   }
@@ -35,7 +42,7 @@ public class MultiBatch implements Batch {
     if (batches.containsKey(index)) {
       batch = batches.get(index);
     } else {
-      batch = new SingleBatch(capacity, timeout);
+      batch = new SingleBatch(timeout, policy);
       batches.put(index, batch);
     }
 
@@ -62,6 +69,6 @@ public class MultiBatch implements Batch {
 
   @Override
   public int getCapacity() {
-    return capacity;
+    return policy.getMaxSize();
   }
 }
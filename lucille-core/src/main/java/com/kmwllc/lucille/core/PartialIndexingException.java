@@ -0,0 +1,41 @@
+package com.kmwllc.lucille.core;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Thrown by an Indexer's sendToIndex() when some of the Documents in a batch could not be sent but the rest were.
+ * The Indexer reports only the Documents listed here as failed. Documents are identified by instance, so the
+ * Documents given must be the ones that were passed to sendToIndex().
+ */
+public class PartialIndexingException extends IndexerException {
+
+  private final Map<Document, String> failures;
+
+  /**
+   * @param message a summary of the failures
+   * @param failures the Documents that could not be sent, each with the reason it could not be sent
+   */
+  public PartialIndexingException(String message, Map<Document, String> failures) {
+    super(message);
+    this.failures = new IdentityHashMap<>(failures);
+  }
+
+  /**
+   * Returns whether the given Document could not be sent.
+   */
+  public boolean isFailed(Document doc) {
+    return failures.containsKey(doc);
+  }
+
+  /**
+   * Returns the reason the given Document could not be sent, or null if it was sent or no reason was given.
+   */
+  public String getFailure(Document doc) {
+    return failures.get(doc);
+  }
+
+  public int getFailureCount() {
+    return failures.size();
+  }
+}
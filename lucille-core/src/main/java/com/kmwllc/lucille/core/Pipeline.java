@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -19,18 +20,67 @@ public class Pipeline {
 
   private static final Logger log = LoggerFactory.getLogger(Pipeline.class);
 
+  /**
+   * Strategies for passing a Document and its children through the sequence of stages.
+   */
+  public enum Executor {
+    // each stage wraps the iterator produced by the previous stage; children are generated lazily
+    ITERATOR,
+    // the stages are compiled into a chain of callbacks; each stage pushes children and then the parent downstream
+    PUSH;
+
+    public static Executor fromString(String name) {
+      for (Executor executor : values()) {
+        if (executor.name().equalsIgnoreCase(name)) {
+          return executor;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported pipeline executor: " + name);
+    }
+  }
+
+  /**
+   * Receives the Documents emitted by processDocument(Document, DocumentSink).
+   */
+  @FunctionalInterface
+  public interface DocumentSink {
+
+    void accept(Document doc) throws Exception;
+  }
+
   private final ArrayList<Stage> stages = new ArrayList<>();
 
+  private Executor executor = Executor.ITERATOR;
+
+  // entry point of the compiled push chain; rebuilt whenever a stage is added
+  private DocumentSink compiled = null;
+
+  // destination of the compiled push chain for the Document currently being processed
+  private DocumentSink emit = null;
+
   public List<Stage> getStages() {
     return stages;
   }
 
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
   public void addStage(Stage stage, String metricsPrefix) throws PipelineException, StageException {
-    stage.initialize(stages.size() + 1, metricsPrefix);
+    addStage(stage, metricsPrefix, stages.size() + 1);
+  }
+
+  private void addStage(Stage stage, String metricsPrefix, int position) throws PipelineException, StageException {
+    stage.initialize(position, metricsPrefix);
     if (stages.stream().anyMatch(s -> stage.getName().equals(s.getName()))) {
       throw new PipelineException("Two stages cannot have the same name: " + stage.getName());
     }
     stages.add(stage);
+    compiled = null;
   }
 
   public void addStage(Stage stage) throws PipelineException, StageException {
@@ -45,7 +95,11 @@ public class Pipeline {
 
   public void stopStages() throws StageException {
     for (Stage stage : stages) {
-      stage.stop();
+      try {
+        stage.stop();
+      } finally {
+        stage.releaseSharedResources();
+      }
     }
   }
 
@@ -88,12 +142,22 @@ public class Pipeline {
    */
   public static Pipeline fromConfig(List<? extends Config> stages, String metricsPrefix) throws
       Exception {
+    return fromConfig(stages, metricsPrefix, 1);
+  }
+
+  /**
+   * Instantiates a Pipeline from a contiguous run of Stage Configs taken from a larger pipeline, where the first Config
+   * is at the given (1-based) position in that pipeline. Unnamed stages are named after their position in the larger
+   * pipeline, so their metrics are the same as they would be if the whole pipeline were instantiated at once.
+   */
+  static Pipeline fromConfig(List<? extends Config> stages, String metricsPrefix, int firstPosition) throws
+      Exception {
     Pipeline pipeline = new Pipeline();
     for (Config c : stages) {
       Class<?> clazz = Class.forName(c.getString("class"));
       Constructor<?> constructor = clazz.getConstructor(Config.class);
       Stage stage = getInstance(constructor, c);
-      pipeline.addStage(stage, metricsPrefix);
+      pipeline.addStage(stage, metricsPrefix, firstPosition + pipeline.stages.size());
     }
     pipeline.startStages();
     return pipeline;
@@ -119,10 +183,19 @@ public class Pipeline {
    */
   public static Pipeline fromConfig(Config config, String name, String metricsPrefix)
       throws Exception {
-    return fromConfig(getPipelineStages(config, name), metricsPrefix);
+    Config pipelineConfig = getPipelineConfig(config, name);
+    Pipeline pipeline = fromConfig(pipelineConfig.getConfigList("stages"), metricsPrefix);
+    if (pipelineConfig.hasPath("executor")) {
+      pipeline.setExecutor(Executor.fromString(pipelineConfig.getString("executor")));
+    }
+    return pipeline;
   }
 
   private static List<? extends Config> getPipelineStages(Config config, String name) throws Exception {
+    return getPipelineConfig(config, name).getConfigList("stages");
+  }
+
+  static Config getPipelineConfig(Config config, String name) throws Exception {
     if (!config.hasPath("pipelines")) {
       throw new PipelineException("No pipelines element present in config");
     }
@@ -136,7 +209,7 @@ public class Pipeline {
       throw new PipelineException("More than one pipeline found with name: " + name);
     }
     if (matchingPipelines.size() == 1) {
-      return matchingPipelines.get(0).getConfigList("stages");
+      return matchingPipelines.get(0);
     }
     throw new PipelineException("No pipeline found with name: " + name);
   }
@@ -178,4 +251,83 @@ public class Pipeline {
     return result;
   }
 
+  /**
+   * Passes a Document through the designated sequence of stages and hands the resulting Documents to the given sink,
+   * in the same order in which processDocument(Document) would return them: every child document precedes the document
+   * it was generated from, and the input Document comes last.
+   *
+   * When the pipeline's executor is PUSH, the stages are compiled once into a chain of callbacks so that no
+   * intermediate iterators are created per Document. The compiled chain is not reentrant, which is consistent with each
+   * Worker thread owning its own Pipeline instance.
+   */
+  public void processDocument(Document document, DocumentSink sink) throws Exception {
+    if (executor == Executor.ITERATOR) {
+      Iterator<Document> results = processDocument(document);
+      while (results.hasNext()) {
+        sink.accept(results.next());
+      }
+      return;
+    }
+
+    if (compiled == null) {
+      compiled = compile();
+    }
+
+    emit = sink;
+    try {
+      compiled.accept(document);
+    } finally {
+      emit = null;
+    }
+  }
+
+  /**
+   * Builds the chain of callbacks used by the PUSH executor, working backwards from the final sink.
+   */
+  private DocumentSink compile() {
+    DocumentSink downstream = doc -> emit.accept(doc);
+    for (int i = stages.size() - 1; i >= 0; i--) {
+      Stage stage = stages.get(i);
+      DocumentSink next = downstream;
+      downstream = doc -> stage.apply(doc, next);
+    }
+    return downstream;
+  }
+
+  /**
+   * Passes a Document through the designated sequence of stages without blocking on asynchronous stages, and returns a
+   * future over the input Document along with any child documents generated, in the same order as
+   * processDocuments(). Each stage is started via the given executor, so synchronous stages run on whichever thread
+   * drains that executor (typically the Worker that owns this Pipeline), even when the preceding stage was completed by
+   * another thread.
+   */
+  public CompletableFuture<List<Document>> processDocumentAsync(Document document, java.util.concurrent.Executor executor) {
+    CompletableFuture<List<Document>> result = CompletableFuture.completedFuture(Collections.singletonList(document));
+
+    for (Stage stage : stages) {
+      result = result.thenComposeAsync(stage::applyAsync, executor);
+    }
+
+    return result;
+  }
+
+  /**
+   * Passes a batch of Documents through the designated sequence of stages and returns a List containing
+   * the input Documents along with any child documents generated. Each stage processes the whole batch before
+   * the next stage begins, which allows stages to amortize work across the batch via Stage.processDocuments().
+   *
+   * As with processDocument(), child documents are passed through downstream stages only, and every child is
+   * placed ahead of the Document that was being processed when it was generated.
+   * Unlike processDocument(), all children are generated eagerly and held in memory.
+   */
+  public List<Document> processDocuments(List<Document> documents) throws StageException {
+    List<Document> result = documents;
+
+    for (Stage stage : stages) {
+      result = stage.apply(result);
+    }
+
+    return result;
+  }
+
 }
@@ -11,13 +11,11 @@ import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Publisher implementation that maintains an in-memory list of pending documents.
+ * Publisher implementation that maintains an in-memory multiset of the IDs of pending documents.
  *
  * Note that this implementation includes an explicit design decision that the publisher should
  * not remember all of the documents it has published because there could be an unbounded number of such documents
@@ -59,18 +57,20 @@ public class PublisherImpl implements Publisher {
   private Document previousDoc = null;
   private StopWatch firstDocStopWatch;
 
-  // List of published documents that have not reached a terminal state. Also includes children of published documents.
-  // Note that this is a List, not a Set, because if two documents with the same ID are published, we would
-  // expect to receive two separate terminal events relating to those documents, and we will therefore make
-  // two attempts to remove the ID. Upon each removal attempt, we would like there to be something present
-  // to remove; otherwise we would classify the event as an "early" terminal event and treat it specially.
+  // Multiset of the IDs of published documents that have not reached a terminal state. Also includes children of
+  // published documents. Note that this is a multiset, not a set, because if two documents with the same ID are
+  // published, we would expect to receive two separate terminal events relating to those documents, and we will
+  // therefore make two attempts to remove the ID. Upon each removal attempt, we would like there to be something
+  // present to remove; otherwise we would classify the event as an "early" terminal event and treat it specially.
   // Also note that a Publisher may be shared by a Runner and a Connector: the connector may be publishing
   // new Documents while the Connector is receiving Events and calling handleEvent().
-  // publish() and handleEvent() both update docIdsToTrack so the list should be synchronized.
-  private List<String> docIdsToTrack = Collections.synchronizedList(new ArrayList<String>());
+  // publish() and handleEvent() both update docIdsToTrack, so it must be thread-safe. Adding and removing
+  // an ID take constant time regardless of the number of pending documents.
+  private final DocIdMultiset docIdsToTrack = new DocIdMultiset();
 
-  // List of child documents for which a terminal event has been received early, before the corresponding CREATE event
-  private List<String> docIdsIndexedBeforeTracking = Collections.synchronizedList(new ArrayList<String>());
+  // Multiset of the IDs of child documents for which a terminal event has been received early,
+  // before the corresponding CREATE event
+  private final DocIdMultiset docIdsIndexedBeforeTracking = new DocIdMultiset();
 
   public PublisherImpl(Config config, PublisherMessenger messenger, String runId,
       String pipelineName, String metricsPrefix, boolean isCollapsing) throws Exception {
@@ -133,8 +133,15 @@ public class PublisherImpl implements Publisher {
     document.initializeRunId(runId);
     // capture the docId before we make the document available for update by other threads
     String docId = document.getId();
-    messenger.sendForProcessing(document);
+    // begin tracking before sending, since a terminal event for the document could be handled
+    // as soon as it has been sent
     docIdsToTrack.add(docId);
+    try {
+      messenger.sendForProcessing(document);
+    } catch (Exception e) {
+      docIdsToTrack.remove(docId);
+      throw e;
+    }
     numPublished++;
   }
 
@@ -189,6 +196,15 @@ public class PublisherImpl implements Publisher {
     }
   }
 
+  /**
+   * Handles the Events delivered together in an EventBatch, or a single Event, in order.
+   */
+  public void handleEvents(List<Event> events) {
+    for (Event event : events) {
+      handleEvent(event);
+    }
+  }
+
   @Override
   public PublisherResult waitForCompletion(ConnectorThread thread, int timeout) throws Exception {
     start = Instant.now();
@@ -202,15 +218,12 @@ public class PublisherImpl implements Publisher {
     // finally stop the logging thread.
     while (true) {
 
-      // we assume that messenger.pollEvent() is a blocking operation with a timeout in the range
+      // we assume that messenger.pollEvents() is a blocking operation with a timeout in the range
       // of several milliseconds to several seconds.
       // We want to avoid a busy wait; at the same time, we want to test the termination conditions of the loop
       // periodically even when there are no available events to process
-      Event event = messenger.pollEvent();
-
-      if (event != null) {
-        handleEvent(event);
-      }
+      List<Event> events = messenger.pollEvents();
+      handleEvents(events);
 
       if (ChronoUnit.MILLIS.between(start, Instant.now()) > timeout) {
         log.error("Exiting run with " + numPending() + " pending documents; connector timed out (" + timeout + "ms)");
@@ -226,10 +239,11 @@ public class PublisherImpl implements Publisher {
       // We are done if 1) the Connector thread has terminated and therefore no more Documents will be generated,
       // 2) all published Documents and their children are accounted for (none are pending),
       // 3) there are no more Events relating to the current run to consume
-      // Regarding 3), we assume there are no more events if the previous call to messenger.pollEvent() returned null
-      // In a Kafka deployment, the publisher should be the only consumer of the event topic, and the topic should
-      // have a single partition
-      if (!thread.isAlive() && !hasPending() && event == null) {
+      // Regarding 3), we assume there are no more events if the previous call to messenger.pollEvents() returned
+      // nothing and the messenger has consumed every Event sent so far. In a Kafka deployment, the publisher should
+      // be the only consumer of the event topic; when the topic has several partitions, a child's CREATE event may
+      // still be waiting in one partition after its parent's FINISH event was consumed from another
+      if (!thread.isAlive() && !hasPending() && events.isEmpty() && !messenger.hasUnconsumedEvents()) {
         if (timerContext != null) {
           timerContext.stop();
         }
@@ -1,8 +1,43 @@
 package com.kmwllc.lucille.core;
 
+import com.typesafe.config.Config;
+
+/**
+ * Counts the attempts that have been made, across all workers, to process each document, so that a document which
+ * repeatedly causes a worker to fail can be sent to the failure topic instead of being retried forever.
+ */
 public interface RetryCounter {
 
+  /**
+   * Records an attempt to process the given document and returns true if the number of attempts now exceeds the
+   * configured maximum.
+   */
   boolean add(Document document);
 
+  /**
+   * Forgets the attempts recorded for the given document, once it has been processed.
+   */
   void remove(Document document);
+
+  /**
+   * Releases any resources held by this RetryCounter.
+   */
+  default void close() {
+  }
+
+  /**
+   * Creates the RetryCounter named by worker.retryCounter: "zookeeper" (the default) keeps a counter per document in
+   * ZooKeeper, while "kafka" records attempts in a compacted Kafka topic.
+   */
+  static RetryCounter fromConfig(Config config) throws Exception {
+    String type = ConfigUtils.getOrDefault(config, "worker.retryCounter", "zookeeper");
+    switch (type.toLowerCase()) {
+      case "zookeeper":
+        return new ZKRetryCounter(config);
+      case "kafka":
+        return new KafkaRetryCounter(config);
+      default:
+        throw new IllegalArgumentException("Unknown worker.retryCounter: " + type + "; expected zookeeper or kafka");
+    }
+  }
 }
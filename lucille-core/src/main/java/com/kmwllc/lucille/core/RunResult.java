@@ -71,9 +71,9 @@ public class RunResult {
       sb.append(result.toString());
       sb.append("\n");
     }
-    if (connectors.size() > 0 && connectors.size() > connectorResults.size()) {
-      for (int i = connectorResults.size(); i < connectors.size(); i++) {
-        sb.append(connectors.get(i).getName() + ": skipped.\n");
+    for (Connector connector : connectors) {
+      if (connectorResults.stream().noneMatch(cr -> connector.getName().equals(cr.getConnectorName()))) {
+        sb.append(connector.getName() + ": skipped.\n");
       }
     }
     return sb.toString();
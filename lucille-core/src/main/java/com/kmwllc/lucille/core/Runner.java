@@ -17,11 +17,22 @@ import org.slf4j.LoggerFactory;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
- * Executes a Lucille run. A run is a sequential execution of one or more Connectors.
- * During a run, all the work generated by one Connector must be complete before the next Connector begins.
+ * Executes a Lucille run. A run is an execution of one or more Connectors.
+ * By default, Connectors run sequentially, and all the work generated by one Connector must be complete before the
+ * next Connector begins. When runner.maxConcurrentConnectors is greater than 1, Connectors that do not depend on one
+ * another (see Connector.getDependencies()) may run concurrently, each with its own Publisher, WorkerPool, and Indexer.
  * A run should stop if any Connector fails.
  * A Connector is considered to have failed if any of its lifecycle methods throw an Exception.
  * Importantly, a connector is NOT considered to have failed if one or more of the documents it publishes
@@ -45,7 +56,8 @@ import java.util.concurrent.TimeUnit;
  * 1) a Worker thread polls for documents to process and runs them through the pipeline
  * 2) an Indexer thread polls for processed documents and indexes them
  * 3) a Connector thread reads data from a source, generates documents, and publishes them;
- * Connectors are run sequentially so there will be at most one Connector thread at any time
+ * unless runner.maxConcurrentConnectors is set, Connectors are run sequentially so there will be at most one
+ * Connector thread at any time
  * 4) the main thread launches the other threads, and then uses the Publisher to poll for Events
  * and wait for completion of the run
  */
@@ -59,6 +71,7 @@ public class Runner {
 
   public enum RunType {
     LOCAL, // launch Worker(s) and Indexer as threads; have all components communicate via in-memory queues
+    LOCAL_DURABLE, // same as LOCAL, but keep queued documents on local disk so that a crashed run can be restarted
     TEST, // same as LOCAL, but bypass Solr, and store message traffic so it can be inspected after the run
     KAFKA_LOCAL, // launch Worker(s) and Indexer as threads; have all components communicate via Kafka
     KAFKA_DISTRIBUTED // assume Workers/Indexers were started separately (don't launch threads); have all components communicate via Kafka
@@ -80,6 +93,9 @@ public class Runner {
    * -local: modifies -usekafka so that workers and indexers are started as separate threads within the same JVM;
    * kafka is still used for communication between them.
    * <p>
+   * -durable: without -usekafka, keeps the documents waiting to be processed or indexed in files on local disk,
+   * so that documents left unfinished by a run that crashed are processed again when Lucille is restarted
+   * <p>
    * -render: prints out the effective/actual config in the exact form it will be seen by Lucille during the run
    */
   public static void main(String[] args) throws Exception {
@@ -88,6 +104,9 @@ public class Runner {
             .desc("Use Kafka for inter-component communication and don't execute pipelines locally").build())
         .addOption(Option.builder("local").hasArg(false)
             .desc("Modifies usekafka mode to execute pipelines locally").build())
+        .addOption(Option.builder("durable").hasArg(false)
+            .desc("Keep queued documents on local disk when not using Kafka, so that a crashed run can be restarted")
+            .build())
         .addOption(Option.builder("validate").hasArg(false)
             .desc("Validate the configuration and exit").build())
         .addOption(Option.builder("render").hasArg(false)
@@ -121,7 +140,7 @@ public class Runner {
       return;
     }
 
-    RunType runType = getRunType(cli.hasOption("useKafka"), cli.hasOption("local"));
+    RunType runType = getRunType(cli.hasOption("useKafka"), cli.hasOption("local"), cli.hasOption("durable"));
 
     // Kick off the run with a log of the result
     RunResult result = runWithResultLog(config, runType);
@@ -221,6 +240,14 @@ public class Runner {
    * Derives the RunType for the new run from the 'useKafka' and 'local' parameters.
    */
   static RunType getRunType(boolean useKafka, boolean local) {
+    return getRunType(useKafka, local, false);
+  }
+
+  /**
+   * Derives the RunType for the new run from the 'useKafka', 'local', and 'durable' parameters. 'durable' has no
+   * effect when 'useKafka' is set, since Kafka already keeps queued documents durably.
+   */
+  static RunType getRunType(boolean useKafka, boolean local, boolean durable) {
     if (useKafka) {
       if (local) {
         return RunType.KAFKA_LOCAL;
@@ -228,7 +255,7 @@ public class Runner {
         return RunType.KAFKA_DISTRIBUTED;
       }
     } else {
-      return RunType.LOCAL;
+      return durable ? RunType.LOCAL_DURABLE : RunType.LOCAL;
     }
   }
 
@@ -259,55 +286,166 @@ public class Runner {
 
   /**
    * Generates a run ID and performs an end-to-end run of the designated type.
+   * <p>
+   * By default, Connectors run one at a time in the order in which they are configured. When
+   * runner.maxConcurrentConnectors is greater than 1, up to that many Connectors run at once, subject to the
+   * dependencies each Connector declares via "dependsOn". If a Connector fails, no further Connectors are started,
+   * but those already running are allowed to finish.
    */
   public static RunResult run(Config config, RunType type) throws Exception {
     String runId = UUID.randomUUID().toString();
     log.info("Starting run with id " + runId);
+    DocumentImplementation.configure(config);
 
     List<Connector> connectors = Connector.fromConfig(config);
-    List<ConnectorResult> connectorResults = new ArrayList<>();
+    ConnectorGraph graph = new ConnectorGraph(connectors, getConflictKey(config, type));
+    int maxConcurrentConnectors = ConfigUtils.getOrDefault(config, "runner.maxConcurrentConnectors", 1);
+    if (maxConcurrentConnectors < 1) {
+      throw new IllegalArgumentException("runner.maxConcurrentConnectors must be at least 1");
+    }
 
-    boolean startWorkerAndIndexer = !type.equals(RunType.KAFKA_DISTRIBUTED);
-    boolean bypassSolr = type.equals(RunType.TEST);
+    Map<String, TestMessenger> history = type.equals(RunType.TEST) ? new ConcurrentHashMap<>() : null;
 
-    Map<String, TestMessenger> history = type.equals(RunType.TEST) ? new HashMap<>() : null;
+    // when connectors run one at a time, each runs on the calling thread
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = maxConcurrentConnectors > 1
+        ? Executors.newFixedThreadPool(maxConcurrentConnectors,
+            r -> new Thread(r, ThreadNameUtils.createName("ConnectorRunner-" + threadCount.incrementAndGet())))
+        : null;
+    CompletionService<ConnectorResult> completionService =
+        new ExecutorCompletionService<>(executor != null ? executor : Runnable::run);
 
+    Map<Future<ConnectorResult>, Connector> running = new HashMap<>();
+    Set<String> started = new HashSet<>();
+    Set<String> succeeded = new HashSet<>();
+    Map<String, ConnectorResult> resultsByName = new HashMap<>();
+    boolean failed = false;
+    Exception error = null;
+
+    try {
+      while (true) {
+        while (!failed && running.size() < maxConcurrentConnectors) {
+          Connector connector = graph.getNext(succeeded, started, running.values());
+          if (connector == null) {
+            break;
+          }
+          started.add(connector.getName());
+          running.put(completionService.submit(() -> runConnectorOfType(config, runId, type, connector, history)),
+              connector);
+        }
+
+        if (running.isEmpty()) {
+          break;
+        }
+
+        Future<ConnectorResult> future = completionService.take();
+        Connector connector = running.remove(future);
+        try {
+          ConnectorResult result = future.get();
+          resultsByName.put(connector.getName(), result);
+          if (result.getStatus()) {
+            succeeded.add(connector.getName());
+          } else {
+            log.error("Aborting run because " + connector.getName() + " failed.");
+            failed = true;
+          }
+        } catch (ExecutionException e) {
+          failed = true;
+          if (error == null) {
+            error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          }
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+
+    if (error != null) {
+      throw error;
+    }
+
+    List<ConnectorResult> connectorResults = new ArrayList<>();
     for (Connector connector : connectors) {
+      if (resultsByName.containsKey(connector.getName())) {
+        connectorResults.add(resultsByName.get(connector.getName()));
+      }
+    }
 
-      WorkerMessengerFactory workerMessengerFactory;
-      IndexerMessengerFactory indexerMessengerFactory;
-      PublisherMessengerFactory publisherMessengerFactory;
+    return new RunResult(!failed, connectors, connectorResults, history, runId);
+  }
+
+  /**
+   * Creates the messengers appropriate to the given run type and runs the given Connector along with
+   * the components it needs.
+   */
+  private static ConnectorResult runConnectorOfType(Config config, String runId, RunType type, Connector connector,
+      Map<String, TestMessenger> history) throws Exception {
+    boolean startWorkerAndIndexer = !type.equals(RunType.KAFKA_DISTRIBUTED);
+    boolean bypassSolr = type.equals(RunType.TEST);
 
-      if (RunType.TEST.equals(type)) {
-        TestMessenger messenger = new TestMessenger();
-        history.put(connector.getName(), messenger);
+    WorkerMessengerFactory workerMessengerFactory;
+    IndexerMessengerFactory indexerMessengerFactory;
+    PublisherMessengerFactory publisherMessengerFactory;
+    DurableLocalMessenger durableMessenger = null;
+
+    if (RunType.TEST.equals(type)) {
+      TestMessenger messenger = new TestMessenger();
+      history.put(connector.getName(), messenger);
+      workerMessengerFactory = WorkerMessengerFactory.getConstantFactory(messenger);
+      indexerMessengerFactory = IndexerMessengerFactory.getConstantFactory(messenger);
+      publisherMessengerFactory = PublisherMessengerFactory.getConstantFactory(messenger);
+    } else if (RunType.LOCAL_DURABLE.equals(type) && connector.getPipelineName() != null) {
+      durableMessenger = new DurableLocalMessenger(config, connector.getPipelineName());
+      workerMessengerFactory = WorkerMessengerFactory.getConstantFactory(durableMessenger);
+      indexerMessengerFactory = IndexerMessengerFactory.getConstantFactory(durableMessenger);
+      publisherMessengerFactory = PublisherMessengerFactory.getConstantFactory(durableMessenger);
+    } else if (RunType.LOCAL.equals(type) || RunType.LOCAL_DURABLE.equals(type)) {
+      if ("ringBuffer".equalsIgnoreCase(ConfigUtils.getOrDefault(config, "publisher.queueType", "linked"))) {
+        RingBufferMessenger messenger = new RingBufferMessenger(config);
         workerMessengerFactory = WorkerMessengerFactory.getConstantFactory(messenger);
         indexerMessengerFactory = IndexerMessengerFactory.getConstantFactory(messenger);
         publisherMessengerFactory = PublisherMessengerFactory.getConstantFactory(messenger);
-      } else if (RunType.LOCAL.equals(type)) {
+      } else {
         LocalMessenger messenger = new LocalMessenger(config);
         workerMessengerFactory = WorkerMessengerFactory.getConstantFactory(messenger);
         indexerMessengerFactory = IndexerMessengerFactory.getConstantFactory(messenger);
         publisherMessengerFactory = PublisherMessengerFactory.getConstantFactory(messenger);
-      } else { // RunType.KAFKA_LOCAL.equals(type) || RunType.KAFKA_DISTRIBUTED.equals(type)
-        workerMessengerFactory = WorkerMessengerFactory.getKafkaFactory(config, connector.getPipelineName());
-        indexerMessengerFactory = IndexerMessengerFactory.getKafkaFactory(config, connector.getPipelineName());
-        publisherMessengerFactory = PublisherMessengerFactory.getKafkaFactory(config);
       }
+    } else { // RunType.KAFKA_LOCAL.equals(type) || RunType.KAFKA_DISTRIBUTED.equals(type)
+      workerMessengerFactory = WorkerMessengerFactory.getKafkaFactory(config, connector.getPipelineName());
+      indexerMessengerFactory = IndexerMessengerFactory.getKafkaFactory(config, connector.getPipelineName());
+      publisherMessengerFactory = PublisherMessengerFactory.getKafkaFactory(config);
+    }
 
-      ConnectorResult result =
-          runConnectorWithComponents(config, runId, connector,
-              workerMessengerFactory, indexerMessengerFactory, publisherMessengerFactory, startWorkerAndIndexer, bypassSolr);
-
-      connectorResults.add(result);
-
-      if (!result.getStatus()) {
-        log.error("Aborting run because " + connector.getName() + " failed.");
-        return new RunResult(false, connectors, connectorResults, history, runId);
+    try {
+      return runConnectorWithComponents(config, runId, connector,
+          workerMessengerFactory, indexerMessengerFactory, publisherMessengerFactory, startWorkerAndIndexer, bypassSolr);
+    } finally {
+      if (durableMessenger != null) {
+        durableMessenger.closeQueues();
       }
     }
+  }
 
-    return new RunResult(true, connectors, connectorResults, history, runId);
+  /**
+   * Returns a function giving, for each Connector, the key of the resources it must not share with another
+   * running Connector. In the Kafka run types, Connectors feeding the same pipeline share that pipeline's topics,
+   * and if the source or event topic is fixed in the config, all Connectors share it. In the LOCAL_DURABLE run type,
+   * Connectors feeding the same pipeline share that pipeline's queue files.
+   */
+  private static Function<Connector, String> getConflictKey(Config config, RunType type) {
+    if (RunType.LOCAL_DURABLE.equals(type)) {
+      return Connector::getPipelineName;
+    }
+    if (!RunType.KAFKA_LOCAL.equals(type) && !RunType.KAFKA_DISTRIBUTED.equals(type)) {
+      return connector -> null;
+    }
+    if (config.hasPath("kafka.sourceTopic") || config.hasPath("kafka.eventTopic")) {
+      return connector -> "kafka";
+    }
+    return Connector::getPipelineName;
   }
 
   /**
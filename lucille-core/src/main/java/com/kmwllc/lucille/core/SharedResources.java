@@ -0,0 +1,121 @@
+package com.kmwllc.lucille.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A registry of heavy objects that can be shared by Stage instances running in different threads, such as
+ * dictionaries, tries, query monitors, and models. Each Worker thread instantiates its own Pipeline, so without
+ * sharing, every Stage instance would build its own copy of these objects.
+ * <p>
+ * A resource is identified by a String key that should capture every setting that affects its contents. The first
+ * call to acquire() for a key loads the resource; later calls return the same instance and increment its reference
+ * count. Each call to acquire() should be paired with a call to release(). When the last reference is released, the
+ * resource is removed from the registry and, if it is AutoCloseable, closed.
+ * <p>
+ * Resources must be immutable or thread-safe. Different keys are loaded concurrently, while concurrent requests for
+ * the same key wait for a single load to complete.
+ * <p>
+ * Stages will typically use Stage.acquireSharedResource() from start(), which namespaces the key by Stage class and
+ * releases the resource automatically when the Pipeline stops its stages.
+ */
+public final class SharedResources {
+
+  private static final Logger log = LoggerFactory.getLogger(SharedResources.class);
+
+  // guarded by itself; entries are only added or removed while holding this lock
+  private static final Map<String, Entry> resources = new HashMap<>();
+
+  private SharedResources() {
+  }
+
+  /**
+   * Loads a shared resource.
+   */
+  @FunctionalInterface
+  public interface Loader<T> {
+
+    T load() throws Exception;
+  }
+
+  /**
+   * Returns the resource registered under the given key, loading it with the given loader if it is not already
+   * present, and increments its reference count. If loading fails, the reference is not retained.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T acquire(String key, Loader<T> loader) throws StageException {
+    Entry entry;
+    synchronized (resources) {
+      entry = resources.computeIfAbsent(key, k -> new Entry());
+      entry.refCount++;
+    }
+
+    // load outside the registry lock, so that a slow load does not hold up requests for other keys
+    synchronized (entry) {
+      if (entry.value == null) {
+        try {
+          log.info("Loading shared resource {}", key);
+          entry.value = loader.load();
+          if (entry.value == null) {
+            throw new StageException("Loader for shared resource " + key + " returned null");
+          }
+        } catch (Exception e) {
+          release(key);
+          if (e instanceof StageException) {
+            throw (StageException) e;
+          }
+          throw new StageException("Failed to load shared resource " + key, e);
+        }
+      }
+      return (T) entry.value;
+    }
+  }
+
+  /**
+   * Decrements the reference count of the resource registered under the given key. When the count reaches zero,
+   * the resource is removed from the registry and closed if it is AutoCloseable. Returns true if this call released
+   * the last reference. Releasing a key that is not registered has no effect.
+   */
+  public static boolean release(String key) {
+    Entry entry;
+    synchronized (resources) {
+      entry = resources.get(key);
+      if (entry == null) {
+        return false;
+      }
+      entry.refCount--;
+      if (entry.refCount > 0) {
+        return false;
+      }
+      resources.remove(key);
+    }
+
+    if (entry.value instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) entry.value).close();
+      } catch (Exception e) {
+        log.error("Error closing shared resource " + key, e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of references currently held to the resource registered under the given key.
+   */
+  public static int getRefCount(String key) {
+    synchronized (resources) {
+      Entry entry = resources.get(key);
+      return entry == null ? 0 : entry.refCount;
+    }
+  }
+
+  private static final class Entry {
+
+    private int refCount = 0;
+    private Object value = null;
+  }
+}
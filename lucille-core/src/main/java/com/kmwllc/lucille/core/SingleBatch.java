@@ -12,7 +12,9 @@ public class SingleBatch implements Batch {
   private final LinkedBlockingQueue<Document> queue;
   private final int timeout;
   private Instant lastAddOrFlushInstant;
-  private final int capacity;
+  private final BatchPolicy policy;
+  // estimated size of the documents in the batch, tracked only if the policy limits it
+  private long bytes;
 
   /**
    * Creates a new batch.
@@ -22,8 +24,19 @@ public class SingleBatch implements Batch {
    *                will be considered as expired
    */
   public SingleBatch(int capacity, int timeout) {
-    this.capacity = capacity;
-    this.queue = new LinkedBlockingQueue<>(capacity);
+    this(timeout, new BatchPolicy(capacity));
+  }
+
+  /**
+   * Creates a new batch that is flushed when the given policy considers it full.
+   *
+   * @param timeout the number of milliseconds (since the previous add or flush) beyond which the batch
+   *                will be considered as expired
+   * @param policy decides when the batch is full; may be shared with other batches
+   */
+  public SingleBatch(int timeout, BatchPolicy policy) {
+    this.policy = policy;
+    this.queue = new LinkedBlockingQueue<>(policy.getMaxSize());
     this.timeout = timeout;
     this.lastAddOrFlushInstant = Instant.now();
   }
@@ -32,15 +45,22 @@ public class SingleBatch implements Batch {
   @Override
   public List<Document> add(Document doc) {
     List<Document> docs = new ArrayList<>();
+    long docBytes = policy.getMaxBytes() > 0 ? BatchPolicy.estimateBytes(doc) : 0;
 
     if (isExpired()) {
-      queue.drainTo(docs);
+      if (!queue.isEmpty()) {
+        policy.flushedByTimeout();
+      }
+      drainTo(docs);
+    } else if (policy.isFull(queue.size(), bytes, docBytes)) {
+      drainTo(docs);
     }
 
     if (!queue.offer(doc)) {
-      queue.drainTo(docs);
+      drainTo(docs);
       queue.offer(doc);
     }
+    bytes += docBytes;
 
     lastAddOrFlushInstant = Instant.now();
     return docs;
@@ -49,21 +69,32 @@ public class SingleBatch implements Batch {
 
   @Override
   public List<Document> flushIfExpired() {
-    return isExpired() ? flush() : new ArrayList();
+    if (!isExpired()) {
+      return new ArrayList();
+    }
+    if (!queue.isEmpty()) {
+      policy.flushedByTimeout();
+    }
+    return flush();
   }
 
 
   @Override
   public List<Document> flush() {
     List<Document> docs = new ArrayList<>();
-    queue.drainTo(docs);
+    drainTo(docs);
     lastAddOrFlushInstant = Instant.now();
     return docs;
   }
 
   @Override
   public int getCapacity() {
-    return capacity;
+    return policy.getMaxSize();
+  }
+
+  private void drainTo(List<Document> docs) {
+    queue.drainTo(docs);
+    bytes = 0;
   }
 
   /**
@@ -11,6 +11,8 @@ import org.apache.commons.collections4.iterators.IteratorChain;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -60,6 +62,9 @@ public abstract class Stage {
   private final Set<String> requiredParents;
   private final Set<String> optionalParents;
 
+  // keys of the shared resources acquired by this instance that have not yet been released
+  private final Set<String> sharedResourceKeys = new HashSet<>();
+
   public Stage(Config config) {
     this(config, new StageSpec());
   }
@@ -108,9 +113,9 @@ public abstract class Stage {
     String conditionPolicy = config.hasPath("conditionPolicy") ? config.getString("conditionPolicy") : "all";
 
     if ("any".equalsIgnoreCase(conditionPolicy)) {
-      return conditions.stream().reduce(c -> false, Predicate::or);
+      return ConditionEvaluator.of(conditions, false);
     } else if ("all".equalsIgnoreCase(conditionPolicy)) {
-      return conditions.stream().reduce(c -> true, Predicate::and);
+      return ConditionEvaluator.of(conditions, true);
     } else {
       throw new IllegalArgumentException("Unsupported condition policy: " + conditionPolicy);
     }
@@ -122,6 +127,43 @@ public abstract class Stage {
   public void stop() throws StageException {
   }
 
+  /**
+   * Returns a heavy, immutable or thread-safe object that can be shared with every other instance of this Stage class
+   * that requests the same key, loading it if necessary; see SharedResources. The key should capture every setting
+   * that affects the contents of the resource. This should be called from start().
+   * <p>
+   * A resource acquired this way is released when the Pipeline stops this Stage, after stop() returns, unless the
+   * Stage has already released it via releaseSharedResource().
+   */
+  protected <T> T acquireSharedResource(String key, SharedResources.Loader<T> loader) throws StageException {
+    String qualifiedKey = getClass().getName() + ":" + key;
+    T resource = SharedResources.acquire(qualifiedKey, loader);
+    if (!sharedResourceKeys.add(qualifiedKey)) {
+      // this instance already held a reference; keep exactly one
+      SharedResources.release(qualifiedKey);
+    }
+    return resource;
+  }
+
+  /**
+   * Releases this instance's reference to the shared resource with the given key. Returns true if this was the last
+   * reference, in which case the resource has been closed (if it is AutoCloseable) and removed from the registry.
+   */
+  protected boolean releaseSharedResource(String key) {
+    String qualifiedKey = getClass().getName() + ":" + key;
+    return sharedResourceKeys.remove(qualifiedKey) && SharedResources.release(qualifiedKey);
+  }
+
+  /**
+   * Releases every shared resource still held by this instance.
+   */
+  void releaseSharedResources() {
+    for (String key : sharedResourceKeys) {
+      SharedResources.release(key);
+    }
+    sharedResourceKeys.clear();
+  }
+
   public void logMetrics() {
     if (timer == null || childCounter == null || errorCounter == null) {
       LoggerFactory.getLogger(Stage.class).error("Metrics not initialized");
@@ -181,6 +223,35 @@ public abstract class Stage {
    */
   public abstract Iterator<Document> processDocument(Document doc) throws StageException;
 
+  /**
+   * Applies an operation to each Document in the given batch in place and returns an Iterator over any child
+   * Documents generated, not including the parents. If no child Documents are generated, the return value should be null.
+   * <p>
+   * The default implementation calls processDocument() on each Document in turn, exhausting the children of one
+   * Document before moving on to the next. Stages that can amortize work across several Documents (for example,
+   * by sending a single request to a remote service for the whole batch) may override this method.
+   * Conditional execution has already been applied by the time this method is called: every Document in the batch
+   * should be processed.
+   */
+  public Iterator<Document> processDocuments(List<Document> docs) throws StageException {
+    List<Document> children = new ArrayList<>();
+    for (Document doc : docs) {
+      Iterator<Document> docChildren = processDocument(doc);
+      if (docChildren == null) {
+        continue;
+      }
+      String runId = doc.getRunId();
+      while (docChildren.hasNext()) {
+        Document child = docChildren.next();
+        if (child != null && runId != null && !child.has(Document.RUNID_FIELD)) {
+          child.initializeRunId(runId);
+        }
+        children.add(child);
+      }
+    }
+    return children.isEmpty() ? null : children.iterator();
+  }
+
   /**
    * Applies an operation to a Document in place and returns an Iterator over any child Documents generated
    * by the operation, with the input or parent document at the end. Unlike processDocument, the return
@@ -232,6 +303,43 @@ public abstract class Stage {
     return new IteratorChain(wrappedChildren, parent);
   }
 
+  /**
+   * Applies an operation to a Document in place and pushes any child Documents generated by the operation to the given
+   * sink, followed by the input Document itself. This is the push-based counterpart of apply(Document), used by
+   * Pipelines whose executor is PUSH; it avoids wrapping the children in additional iterators. Null children are skipped.
+   * If the input document has a run ID, this ID will be copied to any children that do not have it.
+   */
+  public void apply(Document doc, Pipeline.DocumentSink sink) throws Exception {
+    Iterator<Document> children;
+    try {
+      children = processConditional(doc);
+    } catch (StageException e) {
+      if (errorCounter != null) {
+        errorCounter.inc();
+      }
+      throw e;
+    }
+
+    if (children != null) {
+      String runId = doc.getRunId();
+      while (children.hasNext()) {
+        Document child = children.next();
+        if (child == null) {
+          continue;
+        }
+        if (childCounter != null) {
+          childCounter.inc();
+        }
+        if ((runId != null) && !child.has(Document.RUNID_FIELD)) {
+          child.initializeRunId(runId);
+        }
+        sink.accept(child);
+      }
+    }
+
+    sink.accept(doc);
+  }
+
   /**
    * Wraps an Iterator over Documents so as to call apply(doc) on each doc in the sequence.
    */
@@ -282,6 +390,106 @@ public abstract class Stage {
     };
   }
 
+  /**
+   * Applies this Stage to a batch of Documents via processDocuments() and returns a List containing any child Documents
+   * generated, followed by all of the input Documents in their original order. Only the Documents that satisfy this
+   * Stage's conditions are passed to processDocuments(). Children that don't have a run ID are given the run ID of the
+   * first Document in the batch that has one.
+   * <p>
+   * Unlike apply(Iterator), the children are generated eagerly, so a Stage that emits a very large number of children
+   * will hold all of them in memory.
+   */
+  public List<Document> apply(List<Document> docs) throws StageException {
+    List<Document> toProcess = new ArrayList<>(docs.size());
+    for (Document doc : docs) {
+      if (shouldProcess(doc)) {
+        toProcess.add(doc);
+      }
+    }
+
+    if (toProcess.isEmpty()) {
+      return docs;
+    }
+
+    Iterator<Document> children;
+    long start = System.nanoTime();
+    try {
+      children = processDocuments(toProcess);
+    } catch (StageException e) {
+      recordError();
+      throw e;
+    } finally {
+      recordTiming(start, toProcess.size());
+    }
+
+    return collectResults(docs, Collections.singletonList(children));
+  }
+
+  /**
+   * Asynchronous counterpart of apply(List), used when a Worker keeps several Documents in flight at once.
+   * The default implementation processes the batch synchronously and returns a completed future;
+   * see AsyncStage for Stages that complete asynchronously.
+   */
+  public CompletableFuture<List<Document>> applyAsync(List<Document> docs) {
+    try {
+      return CompletableFuture.completedFuture(apply(docs));
+    } catch (Exception e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  void recordError() {
+    if (errorCounter != null) {
+      errorCounter.inc();
+    }
+  }
+
+  /**
+   * Records the time elapsed since the given start (from System.nanoTime()) as the mean latency of each of numDocs
+   * Documents, so that the timer's count and rate stay comparable with the per-document execution path.
+   */
+  void recordTiming(long start, int numDocs) {
+    if (timer != null) {
+      long meanNanos = (System.nanoTime() - start) / numDocs;
+      for (int i = 0; i < numDocs; i++) {
+        timer.update(meanNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * Returns a List containing the given children, followed by the given Documents. Children that don't have a run ID
+   * are given the run ID of the first Document in the batch that has one. Null iterators and null children are skipped.
+   */
+  List<Document> collectResults(List<Document> docs, List<Iterator<Document>> childIterators) {
+    String runId = docs.stream().map(Document::getRunId).filter(Objects::nonNull).findFirst().orElse(null);
+    List<Document> results = new ArrayList<>();
+    for (Iterator<Document> children : childIterators) {
+      if (children == null) {
+        continue;
+      }
+      while (children.hasNext()) {
+        Document child = children.next();
+        if (child == null) {
+          continue;
+        }
+        if (childCounter != null) {
+          childCounter.inc();
+        }
+        if ((runId != null) && !child.has(Document.RUNID_FIELD)) {
+          child.initializeRunId(runId);
+        }
+        results.add(child);
+      }
+    }
+
+    if (results.isEmpty()) {
+      return docs;
+    }
+
+    results.addAll(docs);
+    return results;
+  }
 
   public String getName() {
     return name;
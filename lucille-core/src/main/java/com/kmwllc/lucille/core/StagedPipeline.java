@@ -0,0 +1,342 @@
+package com.kmwllc.lucille.core;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kmwllc.lucille.util.LogUtils;
+import com.kmwllc.lucille.util.ThreadNameUtils;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a Pipeline as a sequence of segments connected by bounded queues, where each segment is a contiguous run of
+ * stages served by its own pool of threads. This allows an expensive stage to be given many threads and a cheap one
+ * only a few, without instantiating the whole Pipeline once per thread.
+ * <p>
+ * A pipeline is staged when its config contains a "segments" list. Each element names the stage at which a segment
+ * begins and the number of threads that should serve it:
+ * <pre>
+ *   segments: [{stage: "ocr", threads: 16}, {stage: "rename", threads: 2}]
+ * </pre>
+ * Any stages before the first named stage form an initial segment with a single thread. Each segment thread owns
+ * its own instances of the segment's stages, so stages do not need to be thread-safe. The capacity of the queue in
+ * front of each segment is controlled by the pipeline-level "segmentQueueCapacity" setting.
+ * <p>
+ * Documents are submitted via submit(), which returns a future over the input Document and any children generated, in
+ * the same order as Pipeline.processDocument(). A StagedPipeline may be shared by several Worker threads, as it is by
+ * the Workers of a WorkerPool, so that the number of segment threads does not grow with the number of Workers. Each
+ * Worker calls retain() before submitting and release() once it is done; the segment threads are stopped when the
+ * last user releases the pipeline. The depth of each segment's queue is recorded in a histogram whenever a Document is
+ * added to it.
+ */
+class StagedPipeline {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 100;
+
+  // how long a segment thread waits on its queue before checking whether it has been stopped
+  private static final long POLL_MS = 50;
+
+  private static final Logger log = LoggerFactory.getLogger(StagedPipeline.class);
+
+  private final List<Segment> segments = new ArrayList<>();
+  private final int queueCapacity;
+  private volatile boolean running = true;
+
+  // the number of callers of retain() that have not yet called release()
+  private int users = 0;
+
+  public StagedPipeline(Config config, String pipelineName, String metricsPrefix) throws Exception {
+    Config pipelineConfig = Pipeline.getPipelineConfig(config, pipelineName);
+    List<? extends Config> stageConfigs = pipelineConfig.getConfigList("stages");
+
+    this.queueCapacity =
+        ConfigUtils.getOrDefault(pipelineConfig, "segmentQueueCapacity", DEFAULT_QUEUE_CAPACITY);
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("segmentQueueCapacity must be at least 1");
+    }
+
+    Map<Integer, Integer> threadsBySegmentStart = getSegmentStarts(pipelineConfig, stageConfigs);
+    List<Integer> starts = new ArrayList<>(threadsBySegmentStart.keySet());
+    MetricRegistry metrics = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG);
+
+    try {
+      for (int i = 0; i < starts.size(); i++) {
+        int start = starts.get(i);
+        int end = (i + 1 < starts.size()) ? starts.get(i + 1) : stageConfigs.size();
+        String firstStage = getStageName(stageConfigs, start);
+
+        List<Pipeline> pipelines = new ArrayList<>();
+        Segment segment = new Segment(firstStage, pipelines, new LinkedBlockingQueue<>(queueCapacity),
+            metrics.histogram(metricsPrefix + ".segment." + firstStage + ".queueDepth"));
+        segments.add(segment);
+
+        for (int t = 0; t < threadsBySegmentStart.get(start); t++) {
+          Pipeline pipeline = Pipeline.fromConfig(stageConfigs.subList(start, end), metricsPrefix, start + 1);
+          if (pipelineConfig.hasPath("executor")) {
+            pipeline.setExecutor(Pipeline.Executor.fromString(pipelineConfig.getString("executor")));
+          }
+          pipelines.add(pipeline);
+        }
+      }
+    } catch (Exception e) {
+      stopStages();
+      throw e;
+    }
+
+    for (int i = 0; i < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      Segment next = (i + 1 < segments.size()) ? segments.get(i + 1) : null;
+      for (int t = 0; t < segment.pipelines.size(); t++) {
+        Pipeline pipeline = segment.pipelines.get(t);
+        Thread thread = new Thread(() -> runSegment(segment, next, pipeline),
+            ThreadNameUtils.createName("Segment-" + segment.firstStage + "-" + (t + 1)));
+        segment.threads.add(thread);
+        thread.start();
+      }
+    }
+  }
+
+  /**
+   * Returns true if the pipeline with the given name is configured to run as a sequence of segments.
+   */
+  public static boolean isStaged(Config config, String pipelineName) throws Exception {
+    return Pipeline.getPipelineConfig(config, pipelineName).hasPath("segments");
+  }
+
+  /**
+   * Returns a map from the index of the first stage in each segment to the number of threads for that segment,
+   * ordered by index.
+   */
+  private static Map<Integer, Integer> getSegmentStarts(Config pipelineConfig, List<? extends Config> stageConfigs)
+      throws PipelineException {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < stageConfigs.size(); i++) {
+      String name = getStageName(stageConfigs, i);
+      if (names.contains(name)) {
+        throw new PipelineException("Two stages cannot have the same name: " + name);
+      }
+      names.add(name);
+    }
+
+    if (names.isEmpty()) {
+      throw new PipelineException("A pipeline with segments must contain at least one stage");
+    }
+
+    Map<Integer, Integer> starts = new TreeMap<>();
+    starts.put(0, 1);
+    Set<Integer> configured = new HashSet<>();
+
+    for (Config segment : pipelineConfig.getConfigList("segments")) {
+      if (!segment.hasPath("stage")) {
+        throw new PipelineException("Each pipeline segment must specify the stage at which it begins");
+      }
+      String stage = segment.getString("stage");
+      int index = names.indexOf(stage);
+      if (index < 0) {
+        throw new PipelineException("Pipeline segment refers to unknown stage: " + stage);
+      }
+      if (!configured.add(index)) {
+        throw new PipelineException("More than one pipeline segment begins at stage: " + stage);
+      }
+      int threads = ConfigUtils.getOrDefault(segment, "threads", 1);
+      if (threads < 1) {
+        throw new IllegalArgumentException("Pipeline segment threads must be at least 1");
+      }
+      starts.put(index, threads);
+    }
+
+    return starts;
+  }
+
+  private static String getStageName(List<? extends Config> stageConfigs, int index) {
+    Config stage = stageConfigs.get(index);
+    return stage.hasPath("name") ? stage.getString("name") : "stage_" + (index + 1);
+  }
+
+  /**
+   * Returns the capacity of the queue in front of each segment. A sole caller that keeps no more than this many
+   * Documents in flight will never block in submit(); when several Workers share the pipeline, submit() may block
+   * until the first segment catches up.
+   */
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Adds a Document to the queue of the first segment and returns a future that completes when the Document, and any
+   * children generated, have passed through the last segment. The future completes exceptionally if any stage fails.
+   * Blocks while the first segment's queue is full.
+   */
+  public CompletableFuture<List<Document>> submit(Document doc) {
+    StagedDocument item = new StagedDocument(doc);
+    enqueue(segments.get(0), item);
+    return item.result;
+  }
+
+  private void runSegment(Segment segment, Segment next, Pipeline pipeline) {
+    while (running) {
+      StagedDocument item;
+      try {
+        item = segment.queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        log.info("interrupted " + e);
+        return;
+      }
+
+      if (item == null) {
+        continue;
+      }
+
+      List<Document> results = new ArrayList<>();
+      try {
+        for (Document doc : item.docs) {
+          pipeline.processDocument(doc, results::add);
+        }
+      } catch (Exception e) {
+        item.result.completeExceptionally(e);
+        continue;
+      }
+
+      item.docs = results;
+      if (next == null) {
+        item.result.complete(results);
+      } else {
+        enqueue(next, item);
+      }
+    }
+  }
+
+  private void enqueue(Segment segment, StagedDocument item) {
+    try {
+      while (running) {
+        if (segment.queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+          segment.queueDepth.update(segment.queue.size());
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    item.result.completeExceptionally(
+        new PipelineException("Staged pipeline stopped before reaching segment starting at " + segment.firstStage));
+  }
+
+  /**
+   * Registers a user of this pipeline, such as a Worker that will submit Documents to it.
+   */
+  public synchronized void retain() {
+    users++;
+  }
+
+  /**
+   * Unregisters a user of this pipeline, stopping it via stop() if no other users remain.
+   */
+  public void release() throws StageException {
+    boolean last;
+    synchronized (this) {
+      last = --users == 0;
+    }
+    if (last) {
+      stop();
+    }
+  }
+
+  /**
+   * Returns the number of segment threads serving this pipeline.
+   */
+  public int getThreadCount() {
+    int count = 0;
+    for (Segment segment : segments) {
+      count += segment.threads.size();
+    }
+    return count;
+  }
+
+  /**
+   * Stops all segment threads, waiting for each to finish the Document it is currently processing, and then stops
+   * every stage instance. Documents still waiting in a queue are not processed.
+   */
+  public void stop() throws StageException {
+    running = false;
+    for (Segment segment : segments) {
+      for (Thread thread : segment.threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          log.error("Interrupted", e);
+        }
+      }
+    }
+    stopStages();
+  }
+
+  private void stopStages() throws StageException {
+    StageException first = null;
+    for (Segment segment : segments) {
+      for (Pipeline pipeline : segment.pipelines) {
+        try {
+          pipeline.stopStages();
+        } catch (StageException e) {
+          if (first == null) {
+            first = e;
+          }
+        }
+      }
+    }
+    if (first != null) {
+      throw first;
+    }
+  }
+
+  public void logMetrics() {
+    for (Segment segment : segments) {
+      log.info(String.format("Segment %s metrics. Threads: %d. Mean queue depth: %.2f. Max queue depth: %d.",
+          segment.firstStage, segment.pipelines.size(), segment.queueDepth.getSnapshot().getMean(),
+          segment.queueDepth.getSnapshot().getMax()));
+      // all instances of a stage share the same metrics, so logging one instance covers the whole segment
+      segment.pipelines.get(0).logMetrics();
+    }
+  }
+
+  private static class Segment {
+
+    private final String firstStage;
+    private final List<Pipeline> pipelines;
+    private final BlockingQueue<StagedDocument> queue;
+    private final Histogram queueDepth;
+    private final List<Thread> threads = new ArrayList<>();
+
+    Segment(String firstStage, List<Pipeline> pipelines, BlockingQueue<StagedDocument> queue, Histogram queueDepth) {
+      this.firstStage = firstStage;
+      this.pipelines = pipelines;
+      this.queue = queue;
+      this.queueDepth = queueDepth;
+    }
+  }
+
+  /**
+   * A submitted Document, along with the Documents that have emerged from the segments it has passed through so far.
+   * Only one segment thread handles a StagedDocument at a time; the queues between segments publish its state safely.
+   */
+  private static class StagedDocument {
+
+    private List<Document> docs;
+    private final CompletableFuture<List<Document>> result = new CompletableFuture<>();
+
+    StagedDocument(Document doc) {
+      this.docs = List.of(doc);
+    }
+  }
+}
@@ -11,18 +11,41 @@ import org.slf4j.LoggerFactory;
 import sun.misc.Signal;
 
 import java.time.Instant;
-import java.util.Iterator;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 class Worker implements Runnable {
 
   public static final String METRICS_SUFFIX = ".worker.docProcessingTme";
+  public static final int DEFAULT_BATCH_SIZE = 1;
+  public static final int DEFAULT_BATCH_TIMEOUT = 100;
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+  // how long to wait for an asynchronous stage to make progress when the in-flight window is full
+  private static final long IN_FLIGHT_WAIT_MS = 50;
+
+  // the most results that are held back so that their events can be sent together as one EventBatch
+  private static final int MAX_BUFFERED_RESULTS = 100;
 
   private static final Logger log = LoggerFactory.getLogger(Worker.class);
   private final WorkerMessenger messenger;
 
   private final Pipeline pipeline;
 
+  // set instead of pipeline when the pipeline is configured to run as a sequence of segments
+  private final StagedPipeline stagedPipeline;
+
   private volatile boolean running = true;
 
   private final AtomicReference<Instant> pollInstant;
@@ -30,6 +53,10 @@ class Worker implements Runnable {
   private boolean trackRetries = false;
   private RetryCounter counter = null;
   private final String metricsPrefix;
+  private final int batchSize;
+  private final int batchTimeout;
+  private final boolean isolateBatchFailures;
+  private final int maxInFlight;
 
   public void terminate() {
     log.debug("terminate called");
@@ -37,13 +64,54 @@ class Worker implements Runnable {
   }
 
   public Worker(Config config, WorkerMessenger messenger, String pipelineName, String metricsPrefix) throws Exception {
+    this(config, messenger, pipelineName, metricsPrefix, null);
+  }
+
+  /**
+   * Creates a Worker that feeds the given StagedPipeline, shared with other Workers, if the pipeline is configured
+   * with segments. When sharedPipeline is null, a Worker for a pipeline with segments starts its own StagedPipeline.
+   */
+  public Worker(Config config, WorkerMessenger messenger, String pipelineName, String metricsPrefix,
+      StagedPipeline sharedPipeline) throws Exception {
     this.messenger = messenger;
-    this.pipeline = Pipeline.fromConfig(config, pipelineName, metricsPrefix);
+    this.batchSize = ConfigUtils.getOrDefault(config, "worker.batchSize", DEFAULT_BATCH_SIZE);
+    this.batchTimeout = ConfigUtils.getOrDefault(config, "worker.batchTimeout", DEFAULT_BATCH_TIMEOUT);
+    this.isolateBatchFailures = ConfigUtils.getOrDefault(config, "worker.isolateBatchFailures", false);
+    int maxInFlight = ConfigUtils.getOrDefault(config, "worker.maxInFlight", DEFAULT_MAX_IN_FLIGHT);
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("worker.batchSize must be at least 1");
+    }
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("worker.maxInFlight must be at least 1");
+    }
+    if (batchSize > 1 && maxInFlight > 1) {
+      throw new IllegalArgumentException("worker.batchSize and worker.maxInFlight cannot both be greater than 1");
+    }
+    boolean staged = StagedPipeline.isStaged(config, pipelineName);
+    if (staged && (batchSize > 1 || maxInFlight > 1)) {
+      throw new IllegalArgumentException(
+          "worker.batchSize and worker.maxInFlight cannot be greater than 1 for a pipeline with segments");
+    }
+
     if (config.hasPath("worker.maxRetries")) {
-      log.info("Retries will be tracked in Zookeeper with a configured maximum of: " + config.getInt("worker.maxRetries"));
+      log.info("Retries will be tracked with a configured maximum of: " + config.getInt("worker.maxRetries"));
       this.trackRetries = true;
-      this.counter = new ZKRetryCounter(config);
+      this.counter = RetryCounter.fromConfig(config);
     }
+
+    if (staged) {
+      this.pipeline = null;
+      this.stagedPipeline =
+          sharedPipeline != null ? sharedPipeline : new StagedPipeline(config, pipelineName, metricsPrefix);
+      stagedPipeline.retain();
+      // keep no more documents in flight than the first segment's queue can hold, so that submitting never blocks
+      this.maxInFlight = stagedPipeline.getQueueCapacity();
+    } else {
+      this.pipeline = Pipeline.fromConfig(config, pipelineName, metricsPrefix);
+      this.stagedPipeline = null;
+      this.maxInFlight = maxInFlight;
+    }
+
     this.pollInstant = new AtomicReference();
     this.pollInstant.set(Instant.now());
     this.metricsPrefix = metricsPrefix;
@@ -54,7 +122,25 @@ class Worker implements Runnable {
     MetricRegistry metrics = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG);
     Timer timer = metrics.timer(metricsPrefix + METRICS_SUFFIX);
 
+    if (maxInFlight > 1 || stagedPipeline != null) {
+      runWithInFlightWindow(timer);
+      return;
+    }
+
     while (running) {
+      if (batchSize > 1) {
+        List<Document> docs;
+        try {
+          docs = pollBatch();
+        } catch (Exception e) {
+          log.info("interrupted " + e);
+          terminate();
+          return;
+        }
+        processBatch(docs, timer);
+        continue;
+      }
+
       Document doc;
       try {
         pollInstant.set(Instant.now());
@@ -90,35 +176,27 @@ class Worker implements Runnable {
         continue;
       }
 
+      ResultBuffer buffer = new ResultBuffer();
       try {
         Timer.Context context = timer.time();
-        Iterator<Document> results = pipeline.processDocument(doc);
 
-        while (results.hasNext()) {
-
-          Document result = results.next();
-
-          // if we're looking at a child document, send a CREATE events for it;
-          // a document is a child if it has a different ID from the input document;
-          // Note: we want to make sure that the Publisher is notified of any generated children
-          // BEFORE the input/parent document is completed. This prevents a situation where the Runner
-          // assumes the run is complete because the parent is complete and the Publisher didn't know
-          // about the children. This code assumes the pipeline emits children before parents.
-          if (!doc.getId().equals(result.getId())) {
-            messenger.sendEvent(result, null, Event.Type.CREATE);
-          }
-
-          if (result.isDropped()) {
-            messenger.sendEvent(result, null, Event.Type.DROP);
-          } else {
-            // send the completed document to the queue for indexing
-            messenger.sendForIndexing(result);
-          }
-        }
+        // a document is a child if it has a different ID from the input document;
+        // Note: we want to make sure that the Publisher is notified of any generated children
+        // BEFORE the input/parent document is completed. This prevents a situation where the Runner
+        // assumes the run is complete because the parent is complete and the Publisher didn't know
+        // about the children. This code assumes the pipeline emits children before parents.
+        pipeline.processDocument(doc, result -> buffer.add(result, !doc.getId().equals(result.getId())));
+        buffer.flush();
 
         context.stop();
       } catch (Exception e) {
         log.error("Error processing document: " + doc.getId(), e);
+        try {
+          // children emitted before the error are still indexed
+          buffer.flush();
+        } catch (Exception e2) {
+          log.error("Error sending results for document: " + doc.getId(), e2);
+        }
         try {
           messenger.sendEvent(doc, null, Event.Type.FAIL);
         } catch (Exception e2) {
@@ -133,6 +211,10 @@ class Worker implements Runnable {
       commitOffsetsAndRemoveCounter(doc);
     }
 
+    shutdown();
+  }
+
+  private void shutdown() {
     // commit any remaining offsets before termination
     commitOffsetsAndRemoveCounter(null);
 
@@ -142,8 +224,17 @@ class Worker implements Runnable {
       log.error("Error closing messenger", e);
     }
 
+    if (counter != null) {
+      counter.close();
+    }
+
     try {
-      pipeline.stopStages();
+      if (stagedPipeline != null) {
+        // a shared pipeline keeps running until the last Worker feeding it has released it
+        stagedPipeline.release();
+      } else {
+        pipeline.stopStages();
+      }
     } catch (StageException e) {
       log.error("Error stopping pipeline stage", e);
     }
@@ -151,7 +242,394 @@ class Worker implements Runnable {
     log.debug("Exiting");
   }
 
+  /**
+   * Processing loop used when worker.maxInFlight is greater than 1. Up to maxInFlight documents are passed through
+   * Pipeline.processDocumentAsync() at once; whenever an AsyncStage is waiting on a remote service, the Worker polls
+   * for more documents instead of blocking. All stages, and all sends to the messenger, still take place on this
+   * thread: the pipeline resumes via continuations queued to this Worker, which are run between polls.
+   * <p>
+   * When the pipeline is configured with segments, the same loop is used to feed the StagedPipeline: stages then run on
+   * the segment threads, the window is sized to the capacity of the segment queues, and each completed document wakes
+   * this Worker so that its results can be sent from this thread.
+   * <p>
+   * Documents are completed (sent for indexing or marked as failed) in the order they were polled, so the completed
+   * documents always form a prefix of those polled. Each time documents are completed, that prefix is committed via
+   * WorkerMessenger.commitDocOffsets() while the documents polled after it stay in flight. A messenger that can only
+   * commit everything polled so far is committed via commitPendingDocOffsets() once no documents are in flight.
+   */
+  private void runWithInFlightWindow(Timer timer) {
+    BlockingQueue<Runnable> continuations = new LinkedBlockingQueue<>();
+    Deque<InFlightDocument> inFlight = new ArrayDeque<>();
+    List<Document> completed = new ArrayList<>();
+
+    while (running) {
+      runContinuations(continuations);
+      completeInFlight(inFlight, completed);
+
+      if (inFlight.size() >= maxInFlight) {
+        awaitContinuation(continuations);
+        continue;
+      }
+
+      Document doc;
+      try {
+        pollInstant.set(Instant.now());
+        // blocking poll with a timeout which we assume to be in the range of
+        // several milliseconds to several seconds
+        doc = messenger.pollDocToProcess();
+      } catch (Exception e) {
+        log.info("interrupted " + e);
+        terminate();
+        return;
+      }
+
+      if (doc == null) {
+        if (inFlight.isEmpty()) {
+          commitOffsetsAndRemoveCounter(null);
+        }
+        continue;
+      }
+
+      if (trackRetries && counter.add(doc)) {
+        try {
+          log.info("Retry count exceeded for document " + doc.getId() + "; Sending to failure topic");
+          messenger.sendFailed(doc);
+        } catch (Exception e) {
+          log.error("Failed to send doc to failure topic: " + doc.getId(), e);
+        }
+
+        try {
+          messenger.sendEvent(doc, "SENT_TO_DLQ", Event.Type.FAIL);
+        } catch (Exception e) {
+          log.error("Failed to send completion event for: " + doc.getId(), e);
+        }
+
+        inFlight.add(new InFlightDocument(doc, null, null));
+        continue;
+      }
+
+      inFlight.add(new InFlightDocument(doc, timer.time(), startPipeline(doc, continuations)));
+    }
+
+    // let the documents already in flight finish before shutting down
+    while (!inFlight.isEmpty()) {
+      runContinuations(continuations);
+      if (!completeInFlight(inFlight, completed)) {
+        awaitContinuation(continuations);
+      }
+    }
+
+    commitOffsetsAndRemoveCounters(completed);
+    shutdown();
+  }
+
+  private CompletableFuture<List<Document>> startPipeline(Document doc, BlockingQueue<Runnable> continuations) {
+    if (stagedPipeline == null) {
+      return pipeline.processDocumentAsync(doc, continuations::add);
+    }
+
+    CompletableFuture<List<Document>> results = stagedPipeline.submit(doc);
+    // the last segment completes the future on its own thread; wake this Worker so it can send the results
+    results.whenComplete((r, e) -> continuations.add(() -> { }));
+    return results;
+  }
+
+  private void runContinuations(BlockingQueue<Runnable> continuations) {
+    Runnable continuation;
+    while ((continuation = continuations.poll()) != null) {
+      continuation.run();
+    }
+  }
+
+  private void awaitContinuation(BlockingQueue<Runnable> continuations) {
+    try {
+      Runnable continuation = continuations.poll(IN_FLIGHT_WAIT_MS, TimeUnit.MILLISECONDS);
+      if (continuation != null) {
+        continuation.run();
+      }
+    } catch (InterruptedException e) {
+      log.info("interrupted " + e);
+      terminate();
+    }
+  }
+
+  /**
+   * Completes the documents at the head of the in-flight queue whose pipeline futures are done, stopping at the first
+   * one that is still in progress, and adds them to the given list of completed documents. The completed documents are
+   * then committed and the list is cleared, unless the messenger can only commit once the queue is empty. Returns true
+   * if any document was completed.
+   */
+  private boolean completeInFlight(Deque<InFlightDocument> inFlight, List<Document> completed) {
+    boolean completedAny = false;
+
+    while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+      InFlightDocument head = inFlight.poll();
+      completedAny = true;
+
+      if (head.results != null) {
+        sendResults(head);
+      }
+
+      completed.add(head.doc);
+    }
+
+    if (completedAny && running) {
+      if (inFlight.isEmpty()) {
+        commitOffsetsAndRemoveCounters(completed);
+        completed.clear();
+      } else if (commitCompletedOffsetsAndRemoveCounters(completed)) {
+        completed.clear();
+      }
+    }
+
+    return completedAny;
+  }
+
+  private void sendResults(InFlightDocument inFlightDoc) {
+    Document doc = inFlightDoc.doc;
+    try {
+      List<Document> results = inFlightDoc.results.join();
+      ResultBuffer buffer = new ResultBuffer();
+
+      // as in the synchronous path, children precede their parents, so the Publisher will learn about
+      // any generated children BEFORE the input/parent document is completed
+      for (Document result : results) {
+        buffer.add(result, !doc.getId().equals(result.getId()));
+      }
+      buffer.flush();
+
+      inFlightDoc.context.stop();
+    } catch (Exception e) {
+      log.error("Error processing document: " + doc.getId(), e);
+      try {
+        messenger.sendEvent(doc, null, Event.Type.FAIL);
+      } catch (Exception e2) {
+        log.error("Error sending failure event for document: " + doc.getId(), e2);
+      }
+    }
+  }
+
+  /**
+   * Holds the results of processing a document, or a batch of documents, so that the CREATE and DROP events they
+   * generate can be sent together as one EventBatch. Each flush sends the buffered events before sending any of the
+   * buffered documents for indexing, so the Publisher always learns of a child before an Indexer can complete its
+   * parent. The buffer flushes itself when it holds MAX_BUFFERED_RESULTS results.
+   */
+  private class ResultBuffer {
+
+    private final List<Event> events = new ArrayList<>();
+    private final List<Document> toIndex = new ArrayList<>();
+    private int size = 0;
+
+    void add(Document result, boolean isChild) throws Exception {
+      if (isChild) {
+        events.add(new Event(result, null, Event.Type.CREATE));
+      }
+
+      if (result.isDropped()) {
+        events.add(new Event(result, null, Event.Type.DROP));
+      } else {
+        toIndex.add(result);
+      }
+
+      if (++size >= MAX_BUFFERED_RESULTS) {
+        flush();
+      }
+    }
+
+    void flush() throws Exception {
+      try {
+        if (!events.isEmpty()) {
+          messenger.sendEvents(events);
+        }
+        for (Document doc : toIndex) {
+          // send the completed document to the queue for indexing
+          messenger.sendForIndexing(doc);
+        }
+      } finally {
+        events.clear();
+        toIndex.clear();
+        size = 0;
+      }
+    }
+  }
+
+  /**
+   * A document that has been polled, along with the future over its pipeline results. A document that was sent to the
+   * failure topic instead of being processed has no results.
+   */
+  private static class InFlightDocument {
+
+    private final Document doc;
+    private final Timer.Context context;
+    private final CompletableFuture<List<Document>> results;
+
+    InFlightDocument(Document doc, Timer.Context context, CompletableFuture<List<Document>> results) {
+      this.doc = doc;
+      this.context = context;
+      this.results = results;
+    }
+
+    boolean isDone() {
+      return results == null || results.isDone();
+    }
+  }
+
+  /**
+   * Polls for up to batchSize documents. The batch is returned as soon as a poll comes back empty, so a partial batch
+   * never waits on an idle topic, or once batchTimeout milliseconds have elapsed since its first document was received.
+   */
+  private List<Document> pollBatch() throws Exception {
+    List<Document> docs = new ArrayList<>(batchSize);
+    Instant deadline = null;
+
+    while (running && docs.size() < batchSize) {
+      if (deadline != null && !Instant.now().isBefore(deadline)) {
+        break;
+      }
+
+      pollInstant.set(Instant.now());
+      // blocking poll with a timeout which we assume to be in the range of
+      // several milliseconds to several seconds
+      Document doc = messenger.pollDocToProcess();
+
+      if (doc == null) {
+        break;
+      }
+
+      docs.add(doc);
+
+      if (deadline == null) {
+        deadline = Instant.now().plus(batchTimeout, ChronoUnit.MILLIS);
+      }
+    }
+
+    return docs;
+  }
+
+  /**
+   * Passes a batch of documents through the pipeline via Pipeline.processDocuments() and sends the results
+   * for indexing. If the pipeline throws an exception, every document in the batch is marked as failed, unless
+   * worker.isolateBatchFailures is true. In that case each document is passed through the pipeline again on its own,
+   * starting from a copy taken before the batch was processed, so that only the documents that fail on their own are
+   * marked as failed. Taking the copies costs a deep copy of every document in every batch, and running the stages
+   * again repeats any side effects they had on the first attempt, such as calls to remote services.
+   */
+  private void processBatch(List<Document> docs, Timer timer) {
+    if (docs.isEmpty()) {
+      commitOffsetsAndRemoveCounters(docs);
+      return;
+    }
+
+    List<Document> toProcess = new ArrayList<>(docs.size());
+    for (Document doc : docs) {
+      if (trackRetries && counter.add(doc)) {
+        try {
+          log.info("Retry count exceeded for document " + doc.getId() + "; Sending to failure topic");
+          messenger.sendFailed(doc);
+        } catch (Exception e) {
+          log.error("Failed to send doc to failure topic: " + doc.getId(), e);
+        }
+
+        try {
+          messenger.sendEvent(doc, "SENT_TO_DLQ", Event.Type.FAIL);
+        } catch (Exception e) {
+          log.error("Failed to send completion event for: " + doc.getId(), e);
+        }
+      } else {
+        toProcess.add(doc);
+      }
+    }
+
+    if (toProcess.isEmpty()) {
+      commitOffsetsAndRemoveCounters(docs);
+      return;
+    }
+
+    // input documents are modified in place, so any result that is not one of the input instances is a child
+    Set<Document> inputDocs = Collections.newSetFromMap(new IdentityHashMap<>());
+    inputDocs.addAll(toProcess);
+
+    // stages modify the input documents in place, so keep copies to retry them from if the batch fails
+    List<Document> originals = null;
+    if (isolateBatchFailures) {
+      originals = new ArrayList<>(toProcess.size());
+      for (Document doc : toProcess) {
+        originals.add(doc.deepCopy());
+      }
+    }
+
+    try {
+      long start = System.nanoTime();
+      List<Document> results = pipeline.processDocuments(toProcess);
+      ResultBuffer buffer = new ResultBuffer();
+
+      // children always precede their parents in the results, so the Publisher will learn about
+      // any generated children BEFORE the input/parent document is completed
+      for (Document result : results) {
+        buffer.add(result, !inputDocs.contains(result));
+      }
+      buffer.flush();
+
+      long meanNanos = (System.nanoTime() - start) / toProcess.size();
+      for (int i = 0; i < toProcess.size(); i++) {
+        timer.update(meanNanos, TimeUnit.NANOSECONDS);
+      }
+    } catch (Exception e) {
+      if (originals == null) {
+        log.error("Error processing batch of " + toProcess.size() + " documents starting with: "
+            + toProcess.get(0).getId(), e);
+        for (Document doc : toProcess) {
+          try {
+            messenger.sendEvent(doc, null, Event.Type.FAIL);
+          } catch (Exception e2) {
+            log.error("Error sending failure event for document: " + doc.getId(), e2);
+          }
+        }
+      } else {
+        log.error("Error processing batch of " + toProcess.size() + " documents starting with: "
+            + toProcess.get(0).getId() + "; processing each document on its own", e);
+        for (Document doc : originals) {
+          processSingle(doc, timer);
+        }
+      }
+    }
+
+    commitOffsetsAndRemoveCounters(docs);
+  }
+
+  /**
+   * Passes one document through the pipeline and sends its results for indexing, marking it as failed if the pipeline
+   * throws an exception. Used when a batch fails, to find the documents in it that fail on their own.
+   */
+  private void processSingle(Document doc, Timer timer) {
+    ResultBuffer buffer = new ResultBuffer();
+    try {
+      Timer.Context context = timer.time();
+      pipeline.processDocument(doc, result -> buffer.add(result, !doc.getId().equals(result.getId())));
+      buffer.flush();
+      context.stop();
+    } catch (Exception e) {
+      log.error("Error processing document: " + doc.getId(), e);
+      try {
+        // children emitted before the error are still indexed
+        buffer.flush();
+      } catch (Exception e2) {
+        log.error("Error sending results for document: " + doc.getId(), e2);
+      }
+      try {
+        messenger.sendEvent(doc, null, Event.Type.FAIL);
+      } catch (Exception e2) {
+        log.error("Error sending failure event for document: " + doc.getId(), e2);
+      }
+    }
+  }
+
   public void logMetrics() {
+    if (stagedPipeline != null) {
+      stagedPipeline.logMetrics();
+      return;
+    }
     pipeline.logMetrics();
   }
 
@@ -166,6 +644,39 @@ class Worker implements Runnable {
     }
   }
 
+  private void commitOffsetsAndRemoveCounters(List<Document> docs) {
+    try {
+      messenger.commitPendingDocOffsets();
+      if (trackRetries) {
+        for (Document doc : docs) {
+          counter.remove(doc);
+        }
+      }
+    } catch (Exception commitException) {
+      log.error("Error committing updated offsets for pending documents", commitException);
+    }
+  }
+
+  /**
+   * Commits the given completed documents while later documents are still in flight. Returns false if the messenger
+   * cannot do so, in which case the documents must be committed once nothing is in flight.
+   */
+  private boolean commitCompletedOffsetsAndRemoveCounters(List<Document> docs) {
+    try {
+      if (!messenger.commitDocOffsets(docs)) {
+        return false;
+      }
+      if (trackRetries) {
+        for (Document doc : docs) {
+          counter.remove(doc);
+        }
+      }
+    } catch (Exception commitException) {
+      log.error("Error committing updated offsets for completed documents", commitException);
+    }
+    return true;
+  }
+
   public AtomicReference<Instant> getPreviousPollInstant() {
     return pollInstant;
   }
@@ -180,6 +691,7 @@ class Worker implements Runnable {
     Config config = ConfigFactory.load();
     String pipelineName = args.length > 0 ? args[0] : config.getString("worker.pipeline");
     log.debug("Starting Workers for pipeline: " + pipelineName);
+    DocumentImplementation.configure(config);
 
     WorkerMessengerFactory workerMessengerFactory =
         WorkerMessengerFactory.getKafkaFactory(config, pipelineName);
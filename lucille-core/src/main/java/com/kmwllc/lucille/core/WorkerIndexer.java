@@ -2,6 +2,7 @@ package com.kmwllc.lucille.core;
 
 import com.kmwllc.lucille.indexer.IndexerFactory;
 import com.kmwllc.lucille.message.HybridIndexerMessenger;
+import com.kmwllc.lucille.message.HybridOffsetTracker;
 import com.kmwllc.lucille.message.HybridWorkerMessenger;
 import com.kmwllc.lucille.message.LocalMessenger;
 import com.kmwllc.lucille.util.ThreadNameUtils;
@@ -13,6 +14,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.misc.Signal;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -27,19 +30,26 @@ import java.util.concurrent.LinkedBlockingQueue;
  *  5) the Worker reads offsets from the in-memory queue and commits them
  *  6) callbacks are disabled
  *
- *  TODO: document why pairing of one worker with one indexer is necessary for hybrid mode
+ * Pairing one Worker with one Indexer lets the Indexer report completed offsets cheaply: it receives the Worker's
+ * documents in the order they were consumed, so the offset after the last document of a batch, in each partition,
+ * also covers every earlier document, and the Worker that owns the partition is known. Alternatively, a WorkerIndexer
+ * can run N Workers feeding M Indexers through one shared queue, which allows fewer connections to the destination
+ * and larger batches. Indexers then complete documents out of order, so each indexed document's offset is routed
+ * back to the Worker that owns its partition through a HybridOffsetTracker, and each Worker commits only the
+ * offsets below the earliest document in a partition that has not yet been indexed.
  */
 public class WorkerIndexer {
 
   private static final Logger log = LoggerFactory.getLogger(WorkerIndexer.class);
 
-  private Indexer indexer;
-  private Thread indexerThread;
-  private WorkerThread workerThread;
+  private final List<Indexer> indexers = new ArrayList<>();
+  private final List<Thread> indexerThreads = new ArrayList<>();
+  private final List<WorkerThread> workerThreads = new ArrayList<>();
 
   public static void main(String[] args) throws Exception {
     Config config = ConfigFactory.load();
     String pipelineName = args.length > 0 ? args[0] : config.getString("worker.pipeline");
+    DocumentImplementation.configure(config);
     WorkerIndexerPool pool = new WorkerIndexerPool(config, pipelineName, false, null);
     pool.start();
 
@@ -86,17 +96,52 @@ public class WorkerIndexer {
     HybridIndexerMessenger indexerMessageManager =
         new HybridIndexerMessenger(config, pipelineDest, offsets, idSet, pipelineName);
 
-    indexer = IndexerFactory.fromConfig(config, indexerMessageManager, bypassSearchEngine, pipelineName);
+    startIndexer(config, indexerMessageManager, bypassSearchEngine, pipelineName);
+    startWorker(config, workerMessageManager, pipelineName);
+  }
+
+  /**
+   * Starts numWorkers Workers that feed numIndexers Indexers through a single shared queue.
+   */
+  public void start(Config config, String pipelineName, int numWorkers, int numIndexers, boolean bypassSearchEngine,
+      Set<String> idSet) throws Exception {
+
+    log.info("Starting {} Workers feeding {} Indexers for pipeline: {}", numWorkers, numIndexers, pipelineName);
+
+    LinkedBlockingQueue<Document> pipelineDest =
+        new LinkedBlockingQueue<>(LocalMessenger.DEFAULT_QUEUE_CAPACITY);
+    HybridOffsetTracker tracker = new HybridOffsetTracker();
+
+    for (int i = 0; i < numIndexers; i++) {
+      HybridIndexerMessenger indexerMessageManager =
+          new HybridIndexerMessenger(config, pipelineDest, tracker, idSet, pipelineName);
+      startIndexer(config, indexerMessageManager, bypassSearchEngine, pipelineName);
+    }
+    for (int i = 0; i < numWorkers; i++) {
+      HybridWorkerMessenger workerMessageManager =
+          new HybridWorkerMessenger(config, pipelineName, pipelineDest, tracker);
+      startWorker(config, workerMessageManager, pipelineName);
+    }
+  }
+
+  private void startIndexer(Config config, HybridIndexerMessenger messenger, boolean bypassSearchEngine,
+      String pipelineName) throws Exception {
+    Indexer indexer = IndexerFactory.fromConfig(config, messenger, bypassSearchEngine, pipelineName);
 
     if (!bypassSearchEngine && !indexer.validateConnection()) {
       throw new IndexerException("Indexer could not connect");
     }
 
-    indexerThread = new Thread(indexer);
+    Thread indexerThread = new Thread(indexer);
     indexerThread.start();
+    indexers.add(indexer);
+    indexerThreads.add(indexerThread);
+  }
+
+  private void startWorker(Config config, HybridWorkerMessenger messenger, String pipelineName) throws Exception {
     String name = ThreadNameUtils.createName("WorkerIndexer");
-    Worker worker = new Worker(config, workerMessageManager, pipelineName, pipelineName);
-    workerThread = Worker.startThread(worker, name);
+    Worker worker = new Worker(config, messenger, pipelineName, pipelineName);
+    workerThreads.add(Worker.startThread(worker, name));
   }
 
   public void stop() throws Exception {
@@ -104,9 +149,11 @@ public class WorkerIndexer {
     // before we terminate the worker. This allows the worker to process
     // any offsets that the indexer added to the offset queue upon termination
 
-    if (indexer != null) {
+    for (Indexer indexer : indexers) {
       indexer.terminate();
       log.info("Indexer shutting down");
+    }
+    for (Thread indexerThread : indexerThreads) {
       try {
         indexerThread.join();
       } catch (InterruptedException e) {
@@ -114,8 +161,10 @@ public class WorkerIndexer {
       }
     }
 
-    if (workerThread != null) {
+    for (WorkerThread workerThread : workerThreads) {
       workerThread.terminate();
+    }
+    for (WorkerThread workerThread : workerThreads) {
       try {
         workerThread.join();
       } catch (InterruptedException e) {
@@ -125,11 +174,11 @@ public class WorkerIndexer {
   }
 
   public Indexer getIndexer() {
-    return indexer;
+    return indexers.isEmpty() ? null : indexers.get(0);
   }
 
   public WorkerThread getWorker() {
-    return workerThread;
+    return workerThreads.isEmpty() ? null : workerThreads.get(0);
   }
 
 
@@ -20,6 +20,8 @@ public class WorkerIndexerPool {
   private final Config config;
   private final String pipelineName;
   private Integer numWorkers = null;
+  // when set, the Workers share this many Indexers instead of each being paired with its own
+  private final Integer numIndexers;
   private boolean started = false;
   private final int logSeconds;
   private Timer logTimer;
@@ -39,6 +41,7 @@ public class WorkerIndexerPool {
     if (this.numWorkers == null) {
       this.numWorkers = config.hasPath("worker.threads") ? config.getInt("worker.threads") : DEFAULT_POOL_SIZE;
     }
+    this.numIndexers = config.hasPath("indexer.threads") ? config.getInt("indexer.threads") : null;
     this.logSeconds = ConfigUtils.getOrDefault(config, "log.seconds", LogUtils.DEFAULT_LOG_SECONDS);
     this.idSet = idSet;
   }
@@ -48,21 +51,32 @@ public class WorkerIndexerPool {
       throw new IllegalStateException("WorkerIndexerPool can be started at most once");
     }
     started = true;
-    log.info("Starting " + numWorkers + " WorkerIndexer thread pairs for pipeline " + pipelineName);
 
-    for (int i = 0; i < numWorkers; i++) {
+    if (numIndexers != null) {
+      log.info("Starting " + numWorkers + " Worker threads feeding " + numIndexers + " Indexer threads for pipeline "
+          + pipelineName);
+      WorkerIndexer workerIndexer = new WorkerIndexer();
+      // added before starting, so that stop() also stops any threads started before a failure
+      workerIndexers.add(workerIndexer);
       try {
-        WorkerIndexer workerIndexer = new WorkerIndexer();
-        workerIndexer.start(config, pipelineName, bypassSearchEngine, idSet);
-        workerIndexers.add(workerIndexer);
+        workerIndexer.start(config, pipelineName, numWorkers, numIndexers, bypassSearchEngine, idSet);
       } catch (Exception e) {
-        log.error("Exception caught when starting WorkerIndexer thread {}; aborting", i+1);
+        log.error("Exception caught when starting WorkerIndexer threads; aborting");
+        stopAfterStartupProblem();
+        throw e;
+      }
+    } else {
+      log.info("Starting " + numWorkers + " WorkerIndexer thread pairs for pipeline " + pipelineName);
+      for (int i = 0; i < numWorkers; i++) {
         try {
-          stop();
-        } catch (Exception e2) {
-          log.error("Exception caught when attempting to stop WorkerIndexer threads because of a startup problem", e2);
+          WorkerIndexer workerIndexer = new WorkerIndexer();
+          workerIndexer.start(config, pipelineName, bypassSearchEngine, idSet);
+          workerIndexers.add(workerIndexer);
+        } catch (Exception e) {
+          log.error("Exception caught when starting WorkerIndexer thread {}; aborting", i+1);
+          stopAfterStartupProblem();
+          throw e;
         }
-        throw e;
       }
     }
 
@@ -82,6 +96,14 @@ public class WorkerIndexerPool {
 
   }
 
+  private void stopAfterStartupProblem() {
+    try {
+      stop();
+    } catch (Exception e) {
+      log.error("Exception caught when attempting to stop WorkerIndexer threads because of a startup problem", e);
+    }
+  }
+
   public void stop() throws Exception {
     log.debug("Stopping " + workerIndexers.size() + " worker threads");
     if (logTimer != null) {
@@ -98,7 +120,7 @@ public class WorkerIndexerPool {
     // the output should be the same for any thread;
     // all threads get their metrics via a shared registry using the same naming scheme,
     // so the metrics are collected across all the threads
-    if (workerIndexers.size() > 0) {
+    if (workerIndexers.size() > 0 && workerIndexers.get(0).getWorker() != null) {
       workerIndexers.get(0).getWorker().logMetrics();
     }
   }
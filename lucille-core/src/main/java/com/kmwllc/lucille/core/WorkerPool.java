@@ -19,19 +19,47 @@ import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Starts and manages a group of Worker threads for a given pipeline.
+ * <p>
+ * By default the pool has a fixed size, taken from the pipeline's "threads" setting or from worker.threads.
+ * When worker.maxThreads is set, the pool is adaptive: every worker.scaleIntervalSecs it compares the number of
+ * Documents waiting to be processed (as reported by WorkerMessenger.getPendingDocCount()), how many Workers are busy
+ * with a Document, and the process CPU load, and then adds or retires at most one Worker, staying between
+ * worker.minThreads and worker.maxThreads. A Worker is only retired once the pool has looked idle or saturated for
+ * worker.scaleDownChecks checks in a row, so that a momentarily empty queue does not make the pool shrink and then
+ * grow again.
+ * <p>
+ * When the pipeline is configured with segments, all of the pool's Workers feed one shared StagedPipeline, so the
+ * number of segment threads is set by the segment configuration alone and does not grow with the number of Workers.
+ */
 public class WorkerPool {
 
   public static final int DEFAULT_POOL_SIZE = 1;
+  public static final int DEFAULT_MIN_THREADS = 1;
+  public static final int DEFAULT_SCALE_INTERVAL_SECS = 5;
+  public static final double DEFAULT_MAX_CPU_LOAD = 0.9;
+  public static final int DEFAULT_SCALE_DOWN_CHECKS = 3;
 
   private static final Logger log = LoggerFactory.getLogger(WorkerPool.class);
   private static final long WATCHER_PERIOD_MILLISECONDS = 500;
 
-  private final List<WorkerThread> threads = new ArrayList<>();
+  // these lists are modified by the watcher thread when the pool is adaptive
+  private final List<WorkerThread> threads = new CopyOnWriteArrayList<>();
+  private final List<Worker> workers = new CopyOnWriteArrayList<>();
+  private final List<WorkerMessenger> messengers = new CopyOnWriteArrayList<>();
+  // threads that were retired while scaling down; kept so that join() still waits for them
+  private final List<WorkerThread> retiredThreads = new CopyOnWriteArrayList<>();
   private ScheduledExecutorService watcherService;
+  // shared by all Workers when the pipeline is configured with segments; otherwise null
+  private volatile StagedPipeline stagedPipeline;
   public static final String HEARTBEAT_LOG_NAME = "com.kmwllc.lucille.core.Heartbeat";
   private static final Logger heartbeatLog = LoggerFactory.getLogger(HEARTBEAT_LOG_NAME);
 
@@ -44,9 +72,20 @@ public class WorkerPool {
   private Integer numWorkers = null;
   private WorkerMessengerFactory workerMessengerFactory;
   private boolean started = false;
+  private volatile boolean stopping = false;
   private final int logSeconds;
   private final String metricsPrefix;
 
+  private final boolean adaptive;
+  private final int minWorkers;
+  private final int maxWorkers;
+  private final int scaleIntervalSecs;
+  private final double maxCpuLoad;
+  private final int scaleDownChecks;
+  private int workerCount = 0;
+  // the number of consecutive checks, up to and including the latest, at which the pool could have shrunk
+  private int shrinkChecks = 0;
+
   public WorkerPool(Config config, String pipelineName, WorkerMessengerFactory factory, String metricsPrefix) {
     this.config = config;
     this.pipelineName = pipelineName;
@@ -66,6 +105,23 @@ public class WorkerPool {
     this.maxProcessingSecs =
         config.hasPath("worker.maxProcessingSecs") ? config.getInt("worker.maxProcessingSecs") : 10 * 60 * 1000;
     this.exitOnTimeout = config.hasPath("worker.exitOnTimeout") ? config.getBoolean("worker.exitOnTimeout") : false;
+
+    this.adaptive = config.hasPath("worker.maxThreads");
+    this.minWorkers = ConfigUtils.getOrDefault(config, "worker.minThreads", DEFAULT_MIN_THREADS);
+    this.maxWorkers = adaptive ? config.getInt("worker.maxThreads") : numWorkers;
+    this.scaleIntervalSecs = ConfigUtils.getOrDefault(config, "worker.scaleIntervalSecs", DEFAULT_SCALE_INTERVAL_SECS);
+    this.maxCpuLoad = ConfigUtils.getOrDefault(config, "worker.maxCpuLoad", DEFAULT_MAX_CPU_LOAD);
+    this.scaleDownChecks = ConfigUtils.getOrDefault(config, "worker.scaleDownChecks", DEFAULT_SCALE_DOWN_CHECKS);
+    if (adaptive) {
+      if (minWorkers < 1 || maxWorkers < minWorkers) {
+        throw new IllegalArgumentException("worker.minThreads must be at least 1 and no greater than worker.maxThreads");
+      }
+      if (scaleDownChecks < 1) {
+        throw new IllegalArgumentException("worker.scaleDownChecks must be at least 1");
+      }
+      // the configured pool size is used as the initial size
+      this.numWorkers = Math.max(minWorkers, Math.min(maxWorkers, numWorkers));
+    }
   }
 
   public void start() throws Exception {
@@ -73,22 +129,21 @@ public class WorkerPool {
       throw new IllegalStateException("WorkerPool can be started at most once");
     }
     started = true;
-    log.info("Starting " + numWorkers + " worker threads for pipeline " + pipelineName);
-    List<Worker> workers = new ArrayList<>();
+    log.info("Starting " + numWorkers + " worker threads for pipeline " + pipelineName +
+        (adaptive ? " (adaptive between " + minWorkers + " and " + maxWorkers + " threads)" : ""));
 
     try {
+      if (StagedPipeline.isStaged(config, pipelineName)) {
+        stagedPipeline = new StagedPipeline(config, pipelineName, metricsPrefix);
+        // the pool holds the pipeline until it is stopped, so that retiring the last Worker does not stop it
+        stagedPipeline.retain();
+      }
+
       for (int i = 0; i < numWorkers; i++) {
-        WorkerMessenger messenger = workerMessengerFactory.create();
-
-        String name = ThreadNameUtils.createName("Worker-" + (i + 1));
-        // will throw exception if pipeline has errors
-        Worker worker = new Worker(config, messenger, pipelineName, metricsPrefix);
-        workers.add(worker);
-        // start workerThread
-        threads.add(Worker.startThread(worker, name));
+        addWorker();
       }
 
-      watcherService = startWatcher(workers, maxProcessingSecs);
+      watcherService = startWatcher(maxProcessingSecs);
     } catch (Exception e) {
       log.error("Exception caught when starting Worker threads; aborting");
       try {
@@ -100,10 +155,48 @@ public class WorkerPool {
     }
   }
 
+  private void addWorker() throws Exception {
+    WorkerMessenger messenger = workerMessengerFactory.create();
+
+    String name = ThreadNameUtils.createName("Worker-" + (++workerCount));
+    // will throw exception if pipeline has errors
+    Worker worker = new Worker(config, messenger, pipelineName, metricsPrefix, stagedPipeline);
+    workers.add(worker);
+    messengers.add(messenger);
+    // start workerThread
+    threads.add(Worker.startThread(worker, name));
+  }
+
+  /**
+   * Terminates the most recently started Worker. The Worker finishes the Document it is currently processing,
+   * commits its offsets, and closes its messenger before its thread exits.
+   */
+  private void retireWorker() {
+    int last = threads.size() - 1;
+    WorkerThread thread = threads.remove(last);
+    workers.remove(last);
+    messengers.remove(last);
+    thread.terminate();
+    retiredThreads.add(thread);
+  }
+
   public void stop() {
     log.debug("Stopping " + threads.size() + " worker threads");
-    for (WorkerThread workerThread : threads) {
-      workerThread.terminate();
+    synchronized (this) {
+      // prevents the watcher from adding workers after this point
+      stopping = true;
+      for (WorkerThread workerThread : threads) {
+        workerThread.terminate();
+      }
+      if (stagedPipeline != null) {
+        // the pipeline stops once the Workers still feeding it have finished
+        try {
+          stagedPipeline.release();
+        } catch (StageException e) {
+          log.error("Error stopping pipeline stage", e);
+        }
+        stagedPipeline = null;
+      }
     }
     // shutdown watcherService gracefully
     if (watcherService != null) {
@@ -119,30 +212,157 @@ public class WorkerPool {
   }
 
   public void join() throws InterruptedException {
+    for (WorkerThread workerThread : retiredThreads) {
+      workerThread.join();
+    }
     for (WorkerThread workerThread : threads) {
       workerThread.join();
     }
   }
 
   public void join(long millis) throws InterruptedException {
+    for (WorkerThread workerThread : retiredThreads) {
+      workerThread.join(millis);
+    }
     for (WorkerThread workerThread : threads) {
       workerThread.join(millis);
     }
   }
 
+  /**
+   * Returns the number of Worker threads the pool starts with. When the pool is adaptive, the current number of
+   * Worker threads is available via getCurrentNumWorkers().
+   */
   public int getNumWorkers() {
     return numWorkers;
   }
 
-  private ScheduledExecutorService startWatcher(List<Worker> workers, int maxProcessingSecs) {
+  public int getCurrentNumWorkers() {
+    return threads.size();
+  }
+
+  /**
+   * Returns the number of segment threads serving the pool's Workers, or 0 if the pipeline is not configured with
+   * segments.
+   */
+  public int getNumSegmentThreads() {
+    StagedPipeline pipeline = stagedPipeline;
+    return pipeline == null ? 0 : pipeline.getThreadCount();
+  }
+
+  /**
+   * Adds or retires a Worker if the pool is adaptive and the current load calls for it.
+   */
+  private synchronized void scale() {
+    if (stopping) {
+      return;
+    }
+
+    long pendingDocs = getPendingDocCount();
+    double cpuLoad = getProcessCpuLoad();
+    int busyWorkers = 0;
+    for (Worker worker : workers) {
+      if (Duration.between(worker.getPreviousPollInstant().get(), Instant.now()).toMillis() > WATCHER_PERIOD_MILLISECONDS) {
+        busyWorkers++;
+      }
+    }
+
+    int size = threads.size();
+    shrinkChecks = isShrinkSignal(pendingDocs, cpuLoad, maxCpuLoad) ? shrinkChecks + 1 : 0;
+    int step = getScaleStep(size, minWorkers, maxWorkers, pendingDocs, busyWorkers, cpuLoad, maxCpuLoad,
+        shrinkChecks, scaleDownChecks);
+    if (step == 0) {
+      return;
+    }
+
+    log.info(String.format("%s worker pool for pipeline %s to %d threads. Pending docs: %d. Busy workers: %d. CPU load: %.2f.",
+        step > 0 ? "Growing" : "Shrinking", pipelineName, size + step, pendingDocs, busyWorkers, cpuLoad));
+
+    if (step > 0) {
+      try {
+        addWorker();
+      } catch (Exception e) {
+        log.error("Error adding worker thread", e);
+      }
+    } else {
+      retireWorker();
+    }
+  }
+
+  /**
+   * Returns whether a check with the given measurements calls for the pool to shrink: the process is using more than
+   * maxCpuLoad, since additional Workers would only contend for the same cores, or nothing is waiting to be processed.
+   * A negative cpuLoad means the load is unknown and is not taken into account.
+   */
+  static boolean isShrinkSignal(long pendingDocs, double cpuLoad, double maxCpuLoad) {
+    return cpuLoad >= maxCpuLoad || pendingDocs == 0;
+  }
+
+  /**
+   * Decides whether an adaptive pool of the given size should grow (1), shrink (-1), or stay the same (0).
+   * <p>
+   * While a check calls for the pool to shrink (see isShrinkSignal()), the pool does not grow, and it shrinks only
+   * once shrinkChecks, the number of consecutive checks that have called for it, reaches scaleDownChecks. Otherwise
+   * the pool grows when either more Documents are waiting than there are Workers, or, when the number of waiting
+   * Documents is unknown (-1), every Worker has been busy with its current Document since the last check.
+   */
+  static int getScaleStep(int size, int minWorkers, int maxWorkers, long pendingDocs, int busyWorkers,
+      double cpuLoad, double maxCpuLoad, int shrinkChecks, int scaleDownChecks) {
+    if (isShrinkSignal(pendingDocs, cpuLoad, maxCpuLoad)) {
+      return size > minWorkers && shrinkChecks >= scaleDownChecks ? -1 : 0;
+    }
+
+    if (size < maxWorkers) {
+      if (pendingDocs > size || (pendingDocs < 0 && busyWorkers >= size)) {
+        return 1;
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns the number of Documents waiting to be processed, summed across distinct messengers, or -1 if any
+   * messenger cannot provide an estimate. Workers running in local mode share a single messenger.
+   */
+  private long getPendingDocCount() {
+    Set<WorkerMessenger> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    distinct.addAll(messengers);
+
+    long total = 0;
+    for (WorkerMessenger messenger : distinct) {
+      long pending = messenger.getPendingDocCount();
+      if (pending < 0) {
+        return -1;
+      }
+      total += pending;
+    }
+    return total;
+  }
+
+  private static double getProcessCpuLoad() {
+    java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+    if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuLoad();
+    }
+    return -1;
+  }
+
+  private ScheduledExecutorService startWatcher(int maxProcessingSecs) {
     TimerTask watcher = new TimerTask() {
 
       private final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG);
       private final com.codahale.metrics.Timer timer = metrics.timer(metricsPrefix + Worker.METRICS_SUFFIX);
       private Instant lastLogInstant = null;
+      private Instant lastScaleInstant = Instant.now();
 
       @Override
       public void run() {
+        if (adaptive && Duration.between(lastScaleInstant, Instant.now()).getSeconds() >= scaleIntervalSecs) {
+          lastScaleInstant = Instant.now();
+          scale();
+        }
+
         // log statistics about pipeline rate and latency
         if (lastLogInstant==null || Duration.between(lastLogInstant, Instant.now()).getSeconds() >= logSeconds) {
           lastLogInstant = Instant.now();
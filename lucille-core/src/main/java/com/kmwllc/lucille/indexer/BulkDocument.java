@@ -0,0 +1,92 @@
+package com.kmwllc.lucille.indexer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.kmwllc.lucille.core.Document;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The source of a Document as sent in a bulk request by the ElasticsearchIndexer and OpenSearchIndexer: the
+ * Document's fields, less its children and any ignored fields, with its id replaced by the id to index it under.
+ * <p>
+ * Both clients serialize bulk request bodies with Jackson, which writes a JsonSerializable by calling serialize().
+ * A BulkDocument writes each field's JsonNode straight to the request body as it is serialized, so a Document is
+ * encoded once, without first being converted to a Map of Java objects for the client to serialize in turn. It is
+ * also a read-only Map of the same fields, converted as by {@link Document#asMap()}, which is built only if it is
+ * used, as when logging or inspecting a request.
+ */
+class BulkDocument extends AbstractMap<String, Object> implements JsonSerializable {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Document doc;
+  private final String id;
+  private final List<String> fieldNames;
+
+  private Map<String, Object> map;
+
+  /**
+   * @param doc the document to send
+   * @param ignoreFields fields to leave out, or null
+   * @param id the value to write as the document's id, or null to leave the id out
+   */
+  BulkDocument(Document doc, List<String> ignoreFields, String id) {
+    this.doc = doc;
+    this.id = id;
+    Set<String> names = doc.getFieldNames();
+    this.fieldNames = new ArrayList<>(names.size());
+    for (String name : names) {
+      if (Document.CHILDREN_FIELD.equals(name) || Document.ID_FIELD.equals(name)
+          || (ignoreFields != null && ignoreFields.contains(name))) {
+        continue;
+      }
+      fieldNames.add(name);
+    }
+  }
+
+  @Override
+  public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+    generator.writeStartObject();
+    if (id != null) {
+      generator.writeStringField(Document.ID_FIELD, id);
+    }
+    for (String name : fieldNames) {
+      generator.writeFieldName(name);
+      doc.getJson(name).serialize(generator, provider);
+    }
+    generator.writeEndObject();
+  }
+
+  @Override
+  public void serializeWithType(JsonGenerator generator, SerializerProvider provider, TypeSerializer typeSerializer)
+      throws IOException {
+    serialize(generator, provider);
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    if (map == null) {
+      Map<String, Object> fields = new LinkedHashMap<>();
+      if (id != null) {
+        fields.put(Document.ID_FIELD, id);
+      }
+      for (String name : fieldNames) {
+        JsonNode value = doc.getJson(name);
+        fields.put(name, MAPPER.convertValue(value, Object.class));
+      }
+      map = Collections.unmodifiableMap(fields);
+    }
+    return map.entrySet();
+  }
+}
@@ -0,0 +1,172 @@
+package com.kmwllc.lucille.indexer;
+
+import com.kmwllc.lucille.core.ConfigUtils;
+import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.ExponentialBackoffRetryHandler;
+import com.kmwllc.lucille.core.IndexerException;
+import com.typesafe.config.Config;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends Documents with a bulk API, as used by the ElasticsearchIndexer and OpenSearchIndexer, and resubmits only the
+ * items that failed in a way that another try might fix.
+ * <p>
+ * An item in a bulk response has failed if it has an error or its status is not 2xx. Each failed item is classified
+ * by its status:
+ * <ul>
+ *   <li>retryable: 429 (the cluster rejected the item under load), 502, 503 or 504. These items are sent again in a
+ *   new bulk request, with exponential backoff, up to &lt;prefix&gt;.maxRetries times.</li>
+ *   <li>conflict: 409. With external versioning, a conflict means a newer version of the document has already been
+ *   indexed, so the item is treated as done. Otherwise, as when a partial update races another update, it is
+ *   retryable.</li>
+ *   <li>permanent: any other error, such as a mapping error. The item is not retried.</li>
+ * </ul>
+ * The first time a request has items rejected with a retryable status, other than a 409, the given callback is run
+ * once, so the Indexer can shrink its batches as the cluster is overloaded. Items that are still failing once the
+ * retries run out, and items with permanent failures, are returned so the Indexer can report each of them as failed. A bulk response that does not have exactly one item for each Document
+ * sent fails the whole request, as the items cannot be matched to the Documents.
+ */
+class BulkItemRetrier {
+
+  private static final Logger log = LoggerFactory.getLogger(BulkItemRetrier.class);
+
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final int DEFAULT_INITIAL_RETRY_DELAY_MS = 100;
+  public static final int DEFAULT_MAX_RETRY_DELAY_MS = 10000;
+
+  enum Outcome { SUCCEEDED, RETRYABLE, PERMANENT }
+
+  /**
+   * The outcome of one item in a bulk response: its status, and the reason it failed, or null if it succeeded.
+   */
+  static class ItemResult {
+
+    final int status;
+    final String error;
+
+    /**
+     * @param error the item's error message, or null if it has no error; an item without one that has a status
+     *              other than 2xx is still taken to have failed
+     */
+    ItemResult(int status, String error) {
+      this.status = status;
+      if (error == null && (status < 200 || status >= 300)) {
+        this.error = "bulk item failed with status " + status;
+      } else {
+        this.error = error;
+      }
+    }
+  }
+
+  /**
+   * Sends the given Documents in one bulk request and returns the result of each item, in the order of the Documents.
+   */
+  @FunctionalInterface
+  interface BulkSender {
+
+    List<ItemResult> send(List<Document> documents) throws Exception;
+  }
+
+  private final ExponentialBackoffRetryHandler retryHandler;
+  private final Runnable onThrottled;
+
+  /**
+   * Reads &lt;prefix&gt;.maxRetries, &lt;prefix&gt;.initialRetryDelay and &lt;prefix&gt;.maxRetryDelay, in
+   * milliseconds, from the given config.
+   *
+   * @param onThrottled run at most once per call to send(), when items are rejected with a retryable status
+   */
+  BulkItemRetrier(Config config, String prefix, Runnable onThrottled) {
+    this.onThrottled = onThrottled;
+    this.retryHandler = new ExponentialBackoffRetryHandler(
+        ConfigUtils.getOrDefault(config, prefix + ".maxRetries", DEFAULT_MAX_RETRIES),
+        ConfigUtils.getOrDefault(config, prefix + ".initialRetryDelay", DEFAULT_INITIAL_RETRY_DELAY_MS),
+        ConfigUtils.getOrDefault(config, prefix + ".maxRetryDelay", DEFAULT_MAX_RETRY_DELAY_MS));
+  }
+
+  /**
+   * Sends the given Documents, resubmitting retryable items, and returns the Documents that could not be sent, each
+   * with the reason it could not be.
+   *
+   * @param externalVersioning whether items carry an external version, so that a conflict means they are stale
+   */
+  Map<Document, String> send(List<Document> documents, boolean externalVersioning, BulkSender sender)
+      throws Exception {
+    Map<Document, String> failures = new IdentityHashMap<>();
+    List<Document> pending = documents;
+    boolean throttled = false;
+
+    for (int numRetries = 1; ; numRetries++) {
+      List<ItemResult> results = sender.send(pending);
+      if (results.size() != pending.size()) {
+        throw new IndexerException(String.format("Bulk response has %d items for %d documents", results.size(),
+            pending.size()));
+      }
+      List<Document> retryable = new ArrayList<>();
+      String retryReason = null;
+
+      for (int i = 0; i < pending.size(); i++) {
+        ItemResult result = results.get(i);
+        Document doc = pending.get(i);
+        switch (classify(result, externalVersioning)) {
+          case RETRYABLE:
+            if (!throttled && isRetryableStatus(result.status)) {
+              throttled = true;
+              onThrottled.run();
+            }
+            retryable.add(doc);
+            retryReason = result.error;
+            failures.put(doc, result.error);
+            break;
+          case PERMANENT:
+            log.warn("Failed to index document id={}: {}", doc.getId(), result.error);
+            failures.put(doc, result.error);
+            break;
+          default:
+            if (result.error != null) {
+              log.debug("Document id={} was superseded by a newer version: {}", doc.getId(), result.error);
+            }
+        }
+      }
+
+      if (retryable.isEmpty() || !retryHandler.canRetry(numRetries)) {
+        return failures;
+      }
+
+      long delay = retryHandler.getDelay(numRetries);
+      log.info("Retrying {} of {} bulk items in {}ms after: {}", retryable.size(), pending.size(), delay,
+          retryReason);
+      Thread.sleep(delay);
+      for (Document doc : retryable) {
+        failures.remove(doc);
+      }
+      pending = retryable;
+    }
+  }
+
+  static Outcome classify(ItemResult result, boolean externalVersioning) {
+    if (result.error == null) {
+      return Outcome.SUCCEEDED;
+    }
+    switch (result.status) {
+      case 409:
+        return externalVersioning ? Outcome.SUCCEEDED : Outcome.RETRYABLE;
+      default:
+        return isRetryableStatus(result.status) ? Outcome.RETRYABLE : Outcome.PERMANENT;
+    }
+  }
+
+  /**
+   * Returns whether a request that failed with the given HTTP status might succeed if it were sent again: 429, when
+   * the destination is rejecting requests under load, or 502, 503 or 504, when it is unavailable. Any other status,
+   * including a 500, is taken to be caused by the request itself. The SolrIndexer uses the same rule.
+   */
+  static boolean isRetryableStatus(int status) {
+    return status == 429 || status == 502 || status == 503 || status == 504;
+  }
+}
@@ -1,6 +1,7 @@
 package com.kmwllc.lucille.indexer;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ErrorCause;
 import co.elastic.clients.elasticsearch._types.VersionType;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
 import co.elastic.clients.elasticsearch.core.BulkResponse;
@@ -11,8 +12,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kmwllc.lucille.core.ConfigUtils;
 import com.kmwllc.lucille.core.Document;
 import com.kmwllc.lucille.core.Indexer;
-import com.kmwllc.lucille.core.IndexerException;
 import com.kmwllc.lucille.core.KafkaDocument;
+import com.kmwllc.lucille.core.PartialIndexingException;
 import com.kmwllc.lucille.message.IndexerMessenger;
 import com.kmwllc.lucille.message.KafkaIndexerMessenger;
 import com.kmwllc.lucille.util.ElasticsearchUtils;
@@ -22,7 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.misc.Signal;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -40,6 +41,7 @@ public class ElasticsearchIndexer extends Indexer {
   private final ElasticJoinData joinData;
   private final String routingField;
   private final VersionType versionType;
+  private final BulkItemRetrier retrier;
 
   public ElasticsearchIndexer(Config config, IndexerMessenger messenger, ElasticsearchClient client,
       String metricsPrefix) {
@@ -55,6 +57,7 @@ public class ElasticsearchIndexer extends Indexer {
     joinData = ElasticJoinData.fromConfig(config);
     this.routingField = ConfigUtils.getOrDefault(config, "indexer.routingField", null);
     this.versionType = config.hasPath("indexer.versionType") ? VersionType.valueOf(config.getString("indexer.versionType")) : null;
+    this.retrier = new BulkItemRetrier(config, "elasticsearch", this::recordThrottled);
   }
 
   public ElasticsearchIndexer(Config config, IndexerMessenger messenger, boolean bypass, String metricsPrefix) {
@@ -91,18 +94,23 @@ public class ElasticsearchIndexer extends Indexer {
       return;
     }
 
-    BulkRequest.Builder br = new BulkRequest.Builder();
-
+    // populate join data to documents once, before any retries
     for (Document doc : documents) {
-
-      // populate join data to document
       joinData.populateJoinData(doc);
+    }
+
+    Map<Document, String> failures = retrier.send(documents,
+        versionType == VersionType.External || versionType == VersionType.ExternalGte, this::sendBulk);
+    if (!failures.isEmpty()) {
+      throw new PartialIndexingException(String.format("Elasticsearch rejected %d of %d documents: %s",
+          failures.size(), documents.size(), failures.values().iterator().next()), failures);
+    }
+  }
 
-      // removing the fields mentioned in the ignoreFields setting in configurations
-      Map<String, Object> indexerDoc = getIndexerDoc(doc);
+  private List<BulkItemRetrier.ItemResult> sendBulk(List<Document> documents) throws Exception {
+    BulkRequest.Builder br = new BulkRequest.Builder();
 
-      // remove children documents field from indexer doc (processed from doc by addChildren method call below)
-      indexerDoc.remove(Document.CHILDREN_FIELD);
+    for (Document doc : documents) {
 
       // if a doc id override value exists, make sure it is used instead of pre-existing doc id
       String docId = Optional.ofNullable(getDocIdOverride(doc)).orElse(doc.getId());
@@ -113,12 +121,10 @@ public class ElasticsearchIndexer extends Indexer {
       // - Case 3: id in ignoreFields, idOverride null -> id used by Indexer, id also removed from Document (tested in testRouting)
       // - Case 4: ignoreFields null, idOverride exists -> idOverride used by Indexer, id and idOverride field exist in Document (tested in testOverride)
       // - Case 5: ignoreFields null, idOverride null -> document id remains and used by Indexer (Default case & tested)
-      if (ignoreFields == null || !ignoreFields.contains(Document.ID_FIELD)) {
-        indexerDoc.put(Document.ID_FIELD, docId);
-      }
-
-      // handle special operations required to add children documents
-      addChildren(doc, indexerDoc);
+      // The fields mentioned in the ignoreFields setting, and the children, are left out as the document is written
+      // into the bulk request.
+      // TODO: add support for child docs like SolrIndexer does in future (_childDocuments_)
+      BulkDocument indexerDoc = new BulkDocument(doc, ignoreFields, isIgnoredField(Document.ID_FIELD) ? null : docId);
 
       Long versionNum = (versionType == VersionType.External || versionType == VersionType.ExternalGte)
           ? ((KafkaDocument) doc).getOffset()
@@ -163,13 +169,16 @@ public class ElasticsearchIndexer extends Indexer {
     }
     BulkResponse response = client.bulk(br.build());
     // We're choosing not to check response.errors(), instead iterating to be sure whether errors exist
+    List<BulkItemRetrier.ItemResult> results = new ArrayList<>();
     if (response != null) {
       for (BulkResponseItem item : response.items()) {
-        if (item.error() != null) {
-          throw new IndexerException(item.error().reason());
-        }
+        ErrorCause error = item.error();
+        // an error need not give a reason, so fall back to its type
+        String message = error == null ? null : error.reason() != null ? error.reason() : String.valueOf(error.type());
+        results.add(new BulkItemRetrier.ItemResult(item.status(), message));
       }
     }
+    return results;
   }
 
   @Override
@@ -183,26 +192,6 @@ public class ElasticsearchIndexer extends Indexer {
     }
   }
 
-  private void addChildren(Document doc, Map<String, Object> indexerDoc) {
-    List<Document> children = doc.getChildren();
-    if (children == null || children.isEmpty()) {
-      return;
-    }
-    for (Document child : children) {
-      Map<String, Object> map = child.asMap();
-      Map<String, Object> indexerChildDoc = new HashMap<>();
-      for (String key : map.keySet()) {
-        // we don't support children that contain nested children
-        if (Document.CHILDREN_FIELD.equals(key)) {
-          continue;
-        }
-        Object value = map.get(key);
-        indexerChildDoc.put(key, value);
-      }
-      // TODO: Do nothing for now, add support for child docs like SolrIndexer does in future (_childDocuments_)
-    }
-  }
-
   public static class ElasticJoinData {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
@@ -4,12 +4,12 @@ import com.kmwllc.lucille.core.Document;
 import com.kmwllc.lucille.core.Indexer;
 import com.kmwllc.lucille.core.IndexerException;
 import com.kmwllc.lucille.core.KafkaDocument;
+import com.kmwllc.lucille.core.PartialIndexingException;
 import com.kmwllc.lucille.message.IndexerMessenger;
 import com.kmwllc.lucille.util.OpenSearchUtils;
 import com.typesafe.config.Config;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -19,6 +19,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import org.opensearch.client.opensearch.OpenSearchClient;
 import org.opensearch.client.opensearch._types.BulkIndexByScrollFailure;
+import org.opensearch.client.opensearch._types.ErrorCause;
 import org.opensearch.client.opensearch._types.FieldValue;
 import org.opensearch.client.opensearch._types.VersionType;
 import org.opensearch.client.opensearch._types.query_dsl.BoolQuery;
@@ -45,6 +46,8 @@ public class OpenSearchIndexer extends Indexer {
   //flag for using partial update API when sending documents to opensearch
   private final boolean update;
 
+  private final BulkItemRetrier retrier;
+
   public OpenSearchIndexer(Config config, IndexerMessenger messenger, OpenSearchClient client, String metricsPrefix) {
     super(config, messenger, metricsPrefix);
     if (this.indexOverrideField != null) {
@@ -57,6 +60,7 @@ public class OpenSearchIndexer extends Indexer {
     this.update = config.hasPath("opensearch.update") ? config.getBoolean("opensearch.update") : false;
     this.versionType =
         config.hasPath("indexer.versionType") ? VersionType.valueOf(config.getString("indexer.versionType")) : null;
+    this.retrier = new BulkItemRetrier(config, "opensearch", this::recordThrottled);
   }
 
   public OpenSearchIndexer(Config config, IndexerMessenger messenger, boolean bypass, String metricsPrefix) {
@@ -131,9 +135,14 @@ public class OpenSearchIndexer extends Indexer {
       }
     }
 
-    uploadDocuments(new ArrayList<>(documentsToUpload.values()));
+    Map<Document, String> failures = uploadDocuments(new ArrayList<>(documentsToUpload.values()));
     deleteById(new ArrayList<>(idsToDelete));
     deleteByQuery(termsToDeleteByQuery);
+
+    if (!failures.isEmpty()) {
+      throw new PartialIndexingException(String.format("OpenSearch rejected %d of %d documents: %s",
+          failures.size(), documents.size(), failures.values().iterator().next()), failures);
+    }
   }
 
   private void deleteById(List<String> idsToDelete) throws Exception {
@@ -227,20 +236,22 @@ public class OpenSearchIndexer extends Indexer {
     }
   }
 
-  private void uploadDocuments(List<Document> documentsToUpload) throws IOException, IndexerException {
+  /**
+   * Sends the given documents, resubmitting those that fail in a way another try might fix, and returns those that
+   * could not be sent.
+   */
+  private Map<Document, String> uploadDocuments(List<Document> documentsToUpload) throws Exception {
     if (documentsToUpload.isEmpty()) {
-      return;
+      return Map.of();
     }
+    return retrier.send(documentsToUpload,
+        versionType == VersionType.External || versionType == VersionType.ExternalGte, this::sendBulk);
+  }
 
+  private List<BulkItemRetrier.ItemResult> sendBulk(List<Document> documentsToUpload) throws IOException {
     BulkRequest.Builder br = new BulkRequest.Builder();
     for (Document doc : documentsToUpload) {
 
-      // removing the fields mentioned in the ignoreFields setting in configurations
-      Map<String, Object> indexerDoc = getIndexerDoc(doc);
-
-      // remove children documents field from indexer doc (processed from doc by addChildren method call below)
-      indexerDoc.remove(Document.CHILDREN_FIELD);
-
       // if a doc id override value exists, make sure it is used instead of pre-existing doc id
       String docId = Optional.ofNullable(getDocIdOverride(doc)).orElse(doc.getId());
 
@@ -250,12 +261,10 @@ public class OpenSearchIndexer extends Indexer {
       // - Case 3: id in ignoreFields, idOverride null -> id used by Indexer, id also removed from Document (tested in testRouting)
       // - Case 4: ignoreFields null, idOverride exists -> idOverride used by Indexer, id and idOverride field exist in Document (tested in testOverride)
       // - Case 5: ignoreFields null, idOverride null -> document id remains and used by Indexer (Default case & tested)
-      if (ignoreFields == null || !ignoreFields.contains(Document.ID_FIELD)) {
-        indexerDoc.put(Document.ID_FIELD, docId);
-      }
-
-      // handle special operations required to add children documents
-      addChildren(doc, indexerDoc);
+      // The fields mentioned in the ignoreFields setting, and the children, are left out as the document is written
+      // into the bulk request.
+      // TODO: add support for child docs like SolrIndexer does in future (_childDocuments_)
+      BulkDocument indexerDoc = new BulkDocument(doc, ignoreFields, isIgnoredField(Document.ID_FIELD) ? null : docId);
       Long versionNum = (versionType == VersionType.External || versionType == VersionType.ExternalGte)
           ? ((KafkaDocument) doc).getOffset()
           : null;
@@ -288,33 +297,16 @@ public class OpenSearchIndexer extends Indexer {
     }
     BulkResponse response = client.bulk(br.build());
     // We're choosing not to check response.errors(), instead iterating to be sure whether errors exist
+    List<BulkItemRetrier.ItemResult> results = new ArrayList<>();
     if (response != null) {
       for (BulkResponseItem item : response.items()) {
-        if (item.error() != null) {
-          throw new IndexerException(item.error().reason());
-        }
-      }
-    }
-  }
-
-  private void addChildren(Document doc, Map<String, Object> indexerDoc) {
-    List<Document> children = doc.getChildren();
-    if (children == null || children.isEmpty()) {
-      return;
-    }
-    for (Document child : children) {
-      Map<String, Object> map = child.asMap();
-      Map<String, Object> indexerChildDoc = new HashMap<>();
-      for (String key : map.keySet()) {
-        // we don't support children that contain nested children
-        if (Document.CHILDREN_FIELD.equals(key)) {
-          continue;
-        }
-        Object value = map.get(key);
-        indexerChildDoc.put(key, value);
+        ErrorCause error = item.error();
+        // an error need not give a reason, so fall back to its type
+        String message = error == null ? null : error.reason() != null ? error.reason() : String.valueOf(error.type());
+        results.add(new BulkItemRetrier.ItemResult(item.status(), message));
       }
-      // TODO: Do nothing for now, add support for child docs like SolrIndexer does in future (_childDocuments_)
     }
+    return results;
   }
 
   private boolean isMarkedForDeletion(Document doc) {
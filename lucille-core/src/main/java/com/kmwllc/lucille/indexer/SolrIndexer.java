@@ -1,8 +1,14 @@
 package com.kmwllc.lucille.indexer;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.kmwllc.lucille.core.ConfigUtils;
 import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.ExponentialBackoffRetryHandler;
 import com.kmwllc.lucille.core.Indexer;
 import com.kmwllc.lucille.core.IndexerException;
+import com.kmwllc.lucille.core.PartialIndexingException;
 import com.kmwllc.lucille.message.IndexerMessenger;
 import com.kmwllc.lucille.message.KafkaIndexerMessenger;
 import com.kmwllc.lucille.util.SolrUtils;
@@ -11,6 +17,8 @@ import com.typesafe.config.ConfigFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import org.apache.solr.client.solrj.SolrClient;
@@ -19,6 +27,7 @@ import org.apache.solr.client.solrj.impl.CloudHttp2SolrClient;
 import org.apache.solr.client.solrj.impl.Http2SolrClient;
 import org.apache.solr.client.solrj.request.CollectionAdminRequest;
 import org.apache.solr.client.solrj.response.SolrPingResponse;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
@@ -29,21 +38,42 @@ import sun.misc.Signal;
 public class SolrIndexer extends Indexer {
 
   private static final Logger log = LoggerFactory.getLogger(SolrIndexer.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final int DEFAULT_RETRY_BACKOFF_MS = 100;
+  public static final int DEFAULT_MAX_RETRY_DELAY_MS = 10000;
 
   private final SolrClient solrClient;
 
+  // when true, a batch that Solr rejects is split in halves, recursively, to find the documents it rejects
+  private final boolean isolateFailures;
+  private final ExponentialBackoffRetryHandler retryHandler;
+
   public SolrIndexer(
       Config config, IndexerMessenger messenger, SolrClient solrClient, String metricsPrefix) {
-    super(config, messenger, metricsPrefix);
-    this.solrClient = solrClient;
+    this(config, messenger, solrClient, false, metricsPrefix);
   }
 
   public SolrIndexer(
       Config config, IndexerMessenger messenger, boolean bypass, String metricsPrefix) {
+    this(config, messenger, null, bypass, metricsPrefix);
+  }
+
+  /**
+   * Uses the given client if it is not null, and otherwise creates one from the config unless bypass is true.
+   */
+  private SolrIndexer(
+      Config config, IndexerMessenger messenger, SolrClient solrClient, boolean bypass, String metricsPrefix) {
     super(config, messenger, metricsPrefix);
+    this.isolateFailures = ConfigUtils.getOrDefault(config, "solr.isolateFailures", false);
+    this.retryHandler = new ExponentialBackoffRetryHandler(
+        ConfigUtils.getOrDefault(config, "solr.maxRetries", DEFAULT_MAX_RETRIES),
+        ConfigUtils.getOrDefault(config, "solr.retryBackoff", DEFAULT_RETRY_BACKOFF_MS),
+        ConfigUtils.getOrDefault(config, "solr.maxRetryDelay", DEFAULT_MAX_RETRY_DELAY_MS));
     // If the SolrIndexer is creating its own client it needs to happen after the Indexer has validated its config
     // to avoid problems where a client is created with no way to close it.
-    this.solrClient = getSolrClient(config, bypass);
+    this.solrClient = solrClient != null ? solrClient : getSolrClient(config, bypass);
   }
 
   private static SolrClient getSolrClient(Config config, boolean bypass) {
@@ -116,6 +146,114 @@ public class SolrIndexer extends Indexer {
       return;
     }
 
+    if (!isolateFailures) {
+      sendBatch(documents);
+      return;
+    }
+
+    try {
+      sendWithRetries(documents);
+      return;
+    } catch (Exception e) {
+      // a transient error that outlasts the retries fails the whole batch, as splitting it would not help
+      if (isTransient(e) || e instanceof InterruptedException) {
+        throw e;
+      }
+      Map<Document, String> failures = new IdentityHashMap<>();
+      isolateFailures(documents, e, failures);
+      throw new PartialIndexingException(
+          String.format("Solr rejected %d of %d documents", failures.size(), documents.size()), failures);
+    }
+  }
+
+  /**
+   * Finds the documents Solr rejects on their own among the given documents, which Solr rejected with the given error,
+   * by splitting them in halves and sending each half in turn, recursively. The rejected documents are added to the
+   * given failures. The halves are sent in order, so an update and a later delete of the same document keep their
+   * order.
+   */
+  private void isolateFailures(List<Document> documents, Exception error, Map<Document, String> failures)
+      throws Exception {
+    if (documents.size() == 1) {
+      Document doc = documents.get(0);
+      String reason = getReason(error);
+      log.warn("Solr rejected document id={}: {}", doc.getId(), reason);
+      failures.put(doc, reason);
+      return;
+    }
+    int mid = documents.size() / 2;
+    sendIsolatingFailures(documents.subList(0, mid), failures);
+    sendIsolatingFailures(documents.subList(mid, documents.size()), failures);
+  }
+
+  /**
+   * Sends the given documents, which are part of a batch Solr rejected, adding those Solr rejects to the given
+   * failures. If sending them fails with a transient error that outlasts the retries, they are all added to the
+   * failures, so that the documents already found to be rejected in other parts of the batch are still reported.
+   */
+  private void sendIsolatingFailures(List<Document> documents, Map<Document, String> failures) throws Exception {
+    try {
+      sendWithRetries(documents);
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      if (!isTransient(e)) {
+        isolateFailures(documents, e, failures);
+        return;
+      }
+      String reason = getReason(e);
+      log.warn("Failed to send {} documents after retrying transient error: {}", documents.size(), reason);
+      for (Document doc : documents) {
+        failures.put(doc, reason);
+      }
+    }
+  }
+
+  private static String getReason(Exception e) {
+    return e.getMessage() != null ? e.getMessage() : e.toString();
+  }
+
+  /**
+   * Sends the given documents, retrying up to solr.maxRetries times, with exponential backoff starting at
+   * solr.retryBackoff milliseconds and capped at solr.maxRetryDelay, if sending them fails with a transient error.
+   * A transient error response, such as a 429 or 503, is recorded as throttling so an adaptive batch size shrinks,
+   * even if a retry succeeds.
+   */
+  private void sendWithRetries(List<Document> documents) throws Exception {
+    for (int numRetries = 1; ; numRetries++) {
+      try {
+        sendBatch(documents);
+        return;
+      } catch (Exception e) {
+        if (!isTransient(e) || !retryHandler.canRetry(numRetries)) {
+          throw e;
+        }
+        if (numRetries == 1 && e instanceof SolrException) {
+          // Solr responded, but asked for the documents to be sent again later
+          recordThrottled();
+        }
+        long delay = retryHandler.getDelay(numRetries);
+        log.warn("Retrying batch of {} documents in {}ms after transient error: {}", documents.size(), delay,
+            e.getMessage());
+        Thread.sleep(delay);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the given error might not recur if the same request were sent again: an I/O or connection error,
+   * or an error response with a status that BulkItemRetrier.isRetryableStatus() accepts, such as a 429 or 503. Other
+   * error responses, such as a 400 for a bad field value or a 500 from a failing update processor, are taken to be
+   * caused by the documents themselves.
+   */
+  static boolean isTransient(Exception e) {
+    if (e instanceof SolrException) {
+      return BulkItemRetrier.isRetryableStatus(((SolrException) e).code());
+    }
+    return e instanceof SolrServerException || e instanceof IOException;
+  }
+
+  private void sendBatch(List<Document> documents) throws Exception {
     Map<String, SolrDocRequests> solrDocRequestsByCollection = new HashMap<>();
     for (Document doc : documents) {
 
@@ -245,18 +383,23 @@ public class SolrIndexer extends Indexer {
         && doc.getString(this.deletionMarkerField).equals(this.deletionMarkerFieldValue);
   }
 
+  /**
+   * Builds the SolrInputDocument for the given Document in a single pass over its fields, converting each field's
+   * JsonNode straight to the value SolrJ expects rather than first converting the whole Document, and each of its
+   * children, to a Map. Fields in ignoreFields are skipped before they are converted. Produces the same values as
+   * Document.asMap(): Strings, the boxed type of each number, Booleans, byte[], and Lists of these.
+   */
   private SolrInputDocument toSolrDoc(Document doc, String idOverride, String indexOverride)
       throws IndexerException {
-    // removes fields from ignoredFields config, including id
-    Map<String, Object> map = getIndexerDoc(doc);
     SolrInputDocument solrDoc = new SolrInputDocument();
 
-    for (String key : map.keySet()) {
+    for (String key : doc.getFieldNames()) {
 
-      if (Document.CHILDREN_FIELD.equals(key)) {
+      // removes fields from ignoredFields config, including id
+      if (Document.CHILDREN_FIELD.equals(key) || isIgnoredField(key)) {
         continue;
       }
-      
+
       if (idOverride != null && Document.ID_FIELD.equals(key)) {
         solrDoc.setField(Document.ID_FIELD, idOverride);
         continue;
@@ -267,46 +410,78 @@ public class SolrIndexer extends Indexer {
         continue;
       }
 
-      Object value = map.get(key);
-      if (value instanceof Map) {
+      JsonNode value = doc.getJson(key);
+      if (value.isObject()) {
         throw new IndexerException(
             String.format(
                 "Object field '%s' on document id=%s is not supported by the " + "SolrIndexer.",
                 key, doc.getId()));
       }
-      solrDoc.setField(key, value);
+      solrDoc.setField(key, toSolrValue(value));
     }
 
     addChildren(doc, solrDoc);
     return solrDoc;
   }
 
+  /**
+   * Adds the children of the given Document to the given SolrInputDocument, reading them in place rather than
+   * through getChildren(), which copies each child.
+   */
   private void addChildren(Document doc, SolrInputDocument solrDoc) throws IndexerException {
-    List<Document> children = doc.getChildren();
-    if (children == null || children.isEmpty()) {
+    if (!doc.has(Document.CHILDREN_FIELD)) {
       return;
     }
-    for (Document child : children) {
-      // remove key:value pair mappings if they appear in ignoreFields
-      Map<String, Object> map = getIndexerDoc(child);
+    for (JsonNode child : doc.getJson(Document.CHILDREN_FIELD)) {
+      JsonNode childId = child.get(Document.ID_FIELD);
+      if (!child.isObject() || childId == null || !childId.isTextual() || childId.asText().isEmpty()) {
+        throw new IndexerException(
+            String.format("Child of document id=%s is not a valid Document: %s", doc.getId(), child));
+      }
 
       SolrInputDocument solrChild = new SolrInputDocument();
-      for (String key : map.keySet()) {
+      for (Iterator<Map.Entry<String, JsonNode>> it = child.fields(); it.hasNext(); ) {
+        Map.Entry<String, JsonNode> field = it.next();
+        String key = field.getKey();
         // we don't support children that contain nested children
-        if (Document.CHILDREN_FIELD.equals(key)) {
+        if (Document.CHILDREN_FIELD.equals(key) || isIgnoredField(key)) {
           continue;
         }
-        Object value = map.get(key);
-        if (value instanceof Map) {
+        if (field.getValue().isObject()) {
           throw new IndexerException(
               String.format(
                   "Object field '%s' on child document id=%s of document id=%s is "
                       + "not supported by the SolrIndexer.",
-                  key, child.getId(), doc.getId()));
+                  key, childId.asText(), doc.getId()));
         }
-        solrChild.setField(key, value);
+        solrChild.setField(key, toSolrValue(field.getValue()));
       }
       solrDoc.addChildDocument(solrChild);
     }
   }
+
+  private static Object toSolrValue(JsonNode node) {
+    switch (node.getNodeType()) {
+      case STRING:
+        return node.textValue();
+      case NUMBER:
+        return node.numberValue();
+      case BOOLEAN:
+        return node.booleanValue();
+      case BINARY:
+        return ((BinaryNode) node).binaryValue();
+      case ARRAY:
+        List<Object> values = new ArrayList<>(node.size());
+        for (JsonNode element : node) {
+          values.add(toSolrValue(element));
+        }
+        return values;
+      case NULL:
+      case MISSING:
+        return null;
+      default:
+        // objects nested in arrays, and POJOs, are passed on as asMap() would have them
+        return MAPPER.convertValue(node, Object.class);
+    }
+  }
 }
@@ -0,0 +1,59 @@
+package com.kmwllc.lucille.message;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Wire formats in which Documents can be written to Kafka topics.
+ * <p>
+ * JSON is the default and is readable by any consumer. SMILE is Jackson's binary JSON encoding: it is faster to
+ * write and parse, refers back to field names (and short string values) that were already written rather than
+ * repeating them, and stores byte[] fields as raw bytes instead of inflating them by a third with base64.
+ * Every SMILE message begins with a header identifying the format and its version, which lets
+ * KafkaDocumentDeserializer detect the format of each record, so a topic may hold records in both formats while
+ * producers are being switched over.
+ */
+public enum DocumentFormat {
+
+  JSON(new ObjectMapper()),
+
+  SMILE(new ObjectMapper(SmileFactory.builder()
+      .enable(SmileGenerator.Feature.WRITE_HEADER)
+      .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+      .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+      .disable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT)
+      .build()));
+
+  private final ObjectMapper mapper;
+
+  DocumentFormat(ObjectMapper mapper) {
+    this.mapper = mapper;
+  }
+
+  ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  /**
+   * Returns the format of the given serialized Document: SMILE if it begins with the SMILE header, JSON otherwise.
+   */
+  static DocumentFormat detect(byte[] data) {
+    // the SMILE header starts with ":)\n"
+    if (data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n') {
+      return SMILE;
+    }
+    return JSON;
+  }
+
+  /**
+   * Parses a format name from the config, ignoring case.
+   */
+  public static DocumentFormat fromString(String name) {
+    try {
+      return valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown document format: " + name + "; expected json or smile");
+    }
+  }
+}
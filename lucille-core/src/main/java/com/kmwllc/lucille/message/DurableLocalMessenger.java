@@ -0,0 +1,246 @@
+package com.kmwllc.lucille.message;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.kmwllc.lucille.core.ConfigUtils;
+import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.Event;
+import com.kmwllc.lucille.core.JsonDocument;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of the messenger APIs used by Indexers, Publishers, and Workers in a single JVM, like
+ * LocalMessenger, but which keeps the Documents waiting to be processed and those waiting to be indexed in
+ * DurableQueues on local disk, so that they are not lost if the JVM dies.
+ * <p>
+ * A Document waiting to be processed is acknowledged once the Worker that polled it commits its offsets, after
+ * sending the Document and its children for indexing; a Document waiting to be indexed is acknowledged once the
+ * Indexer completes the batch containing it. When a run is started against queues that still hold Documents
+ * that were never acknowledged, because a previous run did not complete, those Documents are processed or indexed
+ * again, and a CREATE event is sent for each so that the Publisher waits for them along with the Documents
+ * published in the new run.
+ * <p>
+ * Events are kept in memory: they only matter to the Publisher of the current run.
+ * <p>
+ * The queues for a pipeline are kept in durable.path/PIPELINE. Documents are written to them in the SMILE format.
+ * Used when running Lucille with the LOCAL_DURABLE RunType. close() has no effect, since the messenger is shared by
+ * every component of a run; closeQueues() closes the queues once they are all stopped.
+ */
+public class DurableLocalMessenger implements IndexerMessenger, PublisherMessenger, WorkerMessenger {
+
+  private static final Logger log = LoggerFactory.getLogger(DurableLocalMessenger.class);
+
+  public static final String DEFAULT_PATH = "lucille-queue";
+  public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  private static final ObjectMapper MAPPER = DocumentFormat.SMILE.getMapper();
+
+  private final BlockingQueue<Event> pipelineEvents = new LinkedBlockingQueue<>();
+  private final DurableQueue pipelineSource;
+  private final DurableQueue pipelineDest;
+
+  // positions of the Documents the calling Worker thread has polled since it last committed its offsets
+  private final ThreadLocal<List<Long>> polledToProcess = ThreadLocal.withInitial(ArrayList::new);
+
+  // positions of the Documents the calling Indexer thread has polled that are not yet part of a completed batch
+  private final ThreadLocal<Map<Document, Long>> polledToIndex = ThreadLocal.withInitial(IdentityHashMap::new);
+
+  private String runId = null;
+  private String pipelineName;
+
+  public DurableLocalMessenger(Config config, String pipelineName) throws Exception {
+    Path directory = Paths.get(ConfigUtils.getOrDefault(config, "durable.path", DEFAULT_PATH), pipelineName);
+    int segmentBytes = ConfigUtils.getOrDefault(config, "durable.segmentBytes", DEFAULT_SEGMENT_BYTES);
+    boolean fsync = ConfigUtils.getOrDefault(config, "durable.fsync", false);
+    int capacity = ConfigUtils.getOrDefault(config, "publisher.queueCapacity", LocalMessenger.DEFAULT_QUEUE_CAPACITY);
+
+    this.pipelineSource = new DurableQueue(directory.resolve("source"), segmentBytes, capacity, fsync);
+    this.pipelineDest = new DurableQueue(directory.resolve("dest"), segmentBytes, capacity, fsync);
+
+    int replayed = sendReplayedCreateEvents(pipelineSource) + sendReplayedCreateEvents(pipelineDest);
+    if (replayed > 0) {
+      log.info("Replaying {} unacknowledged documents from {}", replayed, directory);
+    }
+  }
+
+  private int sendReplayedCreateEvents(DurableQueue queue) {
+    int[] count = {0};
+    queue.forEachUnread(contents -> {
+      Document doc = deserialize(contents);
+      pipelineEvents.add(new Event(doc, "REPLAYED", Event.Type.CREATE));
+      count[0]++;
+    });
+    return count[0];
+  }
+
+  private static byte[] serialize(Document document) throws IOException {
+    return MAPPER.writeValueAsBytes(document);
+  }
+
+  private static Document deserialize(byte[] contents) {
+    try {
+      return new JsonDocument((ObjectNode) MAPPER.readTree(contents));
+    } catch (Exception e) {
+      throw new IllegalStateException("Error deserializing document from durable queue", e);
+    }
+  }
+
+  @Override
+  public Document pollDocToIndex() throws Exception {
+    DurableQueue.Record record = pipelineDest.poll(LocalMessenger.POLL_TIMEOUT_MS);
+    if (record == null) {
+      return null;
+    }
+    Document doc = deserialize(record.contents);
+    polledToIndex.get().put(doc, record.position);
+    return doc;
+  }
+
+  @Override
+  public Document pollDocToProcess() throws Exception {
+    DurableQueue.Record record = pipelineSource.poll(LocalMessenger.POLL_TIMEOUT_MS);
+    if (record == null) {
+      return null;
+    }
+    polledToProcess.get().add(record.position);
+    return deserialize(record.contents);
+  }
+
+  /**
+   * Acknowledges the Documents the calling Worker thread has polled since it last committed, which it has sent for
+   * indexing or failed.
+   */
+  @Override
+  public void commitPendingDocOffsets() throws Exception {
+    List<Long> positions = polledToProcess.get();
+    for (long position : positions) {
+      pipelineSource.acknowledge(position);
+    }
+    positions.clear();
+  }
+
+  /**
+   * Acknowledges the given Documents, which are the earliest the calling Worker thread has polled since it last
+   * committed, leaving the Documents polled after them unacknowledged.
+   */
+  @Override
+  public boolean commitDocOffsets(List<Document> documents) throws Exception {
+    List<Long> positions = polledToProcess.get();
+    List<Long> completed = positions.subList(0, Math.min(documents.size(), positions.size()));
+    for (long position : completed) {
+      pipelineSource.acknowledge(position);
+    }
+    completed.clear();
+    return true;
+  }
+
+  @Override
+  public long getPendingDocCount() {
+    return pipelineSource.size();
+  }
+
+  @Override
+  public void sendForIndexing(Document document) throws Exception {
+    pipelineDest.append(serialize(document));
+  }
+
+  @Override
+  public void sendFailed(Document document) throws Exception {
+
+  }
+
+  @Override
+  public void sendEvent(Document document, String message, Event.Type type) throws Exception {
+    Event event = new Event(document, message, type);
+    sendEvent(event);
+  }
+
+  @Override
+  public void sendEvent(Event event) throws Exception {
+    pipelineEvents.add(event);
+  }
+
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    pipelineEvents.addAll(events);
+  }
+
+  @Override
+  public Event pollEvent() throws Exception {
+    return pipelineEvents.poll(LocalMessenger.POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Waits for an Event as in pollEvent() and then also returns any Events already queued behind it.
+   */
+  @Override
+  public List<Event> pollEvents() throws Exception {
+    Event event = pollEvent();
+    if (event == null) {
+      return List.of();
+    }
+    List<Event> events = new ArrayList<>();
+    events.add(event);
+    pipelineEvents.drainTo(events);
+    return events;
+  }
+
+  @Override
+  public void initialize(String runId, String pipelineName) throws Exception {
+    if (this.runId != null) {
+      throw new Exception("Already initialized.");
+    }
+    this.runId = runId;
+    this.pipelineName = pipelineName;
+  }
+
+  @Override
+  public String getRunId() {
+    return runId;
+  }
+
+  @Override
+  public void sendForProcessing(Document document) throws Exception {
+    pipelineSource.append(serialize(document));
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * Closes the queues. Should be called once every component using this messenger has stopped.
+   */
+  public void closeQueues() throws IOException {
+    pipelineSource.close();
+    pipelineDest.close();
+  }
+
+  /**
+   * Acknowledges the indexed Documents, whether or not they were successfully indexed, as the Kafka messengers
+   * commit their offsets.
+   */
+  @Override
+  public void batchComplete(List<Document> batch) throws Exception {
+    Map<Document, Long> positions = polledToIndex.get();
+    for (Document doc : batch) {
+      Long position = positions.remove(doc);
+      if (position != null) {
+        pipelineDest.acknowledge(position);
+      }
+    }
+  }
+}
@@ -0,0 +1,375 @@
+package com.kmwllc.lucille.message;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A queue of byte[] records kept in append-only, memory-mapped segment files in a directory on local disk, so that
+ * records survive the JVM that wrote them. Each record is identified by its position: the number of bytes written to
+ * the queue before it. A record is stored as its length, a CRC32 checksum of its contents, and the contents.
+ * <p>
+ * Records are handed out in the order they were appended, each to a single consumer, and are acknowledged in any
+ * order. The position of the earliest record that has not been acknowledged (or of the next record to hand out, if
+ * every record has been acknowledged) is kept in a cursor file. When a queue is opened, every record from that
+ * position onward is handed out again, so a record is never lost between being appended and being acknowledged but
+ * may be handed out more than once. Segments wholly before the cursor are deleted.
+ * <p>
+ * Writes to a memory-mapped file reach the operating system's page cache immediately and survive the JVM crashing.
+ * When fsync is enabled, every append and every advance of the cursor are also forced to disk, so that they survive
+ * the operating system crashing, at a substantial cost in throughput. A record whose write was interrupted fails its
+ * checksum when the queue is opened and is discarded along with anything after it.
+ * <p>
+ * At most capacity records may be waiting to be handed out; append() blocks while the queue is full. Thread-safe.
+ */
+class DurableQueue {
+
+  // length and checksum
+  static final int HEADER_BYTES = 8;
+
+  static final String SEGMENT_SUFFIX = ".segment";
+  static final String CURSOR_FILE = "cursor";
+
+  // written in place of a record's length when the record did not fit in the rest of the segment
+  private static final int SKIP = -1;
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int capacity;
+  private final boolean fsync;
+
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private final FileChannel cursorChannel;
+  private final MappedByteBuffer cursor;
+
+  // position at which the next record will be appended
+  private long writePosition;
+  // position of the next record to hand out
+  private long readPosition;
+  // number of records appended but not yet handed out
+  private int unread;
+  // position of the earliest record that has not been acknowledged, as stored in the cursor file
+  private long committed;
+
+  // positions of the records that have been handed out and that committed has not yet passed, in order
+  private final ArrayDeque<Long> outstanding = new ArrayDeque<>();
+  // outstanding positions that were acknowledged out of order
+  private final Set<Long> acknowledged = new HashSet<>();
+
+  private boolean closed = false;
+
+  DurableQueue(Path directory, int segmentBytes, int capacity, boolean fsync) throws IOException {
+    if (segmentBytes <= HEADER_BYTES) {
+      throw new IllegalArgumentException("Segment size must be greater than " + HEADER_BYTES + " bytes: " + segmentBytes);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.capacity = capacity;
+    this.fsync = fsync;
+
+    Files.createDirectories(directory);
+    Path cursorPath = directory.resolve(CURSOR_FILE);
+    boolean hasCursor = Files.exists(cursorPath);
+    this.cursorChannel = FileChannel.open(cursorPath,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.cursor = cursorChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(base, openSegment(base, 0));
+        }
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.put(0L, openSegment(0, segmentBytes));
+    }
+
+    this.committed = Math.max(hasCursor ? cursor.getLong(0) : 0, segments.firstKey());
+    recover();
+    this.readPosition = committed;
+    deleteSegmentsBefore(committed);
+  }
+
+  /**
+   * Finds the end of the records that follow the cursor, counting them, and discards anything after a record that
+   * was not completely written.
+   */
+  private void recover() throws IOException {
+    long position = committed;
+    while (true) {
+      Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+      Segment segment = entry.getValue();
+      int offset = (int) (position - segment.base);
+      int length = offset + HEADER_BYTES <= segment.capacity ? segment.buffer.getInt(offset) : SKIP;
+      if (length == SKIP) {
+        Long next = segments.higherKey(segment.base);
+        if (next != null && next == segment.base + segment.capacity) {
+          position = next;
+          continue;
+        }
+      } else if (length > 0 && offset + HEADER_BYTES + length <= segment.capacity
+          && segment.buffer.getInt(offset + 4) == checksum(segment.buffer, offset + HEADER_BYTES, length)) {
+        position += HEADER_BYTES + length;
+        unread++;
+        continue;
+      }
+      truncate(segment, offset);
+      writePosition = position;
+      return;
+    }
+  }
+
+  /**
+   * Zeroes the given segment from the given offset onward and deletes every later segment.
+   */
+  private void truncate(Segment segment, int offset) throws IOException {
+    for (int i = offset; i < segment.capacity; i++) {
+      if (segment.buffer.get(i) != 0) {
+        segment.buffer.put(i, (byte) 0);
+      }
+    }
+    Iterator<Segment> later = segments.tailMap(segment.base, false).values().iterator();
+    while (later.hasNext()) {
+      later.next().delete();
+      later.remove();
+    }
+  }
+
+  private Segment openSegment(long base, int capacity) throws IOException {
+    Path path = directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    // an existing segment keeps the size it was created with
+    int size = capacity > 0 ? capacity : (int) channel.size();
+    return new Segment(base, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+  }
+
+  /**
+   * Appends the given record, waiting while capacity records are waiting to be handed out. Returns the record's
+   * position.
+   */
+  synchronized long append(byte[] record) throws IOException, InterruptedException {
+    if (record.length == 0) {
+      throw new IllegalArgumentException("Records cannot be empty");
+    }
+    while (unread >= capacity) {
+      checkOpen();
+      wait();
+    }
+    checkOpen();
+
+    int size = HEADER_BYTES + record.length;
+    Segment segment = segments.lastEntry().getValue();
+    int offset = (int) (writePosition - segment.base);
+    if (offset + size > segment.capacity) {
+      if (offset + Integer.BYTES <= segment.capacity) {
+        segment.buffer.putInt(offset, SKIP);
+      }
+      if (fsync) {
+        segment.buffer.force();
+      }
+      // a record larger than a segment gets a segment of its own
+      long base = segment.base + segment.capacity;
+      segment = openSegment(base, Math.max(segmentBytes, size));
+      segments.put(base, segment);
+      writePosition = base;
+      offset = 0;
+    }
+
+    segment.buffer.put(offset + HEADER_BYTES, record);
+    segment.buffer.putInt(offset + 4, checksum(segment.buffer, offset + HEADER_BYTES, record.length));
+    segment.buffer.putInt(offset, record.length);
+    if (fsync) {
+      segment.buffer.force(offset, size);
+    }
+
+    long position = writePosition;
+    writePosition += size;
+    unread++;
+    notifyAll();
+    return position;
+  }
+
+  /**
+   * Hands out the next record, waiting up to timeoutMs for one to be appended if there is none. Returns null if
+   * the time elapses first.
+   */
+  synchronized Record poll(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (unread == 0 && !closed) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return null;
+      }
+      wait(remaining);
+    }
+    if (closed) {
+      return null;
+    }
+
+    while (true) {
+      Segment segment = segments.floorEntry(readPosition).getValue();
+      int offset = (int) (readPosition - segment.base);
+      int length = offset + HEADER_BYTES <= segment.capacity ? segment.buffer.getInt(offset) : SKIP;
+      if (length == SKIP) {
+        readPosition = segment.base + segment.capacity;
+        continue;
+      }
+      byte[] contents = new byte[length];
+      segment.buffer.get(offset + HEADER_BYTES, contents);
+      Record record = new Record(readPosition, contents);
+      outstanding.addLast(readPosition);
+      readPosition += HEADER_BYTES + length;
+      unread--;
+      notifyAll();
+      return record;
+    }
+  }
+
+  /**
+   * Calls the given consumer with each record that has not yet been handed out, in order, without handing it out.
+   */
+  synchronized void forEachUnread(Consumer<byte[]> consumer) {
+    long position = readPosition;
+    int visited = 0;
+    while (visited < unread) {
+      Segment segment = segments.floorEntry(position).getValue();
+      int offset = (int) (position - segment.base);
+      int length = offset + HEADER_BYTES <= segment.capacity ? segment.buffer.getInt(offset) : SKIP;
+      if (length == SKIP) {
+        position = segment.base + segment.capacity;
+        continue;
+      }
+      byte[] contents = new byte[length];
+      segment.buffer.get(offset + HEADER_BYTES, contents);
+      consumer.accept(contents);
+      position += HEADER_BYTES + length;
+      visited++;
+    }
+  }
+
+  /**
+   * Acknowledges the record at the given position, which was handed out by poll(), advancing the cursor if it and
+   * every earlier record have been acknowledged.
+   */
+  synchronized void acknowledge(long position) throws IOException {
+    if (closed) {
+      return;
+    }
+    if (!outstanding.isEmpty() && outstanding.peekFirst() == position) {
+      outstanding.pollFirst();
+    } else {
+      acknowledged.add(position);
+    }
+    while (!outstanding.isEmpty() && acknowledged.remove(outstanding.peekFirst())) {
+      outstanding.pollFirst();
+    }
+
+    long watermark = outstanding.isEmpty() ? readPosition : outstanding.peekFirst();
+    if (watermark > committed) {
+      committed = watermark;
+      cursor.putLong(0, committed);
+      if (fsync) {
+        cursor.force();
+      }
+      deleteSegmentsBefore(committed);
+    }
+  }
+
+  /**
+   * Deletes the segments that end at or before the given position, except the one being appended to.
+   */
+  private void deleteSegmentsBefore(long position) throws IOException {
+    while (segments.size() > 1) {
+      Segment first = segments.firstEntry().getValue();
+      if (first.base + first.capacity > position) {
+        return;
+      }
+      first.delete();
+      segments.pollFirstEntry();
+    }
+  }
+
+  /**
+   * Returns the number of records that have been appended but not yet handed out.
+   */
+  synchronized int size() {
+    return unread;
+  }
+
+  /**
+   * Closes the queue's files. Records that have been handed out but not acknowledged will be handed out again when
+   * the queue is next opened.
+   */
+  synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    notifyAll();
+    for (Segment segment : segments.values()) {
+      segment.channel.close();
+    }
+    cursorChannel.close();
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Queue in " + directory + " has been closed");
+    }
+  }
+
+  private static int checksum(MappedByteBuffer buffer, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(buffer.slice(offset, length));
+    return (int) crc.getValue();
+  }
+
+  static class Record {
+
+    final long position;
+    final byte[] contents;
+
+    Record(long position, byte[] contents) {
+      this.position = position;
+      this.contents = contents;
+    }
+  }
+
+  private static class Segment {
+
+    final long base;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer buffer;
+    final int capacity;
+
+    Segment(long base, Path path, FileChannel channel, MappedByteBuffer buffer) {
+      this.base = base;
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+      this.capacity = buffer.capacity();
+    }
+
+    void delete() throws IOException {
+      channel.close();
+      Files.deleteIfExists(path);
+    }
+  }
+}
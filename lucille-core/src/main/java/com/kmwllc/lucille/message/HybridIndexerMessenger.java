@@ -22,6 +22,7 @@ public class HybridIndexerMessenger implements IndexerMessenger {
 
   private final LinkedBlockingQueue<Document> pipelineDest;
   private final LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets;
+  private final HybridOffsetTracker tracker;
   private final KafkaProducer<String, String> kafkaEventProducer;
   private final String pipelineName;
   private final Config config;
@@ -32,15 +33,37 @@ public class HybridIndexerMessenger implements IndexerMessenger {
   // will handle, and we can't know whether a document will be indexed more than once
   // (reprocessing can happen when there's a kafka consumer group rebalance that happens
   // before all offsets have been committed)
-  private final Set idSet;
+  private final Set<String> idSet;
 
   public HybridIndexerMessenger(Config config,
       LinkedBlockingQueue<Document> pipelineDest,
       LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets,
       Set<String> idSet,
       String pipelineName) {
+    this(config, pipelineDest, offsets, null, idSet, pipelineName);
+  }
+
+  /**
+   * Creates a messenger for an Indexer that shares the given queue with other Indexers and reports each Document it
+   * indexes to the given tracker, which routes the offset back to the Worker that consumed it.
+   */
+  public HybridIndexerMessenger(Config config,
+      LinkedBlockingQueue<Document> pipelineDest,
+      HybridOffsetTracker tracker,
+      Set<String> idSet,
+      String pipelineName) {
+    this(config, pipelineDest, null, tracker, idSet, pipelineName);
+  }
+
+  private HybridIndexerMessenger(Config config,
+      LinkedBlockingQueue<Document> pipelineDest,
+      LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets,
+      HybridOffsetTracker tracker,
+      Set<String> idSet,
+      String pipelineName) {
     this.pipelineDest = pipelineDest;
     this.offsets = offsets;
+    this.tracker = tracker;
     this.idSet = idSet;
     this.kafkaEventProducer = KafkaUtils.createEventProducer(config);
     this.pipelineName = pipelineName;
@@ -76,6 +99,18 @@ public class HybridIndexerMessenger implements IndexerMessenger {
     }
   }
 
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    if (idSet != null) {
+      for (Event event : events) {
+        idSet.add(event.getDocumentId());
+      }
+    }
+    if (kafkaEventProducer != null && !events.isEmpty()) {
+      KafkaUtils.sendEventBatches(kafkaEventProducer, config, pipelineName, events);
+    }
+  }
+
   @Override
   public void close() throws Exception {
     if (kafkaEventProducer != null) {
@@ -83,12 +118,25 @@ public class HybridIndexerMessenger implements IndexerMessenger {
     }
   }
 
-  // TODO document assumptions about ordering of documents in batch
+  /**
+   * Reports the offsets of the indexed Documents that originated in Kafka. When this Indexer shares Workers with other
+   * Indexers, each Document is reported to the tracker. Otherwise, this Indexer is paired with a single Worker and
+   * receives its Documents in the order they were consumed, so the offset following the last Document of the batch
+   * in each partition covers every earlier Document as well.
+   */
   @Override
   public void batchComplete(List<Document> batch) throws InterruptedException {
     if (batch.isEmpty()) {
       return;
     }
+    if (tracker != null) {
+      for (Document doc : batch) {
+        if (doc instanceof KafkaDocument) {
+          tracker.indexed((KafkaDocument) doc);
+        }
+      }
+      return;
+    }
     Map<TopicPartition, OffsetAndMetadata> batchOffsets = new HashMap<>();
     for (Document doc : batch) {
 
@@ -0,0 +1,55 @@
+package com.kmwllc.lucille.message;
+
+import com.kmwllc.lucille.core.KafkaDocument;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes the offsets of indexed documents back to the worker that consumed them, when several hybrid workers share
+ * a pool of indexers. Each HybridWorkerMessenger registers a queue for the partitions currently assigned to it;
+ * a HybridIndexerMessenger reports each document it has indexed, and the offset is added to the queue of whichever
+ * worker owns the document's partition. Offsets of documents whose partition is no longer owned by any worker in
+ * this JVM are discarded: the partition's new owner will consume those documents again from its last commit.
+ * <p>
+ * Thread-safe; a single instance is shared by all the workers and indexers in a WorkerIndexer.
+ */
+public class HybridOffsetTracker {
+
+  private final Map<TopicPartition, Queue<IndexedOffset>> owners = new ConcurrentHashMap<>();
+
+  void assign(Collection<TopicPartition> partitions, Queue<IndexedOffset> completions) {
+    for (TopicPartition partition : partitions) {
+      owners.put(partition, completions);
+    }
+  }
+
+  void revoke(Collection<TopicPartition> partitions, Queue<IndexedOffset> completions) {
+    for (TopicPartition partition : partitions) {
+      // another worker may already have been assigned the partition
+      owners.remove(partition, completions);
+    }
+  }
+
+  void indexed(KafkaDocument doc) {
+    TopicPartition partition = new TopicPartition(doc.getTopic(), doc.getPartition());
+    Queue<IndexedOffset> completions = owners.get(partition);
+    if (completions != null) {
+      completions.add(new IndexedOffset(partition, doc.getOffset()));
+    }
+  }
+
+  static class IndexedOffset {
+
+    final TopicPartition partition;
+    final long offset;
+
+    IndexedOffset(TopicPartition partition, long offset) {
+      this.partition = partition;
+      this.offset = offset;
+    }
+  }
+}
@@ -13,10 +13,37 @@ import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
+/**
+ * WorkerMessenger for a Worker that consumes Documents from the pipeline's source topic and hands them to Indexers in
+ * the same JVM through an in-memory queue. Offsets are committed only once the Indexer reports the corresponding
+ * Documents as indexed, in one of two ways:
+ * <ul>
+ *   <li>When the Worker is paired with a single Indexer, the Indexer completes Documents in the order the Worker sent
+ *   them and reports, for each batch, the offset following the last Document it indexed in each partition.</li>
+ *   <li>When several Workers share several Indexers, Documents are completed out of order. Each Indexer reports every
+ *   Document it indexes to a shared HybridOffsetTracker, which routes the offset back to the Worker that owns the
+ *   partition. The Worker tracks the offsets it has handed out in OffsetWatermarks and commits, per partition, only
+ *   the offsets below the earliest Document that has not yet been indexed. Documents that never reach the Indexer,
+ *   because they were dropped or failed, are complete as soon as the Worker is done with them.</li>
+ * </ul>
+ */
 public class HybridWorkerMessenger implements WorkerMessenger {
 
   private static final Logger log = LoggerFactory.getLogger(KafkaWorkerMessenger.class);
@@ -25,17 +52,46 @@ public class HybridWorkerMessenger implements WorkerMessenger {
   private final LinkedBlockingQueue<Document> pipelineDest;
   private final LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets;
 
+  // when Workers share Indexers: the offsets handed out and those reported as indexed; otherwise null
+  private final HybridOffsetTracker tracker;
+  private final Queue<HybridOffsetTracker.IndexedOffset> indexedOffsets = new ConcurrentLinkedQueue<>();
+  private final OffsetWatermarks watermarks = new OffsetWatermarks();
+
+  // records handed out that the Worker has not yet committed, and those among their Documents that were sent for
+  // indexing
+  private final List<ConsumerRecord<String, KafkaDocument>> handedOut = new ArrayList<>();
+  private final Set<Document> sentForIndexing = Collections.newSetFromMap(new IdentityHashMap<>());
+
   private final Config config;
   private final String pipelineName;
 
+  // consumer lag as of the most recent poll; read by the WorkerPool when scaling adaptively
+  private volatile long pendingDocCount = -1;
+
+  // records returned by the most recent poll that have not yet been handed out
+  private final Deque<ConsumerRecord<String, KafkaDocument>> polledRecords = new ArrayDeque<>();
+
+  // the latest offsets passed to commitAsync(), which are committed again synchronously on close so that the
+  // final commit is not lost
+  private final Map<TopicPartition, OffsetAndMetadata> latestOffsets = new HashMap<>();
+
   public HybridWorkerMessenger(Config config, String pipelineName,
       LinkedBlockingQueue<Document> pipelineDest,
       LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets,
       KafkaConsumer sourceConsumer) {
+    this(config, pipelineName, pipelineDest, offsets, null, sourceConsumer);
+  }
+
+  private HybridWorkerMessenger(Config config, String pipelineName,
+      LinkedBlockingQueue<Document> pipelineDest,
+      LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets,
+      HybridOffsetTracker tracker,
+      KafkaConsumer sourceConsumer) {
     this.config = config;
     this.pipelineName = pipelineName;
     this.pipelineDest = pipelineDest;
     this.offsets = offsets;
+    this.tracker = tracker;
     this.sourceConsumer = sourceConsumer;
     this.kafkaEventProducer = KafkaUtils.createEventProducer(config);
   }
@@ -44,42 +100,143 @@ public class HybridWorkerMessenger implements WorkerMessenger {
       LinkedBlockingQueue<Document> pipelineDest,
       LinkedBlockingQueue<Map<TopicPartition, OffsetAndMetadata>> offsets) {
     this(config, pipelineName, pipelineDest, offsets, createSourceConsumer(config, pipelineName));
+    this.sourceConsumer.subscribe(Pattern.compile(KafkaUtils.getSourceTopicName(pipelineName, config)),
+        new RebalanceListener());
+  }
+
+  /**
+   * Creates a messenger for a Worker that shares the given queue with other Workers and with several Indexers, which
+   * report indexed Documents to the given tracker.
+   */
+  public HybridWorkerMessenger(Config config, String pipelineName,
+      LinkedBlockingQueue<Document> pipelineDest,
+      HybridOffsetTracker tracker) {
+    this(config, pipelineName, pipelineDest, null, tracker, createSourceConsumer(config, pipelineName));
+    this.sourceConsumer.subscribe(Pattern.compile(KafkaUtils.getSourceTopicName(pipelineName, config)),
+        new RebalanceListener());
   }
 
   private static KafkaConsumer createSourceConsumer(Config config, String pipelineName) {
     // append random string to kafka client ID to prevent kafka from issuing a warning when multiple consumers
     // with the same client ID are started in separate worker threads
     String kafkaClientId = "com.kmwllc.lucille-worker-" + pipelineName + "-" + RandomStringUtils.randomAlphanumeric(8);
-    KafkaConsumer consumer = KafkaUtils.createDocumentConsumer(config, kafkaClientId);
-    consumer.subscribe(Pattern.compile(KafkaUtils.getSourceTopicName(pipelineName, config)));
-
-    return consumer;
+    return KafkaUtils.createDocumentConsumer(config, kafkaClientId);
   }
 
   /**
-   * Polls for a document that is waiting to be processed by the pipeline.
+   * Polls for a document that is waiting to be processed by the pipeline. Records left over from a previous poll
+   * are handed out before the consumer is polled again.
    *
    * Does not commit offsets.
    */
   @Override
   public KafkaDocument pollDocToProcess() throws Exception {
-    ConsumerRecords<String, KafkaDocument> consumerRecords = sourceConsumer.poll(KafkaUtils.POLL_INTERVAL);
-    KafkaUtils.validateAtMostOneRecord(consumerRecords);
-    if (consumerRecords.count() > 0) {
-      ConsumerRecord<String, KafkaDocument> record = consumerRecords.iterator().next();
-      KafkaDocument doc = record.value();
-      doc.setKafkaMetadata(record);
-      return doc;
+    if (polledRecords.isEmpty()) {
+      ConsumerRecords<String, KafkaDocument> consumerRecords = sourceConsumer.poll(KafkaUtils.POLL_INTERVAL);
+      for (ConsumerRecord<String, KafkaDocument> record : consumerRecords) {
+        polledRecords.add(record);
+      }
+      long lag = KafkaUtils.getCurrentLag(sourceConsumer);
+      pendingDocCount = lag < 0 ? lag : lag + polledRecords.size();
+    }
+
+    ConsumerRecord<String, KafkaDocument> record = polledRecords.poll();
+    if (record == null) {
+      return null;
+    }
+    if (tracker != null) {
+      watermarks.track(new TopicPartition(record.topic(), record.partition()), record.offset());
+      handedOut.add(record);
     }
-    return null;
+
+    KafkaDocument doc = record.value();
+    doc.setKafkaMetadata(record);
+    return doc;
   }
 
+  /**
+   * Returns the lag of this messenger's consumer as of its most recent poll.
+   */
+  @Override
+  public long getPendingDocCount() {
+    return pendingDocCount;
+  }
+
+  /**
+   * Commits, asynchronously and in a single request, the offsets that have become safe to commit since the previous
+   * call: those of all batches the Indexer has completed or, when Workers share Indexers, the watermarks below the
+   * earliest Document that has not yet been indexed.
+   */
   @Override
   public void commitPendingDocOffsets() throws Exception {
-    Map<TopicPartition, OffsetAndMetadata> batchOffsets = null;
-    while ((batchOffsets = offsets.poll()) != null) {
-      sourceConsumer.commitSync(batchOffsets);
+    completeHandedOut(record -> true);
+    sentForIndexing.clear();
+    commitCompletedOffsets();
+  }
+
+  /**
+   * Like commitPendingDocOffsets(), but when Workers share Indexers, only the given Documents are complete as far as
+   * the Worker is concerned; those handed out after them are still in progress.
+   */
+  @Override
+  public boolean commitDocOffsets(List<Document> documents) throws Exception {
+    Set<Document> completed = Collections.newSetFromMap(new IdentityHashMap<>());
+    completed.addAll(documents);
+    completeHandedOut(record -> completed.contains(record.value()));
+    commitCompletedOffsets();
+    return true;
+  }
+
+  private void commitCompletedOffsets() {
+    Map<TopicPartition, OffsetAndMetadata> completedOffsets;
+    if (tracker != null) {
+      completedOffsets = advanceWatermarks();
+    } else {
+      completedOffsets = new HashMap<>();
+      Map<TopicPartition, OffsetAndMetadata> batchOffsets = null;
+      while ((batchOffsets = offsets.poll()) != null) {
+        // batches are completed in order, so a later batch's offset supersedes an earlier one in the same partition
+        completedOffsets.putAll(batchOffsets);
+      }
+    }
+    // a partition that has been reassigned may already have a later offset committed by its new owner
+    completedOffsets.keySet().retainAll(sourceConsumer.assignment());
+    if (completedOffsets.isEmpty()) {
+      return;
+    }
+    latestOffsets.putAll(completedOffsets);
+    sourceConsumer.commitAsync(completedOffsets, (committed, e) -> {
+      if (e != null) {
+        log.warn("Failed to commit offsets " + committed + "; they will be covered by a later commit", e);
+      }
+    });
+  }
+
+  /**
+   * Marks the handed out Documents that match the given filter complete, unless they were sent for indexing, in which
+   * case the Indexers complete them, and stops tracking them as handed out.
+   */
+  private void completeHandedOut(Predicate<ConsumerRecord<String, KafkaDocument>> filter) {
+    for (Iterator<ConsumerRecord<String, KafkaDocument>> it = handedOut.iterator(); it.hasNext(); ) {
+      ConsumerRecord<String, KafkaDocument> record = it.next();
+      if (filter.test(record)) {
+        it.remove();
+        if (!sentForIndexing.remove(record.value())) {
+          watermarks.complete(new TopicPartition(record.topic(), record.partition()), record.offset());
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks the Documents the Indexers have reported as indexed complete, and returns the watermarks that have advanced.
+   */
+  private Map<TopicPartition, OffsetAndMetadata> advanceWatermarks() {
+    HybridOffsetTracker.IndexedOffset indexed;
+    while ((indexed = indexedOffsets.poll()) != null) {
+      watermarks.complete(indexed.partition, indexed.offset);
     }
+    return watermarks.advance();
   }
 
   /**
@@ -88,6 +245,10 @@ public class HybridWorkerMessenger implements WorkerMessenger {
    */
   @Override
   public void sendForIndexing(Document document) throws Exception {
+    if (tracker != null && document instanceof KafkaDocument) {
+      // record the Document before handing it over, so its offset is never completed by the Worker as well
+      sentForIndexing.add(document);
+    }
     pipelineDest.put(document);
   }
 
@@ -115,9 +276,30 @@ public class HybridWorkerMessenger implements WorkerMessenger {
     sendEvent(event);
   }
 
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    if (kafkaEventProducer == null || events.isEmpty()) {
+      return;
+    }
+    KafkaUtils.sendEventBatches(kafkaEventProducer, config, pipelineName, events);
+  }
+
   @Override
   public void close() throws Exception {
     if (sourceConsumer != null) {
+      if (tracker != null) {
+        tracker.revoke(sourceConsumer.assignment(), indexedOffsets);
+      }
+      try {
+        commitPendingDocOffsets();
+        // a partition that has been reassigned may already have a later offset committed by its new owner
+        latestOffsets.keySet().retainAll(sourceConsumer.assignment());
+        if (!latestOffsets.isEmpty()) {
+          sourceConsumer.commitSync(latestOffsets);
+        }
+      } catch (Exception e) {
+        log.error("Error committing offsets before closing consumer", e);
+      }
       sourceConsumer.close();
     }
     if (kafkaEventProducer != null) {
@@ -125,5 +307,41 @@ public class HybridWorkerMessenger implements WorkerMessenger {
     }
   }
 
+  /**
+   * Commits the offsets the Indexer has completed so far and drops any records that have not been handed out from
+   * partitions that are being revoked, since those records will be consumed elsewhere. Called on the polling thread,
+   * from within poll().
+   */
+  private class RebalanceListener implements ConsumerRebalanceListener {
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+      try {
+        // the Worker may still be processing Documents it has been handed, so commit only what is already complete
+        commitCompletedOffsets();
+        latestOffsets.keySet().retainAll(sourceConsumer.assignment());
+        if (!latestOffsets.isEmpty()) {
+          sourceConsumer.commitSync(latestOffsets);
+        }
+      } catch (Exception e) {
+        log.error("Error committing offsets for revoked partitions", e);
+      }
+      latestOffsets.keySet().removeAll(partitions);
+      polledRecords.removeIf(r -> partitions.contains(new TopicPartition(r.topic(), r.partition())));
+      if (tracker != null) {
+        tracker.revoke(partitions, indexedOffsets);
+        watermarks.remove(partitions);
+        handedOut.removeIf(r -> partitions.contains(new TopicPartition(r.topic(), r.partition())));
+      }
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+      if (tracker != null) {
+        tracker.assign(partitions, indexedOffsets);
+      }
+    }
+  }
+
 }
 
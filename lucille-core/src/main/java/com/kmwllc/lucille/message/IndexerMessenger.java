@@ -30,6 +30,17 @@ public interface IndexerMessenger {
    */
   void sendEvent(Event event) throws Exception;
 
+  /**
+   * Make the designated Events available to the Publisher or any other component that is listening for
+   * Document-related Events. Implementations that send Events to a remote service should send them together,
+   * as an EventBatch, rather than one at a time.
+   */
+  default void sendEvents(List<Event> events) throws Exception {
+    for (Event event : events) {
+      sendEvent(event);
+    }
+  }
+
   /**
    * Create an Event from the given parameters and make it available to the Publisher or
    * any other component that is listening for Document-related Events.
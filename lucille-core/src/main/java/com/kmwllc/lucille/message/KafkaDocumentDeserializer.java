@@ -1,15 +1,41 @@
 package com.kmwllc.lucille.message;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.kmwllc.lucille.core.Document;
 import com.kmwllc.lucille.core.KafkaDocument;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Deserializer;
 
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Deserializes Documents written in any DocumentFormat, detecting the format of each record from its first bytes.
+ * <p>
+ * When the record headers carry the document's ID, as written by KafkaDocumentSerializer, the payload is not parsed
+ * here: the returned KafkaDocument parses it when one of its fields is first accessed. Records without the headers
+ * are parsed immediately.
+ */
 public class KafkaDocumentDeserializer implements Deserializer<Document> {
 
-  private static final ObjectMapper MAPPER = new ObjectMapper();
+  @Override
+  public Document deserialize(String topic, Headers headers, byte[] data) {
+    if (data == null) {
+      return null;
+    }
+
+    Header id = headers == null ? null : headers.lastHeader(KafkaDocumentSerializer.ID_HEADER);
+    if (id == null) {
+      return deserialize(topic, data);
+    }
+
+    Header runId = headers.lastHeader(KafkaDocumentSerializer.RUN_ID_HEADER);
+    return new KafkaDocument(data, DocumentFormat.detect(data).getMapper(),
+        new String(id.value(), StandardCharsets.UTF_8),
+        runId == null ? null : new String(runId.value(), StandardCharsets.UTF_8),
+        headers.lastHeader(KafkaDocumentSerializer.DROPPED_HEADER) != null);
+  }
 
   @Override
   public Document deserialize(String topic, byte[] data) {
@@ -18,7 +44,7 @@ public class KafkaDocumentDeserializer implements Deserializer<Document> {
     }
 
     try {
-      return new KafkaDocument((ObjectNode) MAPPER.readTree(data));
+      return new KafkaDocument((ObjectNode) DocumentFormat.detect(data).getMapper().readTree(data));
     } catch (Exception e) {
       throw new SerializationException("Error deserializing document", e);
     }
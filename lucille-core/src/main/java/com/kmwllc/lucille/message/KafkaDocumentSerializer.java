@@ -1,13 +1,65 @@
 package com.kmwllc.lucille.message;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.KafkaDocument;
 import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.serialization.Serializer;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes Documents in the DocumentFormat configured for the topic they are written to. The formats are passed in
+ * the producer properties created by KafkaUtils.createDocumentProducer(): FORMAT_CONFIG holds the format for every
+ * topic, and a property named TOPIC_FORMAT_CONFIG_PREFIX followed by a topic's exact name overrides it for that topic.
+ * Documents are written as JSON when no format is configured.
+ * <p>
+ * The document's ID and run ID, and whether it has been dropped, are also written to the record headers, so that
+ * KafkaDocumentDeserializer can defer parsing the payload. A KafkaDocument whose fields were never accessed is
+ * written as its original payload when that payload is already in the topic's format.
+ */
 public class KafkaDocumentSerializer implements Serializer<Document> {
 
-  private static final ObjectMapper MAPPER = new ObjectMapper();
+  public static final String FORMAT_CONFIG = "lucille.documentFormat";
+  public static final String TOPIC_FORMAT_CONFIG_PREFIX = "lucille.documentFormat.topic.";
+
+  public static final String ID_HEADER = "lucille.id";
+  public static final String RUN_ID_HEADER = "lucille.runId";
+  public static final String DROPPED_HEADER = "lucille.dropped";
+
+  private DocumentFormat defaultFormat = DocumentFormat.JSON;
+  private final Map<String, DocumentFormat> topicFormats = new HashMap<>();
+
+  @Override
+  public void configure(Map<String, ?> configs, boolean isKey) {
+    Object format = configs.get(FORMAT_CONFIG);
+    defaultFormat = format == null ? DocumentFormat.JSON : DocumentFormat.fromString(format.toString());
+    topicFormats.clear();
+    for (Map.Entry<String, ?> entry : configs.entrySet()) {
+      if (entry.getKey().startsWith(TOPIC_FORMAT_CONFIG_PREFIX)) {
+        topicFormats.put(entry.getKey().substring(TOPIC_FORMAT_CONFIG_PREFIX.length()),
+            DocumentFormat.fromString(entry.getValue().toString()));
+      }
+    }
+  }
+
+  @Override
+  public byte[] serialize(String topic, Headers headers, Document doc) {
+    if (doc == null) {
+      return null;
+    }
+
+    headers.add(ID_HEADER, doc.getId().getBytes(StandardCharsets.UTF_8));
+    if (doc.getRunId() != null) {
+      headers.add(RUN_ID_HEADER, doc.getRunId().getBytes(StandardCharsets.UTF_8));
+    }
+    if (doc.isDropped()) {
+      headers.add(DROPPED_HEADER, new byte[0]);
+    }
+    return serialize(topic, doc);
+  }
 
   @Override
   public byte[] serialize(String topic, Document doc) {
@@ -15,10 +67,25 @@ public class KafkaDocumentSerializer implements Serializer<Document> {
       return null;
     }
 
+    DocumentFormat format = getFormat(topic);
+    if (doc instanceof KafkaDocument) {
+      byte[] payload = ((KafkaDocument) doc).getUnparsedPayload();
+      if (payload != null && DocumentFormat.detect(payload) == format) {
+        return payload;
+      }
+    }
+
     try {
-      return MAPPER.writeValueAsBytes(doc);
+      return format.getMapper().writeValueAsBytes(doc);
     } catch (Exception e) {
       throw new SerializationException("Error serializing document", e);
     }
   }
+
+  private DocumentFormat getFormat(String topic) {
+    if (topic == null) {
+      return defaultFormat;
+    }
+    return topicFormats.getOrDefault(topic, defaultFormat);
+  }
 }
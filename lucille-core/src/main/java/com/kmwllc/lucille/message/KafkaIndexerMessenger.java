@@ -5,17 +5,32 @@ import com.kmwllc.lucille.core.Event;
 import com.kmwllc.lucille.core.KafkaDocument;
 import com.typesafe.config.Config;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * IndexerMessenger that consumes processed Documents from the pipeline's destination topic.
+ * <p>
+ * Each poll may return up to kafka.maxPollRecords records, which are handed out one at a time by pollDocToIndex().
+ * A record's offset is committed only after the batch containing its Document has been completed and the
+ * corresponding Events have been sent: completed offsets are reduced to contiguous per-partition watermarks, which
+ * are committed asynchronously on the next poll.
+ */
 public class KafkaIndexerMessenger implements IndexerMessenger {
 
   private static final Logger log = LoggerFactory.getLogger(KafkaIndexerMessenger.class);
@@ -24,30 +39,60 @@ public class KafkaIndexerMessenger implements IndexerMessenger {
   private final String pipelineName;
   private final Config config;
 
+  // records returned by the most recent poll that have not yet been handed out
+  private final Deque<ConsumerRecord<String, KafkaDocument>> polledRecords = new ArrayDeque<>();
+  private final OffsetWatermarks watermarks = new OffsetWatermarks();
+
   public KafkaIndexerMessenger(Config config, String pipelineName) {
     this.pipelineName = pipelineName;
     String kafkaClientId = "com.kmwllc.lucille-indexer-" + pipelineName;
     this.destConsumer = KafkaUtils.createDocumentConsumer(config, kafkaClientId);
-    this.destConsumer.subscribe(Collections.singletonList(KafkaUtils.getDestTopicName(pipelineName)));
+    this.destConsumer.subscribe(Collections.singletonList(KafkaUtils.getDestTopicName(pipelineName)),
+        new RebalanceListener());
     this.kafkaEventProducer = KafkaUtils.createEventProducer(config);
     this.config = config;
   }
 
   /**
-   * Polls for a document that has been processed by the pipeine and is waiting to be indexed.
+   * Polls for a document that has been processed by the pipeine and is waiting to be indexed. Records left over
+   * from a previous poll are handed out before the consumer is polled again.
    */
   @Override
   public Document pollDocToIndex() throws Exception {
-    ConsumerRecords<String, KafkaDocument> consumerRecords = destConsumer.poll(KafkaUtils.POLL_INTERVAL);
-    KafkaUtils.validateAtMostOneRecord(consumerRecords);
-    if (consumerRecords.count() > 0) {
-      destConsumer.commitSync();
-      ConsumerRecord<String, KafkaDocument> record = consumerRecords.iterator().next();
-      KafkaDocument doc = record.value();
-      doc.setKafkaMetadata(record);
-      return doc;
+    commitCompleted(false);
+
+    if (polledRecords.isEmpty()) {
+      ConsumerRecords<String, KafkaDocument> consumerRecords = destConsumer.poll(KafkaUtils.POLL_INTERVAL);
+      for (ConsumerRecord<String, KafkaDocument> record : consumerRecords) {
+        polledRecords.add(record);
+      }
+    }
+
+    ConsumerRecord<String, KafkaDocument> record = polledRecords.poll();
+    if (record == null) {
+      return null;
+    }
+
+    watermarks.track(new TopicPartition(record.topic(), record.partition()), record.offset());
+    KafkaDocument doc = record.value();
+    doc.setKafkaMetadata(record);
+    return doc;
+  }
+
+  private void commitCompleted(boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> offsets = watermarks.advance();
+    if (offsets.isEmpty()) {
+      return;
+    }
+    if (sync) {
+      destConsumer.commitSync(offsets);
+    } else {
+      destConsumer.commitAsync(offsets, (committed, e) -> {
+        if (e != null) {
+          log.warn("Failed to commit offsets " + committed + "; they will be covered by a later commit", e);
+        }
+      });
     }
-    return null;
   }
 
   @Override
@@ -75,13 +120,58 @@ public class KafkaIndexerMessenger implements IndexerMessenger {
     kafkaEventProducer.flush(); // TODO
   }
 
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    if (kafkaEventProducer == null || events.isEmpty()) {
+      return;
+    }
+    KafkaUtils.sendEventBatches(kafkaEventProducer, config, pipelineName, events);
+  }
+
   @Override
   public void close() throws Exception {
+    try {
+      commitCompleted(true);
+    } catch (Exception e) {
+      log.error("Error committing offsets before closing consumer", e);
+    }
     destConsumer.close();
   }
 
+  /**
+   * Marks the records holding the given Documents as complete; their offsets are committed on the next poll,
+   * after the Indexer has sent the batch's Events.
+   */
   @Override
   public void batchComplete(List<Document> batch) throws Exception {
+    for (Document doc : batch) {
+      if (doc instanceof KafkaDocument) {
+        KafkaDocument kDoc = (KafkaDocument) doc;
+        watermarks.complete(new TopicPartition(kDoc.getTopic(), kDoc.getPartition()), kDoc.getOffset());
+      }
+    }
+  }
+
+  /**
+   * Commits what has been completed in partitions that are being revoked and stops tracking them, since their
+   * records will be consumed elsewhere. Called on the polling thread, from within poll().
+   */
+  private class RebalanceListener implements ConsumerRebalanceListener {
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+      try {
+        commitCompleted(true);
+      } catch (Exception e) {
+        log.error("Error committing offsets for revoked partitions", e);
+      }
+      watermarks.remove(partitions);
+      polledRecords.removeIf(r -> partitions.contains(new TopicPartition(r.topic(), r.partition())));
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+    }
   }
 
 }
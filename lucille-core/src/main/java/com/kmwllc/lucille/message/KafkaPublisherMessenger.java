@@ -2,27 +2,71 @@ package com.kmwllc.lucille.message;
 
 import com.kmwllc.lucille.core.Document;
 import com.kmwllc.lucille.core.Event;
+import com.kmwllc.lucille.core.EventBatch;
 import com.typesafe.config.Config;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
+/**
+ * PublisherMessenger that sends Documents to the source topic and receives Events from the event topic.
+ * <p>
+ * The event topic may have several partitions (see kafka.eventTopicPartitions). Events are keyed by document ID, so
+ * the Events relating to any one document are consumed in the order they were sent, but there is no ordering across
+ * partitions. The event topic is consumed by kafka.eventConsumerThreads background threads, each with its own
+ * consumer in the same group, which parse the records they receive and hand the resulting Events to the publisher
+ * through a queue. Because a poll that returns nothing no longer implies that every partition has been consumed,
+ * hasUnconsumedEvents() compares the position reached in each partition against the partition's end offset.
+ */
 public class KafkaPublisherMessenger implements PublisherMessenger {
 
+  public static final int DEFAULT_EVENT_CONSUMER_THREADS = 1;
+
   private static final Logger log = LoggerFactory.getLogger(KafkaPublisherMessenger.class);
 
   private final Config config;
   private KafkaProducer<String, Document> kafkaProducer;
-  private Consumer<String, String> eventConsumer;
   private String runId;
   private String pipelineName;
+  private String eventTopicName;
+
+  // Events parsed by the consumer threads, one list per poll, in the order each thread consumed them
+  private final BlockingQueue<List<Event>> eventQueue = new LinkedBlockingQueue<>();
+
+  // for each partition of the event topic, the position up to which its Events have been added to eventQueue;
+  // a partition is absent while it is not assigned to any consumer thread
+  private final Map<TopicPartition, Long> positions = new ConcurrentHashMap<>();
+
+  private final List<EventConsumerThread> consumerThreads = new ArrayList<>();
+  private final AtomicReference<Exception> consumerFailure = new AtomicReference<>();
+
+  // used only by the publisher's thread, to look up the end offsets of the event topic
+  private Consumer<String, String> offsetConsumer;
+
+  // Events from an EventBatch that have not yet been returned by pollEvent()
+  private final Deque<Event> pendingEvents = new ArrayDeque<>();
 
   public KafkaPublisherMessenger(Config config) {
     this.config = config;
@@ -35,14 +79,22 @@ public class KafkaPublisherMessenger implements PublisherMessenger {
     this.runId = runId;
     this.pipelineName = pipelineName;
 
-    // create event topic explicitly with one partition
+    // create event topic explicitly with the configured number of partitions
     KafkaUtils.createEventTopic(config, pipelineName, runId);
 
     String kafkaClientId = "com.kmwllc.lucille-publisher-" + pipelineName;
-    String eventTopicName = KafkaUtils.getEventTopicName(config, pipelineName, runId);
-    this.eventConsumer = KafkaUtils.createEventConsumer(config, kafkaClientId);
-    this.eventConsumer.subscribe(Collections.singletonList(eventTopicName));
-    this.kafkaProducer = KafkaUtils.createDocumentProducer(config);
+    this.eventTopicName = KafkaUtils.getEventTopicName(config, pipelineName, runId);
+    this.offsetConsumer = KafkaUtils.createEventConsumer(config, kafkaClientId + "-offsets");
+    int numThreads = config.hasPath("kafka.eventConsumerThreads")
+        ? config.getInt("kafka.eventConsumerThreads")
+        : DEFAULT_EVENT_CONSUMER_THREADS;
+    for (int i = 0; i < numThreads; i++) {
+      EventConsumerThread thread =
+          new EventConsumerThread(KafkaUtils.createEventConsumer(config, kafkaClientId + "-" + i), i);
+      consumerThreads.add(thread);
+      thread.start();
+    }
+    this.kafkaProducer = KafkaUtils.createDocumentProducer(config, pipelineName);
   }
 
   @Override
@@ -57,21 +109,92 @@ public class KafkaPublisherMessenger implements PublisherMessenger {
   }
 
   /**
-   * Polls for an Event that is waiting to be consumed.
+   * Polls for an Event that is waiting to be consumed. If the next record on the event topic is an EventBatch,
+   * its Events are returned one at a time by this and subsequent calls.
    */
   @Override
   public Event pollEvent() throws Exception {
-    ConsumerRecords<String, String> consumerRecords = eventConsumer.poll(KafkaUtils.POLL_INTERVAL);
-    KafkaUtils.validateAtMostOneRecord(consumerRecords);
-    if (consumerRecords.count() > 0) {
-      eventConsumer.commitSync();
-      ConsumerRecord<String, String> record = consumerRecords.iterator().next();
-      return Event.fromJsonString(record.value());
-    }
-    return null;
+    if (pendingEvents.isEmpty()) {
+      pendingEvents.addAll(pollEvents());
+    }
+    return pendingEvents.poll();
+  }
+
+  /**
+   * Returns the Events that the consumer threads have received since the previous call, waiting up to
+   * KafkaUtils.POLL_INTERVAL for some to arrive. Events relating to the same document are returned in the order
+   * they were sent.
+   */
+  @Override
+  public List<Event> pollEvents() throws Exception {
+    if (!pendingEvents.isEmpty()) {
+      List<Event> events = new ArrayList<>(pendingEvents);
+      pendingEvents.clear();
+      return events;
+    }
+    checkConsumerFailure();
+    List<Event> first = eventQueue.poll(KafkaUtils.POLL_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    if (first == null) {
+      return List.of();
+    }
+    List<List<Event>> rest = new ArrayList<>();
+    eventQueue.drainTo(rest);
+    if (rest.isEmpty()) {
+      return first;
+    }
+    List<Event> events = new ArrayList<>(first);
+    for (List<Event> polled : rest) {
+      events.addAll(polled);
+    }
+    return events;
+  }
+
+  /**
+   * Returns true unless every partition of the event topic has been consumed up to its current end offset and every
+   * Event consumed has been returned by pollEvents().
+   */
+  @Override
+  public boolean hasUnconsumedEvents() throws Exception {
+    checkConsumerFailure();
+    if (!pendingEvents.isEmpty()) {
+      return true;
+    }
+    List<TopicPartition> partitions = offsetConsumer.partitionsFor(eventTopicName).stream()
+        .map(p -> new TopicPartition(p.topic(), p.partition()))
+        .collect(Collectors.toList());
+    // the end offsets must be read before the positions: any Event sent before this call is then either below
+    // a position that has been reached, or causes us to return true
+    Map<TopicPartition, Long> endOffsets = offsetConsumer.endOffsets(partitions);
+    for (Map.Entry<TopicPartition, Long> entry : endOffsets.entrySet()) {
+      Long position = positions.get(entry.getKey());
+      if (entry.getValue() > 0 && (position == null || position < entry.getValue())) {
+        return true;
+      }
+    }
+    // a consumer thread adds its Events to the queue before it advances its positions, so the queue must be
+    // checked last
+    return !eventQueue.isEmpty();
+  }
+
+  private void checkConsumerFailure() throws Exception {
+    Exception failure = consumerFailure.get();
+    if (failure != null) {
+      throw new Exception("Event consumer failed", failure);
+    }
   }
 
   public void close() {
+    for (EventConsumerThread thread : consumerThreads) {
+      thread.terminate();
+    }
+    for (EventConsumerThread thread : consumerThreads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.error("Interrupted while waiting for event consumer thread to stop", e);
+      }
+    }
     if (kafkaProducer != null) {
       try {
         kafkaProducer.close();
@@ -79,13 +202,76 @@ public class KafkaPublisherMessenger implements PublisherMessenger {
         log.error("Couldn't close kafka producer", e);
       }
     }
-    if (eventConsumer != null) {
+    if (offsetConsumer != null) {
       try {
-        eventConsumer.close();
+        offsetConsumer.close();
       } catch (Exception e) {
-        log.error("Couldn't close kafka event consumer", e);
+        log.error("Couldn't close kafka offset consumer", e);
       }
     }
   }
 
+  /**
+   * Consumes the partitions of the event topic assigned to it, adding the Events it receives to the queue and
+   * recording the position it has reached in each partition.
+   */
+  private class EventConsumerThread extends Thread {
+
+    private final Consumer<String, String> consumer;
+    private volatile boolean running = true;
+
+    EventConsumerThread(Consumer<String, String> consumer, int index) {
+      super("EventConsumer-" + index);
+      setDaemon(true);
+      this.consumer = consumer;
+    }
+
+    @Override
+    public void run() {
+      try {
+        consumer.subscribe(Collections.singletonList(eventTopicName), new ConsumerRebalanceListener() {
+          @Override
+          public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            positions.keySet().removeAll(partitions);
+          }
+
+          @Override
+          public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+          }
+        });
+        while (running) {
+          ConsumerRecords<String, String> consumerRecords = consumer.poll(KafkaUtils.POLL_INTERVAL);
+          if (!consumerRecords.isEmpty()) {
+            List<Event> events = new ArrayList<>();
+            for (ConsumerRecord<String, String> record : consumerRecords) {
+              events.addAll(EventBatch.parseEvents(record.value()));
+            }
+            eventQueue.add(events);
+            consumer.commitSync();
+          }
+          for (TopicPartition partition : consumer.assignment()) {
+            positions.put(partition, consumer.position(partition));
+          }
+        }
+      } catch (WakeupException e) {
+        if (running) {
+          consumerFailure.compareAndSet(null, e);
+        }
+      } catch (Exception e) {
+        log.error("Error consuming events", e);
+        consumerFailure.compareAndSet(null, e);
+      } finally {
+        try {
+          consumer.close();
+        } catch (Exception e) {
+          log.error("Couldn't close kafka event consumer", e);
+        }
+      }
+    }
+
+    void terminate() {
+      running = false;
+      consumer.wakeup();
+    }
+  }
 }
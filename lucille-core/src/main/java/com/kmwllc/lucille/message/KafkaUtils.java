@@ -1,28 +1,41 @@
 package com.kmwllc.lucille.message;
 
 import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.Event;
+import com.kmwllc.lucille.core.EventBatch;
 import com.kmwllc.lucille.core.KafkaDocument;
 import com.kmwllc.lucille.util.FileUtils;
 import com.typesafe.config.Config;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.admin.*;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.TopicConfig;
 import org.apache.kafka.common.errors.TopicExistsException;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +50,8 @@ import org.slf4j.LoggerFactory;
 public class KafkaUtils {
 
   public static final Duration POLL_INTERVAL = Duration.ofMillis(2000);
+  public static final int DEFAULT_MAX_POLL_RECORDS = 1;
+  public static final int DEFAULT_EVENT_TOPIC_PARTITIONS = 1;
   private static final Logger log = LoggerFactory.getLogger(KafkaUtils.class);
 
   private static Properties loadExternalProps(String filename) {
@@ -65,7 +80,8 @@ public class KafkaUtils {
     consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, config.getString("kafka.consumerGroupId"));
     consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
     consumerProps.put(ConsumerConfig.MAX_POLL_INTERVAL_MS_CONFIG, 1000 * config.getInt("kafka.maxPollIntervalSecs"));
-    consumerProps.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, 1);
+    consumerProps.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG,
+        config.hasPath("kafka.maxPollRecords") ? config.getInt("kafka.maxPollRecords") : DEFAULT_MAX_POLL_RECORDS);
     consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
     consumerProps.put(ConsumerConfig.CLIENT_ID_CONFIG, clientId);
     consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
@@ -100,19 +116,53 @@ public class KafkaUtils {
     }
     producerProps.put(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, config.getInt("kafka.maxRequestSize"));
     producerProps.put(ProducerConfig.BUFFER_MEMORY_CONFIG, config.getInt("kafka.maxRequestSize"));
+    if (config.hasPath("kafka.compressionType")) {
+      producerProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, config.getString("kafka.compressionType"));
+    }
     producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
     return producerProps;
   }
 
-  public static KafkaProducer<String, Document> createDocumentProducer(Config config) {
+  /**
+   * Creates a producer for the Documents of the given pipeline, whose serializer writes each of the pipeline's source,
+   * destination and failure topics in the format configured for it.
+   */
+  public static KafkaProducer<String, Document> createDocumentProducer(Config config, String pipelineName) {
     Properties producerProps = createProducerProps(config);
     String serializerClass = config.hasPath("kafka.documentSerializer")
         ? config.getString("kafka.documentSerializer")
         : KafkaDocumentSerializer.class.getName();
     producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, serializerClass);
+    if (KafkaDocumentSerializer.class.getName().equals(serializerClass)) {
+      putDocumentFormats(config, pipelineName, producerProps);
+    }
     return new KafkaProducer<>(producerProps);
   }
 
+  /**
+   * Adds the DocumentFormat of each of the given pipeline's document topics to the given producer properties, where
+   * KafkaDocumentSerializer will find them. kafka.documentFormat sets the format for every topic;
+   * kafka.sourceDocumentFormat, kafka.destDocumentFormat, and kafka.failDocumentFormat override it for the pipeline's
+   * source, destination, or failure topic, which is named explicitly rather than recognized by its suffix.
+   */
+  static void putDocumentFormats(Config config, String pipelineName, Properties producerProps) {
+    String defaultFormat = config.hasPath("kafka.documentFormat")
+        ? config.getString("kafka.documentFormat")
+        : DocumentFormat.JSON.name();
+    // validate the names here, so that a typo is reported when the producer is created
+    producerProps.put(KafkaDocumentSerializer.FORMAT_CONFIG, DocumentFormat.fromString(defaultFormat).name());
+    putDocumentFormat(config, producerProps, "kafka.sourceDocumentFormat", getSourceTopicName(pipelineName, config));
+    putDocumentFormat(config, producerProps, "kafka.destDocumentFormat", getDestTopicName(pipelineName));
+    putDocumentFormat(config, producerProps, "kafka.failDocumentFormat", getFailTopicName(pipelineName));
+  }
+
+  private static void putDocumentFormat(Config config, Properties producerProps, String path, String topic) {
+    if (config.hasPath(path)) {
+      producerProps.put(KafkaDocumentSerializer.TOPIC_FORMAT_CONFIG_PREFIX + topic,
+          DocumentFormat.fromString(config.getString(path)).name());
+    }
+  }
+
   public static KafkaProducer<String, String> createEventProducer(Config config) {
     if (config.hasPath("kafka.events") && !config.getBoolean("kafka.events")) {
       return null;
@@ -122,6 +172,53 @@ public class KafkaUtils {
     return new KafkaProducer<>(producerProps);
   }
 
+  /**
+   * Sends the given Events to the event topic of the designated pipeline and waits for every record to be
+   * acknowledged. Events are routed to partitions by document ID, the same way the producer routes a record keyed by
+   * document ID, so that every Event relating to a given document lands in the same partition and keeps its order.
+   * The Events bound for each partition of each run's topic are sent as one EventBatch record; a partition that
+   * receives a single Event is sent a plain Event, which keeps its Kafka metadata.
+   */
+  public static void sendEventBatches(KafkaProducer<String, String> producer, Config config, String pipelineName,
+      List<Event> events) throws Exception {
+    List<Future<RecordMetadata>> results = new ArrayList<>();
+    for (EventBatch runBatch : EventBatch.of(events)) {
+      String eventTopicName = getEventTopicName(config, pipelineName, runBatch.getRunId());
+      int numPartitions = producer.partitionsFor(eventTopicName).size();
+      Map<Integer, EventBatch> partitionBatches = new TreeMap<>();
+      for (Event event : runBatch.getEvents()) {
+        partitionBatches.computeIfAbsent(getEventPartition(event.getDocumentId(), numPartitions),
+            p -> new EventBatch(runBatch.getRunId())).add(event);
+      }
+      for (Map.Entry<Integer, EventBatch> entry : partitionBatches.entrySet()) {
+        EventBatch batch = entry.getValue();
+        ProducerRecord<String, String> record;
+        if (batch.size() == 1) {
+          Event event = batch.getEvents().get(0);
+          record = new ProducerRecord<>(eventTopicName, entry.getKey(), event.getDocumentId(), event.toString());
+        } else {
+          record = new ProducerRecord<>(eventTopicName, entry.getKey(), batch.getRunId(), batch.toString());
+        }
+        results.add(producer.send(record));
+      }
+    }
+    producer.flush();
+    for (Future<RecordMetadata> result : results) {
+      result.get();
+    }
+  }
+
+  /**
+   * Returns the partition of the event topic that receives the Events relating to the given document: the partition
+   * to which the producer's default partitioner assigns a record keyed by the document ID.
+   */
+  static int getEventPartition(String docId, int numPartitions) {
+    if (numPartitions == 1) {
+      return 0;
+    }
+    return Utils.toPositive(Utils.murmur2(docId.getBytes(StandardCharsets.UTF_8))) % numPartitions;
+  }
+
   public static String getEventTopicName(Config config, String pipelineName, String runId) {
     if (config.hasPath("kafka.eventTopic")) {
       return config.getString("kafka.eventTopic");
@@ -144,10 +241,20 @@ public class KafkaUtils {
     return pipelineName + "_fail";
   }
 
-  public static void validateAtMostOneRecord(ConsumerRecords<?, ?> consumerRecords) throws Exception {
-    if (consumerRecords.count() > 1) {
-      throw new Exception("Kafka poll returned more than 1 message but this shouldn't happen");
+  /**
+   * Returns the consumer's lag summed across its assigned partitions, based on the metadata returned by its most
+   * recent poll, or -1 if the lag is not yet known for any assigned partition. Does not contact the broker.
+   */
+  public static long getCurrentLag(Consumer<?, ?> consumer) {
+    long lag = 0;
+    for (TopicPartition partition : consumer.assignment()) {
+      OptionalLong partitionLag = consumer.currentLag(partition);
+      if (partitionLag == null || partitionLag.isEmpty()) {
+        return -1;
+      }
+      lag += partitionLag.getAsLong();
     }
+    return lag;
   }
 
   /**
@@ -161,21 +268,16 @@ public class KafkaUtils {
       throws ExecutionException, InterruptedException {
     String eventTopicName = KafkaUtils.getEventTopicName(config, pipelineName, runId);
 
-    // create the event topic explicitly so we can guarantee that it will have 1 partition
-    // multiple partitions could lead to events being received out of order which
-    // could mean that child creation events arrive after parent completion events, which could
-    // interfere with the publisher's logic for determining when the run is complete
+    // create the event topic explicitly so we control its number of partitions; Events are keyed by document ID,
+    // so the Events relating to any one document stay in order within a single partition. Events in different
+    // partitions can arrive out of order -- a child's CREATE event can arrive after its parent's FINISH event --
+    // so the publisher does not consider a run complete until it has consumed every partition to its end offset
+    int numPartitions = config.hasPath("kafka.eventTopicPartitions")
+        ? config.getInt("kafka.eventTopicPartitions")
+        : DEFAULT_EVENT_TOPIC_PARTITIONS;
 
-    Properties props;
-    if (config.hasPath("kafka.adminPropertyFile")) {
-      props = loadExternalProps(config.getString("kafka.adminPropertyFile"));
-    } else {
-      props = new Properties();
-      props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, config.getString("kafka.bootstrapServers"));
-    }
-
-    try (Admin kafkaAdminClient = Admin.create(props)) {
-      NewTopic eventTopic = new NewTopic(eventTopicName, 1, (short) 1);
+    try (Admin kafkaAdminClient = Admin.create(createAdminProps(config))) {
+      NewTopic eventTopic = new NewTopic(eventTopicName, numPartitions, (short) 1);
       CreateTopicsResult result = kafkaAdminClient.createTopics(List.of(eventTopic), new CreateTopicsOptions());
       KafkaFuture<Void> future = result.all();
       future.get();
@@ -189,4 +291,45 @@ public class KafkaUtils {
 
     return true;
   }
+
+  /**
+   * Creates the compacted topic in which KafkaRetryCounter records processing attempts, if it does not already exist.
+   *
+   * @return true if the topic was created; false if the topic already existed
+   */
+  public static boolean createRetryTopic(Config config) throws ExecutionException, InterruptedException {
+    String retryTopicName = getRetryTopicName(config);
+    try (Admin kafkaAdminClient = Admin.create(createAdminProps(config))) {
+      NewTopic retryTopic = new NewTopic(retryTopicName, Optional.empty(), Optional.empty())
+          .configs(Map.of(TopicConfig.CLEANUP_POLICY_CONFIG, TopicConfig.CLEANUP_POLICY_COMPACT));
+      kafkaAdminClient.createTopics(List.of(retryTopic), new CreateTopicsOptions()).all().get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TopicExistsException) {
+        return false;
+      }
+      throw e;
+    }
+    return true;
+  }
+
+  public static String getRetryTopicName(Config config) {
+    return config.hasPath("kafka.retryTopic")
+        ? config.getString("kafka.retryTopic")
+        : config.getString("kafka.consumerGroupId") + "_retries";
+  }
+
+  public static KafkaProducer<String, String> createRetryProducer(Config config) {
+    Properties producerProps = createProducerProps(config);
+    producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+    return new KafkaProducer<>(producerProps);
+  }
+
+  private static Properties createAdminProps(Config config) {
+    if (config.hasPath("kafka.adminPropertyFile")) {
+      return loadExternalProps(config.getString("kafka.adminPropertyFile"));
+    }
+    Properties props = new Properties();
+    props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, config.getString("kafka.bootstrapServers"));
+    return props;
+  }
 }
@@ -6,16 +6,40 @@ import com.kmwllc.lucille.core.KafkaDocument;
 import com.typesafe.config.Config;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * WorkerMessenger that consumes Documents from the pipeline's source topic and produces processed Documents to its
+ * destination topic.
+ * <p>
+ * Each poll may return up to kafka.maxPollRecords records, which are handed out one at a time by pollDocToProcess().
+ * Processed Documents are produced asynchronously. The sends made between two calls to commitPendingDocOffsets()
+ * form an epoch; once every send in an epoch, and in all earlier epochs, has been acknowledged, the Documents handed
+ * out during the epoch are complete, and the resulting per-partition watermarks are committed asynchronously.
+ * If a send fails, the consumer is rewound to the last committed watermarks so that uncommitted Documents are
+ * processed again, preserving at-least-once delivery. Each rewind starts a new generation, and Documents handed out
+ * before it are marked with the generation they belong to; their completion is ignored, since they will be delivered
+ * and completed again.
+ */
 public class KafkaWorkerMessenger implements WorkerMessenger {
 
   private static final Logger log = LoggerFactory.getLogger(KafkaWorkerMessenger.class);
@@ -25,49 +49,142 @@ public class KafkaWorkerMessenger implements WorkerMessenger {
   private final Config config;
   private final String pipelineName;
 
+  // consumer lag as of the most recent poll; read by the WorkerPool when scaling adaptively
+  private volatile long pendingDocCount = -1;
+
+  // records returned by the most recent poll that have not yet been handed out
+  private final Deque<ConsumerRecord<String, KafkaDocument>> polledRecords = new ArrayDeque<>();
+  private final OffsetWatermarks watermarks = new OffsetWatermarks();
+
+  // closed epochs whose Documents will be complete once their sends have been acknowledged, oldest first
+  private final Deque<Epoch> pendingEpochs = new ArrayDeque<>();
+  private Epoch currentEpoch = new Epoch();
+
+  // the first failure reported by a producer callback since the consumer was last rewound
+  private final AtomicReference<Exception> sendFailure = new AtomicReference<>();
+
+  // the number of times the consumer has been rewound
+  private int generation;
+
   public KafkaWorkerMessenger(Config config, String pipelineName) {
     this.config = config;
     this.pipelineName = pipelineName;
-    this.kafkaDocumentProducer = KafkaUtils.createDocumentProducer(config);
+    this.kafkaDocumentProducer = KafkaUtils.createDocumentProducer(config, pipelineName);
     this.kafkaEventProducer = KafkaUtils.createEventProducer(config);
     // append random string to kafka client ID to prevent kafka from issuing a warning when multiple consumers
     // with the same client ID are started in separate worker threads
     String kafkaClientId = "com.kmwllc.lucille-worker-" + pipelineName + "-" + RandomStringUtils.randomAlphanumeric(8);
     this.sourceConsumer = KafkaUtils.createDocumentConsumer(config, kafkaClientId);
-    this.sourceConsumer.subscribe(Collections.singletonList(KafkaUtils.getSourceTopicName(pipelineName, config)));
+    this.sourceConsumer.subscribe(Collections.singletonList(KafkaUtils.getSourceTopicName(pipelineName, config)),
+        new RebalanceListener());
   }
 
   /**
-   * Polls for a document that is waiting to be processed by the pipeline.
-   *
+   * Polls for a document that is waiting to be processed by the pipeline. Records left over from a previous poll
+   * are handed out before the consumer is polled again.
    */
   @Override
   public Document pollDocToProcess() throws Exception {
-    ConsumerRecords<String, KafkaDocument> consumerRecords = sourceConsumer.poll(KafkaUtils.POLL_INTERVAL);
-    KafkaUtils.validateAtMostOneRecord(consumerRecords);
-    if (consumerRecords.count() > 0) {
-      ConsumerRecord<String, KafkaDocument> record = consumerRecords.iterator().next();
-      KafkaDocument doc = record.value();
-      doc.setKafkaMetadata(record);
-      return doc;
-    }
-    return null;
+    commitCompletedEpochs(false);
+
+    if (polledRecords.isEmpty()) {
+      ConsumerRecords<String, KafkaDocument> consumerRecords = sourceConsumer.poll(KafkaUtils.POLL_INTERVAL);
+      for (ConsumerRecord<String, KafkaDocument> record : consumerRecords) {
+        polledRecords.add(record);
+      }
+      long lag = KafkaUtils.getCurrentLag(sourceConsumer);
+      pendingDocCount = lag < 0 ? lag : lag + polledRecords.size();
+    }
+
+    ConsumerRecord<String, KafkaDocument> record = polledRecords.poll();
+    if (record == null) {
+      return null;
+    }
+
+    TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+    watermarks.track(partition, record.offset());
+    currentEpoch.lastOffsets.put(partition, record.offset());
+
+    KafkaDocument doc = record.value();
+    doc.setKafkaMetadata(record);
+    doc.setConsumerGeneration(generation);
+    return doc;
+  }
+
+  /**
+   * Returns the lag of this messenger's consumer as of its most recent poll.
+   */
+  @Override
+  public long getPendingDocCount() {
+    return pendingDocCount;
   }
 
+  /**
+   * Closes the current epoch, so that every Document handed out so far will be committed once the sends made while
+   * processing it have been acknowledged, and commits any epochs that are already complete. Does not block
+   * on the producer or on the commit.
+   */
   @Override
   public void commitPendingDocOffsets() throws Exception {
-    sourceConsumer.commitSync();
+    if (!currentEpoch.lastOffsets.isEmpty() || currentEpoch.outstandingSends.get() > 0) {
+      pendingEpochs.add(currentEpoch);
+      currentEpoch = new Epoch();
+    }
+    commitCompletedEpochs(false);
   }
 
   /**
-   * Sends a processed document to the appropriate destination for documents waiting to be indexed.
-   *
+   * Closes the current epoch with only the given Documents in it, so that they will be committed once the sends made
+   * while processing them have been acknowledged. Records handed out after them move to a new epoch, since nothing has
+   * been sent for them yet. Documents handed out before the consumer was last rewound are ignored: their records are
+   * delivered again, and marking them complete would also mark complete the records that follow them, which may not
+   * have been processed since the rewind. Does not block on the producer or on the commit.
+   */
+  @Override
+  public boolean commitDocOffsets(List<Document> documents) throws Exception {
+    Map<TopicPartition, Long> completedOffsets = new HashMap<>();
+    for (Document doc : documents) {
+      if (doc instanceof KafkaDocument && ((KafkaDocument) doc).getConsumerGeneration() == generation) {
+        KafkaDocument kafkaDoc = (KafkaDocument) doc;
+        completedOffsets.merge(new TopicPartition(kafkaDoc.getTopic(), kafkaDoc.getPartition()), kafkaDoc.getOffset(),
+            Math::max);
+      }
+    }
+
+    Epoch epoch = currentEpoch;
+    currentEpoch = new Epoch();
+    for (Map.Entry<TopicPartition, Long> entry : epoch.lastOffsets.entrySet()) {
+      Long completedOffset = completedOffsets.get(entry.getKey());
+      if (completedOffset == null || entry.getValue() > completedOffset) {
+        currentEpoch.lastOffsets.put(entry.getKey(), entry.getValue());
+      }
+    }
+    epoch.lastOffsets.clear();
+    epoch.lastOffsets.putAll(completedOffsets);
+
+    if (!epoch.lastOffsets.isEmpty() || epoch.outstandingSends.get() > 0) {
+      pendingEpochs.add(epoch);
+    }
+    commitCompletedEpochs(false);
+    return true;
+  }
+
+  /**
+   * Sends a processed document to the appropriate destination for documents waiting to be indexed. The send is
+   * asynchronous; its acknowledgement is awaited before the offset of the corresponding source record is committed.
    */
   @Override
   public void sendForIndexing(Document document) throws Exception {
-    RecordMetadata result = kafkaDocumentProducer.send(
-        new ProducerRecord<>(KafkaUtils.getDestTopicName(pipelineName), document.getId(), document)).get();
-    kafkaDocumentProducer.flush();
+    Epoch epoch = currentEpoch;
+    epoch.outstandingSends.incrementAndGet();
+    kafkaDocumentProducer.send(
+        new ProducerRecord<>(KafkaUtils.getDestTopicName(pipelineName), document.getId(), document),
+        (metadata, e) -> {
+          if (e != null) {
+            sendFailure.compareAndSet(null, e);
+          }
+          epoch.outstandingSends.decrementAndGet();
+        });
   }
 
   public void sendFailed(Document document) throws Exception {
@@ -101,9 +218,78 @@ public class KafkaWorkerMessenger implements WorkerMessenger {
     kafkaEventProducer.flush();
   }
 
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    if (kafkaEventProducer == null || events.isEmpty()) {
+      return;
+    }
+    KafkaUtils.sendEventBatches(kafkaEventProducer, config, pipelineName, events);
+  }
+
+  /**
+   * Commits the watermarks reached by the epochs, oldest first, whose sends have all been acknowledged. If any send
+   * has failed, rewinds the consumer instead, so that the uncommitted Documents are polled and processed again. A
+   * failed send is not reported to the caller, since the Worker recovers from it simply by continuing to poll.
+   */
+  private void commitCompletedEpochs(boolean sync) throws Exception {
+    Exception failure = sendFailure.getAndSet(null);
+    if (failure != null) {
+      log.error("Failed to send document for indexing; uncommitted documents will be processed again", failure);
+      rewind();
+      return;
+    }
+
+    while (!pendingEpochs.isEmpty() && pendingEpochs.peek().outstandingSends.get() == 0) {
+      for (Map.Entry<TopicPartition, Long> entry : pendingEpochs.poll().lastOffsets.entrySet()) {
+        watermarks.completeThrough(entry.getKey(), entry.getValue());
+      }
+    }
+
+    Map<TopicPartition, OffsetAndMetadata> offsets = watermarks.advance();
+    if (offsets.isEmpty()) {
+      return;
+    }
+    if (sync) {
+      sourceConsumer.commitSync(offsets);
+    } else {
+      sourceConsumer.commitAsync(offsets, (committed, e) -> {
+        if (e != null) {
+          log.warn("Failed to commit offsets " + committed + "; they will be covered by a later commit", e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Discards all records and epochs that have not been committed and seeks the consumer back to the last committed
+   * watermark of each partition, so that the corresponding Documents are polled again. Starts a new generation, so that
+   * Documents handed out before the rewind are not marked complete.
+   */
+  private void rewind() {
+    generation++;
+    polledRecords.clear();
+    pendingEpochs.clear();
+    currentEpoch = new Epoch();
+    for (Map.Entry<TopicPartition, Long> entry : watermarks.reset().entrySet()) {
+      if (sourceConsumer.assignment().contains(entry.getKey())) {
+        sourceConsumer.seek(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
   @Override
   public void close() throws Exception {
     if (sourceConsumer != null) {
+      try {
+        // wait for outstanding sends so that every completed document can be committed
+        if (kafkaDocumentProducer != null) {
+          kafkaDocumentProducer.flush();
+        }
+        commitPendingDocOffsets();
+        commitCompletedEpochs(true);
+      } catch (Exception e) {
+        log.error("Error committing offsets before closing consumer", e);
+      }
       sourceConsumer.close();
     }
     if (kafkaDocumentProducer != null) {
@@ -114,4 +300,43 @@ public class KafkaWorkerMessenger implements WorkerMessenger {
     }
   }
 
+  /**
+   * The sends made between two calls to commitPendingDocOffsets(), along with the offset of the latest record
+   * handed out from each partition during that time.
+   */
+  private static class Epoch {
+
+    private final AtomicInteger outstandingSends = new AtomicInteger();
+    private final Map<TopicPartition, Long> lastOffsets = new HashMap<>();
+  }
+
+  /**
+   * Commits what has been completed in partitions that are being revoked and stops tracking them, since their
+   * records will be consumed elsewhere. The revoked partitions are also dropped from every epoch: if a partition is
+   * assigned back to this consumer, its uncommitted records are delivered again, and an epoch from before the
+   * revocation must not mark those new deliveries complete. Called on the polling thread, from within poll().
+   */
+  private class RebalanceListener implements ConsumerRebalanceListener {
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+      try {
+        kafkaDocumentProducer.flush();
+        commitCompletedEpochs(true);
+      } catch (Exception e) {
+        log.error("Error committing offsets for revoked partitions", e);
+      }
+      watermarks.remove(partitions);
+      for (Epoch epoch : pendingEpochs) {
+        epoch.lastOffsets.keySet().removeAll(partitions);
+      }
+      currentEpoch.lastOffsets.keySet().removeAll(partitions);
+      polledRecords.removeIf(r -> partitions.contains(new TopicPartition(r.topic(), r.partition())));
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+    }
+  }
+
 }
@@ -6,6 +6,7 @@ import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -62,6 +63,16 @@ public class LocalMessenger implements IndexerMessenger, PublisherMessenger, Wor
   public void commitPendingDocOffsets() throws Exception {
   }
 
+  @Override
+  public boolean commitDocOffsets(List<Document> documents) throws Exception {
+    return true;
+  }
+
+  @Override
+  public long getPendingDocCount() {
+    return pipelineSource.size();
+  }
+
   @Override
   public void sendForIndexing(Document document) throws Exception {
     pipelineDest.put(document);
@@ -83,11 +94,31 @@ public class LocalMessenger implements IndexerMessenger, PublisherMessenger, Wor
     pipelineEvents.add(event);
   }
 
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    pipelineEvents.addAll(events);
+  }
+
   @Override
   public Event pollEvent() throws Exception {
     return pipelineEvents.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
   }
 
+  /**
+   * Waits for an Event as in pollEvent() and then also returns any Events already queued behind it.
+   */
+  @Override
+  public List<Event> pollEvents() throws Exception {
+    Event event = pollEvent();
+    if (event == null) {
+      return List.of();
+    }
+    List<Event> events = new ArrayList<>();
+    events.add(event);
+    pipelineEvents.drainTo(events);
+    return events;
+  }
+
   @Override
   public void initialize(String runId, String pipelineName) throws Exception {
     if (this.runId != null) {
@@ -0,0 +1,137 @@
+package com.kmwllc.lucille.message;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the offsets of Kafka records that have been handed out for processing and determines, for each partition,
+ * the contiguous watermark that can safely be committed: the offset of the earliest record that has not yet been
+ * completed, or the offset after the latest tracked record if every record has been completed. Records may be
+ * completed in any order; the watermark only advances past a record once it and every earlier record in its
+ * partition are complete, so committing the watermark never skips an unfinished record.
+ * <p>
+ * Not thread-safe; intended to be owned by the thread that polls the consumer.
+ */
+class OffsetWatermarks {
+
+  private final Map<TopicPartition, PartitionState> partitions = new HashMap<>();
+
+  /**
+   * Starts tracking the record at the given offset. Offsets must be tracked in increasing order within a partition,
+   * which is the order in which a consumer returns them.
+   */
+  void track(TopicPartition partition, long offset) {
+    partitions.computeIfAbsent(partition, p -> new PartitionState(offset)).track(offset);
+  }
+
+  /**
+   * Marks the record at the given offset as complete. Offsets in partitions that are not tracked are ignored.
+   */
+  void complete(TopicPartition partition, long offset) {
+    PartitionState state = partitions.get(partition);
+    if (state != null) {
+      state.complete(offset);
+    }
+  }
+
+  /**
+   * Marks every tracked record in the given partition, up to and including the given offset, as complete.
+   */
+  void completeThrough(TopicPartition partition, long offset) {
+    PartitionState state = partitions.get(partition);
+    if (state != null) {
+      state.completeThrough(offset);
+    }
+  }
+
+  /**
+   * Returns the partitions whose watermark has advanced since the previous call, mapped to the offset that should be
+   * committed for each: the offset of the next record to consume.
+   */
+  Map<TopicPartition, OffsetAndMetadata> advance() {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (Map.Entry<TopicPartition, PartitionState> entry : partitions.entrySet()) {
+      PartitionState state = entry.getValue();
+      long watermark = state.watermark();
+      if (watermark > state.advanced) {
+        state.advanced = watermark;
+        offsets.put(entry.getKey(), new OffsetAndMetadata(watermark));
+      }
+    }
+    return offsets;
+  }
+
+  /**
+   * Stops tracking the given partitions, e.g. when they are revoked from the consumer.
+   */
+  void remove(Collection<TopicPartition> revoked) {
+    partitions.keySet().removeAll(revoked);
+  }
+
+  /**
+   * Stops tracking every partition and returns, for each, the offset of the earliest record that was not covered by a
+   * watermark returned from advance(); seeking the consumer to these offsets re-delivers every record whose completion
+   * was never committed.
+   */
+  Map<TopicPartition, Long> reset() {
+    Map<TopicPartition, Long> positions = new HashMap<>();
+    for (Map.Entry<TopicPartition, PartitionState> entry : partitions.entrySet()) {
+      positions.put(entry.getKey(), entry.getValue().advanced);
+    }
+    partitions.clear();
+    return positions;
+  }
+
+  private static class PartitionState {
+
+    // offsets that have been tracked and that the watermark has not yet passed, in increasing order
+    private final ArrayDeque<Long> outstanding = new ArrayDeque<>();
+
+    // outstanding offsets that were completed out of order
+    private final Set<Long> completed = new HashSet<>();
+
+    // the offset after the latest tracked record
+    private long next;
+
+    // the watermark most recently returned by advance(), or the first tracked offset
+    private long advanced;
+
+    PartitionState(long firstOffset) {
+      this.next = firstOffset;
+      this.advanced = firstOffset;
+    }
+
+    void track(long offset) {
+      outstanding.addLast(offset);
+      next = offset + 1;
+    }
+
+    void complete(long offset) {
+      if (!outstanding.isEmpty() && outstanding.peekFirst() == offset) {
+        outstanding.pollFirst();
+      } else if (offset >= advanced && offset < next) {
+        completed.add(offset);
+      }
+    }
+
+    void completeThrough(long offset) {
+      while (!outstanding.isEmpty() && outstanding.peekFirst() <= offset) {
+        completed.remove(outstanding.pollFirst());
+      }
+    }
+
+    long watermark() {
+      while (!completed.isEmpty() && !outstanding.isEmpty() && completed.remove(outstanding.peekFirst())) {
+        outstanding.pollFirst();
+      }
+      return outstanding.isEmpty() ? next : outstanding.peekFirst();
+    }
+  }
+}
@@ -3,6 +3,8 @@ package com.kmwllc.lucille.message;
 import com.kmwllc.lucille.core.Document;
 import com.kmwllc.lucille.core.Event;
 
+import java.util.List;
+
 /**
  * API that a Publisher uses to exchange messages with other components.
  *
@@ -40,6 +42,26 @@ public interface PublisherMessenger {
    */
   Event pollEvent() throws Exception;
 
+  /**
+   * Retrieves and removes the Events waiting to be processed that arrived together, either as a single Event or
+   * as an EventBatch sent by a Worker or Indexer. Returns an empty list if no events are available.
+   * Blocks as described in pollEvent().
+   */
+  default List<Event> pollEvents() throws Exception {
+    Event event = pollEvent();
+    return event == null ? List.of() : List.of(event);
+  }
+
+  /**
+   * Returns true if Events that were sent before this call may not yet have been returned by pollEvent() or
+   * pollEvents(), even though the most recent poll returned nothing. A Publisher calls this before concluding that a
+   * run is complete. The default implementation returns false, which is correct for a messenger that delivers Events
+   * in the order they were sent and returns nothing from a poll only when no Events are waiting.
+   */
+  default boolean hasUnconsumedEvents() throws Exception {
+    return false;
+  }
+
   /**
    * Closes any connections opened by this PublisherMessenger.
    */
@@ -0,0 +1,181 @@
+package com.kmwllc.lucille.message;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for any number of producer and consumer threads, backed by arrays that are allocated
+ * once, so that adding an element allocates nothing. Each slot carries a sequence number telling producers and
+ * consumers whether it is ready to be written or read; a thread claims a slot by advancing the shared tail or head
+ * position with a compare-and-set and then writes or reads it without contending with threads claiming other slots.
+ * The capacity is rounded up to a power of two.
+ * <p>
+ * The blocking methods wait, when the buffer is full or empty, according to the buffer's WaitStrategy.
+ */
+class RingBuffer<E> {
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  // the slot at index i may be written by the producer claiming position p when sequences[i] == p, and may be read by
+  // the consumer claiming position p when sequences[i] == p + 1
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final WaitStrategy waitStrategy;
+
+  RingBuffer(int capacity, WaitStrategy waitStrategy) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("RingBuffer capacity must be between 1 and 2^30: " + capacity);
+    }
+    this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.elements = new AtomicReferenceArray<>(this.capacity);
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.waitStrategy = waitStrategy;
+  }
+
+  /**
+   * Adds the given element if there is room for it, returning false if the buffer is full.
+   */
+  boolean offer(E element) {
+    if (element == null) {
+      throw new NullPointerException();
+    }
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // the slot still holds the element added one lap earlier
+        return false;
+      } else {
+        // another producer has claimed this position
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the element at the head of the buffer, or returns null if the buffer is empty.
+   */
+  E poll() {
+    long position = head.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          return take(index, position);
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        // the slot has not been written yet
+        return null;
+      } else {
+        // another consumer has claimed this position
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Removes up to maxElements elements from the head of the buffer and adds them to the given collection, in order,
+   * claiming all of them with a single compare-and-set. Returns the number of elements removed.
+   */
+  int drainTo(Collection<? super E> collection, int maxElements) {
+    while (true) {
+      long position = head.get();
+      int available = 0;
+      while (available < maxElements) {
+        long next = position + available;
+        if (sequences.get((int) next & mask) != next + 1) {
+          break;
+        }
+        available++;
+      }
+      if (available == 0) {
+        return 0;
+      }
+      if (head.compareAndSet(position, position + available)) {
+        for (int i = 0; i < available; i++) {
+          long next = position + i;
+          collection.add(take((int) next & mask, next));
+        }
+        return available;
+      }
+    }
+  }
+
+  private E take(int index, long position) {
+    E element = elements.get(index);
+    elements.lazySet(index, null);
+    // make the slot available to the producer that will claim it on the next lap
+    sequences.lazySet(index, position + capacity);
+    return element;
+  }
+
+  /**
+   * Adds the given element, waiting for room if the buffer is full.
+   */
+  void put(E element) throws InterruptedException {
+    int attempt = 0;
+    while (!offer(element)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      waitStrategy.idle(attempt++);
+    }
+  }
+
+  /**
+   * Removes and returns the element at the head of the buffer, waiting up to the given time for one to be added if
+   * the buffer is empty. Returns null if the time elapses first.
+   */
+  E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    E element = poll();
+    if (element != null) {
+      return element;
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    int attempt = 0;
+    while ((element = poll()) == null) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (System.nanoTime() - deadline >= 0) {
+        return null;
+      }
+      waitStrategy.idle(attempt++);
+    }
+    return element;
+  }
+
+  /**
+   * Returns the number of elements in the buffer. The value is exact only when no other thread is adding or removing
+   * elements.
+   */
+  int size() {
+    // read head first, so that a concurrent poll cannot make the size appear larger than it ever was
+    long headPosition = head.get();
+    long size = tail.get() - headPosition;
+    return (int) Math.max(0, Math.min(size, capacity));
+  }
+
+  int capacity() {
+    return capacity;
+  }
+}
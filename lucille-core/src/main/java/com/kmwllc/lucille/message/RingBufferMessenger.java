@@ -0,0 +1,199 @@
+package com.kmwllc.lucille.message;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.Event;
+import com.kmwllc.lucille.util.LogUtils;
+import com.typesafe.config.Config;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alternative to LocalMessenger for running Lucille in "local" mode, which hands Documents between the Publisher,
+ * Workers, and Indexer through preallocated, lock-free RingBuffers instead of LinkedBlockingQueues, so that a handoff
+ * allocates nothing and producers and consumers never contend for a lock. Waiting threads follow the configured
+ * WaitStrategy rather than blocking on a condition.
+ * <p>
+ * Events go through an unbounded lock-free queue, as in LocalMessenger: the Publisher may be blocked sending a
+ * Document for processing while Workers send Events, so sending an Event must never block.
+ * <p>
+ * The Indexer takes Documents from the buffer in batches, holding up to DRAIN_BATCH_SIZE of them in a buffer of its
+ * own thread, which it would have added to its own batch in any case.
+ * <p>
+ * The number of Documents in each buffer, and of Events in the event queue, are published as gauges named
+ * messenger.PIPELINE.source.size, messenger.PIPELINE.dest.size, and messenger.PIPELINE.events.size once the
+ * Publisher has initialized the messenger.
+ * <p>
+ * Used in local mode when publisher.queueType is set to "ringBuffer"; publisher.queueCapacity sets the capacity of
+ * each buffer (rounded up to a power of two) and publisher.waitStrategy selects spin, yield, or park (the default).
+ */
+public class RingBufferMessenger implements IndexerMessenger, PublisherMessenger, WorkerMessenger {
+
+  public static final int DRAIN_BATCH_SIZE = 64;
+
+  private final RingBuffer<Document> pipelineSource;
+  private final RingBuffer<Document> pipelineDest;
+  private final Queue<Event> pipelineEvents = new ConcurrentLinkedQueue<>();
+  private final WaitStrategy waitStrategy;
+
+  // Documents taken from pipelineDest by the calling Indexer thread but not yet returned from pollDocToIndex()
+  private final ThreadLocal<ArrayDeque<Document>> drained = ThreadLocal.withInitial(ArrayDeque::new);
+
+  private String runId = null;
+  private String pipelineName;
+
+  public RingBufferMessenger(int capacity, WaitStrategy waitStrategy) {
+    this.pipelineSource = new RingBuffer<>(capacity, waitStrategy);
+    this.pipelineDest = new RingBuffer<>(capacity, waitStrategy);
+    this.waitStrategy = waitStrategy;
+  }
+
+  public RingBufferMessenger(Config config) {
+    this(config.hasPath("publisher.queueCapacity") ?
+            config.getInt("publisher.queueCapacity") : LocalMessenger.DEFAULT_QUEUE_CAPACITY,
+        config.hasPath("publisher.waitStrategy") ?
+            WaitStrategy.fromName(config.getString("publisher.waitStrategy")) : WaitStrategy.PARK);
+  }
+
+  @Override
+  public Document pollDocToIndex() throws Exception {
+    ArrayDeque<Document> docs = drained.get();
+    if (docs.isEmpty() && pipelineDest.drainTo(docs, DRAIN_BATCH_SIZE) == 0) {
+      Document doc = pipelineDest.poll(LocalMessenger.POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      if (doc == null) {
+        return null;
+      }
+      pipelineDest.drainTo(docs, DRAIN_BATCH_SIZE - 1);
+      return doc;
+    }
+    return docs.poll();
+  }
+
+  @Override
+  public Document pollDocToProcess() throws Exception {
+    return pipelineSource.poll(LocalMessenger.POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void commitPendingDocOffsets() throws Exception {
+  }
+
+  @Override
+  public boolean commitDocOffsets(List<Document> documents) throws Exception {
+    return true;
+  }
+
+  @Override
+  public long getPendingDocCount() {
+    return pipelineSource.size();
+  }
+
+  @Override
+  public void sendForIndexing(Document document) throws Exception {
+    pipelineDest.put(document);
+  }
+
+  @Override
+  public void sendFailed(Document document) throws Exception {
+
+  }
+
+  @Override
+  public void sendEvent(Document document, String message, Event.Type type) throws Exception {
+    Event event = new Event(document, message, type);
+    sendEvent(event);
+  }
+
+  @Override
+  public void sendEvent(Event event) throws Exception {
+    pipelineEvents.add(event);
+  }
+
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    pipelineEvents.addAll(events);
+  }
+
+  @Override
+  public Event pollEvent() throws Exception {
+    Event event = pipelineEvents.poll();
+    if (event != null) {
+      return event;
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LocalMessenger.POLL_TIMEOUT_MS);
+    int attempt = 0;
+    while ((event = pipelineEvents.poll()) == null) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (System.nanoTime() - deadline >= 0) {
+        return null;
+      }
+      waitStrategy.idle(attempt++);
+    }
+    return event;
+  }
+
+  /**
+   * Waits for an Event as in pollEvent() and then also returns any Events already queued behind it.
+   */
+  @Override
+  public List<Event> pollEvents() throws Exception {
+    Event event = pollEvent();
+    if (event == null) {
+      return List.of();
+    }
+    List<Event> events = new ArrayList<>();
+    events.add(event);
+    while ((event = pipelineEvents.poll()) != null) {
+      events.add(event);
+    }
+    return events;
+  }
+
+  @Override
+  public void initialize(String runId, String pipelineName) throws Exception {
+    if (this.runId != null) {
+      throw new Exception("Already initialized.");
+    }
+    this.runId = runId;
+    this.pipelineName = pipelineName;
+
+    MetricRegistry metrics = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG);
+    registerGauge(metrics, "source", pipelineSource::size);
+    registerGauge(metrics, "dest", pipelineDest::size);
+    registerGauge(metrics, "events", pipelineEvents::size);
+  }
+
+  private void registerGauge(MetricRegistry metrics, String queue, Gauge<Integer> gauge) {
+    String name = MetricRegistry.name("messenger", pipelineName, queue, "size");
+    // a previous run of the same pipeline may have registered a gauge for its own messenger
+    metrics.remove(name);
+    metrics.register(name, gauge);
+  }
+
+  @Override
+  public String getRunId() {
+    return runId;
+  }
+
+  @Override
+  public void sendForProcessing(Document document) throws Exception {
+    pipelineSource.put(document);
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public void batchComplete(List<Document> batch) throws Exception {
+  }
+}
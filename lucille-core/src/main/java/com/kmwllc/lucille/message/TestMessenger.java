@@ -43,6 +43,16 @@ public class TestMessenger implements IndexerMessenger, PublisherMessenger,
     messenger.commitPendingDocOffsets();
   }
 
+  @Override
+  public boolean commitDocOffsets(List<Document> documents) throws Exception {
+    return messenger.commitDocOffsets(documents);
+  }
+
+  @Override
+  public long getPendingDocCount() {
+    return messenger.getPendingDocCount();
+  }
+
   @Override
   public void sendForIndexing(Document document) throws Exception {
     savedDestMessages.add(document);
@@ -66,11 +76,22 @@ public class TestMessenger implements IndexerMessenger, PublisherMessenger,
     messenger.sendEvent(event);
   }
 
+  @Override
+  public void sendEvents(List<Event> events) throws Exception {
+    savedEventMessages.addAll(events);
+    messenger.sendEvents(events);
+  }
+
   @Override
   public Event pollEvent() throws Exception {
     return messenger.pollEvent();
   }
 
+  @Override
+  public List<Event> pollEvents() throws Exception {
+    return messenger.pollEvents();
+  }
+
   @Override
   public void initialize(String runId, String pipelineName) throws Exception {
     messenger.initialize(runId, pipelineName);
@@ -0,0 +1,56 @@
+package com.kmwllc.lucille.message;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits while a RingBuffer it wants to take from is empty, or one it wants to add to is full.
+ * SPIN gives the lowest handoff latency but keeps a core busy for as long as the thread waits; YIELD gives the core
+ * to other runnable threads between attempts; PARK spins and yields briefly and then sleeps for progressively longer
+ * intervals, up to MAX_PARK_NANOS, so an idle thread uses almost no CPU.
+ */
+public enum WaitStrategy {
+
+  SPIN,
+  YIELD,
+  PARK;
+
+  static final int SPIN_ATTEMPTS = 100;
+  static final int YIELD_ATTEMPTS = 100;
+  static final long MIN_PARK_NANOS = 1_000;
+  static final long MAX_PARK_NANOS = 1_000_000;
+
+  /**
+   * Waits once before the given attempt, counting from zero, to take from or add to a RingBuffer.
+   */
+  void idle(int attempt) {
+    switch (this) {
+      case SPIN:
+        Thread.onSpinWait();
+        break;
+      case YIELD:
+        Thread.yield();
+        break;
+      default:
+        if (attempt < SPIN_ATTEMPTS) {
+          Thread.onSpinWait();
+        } else if (attempt < SPIN_ATTEMPTS + YIELD_ATTEMPTS) {
+          Thread.yield();
+        } else {
+          int parks = Math.min(attempt - SPIN_ATTEMPTS - YIELD_ATTEMPTS, 10);
+          LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << parks, MAX_PARK_NANOS));
+        }
+    }
+  }
+
+  /**
+   * Returns the WaitStrategy with the given name, ignoring case.
+   */
+  public static WaitStrategy fromName(String name) {
+    for (WaitStrategy strategy : values()) {
+      if (strategy.name().equalsIgnoreCase(name)) {
+        return strategy;
+      }
+    }
+    throw new IllegalArgumentException("Unknown wait strategy: " + name + "; expected spin, yield, or park");
+  }
+}
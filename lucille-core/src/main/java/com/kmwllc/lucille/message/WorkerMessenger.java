@@ -3,6 +3,8 @@ package com.kmwllc.lucille.message;
 import com.kmwllc.lucille.core.Document;
 import com.kmwllc.lucille.core.Event;
 
+import java.util.List;
+
 /**
  * API that a Worker uses to exchange messages with other components.
  *
@@ -30,6 +32,18 @@ public interface WorkerMessenger {
    */
   void commitPendingDocOffsets() throws Exception;
 
+  /**
+   * Indicates that the given Documents have been processed while Documents retrieved after them may still be in
+   * progress. The given Documents must be the earliest Documents retrieved by pollDocToProcess() since the previous
+   * commit, in the order they were retrieved; only they are committed.
+   *
+   * Returns false if this messenger can only commit everything retrieved so far, in which case nothing is committed
+   * and the caller should call commitPendingDocOffsets() once no Documents are in progress.
+   */
+  default boolean commitDocOffsets(List<Document> documents) throws Exception {
+    return false;
+  }
+
   /**
    * Submit a given Document so that it can be received by an Indexer component that
    * would call IndexerMessenger.pollCompleted()
@@ -53,6 +67,26 @@ public interface WorkerMessenger {
    */
   void sendEvent(Event event) throws Exception;
 
+  /**
+   * Make the designated Events available to the Publisher or any other component that is listening for
+   * Document-related Events. Implementations that send Events to a remote service should send them together,
+   * as an EventBatch, rather than one at a time.
+   */
+  default void sendEvents(List<Event> events) throws Exception {
+    for (Event event : events) {
+      sendEvent(event);
+    }
+  }
+
+  /**
+   * Returns an estimate of the number of Documents that are waiting to be retrieved via pollDocToProcess(),
+   * or -1 if no estimate is available. Unlike the other methods, this may be called from a thread other than
+   * the one that polls, and it should return quickly without contacting a remote service.
+   */
+  default long getPendingDocCount() {
+    return -1;
+  }
+
   /**
    * Close any connections opened by this WorkerMessenger.
    */
@@ -98,6 +98,8 @@ public class ChunkText extends Stage {
   private final Integer chunksToOverlap;
   private final Integer overlapPercentage;
   private final Integer characterLimit;
+  private static final String SENTENCE_MODEL_PATH = "/en-sent.bin";
+
   private SentenceDetector sentenceDetector;
   private static final Logger log = LogManager.getLogger(ChunkText.class);
 
@@ -146,15 +148,27 @@ public class ChunkText extends Stage {
   public void start() throws StageException {
     // load sentence model if we are using that chunking method
     if (method == ChunkingMethod.SENTENCE) {
-      try (InputStream sentModelIn = getClass().getResourceAsStream("/en-sent.bin")) {
-        if (sentModelIn == null) {
-          throw new StageException("No sentence model found.");
-        }
-        SentenceModel sentModel = new SentenceModel(sentModelIn);
-        sentenceDetector = new SentenceDetectorME(sentModel);
-      } catch (IOException e) {
-        throw new StageException("Could not load sentence model.", e);
+      // the model is shared by all ChunkText stages, but SentenceDetectorME is not thread-safe, so each stage has its own
+      SentenceModel sentModel = acquireSharedResource(SENTENCE_MODEL_PATH, ChunkText::loadSentenceModel);
+      sentenceDetector = new SentenceDetectorME(sentModel);
+    }
+  }
+
+  @Override
+  public void stop() throws StageException {
+    if (method == ChunkingMethod.SENTENCE) {
+      releaseSharedResource(SENTENCE_MODEL_PATH);
+    }
+  }
+
+  private static SentenceModel loadSentenceModel() throws StageException {
+    try (InputStream sentModelIn = ChunkText.class.getResourceAsStream(SENTENCE_MODEL_PATH)) {
+      if (sentModelIn == null) {
+        throw new StageException("No sentence model found.");
       }
+      return new SentenceModel(sentModelIn);
+    } catch (IOException e) {
+      throw new StageException("Could not load sentence model.", e);
     }
   }
 
@@ -88,7 +88,19 @@ public class ExtractEntities extends Stage {
     StageUtils.validateFieldNumNotZero(destFields, "Extract Entities");
     StageUtils.validateFieldNumsSeveralToOne(sourceFields, destFields, "Extract Entities");
 
-    dictTrie = buildTrie();
+    // the trie is immutable once built, so a single instance is shared by every ExtractEntities stage
+    // that uses the same dictionaries and matching settings
+    dictTrie = acquireSharedResource(getTrieKey(), this::buildTrie);
+  }
+
+  @Override
+  public void stop() throws StageException {
+    releaseSharedResource(getTrieKey());
+  }
+
+  private String getTrieKey() {
+    return dictionaries + ":ignoreCase=" + ignoreCase + ":onlyWhitespaceSeparated=" + onlyWhitespaceSeparated
+        + ":stopOnHit=" + stopOnHit + ":onlyWholeWords=" + onlyWholeWords + ":ignoreOverlaps=" + ignoreOverlaps;
   }
 
   /**
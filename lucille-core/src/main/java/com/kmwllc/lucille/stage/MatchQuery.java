@@ -5,6 +5,7 @@ import com.kmwllc.lucille.core.Stage;
 import com.kmwllc.lucille.core.StageException;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigObject;
+import com.typesafe.config.ConfigRenderOptions;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -59,9 +60,24 @@ public class MatchQuery extends Stage {
       throw new StageException(String.format("MatchQuery requires a %s property.", MATCHEDQUERIES_PARAM));
     }
 
+    // the monitor is thread-safe once its queries are registered, so a single instance is shared by every
+    // MatchQuery stage with the same fields and queries
+    monitor = acquireSharedResource(getMonitorKey(), this::buildMonitor);
+  }
+
+  @Override
+  public void stop() throws StageException {
+    releaseSharedResource(getMonitorKey());
+  }
+
+  private String getMonitorKey() {
+    return fieldsList + ":" + config.getValue(QUERIES_PARAM).render(ConfigRenderOptions.concise());
+  }
+
+  private Monitor buildMonitor() throws StageException {
     try {
       Analyzer analyzer = new StandardAnalyzer();
-      monitor = new Monitor(analyzer);
+      Monitor monitor = new Monitor(analyzer);
 
       // TODO:: default field is the 1st field configured
       QueryParser parser = new QueryParser(fieldsList.get(0), analyzer);
@@ -73,6 +89,7 @@ public class MatchQuery extends Stage {
           monitor.register(mq);
         }
       }
+      return monitor;
     } catch (IOException | ParseException e) {
       throw new StageException("Failed to start MatchQuery stage.", e);
     }
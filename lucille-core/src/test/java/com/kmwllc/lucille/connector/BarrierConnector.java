@@ -0,0 +1,45 @@
+package com.kmwllc.lucille.connector;
+
+import com.kmwllc.lucille.core.ConnectorException;
+import com.kmwllc.lucille.core.Publisher;
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits in execute() until the configured number of BarrierConnectors are executing at the same time,
+ * failing if that does not happen within a few seconds. Records the start and end of each execution.
+ */
+public class BarrierConnector extends AbstractConnector {
+
+  private static CyclicBarrier barrier;
+  private static final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+  public BarrierConnector(Config config) {
+    super(config);
+  }
+
+  public static void reset(int parties) {
+    barrier = new CyclicBarrier(parties);
+    events.clear();
+  }
+
+  public static List<String> getEvents() {
+    return events;
+  }
+
+  @Override
+  public void execute(Publisher publisher) throws ConnectorException {
+    events.add("start:" + getName());
+    try {
+      barrier.await(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new ConnectorException("Connectors did not run concurrently", e);
+    }
+    events.add("end:" + getName());
+  }
+}
@@ -0,0 +1,121 @@
+package com.kmwllc.lucille.core;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class BatchPolicyTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+  @Test
+  public void testFixedLimit() {
+    BatchPolicy policy = new BatchPolicy(100);
+    assertEquals(100, policy.getMaxSize());
+    assertEquals(100, policy.getLimit());
+    assertEquals(0, policy.getMaxBytes());
+
+    // a fixed policy ignores latency and failures
+    policy.recordSent(100, SLOW);
+    policy.recordFailed();
+    assertEquals(100, policy.getLimit());
+  }
+
+  @Test
+  public void testMultiplicativeDecrease() {
+    BatchPolicy policy = new BatchPolicy(100, 10, 0, true, 1000, null);
+
+    policy.recordSent(100, SLOW);
+    assertEquals(50, policy.getLimit());
+    policy.recordFailed();
+    assertEquals(25, policy.getLimit());
+    policy.recordFailed();
+    assertEquals(12, policy.getLimit());
+    policy.recordFailed();
+    assertEquals(10, policy.getLimit());
+    policy.recordFailed();
+    assertEquals(10, policy.getLimit());
+  }
+
+  @Test
+  public void testAdditiveIncrease() {
+    BatchPolicy policy = new BatchPolicy(100, 10, 0, true, 1000, null);
+    policy.recordFailed();
+    policy.recordFailed();
+    assertEquals(25, policy.getLimit());
+
+    // batches that were not full say nothing about whether a larger batch would be sent in time
+    policy.recordSent(5, FAST);
+    assertEquals(25, policy.getLimit());
+
+    policy.recordSent(25, FAST);
+    assertEquals(35, policy.getLimit());
+    for (int i = 0; i < 10; i++) {
+      policy.recordSent(policy.getLimit(), FAST);
+    }
+    assertEquals(100, policy.getLimit());
+  }
+
+  @Test
+  public void testThrottled() {
+    BatchPolicy fixed = new BatchPolicy(100);
+    fixed.recordThrottled();
+    assertEquals(100, fixed.getLimit());
+
+    BatchPolicy policy = new BatchPolicy(100, 10, 0, true, 1000, null);
+    policy.recordThrottled();
+    assertEquals(50, policy.getLimit());
+
+    // the throttled batch itself was filled under the old limit, so sending it does not grow the new one
+    policy.recordSent(100, FAST);
+    assertEquals(50, policy.getLimit());
+  }
+
+  @Test
+  public void testFromConfig() {
+    Config config = ConfigFactory.parseMap(Map.of(
+        "indexer.batchSize", 50,
+        "indexer.minBatchSize", 5,
+        "indexer.batchMaxBytes", "1K",
+        "indexer.adaptiveBatchSize", true,
+        "indexer.batchTargetLatency", 100));
+    BatchPolicy policy = new BatchPolicy(config, "testing");
+    assertEquals(50, policy.getMaxSize());
+    assertEquals(1024, policy.getMaxBytes());
+    policy.recordSent(50, TimeUnit.MILLISECONDS.toNanos(200));
+    assertEquals(25, policy.getLimit());
+
+    BatchPolicy defaults = new BatchPolicy(ConfigFactory.empty(), "testing");
+    assertEquals(Indexer.DEFAULT_BATCH_SIZE, defaults.getMaxSize());
+    assertEquals(0, defaults.getMaxBytes());
+
+    assertThrows(IllegalArgumentException.class,
+        () -> new BatchPolicy(ConfigFactory.parseMap(Map.of("indexer.minBatchSize", 200)), "testing"));
+  }
+
+  @Test
+  public void testEstimateBytes() {
+    Document doc = Document.create("doc");
+    long empty = BatchPolicy.estimateBytes(doc);
+
+    doc.setField("text", "x".repeat(1000));
+    long withText = BatchPolicy.estimateBytes(doc);
+    assertTrue(withText - empty >= 1000);
+
+    doc.setField("bytes", new byte[3000]);
+    assertTrue(BatchPolicy.estimateBytes(doc) - withText >= 4000);
+
+    doc.addChild(Document.create("child"));
+    doc.addToField("list", 1);
+    doc.addToField("list", 2);
+    assertTrue(BatchPolicy.estimateBytes(doc) > withText + 4000);
+  }
+}
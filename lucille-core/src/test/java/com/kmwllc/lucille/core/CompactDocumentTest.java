@@ -0,0 +1,165 @@
+package com.kmwllc.lucille.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.ConfigFactory;
+import java.time.Instant;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompactDocumentTest extends DocumentTest {
+
+  @Override
+  public Document createDocument(ObjectNode node) throws DocumentException {
+    return new CompactDocument(node);
+  }
+
+  @Override
+  public Document createDocument(String id) {
+    return new CompactDocument(id);
+  }
+
+  @Override
+  public Document createDocument(String id, String runId) {
+    return new CompactDocument(id, runId);
+  }
+
+  @Override
+  public Document createDocumentFromJson(String json, UnaryOperator<String> idUpdater)
+      throws DocumentException, JsonProcessingException {
+    return CompactDocument.fromJsonString(json, idUpdater);
+  }
+
+  @Test
+  public void testSerializesLikeJsonDocument() throws Exception {
+    String json = "{\"id\":\"doc\",\"run_id\":\"run\",\"string\":\"a\",\"int\":1,\"long\":10000000000,"
+        + "\"double\":1.5,\"boolean\":true,\"null\":null,\"list\":[\"a\",2,null,[\"nested\"]],"
+        + "\"object\":{\"a\":[1,2]},\".children\":[{\"id\":\"child\",\"field\":\"value\"}]}";
+    Document compact = createDocumentFromJson(json);
+    Document jsonDoc = JsonDocument.fromJsonString(json);
+
+    ObjectMapper mapper = new ObjectMapper();
+    assertEquals(mapper.readTree(jsonDoc.toString()), mapper.readTree(compact.toString()));
+    assertEquals(mapper.readTree(mapper.writeValueAsString(jsonDoc)),
+        mapper.readTree(mapper.writeValueAsString(compact)));
+    assertEquals(jsonDoc.asMap(), compact.asMap());
+    assertEquals(jsonDoc.getFieldNames(), compact.getFieldNames());
+  }
+
+  @Test
+  public void testConversionToAndFromJsonDocument() throws Exception {
+    CompactDocument compact = new CompactDocument("doc", "run");
+    compact.setField("string", "a");
+    compact.setField("float", 1.5f);
+    compact.setField("bytes", new byte[] {1, 2, 3});
+    compact.addToField("multi", 1);
+    compact.addToField("multi", 2L);
+    compact.addChild(new JsonDocument("child"));
+
+    JsonDocument json = compact.toJsonDocument();
+    assertEquals("run", json.getRunId());
+    assertEquals(Float.valueOf(1.5f), json.getFloat("float"));
+    assertArrayEquals(new byte[] {1, 2, 3}, json.getBytes("bytes"));
+    assertEquals(List.of(1L, 2L), json.getLongList("multi"));
+    assertEquals(List.of(new JsonDocument("child")), json.getChildren());
+
+    CompactDocument back = new CompactDocument(json);
+    assertEquals(compact, back);
+    assertEquals(List.of(new CompactDocument("child")), back.getChildren());
+
+    // a JsonDocument can hold a CompactDocument as a child, and copy one
+    JsonDocument parent = new JsonDocument("parent");
+    parent.addChild(compact);
+    assertEquals(List.of(json), parent.getChildren());
+    assertEquals(json, new JsonDocument(compact));
+  }
+
+  @Test
+  public void testMixedSetOrAdd() {
+    Document compact = createDocument("doc");
+    compact.setField("field", "a");
+    Document json = new JsonDocument("other");
+    json.addToField("field", "b");
+    json.addToField("field", "c");
+    json.setField("other", 1);
+
+    compact.setOrAddAll(json);
+    assertEquals(List.of("a", "b", "c"), compact.getStringList("field"));
+    assertEquals(Integer.valueOf(1), compact.getInt("other"));
+
+    Document copy = createDocument("copy");
+    copy.setOrAddAll(compact);
+    assertEquals(List.of("a", "b", "c"), copy.getStringList("field"));
+
+    // values are copied rather than shared
+    compact.addToField("field", "d");
+    assertEquals(3, copy.length("field"));
+  }
+
+  @Test
+  public void testPrimitiveValuesReadAsOtherTypes() {
+    Document doc = createDocument("doc");
+    doc.setField("int", 7);
+    doc.setField("double", 2.5);
+    doc.setField("boolean", true);
+    doc.setField("string", "12");
+
+    assertEquals("7", doc.getString("int"));
+    assertEquals(Double.valueOf(7), doc.getDouble("int"));
+    assertEquals(Long.valueOf(7), doc.getLong("int"));
+    assertEquals(Integer.valueOf(2), doc.getInt("double"));
+    assertEquals("2.5", doc.getString("double"));
+    assertEquals("true", doc.getString("boolean"));
+    assertEquals(Integer.valueOf(12), doc.getInt("string"));
+    assertFalse(doc.getBoolean("string"));
+  }
+
+  @Test
+  public void testFieldNamesInterned() {
+    Document doc1 = createDocument("doc1");
+    Document doc2 = createDocument("doc2");
+    doc1.setField(new String("shared"), "a");
+    doc2.setField(new String("shared"), "b");
+
+    String name1 = doc1.getFieldNames().stream().filter("shared"::equals).findFirst().get();
+    String name2 = doc2.getFieldNames().stream().filter("shared"::equals).findFirst().get();
+    assertSame(name1, name2);
+  }
+
+  @Test
+  public void testDocumentImplementationSelection() throws Exception {
+    try {
+      DocumentImplementation.configure(ConfigFactory.parseMap(Map.of("document.implementation", "compact")));
+      assertTrue(Document.create("doc") instanceof CompactDocument);
+      assertTrue(Document.create("doc", "run") instanceof CompactDocument);
+      assertTrue(Document.createFromJson("{\"id\":\"doc\"}") instanceof CompactDocument);
+
+      DocumentImplementation.configure(ConfigFactory.empty());
+      assertTrue(Document.create("doc") instanceof JsonDocument);
+    } finally {
+      DocumentImplementation.set(DocumentImplementation.JSON);
+    }
+  }
+
+  @Test
+  public void testInstantsStoredAsStrings() {
+    Document doc = createDocument("doc");
+    Instant instant = Instant.parse("2024-03-12T16:09:32.231262Z");
+    doc.setField("instant", instant);
+    assertEquals("2024-03-12T16:09:32.231262Z", doc.getString("instant"));
+    assertEquals(instant, doc.getInstant("instant"));
+    JsonNode node = doc.getJson("instant");
+    assertTrue(node.isTextual());
+  }
+}
@@ -0,0 +1,64 @@
+package com.kmwllc.lucille.core;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ConditionEvaluatorTest {
+
+  @Test
+  public void testMatchesUnorderedEvaluation() {
+    Predicate<Document> hasA = doc -> doc.has("a");
+    Predicate<Document> hasB = doc -> doc.has("b");
+    Predicate<Document> hasC = doc -> doc.has("c");
+    List<Predicate<Document>> conditions = List.of(hasA, hasB, hasC);
+
+    Predicate<Document> all = ConditionEvaluator.of(conditions, true);
+    Predicate<Document> any = ConditionEvaluator.of(conditions, false);
+
+    // run across several reorderings and confirm the results never differ from a plain and / or
+    Random random = new Random(42);
+    for (int i = 0; i < ConditionEvaluator.REORDER_INTERVAL * 4; i++) {
+      Document doc = Document.create("doc" + i);
+      for (String field : List.of("a", "b", "c")) {
+        if (random.nextInt(4) > 0) {
+          doc.setField(field, "x");
+        }
+      }
+      assertEquals(hasA.and(hasB).and(hasC).test(doc), all.test(doc));
+      assertEquals(hasA.or(hasB).or(hasC).test(doc), any.test(doc));
+    }
+  }
+
+  @Test
+  public void testDecisiveConditionMovesFirst() {
+    Predicate<Document> alwaysTrue = doc -> true;
+    Predicate<Document> alwaysFalse = doc -> false;
+
+    ConditionEvaluator all = (ConditionEvaluator) ConditionEvaluator.of(List.of(alwaysTrue, alwaysFalse), true);
+    ConditionEvaluator any = (ConditionEvaluator) ConditionEvaluator.of(List.of(alwaysFalse, alwaysTrue), false);
+
+    Document doc = Document.create("doc");
+    for (int i = 0; i < ConditionEvaluator.REORDER_INTERVAL; i++) {
+      assertFalse(all.test(doc));
+      assertTrue(any.test(doc));
+    }
+
+    assertSame(alwaysFalse, all.getOrder().get(0));
+    assertSame(alwaysTrue, any.getOrder().get(0));
+  }
+
+  @Test
+  public void testTrivialCases() {
+    Predicate<Document> condition = doc -> false;
+    assertSame(condition, ConditionEvaluator.of(List.of(condition), true));
+    assertTrue(ConditionEvaluator.of(List.of(), false).test(Document.create("doc")));
+  }
+}
@@ -0,0 +1,106 @@
+package com.kmwllc.lucille.core;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class DocIdMultisetTest {
+
+  @Test
+  public void testAddAndRemove() {
+    DocIdMultiset ids = new DocIdMultiset();
+    assertTrue(ids.isEmpty());
+    assertFalse(ids.remove("doc1"));
+
+    ids.add("doc1");
+    ids.add("doc1");
+    ids.add("doc2");
+    assertEquals(3, ids.size());
+    assertEquals(2, ids.count("doc1"));
+    assertEquals(1, ids.count("doc2"));
+    assertEquals(0, ids.count("doc3"));
+
+    assertTrue(ids.remove("doc1"));
+    assertEquals(1, ids.count("doc1"));
+    assertTrue(ids.remove("doc1"));
+    assertFalse(ids.remove("doc1"));
+    assertTrue(ids.remove("doc2"));
+    assertTrue(ids.isEmpty());
+    assertEquals(0, ids.size());
+  }
+
+  @Test
+  public void testCollisions() {
+    // every ID hashes to the same value, so all but the first are counted in the overflow map
+    DocIdMultiset ids = new DocIdMultiset(id -> 42L);
+    ids.add("doc1");
+    ids.add("doc2");
+    ids.add("doc2");
+    ids.add("doc3");
+    assertEquals(4, ids.size());
+    assertEquals(1, ids.count("doc1"));
+    assertEquals(2, ids.count("doc2"));
+    assertEquals(1, ids.count("doc3"));
+
+    assertTrue(ids.remove("doc1"));
+    assertFalse(ids.remove("doc1"));
+    assertEquals(2, ids.count("doc2"));
+
+    // with doc1 gone, doc4 takes the slot while doc2 and doc3 remain in the overflow map
+    ids.add("doc4");
+    assertEquals(1, ids.count("doc4"));
+    assertTrue(ids.remove("doc2"));
+    assertTrue(ids.remove("doc2"));
+    assertFalse(ids.remove("doc2"));
+    assertTrue(ids.remove("doc3"));
+    assertTrue(ids.remove("doc4"));
+    assertTrue(ids.isEmpty());
+  }
+
+  @Test
+  public void testProbingAndResizing() {
+    // a hash with few distinct values keeps the table densely probed, exercising deletion with backward shifts
+    DocIdMultiset ids = new DocIdMultiset(id -> DocIdMultiset.hash(id) & 0xF000_0000_0000_00FFL);
+    Map<String, Integer> expected = new HashMap<>();
+    Random random = new Random(1);
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      keys.add("doc" + i);
+    }
+
+    for (int i = 0; i < 50000; i++) {
+      String id = keys.get(random.nextInt(keys.size()));
+      if (random.nextInt(3) > 0) {
+        ids.add(id);
+        expected.merge(id, 1, Integer::sum);
+      } else {
+        boolean present = expected.containsKey(id);
+        assertEquals(present, ids.remove(id));
+        if (present) {
+          expected.computeIfPresent(id, (k, v) -> v == 1 ? null : v - 1);
+        }
+      }
+    }
+
+    for (String id : keys) {
+      assertEquals(expected.getOrDefault(id, 0).intValue(), ids.count(id));
+    }
+    assertEquals(expected.values().stream().mapToLong(Integer::longValue).sum(), ids.size());
+
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      for (int i = 0; i < entry.getValue(); i++) {
+        assertTrue(ids.remove(entry.getKey()));
+      }
+    }
+    assertTrue(ids.isEmpty());
+  }
+}
@@ -113,6 +113,29 @@ public abstract class DocumentTest {
     assertFalse(document.isMultiValued("not_present"));
   }
 
+  @Test
+  public void testAnyStringValueMatches() {
+    Document d = createDocument("id");
+    d.setField("single", "a");
+    d.setField("number", 5);
+    d.addToField("multi", "b");
+    d.addToField("multi", "c");
+
+    assertTrue(d.anyStringValueMatches("single", "a"::equals));
+    assertFalse(d.anyStringValueMatches("single", "b"::equals));
+    assertTrue(d.anyStringValueMatches("multi", "c"::equals));
+    assertFalse(d.anyStringValueMatches("multi", "a"::equals));
+    assertTrue(d.anyStringValueMatches("number", "5"::equals));
+    assertFalse(d.anyStringValueMatches("absent", v -> true));
+
+    // values are seen exactly as getStringList() would return them
+    for (String field : List.of("single", "number", "multi")) {
+      List<String> seen = new ArrayList<>();
+      d.anyStringValueMatches(field, v -> !seen.add(v));
+      assertEquals(d.getStringList(field), seen);
+    }
+  }
+
   @Test(expected = DocumentException.class)
   public void testCreateWithoutId4() throws Exception {
     createDocumentFromJson("{\"id\":null}");
@@ -0,0 +1,72 @@
+package com.kmwllc.lucille.core;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class EventBatchTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    EventBatch batch = new EventBatch("run1");
+    batch.add(new Event("doc1", "run1", "SUCCEEDED", Event.Type.FINISH));
+    batch.add(new Event("doc1-1", "run1", null, Event.Type.CREATE));
+    batch.add(new Event("doc2", "run1", "FAILED: x", Event.Type.FAIL));
+    batch.add(new Event("doc3", "run1", null, Event.Type.FAIL));
+    batch.add(new Event("doc1-1", "run1", "SUCCEEDED", Event.Type.FINISH));
+    assertEquals(5, batch.size());
+
+    List<Event> events = EventBatch.parseEvents(batch.toString());
+
+    // CREATE events come first; otherwise, events keep their relative order
+    assertEquals(List.of("doc1-1", "doc1", "doc1-1", "doc2", "doc3"),
+        events.stream().map(Event::getDocumentId).collect(Collectors.toList()));
+    assertEquals(List.of(Event.Type.CREATE, Event.Type.FINISH, Event.Type.FINISH, Event.Type.FAIL, Event.Type.FAIL),
+        events.stream().map(Event::getType).collect(Collectors.toList()));
+    assertNull(events.get(0).getMessage());
+    assertEquals("SUCCEEDED", events.get(1).getMessage());
+    assertEquals("SUCCEEDED", events.get(2).getMessage());
+    assertEquals("FAILED: x", events.get(3).getMessage());
+    assertNull(events.get(4).getMessage());
+    assertTrue(events.stream().allMatch(e -> "run1".equals(e.getRunId())));
+  }
+
+  @Test
+  public void testSharedMessageStoredOnce() {
+    EventBatch batch = new EventBatch("run1");
+    for (int i = 0; i < 3; i++) {
+      batch.add(new Event("doc" + i, "run1", "SUCCEEDED", Event.Type.FINISH));
+    }
+    String json = batch.toString();
+    assertEquals(json.indexOf("SUCCEEDED"), json.lastIndexOf("SUCCEEDED"));
+  }
+
+  @Test
+  public void testParseSingleEvent() throws Exception {
+    Event event = new Event("doc1", "run1", "SUCCEEDED", Event.Type.FINISH);
+    List<Event> events = EventBatch.parseEvents(event.toString());
+    assertEquals(List.of(event), events);
+  }
+
+  @Test
+  public void testGroupByRun() {
+    List<EventBatch> batches = EventBatch.of(List.of(
+        new Event("doc1", "run1", null, Event.Type.FINISH),
+        new Event("doc2", "run2", null, Event.Type.FINISH),
+        new Event("doc3", "run1", null, Event.Type.DROP)));
+    assertEquals(2, batches.size());
+    assertEquals("run1", batches.get(0).getRunId());
+    assertEquals(2, batches.get(0).size());
+    assertEquals("run2", batches.get(1).getRunId());
+    assertEquals(1, batches.get(1).size());
+
+    assertThrows(IllegalArgumentException.class,
+        () -> batches.get(0).add(new Event("doc4", "run2", null, Event.Type.FINISH)));
+  }
+}
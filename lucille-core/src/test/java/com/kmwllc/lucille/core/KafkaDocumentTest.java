@@ -2,8 +2,12 @@ package com.kmwllc.lucille.core;
 
 import com.kmwllc.lucille.message.KafkaDocumentDeserializer;
 import com.kmwllc.lucille.message.KafkaDocumentSerializer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -170,4 +174,115 @@ public class KafkaDocumentTest {
     assertEquals(null, deserializedDoc.getKey());
     assertEquals(originalDoc.asMap(), deserializedDoc.asMap());
   }
+
+  @Test
+  public void testSmileSerdeWithBinaryField() throws Exception {
+    KafkaDocumentSerializer serializer = new KafkaDocumentSerializer();
+    serializer.configure(Map.of(KafkaDocumentSerializer.TOPIC_FORMAT_CONFIG_PREFIX + "pipeline1_dest", "smile"), false);
+    KafkaDocumentDeserializer deserializer = new KafkaDocumentDeserializer();
+
+    byte[] content = new byte[3000];
+    new Random(1).nextBytes(content);
+    Document originalDoc = Document.create("123");
+    originalDoc.setField("file_content", content);
+    originalDoc.setField("field1", "val1");
+    originalDoc.setOrAdd("field2", 1.5);
+    originalDoc.setOrAdd("field2", 2.5);
+
+    byte[] jsonBytes = serializer.serialize("pipeline1_source", originalDoc);
+    byte[] smileBytes = serializer.serialize("pipeline1_dest", originalDoc);
+    assertEquals('{', jsonBytes[0]);
+    assertEquals(':', smileBytes[0]);
+    // binary content is stored raw rather than base64-encoded
+    assertTrue(smileBytes.length < content.length + 100);
+    assertTrue(jsonBytes.length > content.length * 4 / 3);
+
+    // the deserializer detects the format of each record
+    for (byte[] docBytes : List.of(jsonBytes, smileBytes)) {
+      Document deserializedDoc = deserializer.deserialize("topic", docBytes);
+      assertTrue(deserializedDoc instanceof KafkaDocument);
+      assertEquals("123", deserializedDoc.getId());
+      assertArrayEquals(content, deserializedDoc.getBytes("file_content"));
+      assertEquals("val1", deserializedDoc.getString("field1"));
+      assertEquals(List.of(1.5, 2.5), deserializedDoc.getDoubleList("field2"));
+    }
+  }
+
+  @Test
+  public void testUnknownDocumentFormat() {
+    KafkaDocumentSerializer serializer = new KafkaDocumentSerializer();
+    assertThrows(IllegalArgumentException.class,
+        () -> serializer.configure(Map.of(KafkaDocumentSerializer.FORMAT_CONFIG, "xml"), false));
+  }
+
+  @Test
+  public void testLazyDeserializationWithHeaders() throws Exception {
+    KafkaDocumentSerializer serializer = new KafkaDocumentSerializer();
+    serializer.configure(Map.of(KafkaDocumentSerializer.TOPIC_FORMAT_CONFIG_PREFIX + "pipeline1_dest", "smile"), false);
+    KafkaDocumentDeserializer deserializer = new KafkaDocumentDeserializer();
+
+    Document originalDoc = Document.create("123", "run1");
+    originalDoc.setField("field1", "val1");
+
+    RecordHeaders headers = new RecordHeaders();
+    byte[] docBytes = serializer.serialize("pipeline1_source", headers, originalDoc);
+    assertEquals("123", new String(headers.lastHeader(KafkaDocumentSerializer.ID_HEADER).value(), StandardCharsets.UTF_8));
+    assertEquals("run1", new String(headers.lastHeader(KafkaDocumentSerializer.RUN_ID_HEADER).value(), StandardCharsets.UTF_8));
+    assertNull(headers.lastHeader(KafkaDocumentSerializer.DROPPED_HEADER));
+
+    // the ID and run ID are available without parsing the payload
+    KafkaDocument doc = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    assertEquals("123", doc.getId());
+    assertEquals("run1", doc.getRunId());
+    assertFalse(doc.isDropped());
+    assertSame(docBytes, doc.getUnparsedPayload());
+
+    // an unparsed document written in the same format is passed through as its original payload;
+    // written in a different format, it is re-encoded
+    assertSame(docBytes, serializer.serialize("pipeline1_source", new RecordHeaders(), doc));
+    byte[] smileBytes = serializer.serialize("pipeline1_dest", new RecordHeaders(), doc);
+    assertEquals(':', smileBytes[0]);
+    assertNull(doc.getUnparsedPayload());
+
+    KafkaDocument doc2 = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    doc2.setField("field2", "val2");
+    assertNull(doc2.getUnparsedPayload());
+    assertEquals("val1", doc2.getString("field1"));
+    assertEquals("123", doc2.getId());
+    assertEquals(originalDoc.getString("field1"), deserializer.deserialize("t", smileBytes).getString("field1"));
+  }
+
+  @Test
+  public void testEqualsUnparsedDocument() throws Exception {
+    KafkaDocumentSerializer serializer = new KafkaDocumentSerializer();
+    KafkaDocumentDeserializer deserializer = new KafkaDocumentDeserializer();
+
+    Document originalDoc = Document.create("123", "run1");
+    originalDoc.setField("field1", "val1");
+    RecordHeaders headers = new RecordHeaders();
+    byte[] docBytes = serializer.serialize("pipeline1_source", headers, originalDoc);
+
+    // a document compares equal to an unparsed KafkaDocument with the same fields
+    KafkaDocument doc = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    assertNotNull(doc.getUnparsedPayload());
+    assertTrue(originalDoc.equals(doc));
+
+    // two KafkaDocuments compare equal whichever of them is still unparsed
+    KafkaDocument parsed = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    assertEquals("val1", parsed.getString("field1"));
+    assertNull(parsed.getUnparsedPayload());
+
+    doc = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    assertNotNull(doc.getUnparsedPayload());
+    assertTrue(parsed.equals(doc));
+
+    doc = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    assertNotNull(doc.getUnparsedPayload());
+    assertTrue(doc.equals(parsed));
+
+    // and not equal to a document with different fields
+    doc = (KafkaDocument) deserializer.deserialize("pipeline1_source", headers, docBytes);
+    originalDoc.setField("field1", "val2");
+    assertFalse(originalDoc.equals(doc));
+  }
 }
@@ -0,0 +1,60 @@
+package com.kmwllc.lucille.core;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import net.mguenther.kafka.junit.EmbeddedKafkaCluster;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static net.mguenther.kafka.junit.EmbeddedKafkaCluster.provisionWith;
+import static net.mguenther.kafka.junit.EmbeddedKafkaClusterConfig.defaultClusterConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KafkaRetryCounterTest {
+
+  private EmbeddedKafkaCluster kafka;
+
+  @Before
+  public void setupKafka() {
+    kafka = provisionWith(defaultClusterConfig());
+    kafka.start();
+  }
+
+  @After
+  public void tearDownKafka() {
+    kafka.stop();
+  }
+
+  @Test
+  public void testAttemptsSurviveRestart() throws Exception {
+    Config config = ConfigFactory.load("KafkaRetryCounterTest/config.conf");
+    Document doc1 = new KafkaDocument(Document.create("doc1", "run1"), "topic", 0, 5, "doc1");
+    Document doc2 = Document.create("doc2", "run1");
+
+    RetryCounter counter = RetryCounter.fromConfig(config);
+    assertTrue(counter instanceof KafkaRetryCounter);
+    assertFalse(counter.add(doc1));
+    assertFalse(counter.add(doc1));
+    assertFalse(counter.add(doc2));
+    counter.remove(doc2);
+    counter.close();
+
+    // a second worker learns of the attempts the first one recorded, but not of counters it removed
+    RetryCounter counter2 = RetryCounter.fromConfig(config);
+    assertTrue(counter2.add(doc1));
+    assertFalse(counter2.add(doc2));
+    counter2.remove(doc1);
+    assertFalse(counter2.add(doc1));
+    counter2.close();
+  }
+
+  @Test
+  public void testCounterKey() throws Exception {
+    assertEquals("topic/null/key___1_2",
+        KafkaRetryCounter.getCounterKey(new KafkaDocument(Document.create("kafkaDoc"), "topic", 1, 2, "key")));
+    assertEquals("NON_KAFKA/run1/doc", KafkaRetryCounter.getCounterKey(Document.create("doc", "run1")));
+  }
+}
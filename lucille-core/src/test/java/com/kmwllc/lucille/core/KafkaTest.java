@@ -12,7 +12,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static net.mguenther.kafka.junit.EmbeddedKafkaCluster.provisionWith;
 import static net.mguenther.kafka.junit.EmbeddedKafkaClusterConfig.defaultClusterConfig;
@@ -56,23 +62,20 @@ public class KafkaTest {
         .from(KafkaUtils.getDestTopicName("pipeline1"))
         .seekTo(0, 0)).size());
 
+    // the indexer sends the completion events for each batch it indexes as a single EventBatch record,
+    // so the 3 events may arrive in fewer than 3 records
     List<KeyValue<String, String>> eventRecords =
         kafka.read(ReadKeyValues.from(
             KafkaUtils.getEventTopicName(config, "pipeline1", result.getRunId())).seekTo(0, 0));
-    assertEquals(3, eventRecords.size());
-
-    Event event0 = Event.fromJsonString(eventRecords.get(0).getValue());
-    Event event1 = Event.fromJsonString(eventRecords.get(1).getValue());
-    Event event2 = Event.fromJsonString(eventRecords.get(2).getValue());
-    // in local kafka mode (or fully distributed kafka mode) as opposed to hybrid mode,
-    // completion events will contain kafka metadata taken from messages found on the destination topic,
-    // not the source topic, because that's where the indexer consumes from
-    assertEquals(KafkaUtils.getDestTopicName("pipeline1"), event0.getTopic());
-    assertEquals(KafkaUtils.getDestTopicName("pipeline1"), event1.getTopic());
-    assertEquals(KafkaUtils.getDestTopicName("pipeline1"), event2.getTopic());
-    assertEquals(Integer.valueOf(0), event1.getPartition());
-    assertEquals(Long.valueOf(1), event1.getOffset());
-    assertEquals(Event.Type.FINISH, event1.getType());
+    assertTrue(eventRecords.size() <= 3);
+
+    List<Event> events = new ArrayList<>();
+    for (KeyValue<String, String> record : eventRecords) {
+      events.addAll(EventBatch.parseEvents(record.getValue()));
+    }
+    assertEquals(3, events.size());
+    assertTrue(events.stream().allMatch(e -> Event.Type.FINISH.equals(e.getType())));
+    assertEquals(List.of("1", "2", "3"), events.stream().map(Event::getDocumentId).sorted().collect(Collectors.toList()));
 
     // connector2 will feed 1 documents to pipeline1, so there should be 1 messages in each of
     // the source, dest, and event topics after the run is complete
@@ -95,4 +98,32 @@ public class KafkaTest {
         .seekTo(0, 0)).size());
   }
 
+  @Test
+  public void testPartitionedEventTopic() throws Exception {
+    Config config = ConfigFactory.load("KafkaTest/partitionedEvents.conf");
+    RunResult result = Runner.run(config, Runner.RunType.KAFKA_LOCAL);
+    assertTrue(result.getStatus());
+
+    List<KeyValue<String, String>> eventRecords = kafka.read(ReadKeyValues
+        .from(KafkaUtils.getEventTopicName(config, "pipeline1", result.getRunId()))
+        .includeMetadata());
+
+    // every Event relating to a given document lands in the same partition
+    Map<String, Set<Integer>> partitionsByDocId = new HashMap<>();
+    List<Event> events = new ArrayList<>();
+    for (KeyValue<String, String> record : eventRecords) {
+      int partition = record.getMetadata().get().getPartition();
+      for (Event event : EventBatch.parseEvents(record.getValue())) {
+        events.add(event);
+        partitionsByDocId.computeIfAbsent(event.getDocumentId(), id -> new HashSet<>()).add(partition);
+      }
+    }
+
+    // 5 CREATE events for the children, and a FINISH event for the parent and each child
+    assertEquals(11, events.size());
+    assertEquals(5, events.stream().filter(Event::isCreate).count());
+    assertEquals(6, partitionsByDocId.size());
+    assertTrue(partitionsByDocId.values().stream().allMatch(partitions -> partitions.size() == 1));
+    assertTrue(partitionsByDocId.values().stream().flatMap(Set::stream).distinct().count() > 1);
+  }
 }
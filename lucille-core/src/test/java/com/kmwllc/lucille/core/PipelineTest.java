@@ -14,6 +14,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
@@ -141,6 +142,59 @@ public class PipelineTest {
     assertEquals(expected, stringResults);
   }
 
+  @Test
+  public void testPushExecutorMatchesIteratorExecutor() throws Exception {
+    List<List<String>> orderings = new ArrayList<>();
+
+    for (Pipeline.Executor executor : Pipeline.Executor.values()) {
+      Pipeline pipeline = new Pipeline();
+      pipeline.setExecutor(executor);
+      Config config = ConfigFactory.empty();
+      pipeline.addStage(new MarkingStage(config, "f1"));
+      pipeline.addStage(new MarkingStage(config, "f2"));
+      pipeline.addStage(new MarkingStage(config, "f3"));
+
+      Document doc = Document.create("d1");
+      doc.initializeRunId("runId1");
+      doc.setField("f1", "0");
+      doc.setField("f2", "0");
+      doc.setField("f3", "0");
+
+      List<String> results = new ArrayList<>();
+      pipeline.processDocument(doc, d -> {
+        assertEquals("runId1", d.getRunId());
+        results.add(d.getString("f3") + d.getString("f2") + d.getString("f1"));
+      });
+      orderings.add(results);
+    }
+
+    assertEquals(27, orderings.get(0).size());
+    assertEquals("000", orderings.get(0).get(26));
+    assertEquals(orderings.get(0), orderings.get(1));
+  }
+
+  @Test
+  public void testExecutorFromConfig() throws Exception {
+    String s = "pipelines = [{name:\"pipeline1\", executor: \"push\", stages: [{class:\"com.kmwllc.lucille.core.PipelineTest$Stage1\"}]}," +
+        "{name:\"pipeline2\", stages: [{class:\"com.kmwllc.lucille.core.PipelineTest$Stage1\"}]}]";
+    Config config = ConfigFactory.parseString(s);
+    assertEquals(Pipeline.Executor.PUSH, Pipeline.fromConfig(config, "pipeline1", "").getExecutor());
+    assertEquals(Pipeline.Executor.ITERATOR, Pipeline.fromConfig(config, "pipeline2", "").getExecutor());
+
+    Pipeline pipeline = Pipeline.fromConfig(config, "pipeline1", "");
+    Document doc = Document.create("d1");
+    List<Document> results = new ArrayList<>();
+    pipeline.processDocument(doc, results::add);
+    assertEquals(1, results.size());
+    assertEquals("v1", results.get(0).getString("s1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidExecutor() throws Exception {
+    String s = "pipelines = [{name:\"pipeline1\", executor: \"foo\", stages: [{class:\"com.kmwllc.lucille.core.PipelineTest$Stage1\"}]}]";
+    Pipeline.fromConfig(ConfigFactory.parseString(s), "pipeline1", "");
+  }
+
   /**
    * Create a pipeline with 100 stages that each create 100 children for each input.
    * Confirm that although this pipeline should generate 100^100 documents for each
@@ -213,6 +267,86 @@ public class PipelineTest {
     assertFalse(doc.has("s4"));
   }
 
+  @Test
+  public void testProcessDocumentsWithChildren() throws Exception {
+    Pipeline pipeline = new Pipeline();
+    Config config = ConfigFactory.empty();
+    pipeline.addStage(new Stage1(config));
+    pipeline.addStage(new Stage2(config));
+    pipeline.addStage(new Stage4(config));
+
+    Document d1 = Document.create("d1");
+    d1.initializeRunId("runId1");
+    Document d2 = Document.create("d2");
+    d2.initializeRunId("runId1");
+
+    pipeline.startStages();
+    List<Document> results = pipeline.processDocuments(Arrays.asList(d1, d2));
+    pipeline.stopStages();
+
+    // children generated by stage 2 precede the parents and only pass through stage 4
+    List<String> ids = new ArrayList<>();
+    for (Document result : results) {
+      ids.add(result.getId());
+      assertEquals("runId1", result.getRunId());
+      assertEquals("v4", result.getString("s4"));
+    }
+    assertEquals(Arrays.asList("d1-s2c1", "d1-s2c2", "d2-s2c1", "d2-s2c2", "d1", "d2"), ids);
+    assertFalse(results.get(0).has("s1"));
+    assertSame(d1, results.get(4));
+    assertEquals("v1", d1.getString("s1"));
+    assertEquals("v2", d2.getString("s2"));
+  }
+
+  @Test
+  public void testProcessDocumentsWithBatchStage() throws Exception {
+    Pipeline pipeline = new Pipeline();
+    Config config = ConfigFactory.parseString("conditions: [{fields: [\"cond\"]}]");
+    BatchStage batchStage = new BatchStage(config);
+    pipeline.addStage(batchStage);
+
+    Document d1 = Document.create("d1");
+    d1.setField("cond", "x");
+    Document d2 = Document.create("d2");
+    Document d3 = Document.create("d3");
+    d3.setField("cond", "y");
+
+    List<Document> results = pipeline.processDocuments(Arrays.asList(d1, d2, d3));
+
+    // only documents that satisfy the conditions are passed to processDocuments(), in a single call
+    assertEquals(Arrays.asList(d1, d2, d3), results);
+    assertEquals(1, batchStage.numCalls);
+    assertEquals(2, d1.getInt("batch_size").intValue());
+    assertFalse(d2.has("batch_size"));
+    assertEquals(2, d3.getInt("batch_size").intValue());
+  }
+
+  @Test
+  public void testProcessDocumentAsync() throws Exception {
+    Pipeline pipeline = new Pipeline();
+    Config config = ConfigFactory.empty();
+    pipeline.addStage(new Stage1(config));
+    pipeline.addStage(new Stage2(config));
+    pipeline.addStage(new Stage4(config));
+
+    Document doc = Document.create("d1");
+    List<Runnable> continuations = new ArrayList<>();
+    CompletableFuture<List<Document>> future = pipeline.processDocumentAsync(doc, continuations::add);
+
+    // nothing runs until the continuations are executed by the caller
+    assertFalse(future.isDone());
+    while (!continuations.isEmpty()) {
+      continuations.remove(0).run();
+    }
+
+    List<Document> results = future.get();
+    assertEquals(3, results.size());
+    assertEquals("d1-s2c1", results.get(0).getId());
+    assertEquals("d1-s2c2", results.get(1).getId());
+    assertSame(doc, results.get(2));
+    assertEquals("v4", doc.getString("s4"));
+  }
+
   @Test
   public void testDefaultName() throws Exception {
     Pipeline pipeline = new Pipeline();
@@ -306,6 +440,29 @@ public class PipelineTest {
     }
   }
 
+  private static class BatchStage extends Stage {
+
+    private int numCalls = 0;
+
+    public BatchStage(Config conf) {
+      super(conf);
+    }
+
+    @Override
+    public Iterator<Document> processDocument(Document doc) throws StageException {
+      throw new StageException("processDocument should not be called");
+    }
+
+    @Override
+    public Iterator<Document> processDocuments(List<Document> docs) throws StageException {
+      numCalls++;
+      for (Document doc : docs) {
+        doc.setField("batch_size", docs.size());
+      }
+      return null;
+    }
+  }
+
   private static class MarkingStage extends Stage {
 
     private String field;
@@ -4,6 +4,7 @@ import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
+import com.kmwllc.lucille.connector.BarrierConnector;
 import com.kmwllc.lucille.connector.NoOpConnector;
 import com.kmwllc.lucille.connector.PostCompletionCSVConnector;
 import com.kmwllc.lucille.connector.RunSummaryMessageConnector;
@@ -193,6 +194,154 @@ public class RunnerTest {
     assertNull(messenger.pollEvent());
   }
 
+  /**
+   * Test an end-to-end run where the worker passes documents through the pipeline in batches, and the pipeline
+   * generates one child document for every incoming document
+   */
+  @Test
+  public void testChildHandlingInBatchMode() throws Exception {
+
+    TestMessenger messenger =
+        Runner.runInTestMode("RunnerTest/threeDocsBatch.conf").get("connector1");
+
+    assertEquals(3, messenger.getDocsSentForProcessing().size());
+    assertEquals(6, messenger.getDocsSentForIndexing().size());
+
+    // confirm that the CREATE event for each child was sent before any terminal event for its parent
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(9, events.size());
+    for (String parentId : List.of("1", "2", "3")) {
+      int createIndex = -1;
+      int parentFinishIndex = -1;
+      for (int i = 0; i < events.size(); i++) {
+        Event event = events.get(i);
+        if (Event.Type.CREATE.equals(event.getType()) && event.getDocumentId().equals(parentId + "_child1")) {
+          createIndex = i;
+        }
+        if (Event.Type.FINISH.equals(event.getType()) && event.getDocumentId().equals(parentId)) {
+          parentFinishIndex = i;
+        }
+      }
+      assertTrue(createIndex >= 0);
+      assertTrue(createIndex < parentFinishIndex);
+    }
+
+    // confirm that topics are empty
+    assertNull(messenger.pollDocToIndex());
+    assertNull(messenger.pollDocToProcess());
+    assertNull(messenger.pollEvent());
+  }
+
+  /**
+   * Test an end-to-end run in batch mode where one document in the batch causes the pipeline to fail;
+   * confirm that only that document is marked as failed
+   */
+  @Test
+  public void testFailingDocInBatchMode() throws Exception {
+
+    TestMessenger messenger =
+        Runner.runInTestMode("RunnerTest/threeDocsBatchOneFailure.conf").get("connector1");
+
+    assertEquals(3, messenger.getDocsSentForProcessing().size());
+
+    List<Document> docsSentForIndexing = messenger.getDocsSentForIndexing();
+    assertEquals(2, docsSentForIndexing.size());
+    assertEquals("1", docsSentForIndexing.get(0).getId());
+    assertEquals("3", docsSentForIndexing.get(1).getId());
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(3, events.size());
+    events.sort(Comparator.comparing(Event::getDocumentId));
+    assertEquals(Event.Type.FINISH, events.get(0).getType());
+    assertEquals(Event.Type.FAIL, events.get(1).getType());
+    assertEquals("2", events.get(1).getDocumentId());
+    assertEquals(Event.Type.FINISH, events.get(2).getType());
+  }
+
+  /**
+   * Test an end-to-end run in batch mode without worker.isolateBatchFailures, where one document in the batch causes
+   * the pipeline to fail; confirm that every document in the batch is marked as failed
+   */
+  @Test
+  public void testFailingBatchWithoutIsolation() throws Exception {
+
+    TestMessenger messenger =
+        Runner.runInTestMode("RunnerTest/threeDocsBatchFailure.conf").get("connector1");
+
+    assertEquals(3, messenger.getDocsSentForProcessing().size());
+
+    assertEquals(0, messenger.getDocsSentForIndexing().size());
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(3, events.size());
+    for (Event event : events) {
+      assertEquals(Event.Type.FAIL, event.getType());
+    }
+  }
+
+  /**
+   * Test an end-to-end run where the pipeline is split into segments, with the second segment served by several threads
+   */
+  @Test
+  public void testStagedPipeline() throws Exception {
+
+    TestMessenger messenger =
+        Runner.runInTestMode("RunnerTest/stagedPipeline.conf").get("connector1");
+
+    assertEquals(3, messenger.getDocsSentForProcessing().size());
+
+    // documents are completed in the order they were polled, with each child ahead of its parent
+    List<String> indexedIds =
+        messenger.getDocsSentForIndexing().stream().map(Document::getId).collect(Collectors.toList());
+    assertEquals(List.of("1_child1", "1", "3_child1", "3"), indexedIds);
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(7, events.size());
+    assertEquals(2, events.stream().filter(e -> Event.Type.CREATE.equals(e.getType())).count());
+    assertEquals(4, events.stream().filter(e -> Event.Type.FINISH.equals(e.getType())).count());
+    assertEquals(List.of("2"), events.stream().filter(e -> Event.Type.FAIL.equals(e.getType()))
+        .map(Event::getDocumentId).collect(Collectors.toList()));
+
+    // confirm that topics are empty
+    assertNull(messenger.pollDocToIndex());
+    assertNull(messenger.pollDocToProcess());
+    assertNull(messenger.pollEvent());
+  }
+
+  /**
+   * Test an end-to-end run where the worker keeps several documents in flight through an asynchronous stage
+   * whose latency decreases from one document to the next
+   */
+  @Test
+  public void testAsyncStageWithInFlightWindow() throws Exception {
+
+    TestMessenger messenger =
+        Runner.runInTestMode("RunnerTest/asyncInFlight.conf").get("connector1");
+
+    assertEquals(5, messenger.getDocsSentForProcessing().size());
+
+    // documents are completed in the order they were polled even though later ones finished the async stage first
+    List<String> indexedIds = new ArrayList<>();
+    for (Document doc : messenger.getDocsSentForIndexing()) {
+      indexedIds.add(doc.getId());
+    }
+    assertEquals(List.of("1_child1", "1", "2_child1", "2", "4_child1", "4", "5_child1", "5"), indexedIds);
+    assertTrue(messenger.getDocsSentForIndexing().get(1).has("async_thread"));
+
+    List<Event> failures = new ArrayList<>();
+    for (Event event : messenger.getSentEvents()) {
+      if (Event.Type.FAIL.equals(event.getType())) {
+        failures.add(event);
+      }
+    }
+    assertEquals(1, failures.size());
+    assertEquals("3", failures.get(0).getDocumentId());
+
+    // confirm that topics are empty
+    assertNull(messenger.pollDocToIndex());
+    assertNull(messenger.pollDocToProcess());
+    assertNull(messenger.pollEvent());
+  }
+
   /**
    * Test an end-to-end run with a single connector that generates 1 document, and a pipeline that
    * generates two children for every incoming document, dropping the document itself
@@ -414,6 +563,42 @@ public class RunnerTest {
     assertEquals(2, map.size());
   }
 
+  /**
+   * Run two connectors that can only complete if they execute at the same time, followed by a third that
+   * depends on both. Confirm that the third connector starts only after the first two have finished.
+   */
+  @Test
+  public void testConcurrentConnectors() throws Exception {
+    BarrierConnector.reset(2);
+    RunResult result = Runner.run(ConfigFactory.load("RunnerTest/concurrentConnectors.conf"), Runner.RunType.TEST);
+    assertTrue(result.getStatus());
+    assertEquals(3, result.getHistory().size());
+    assertEquals(1, result.getHistory().get("connector3").getDocsSentForIndexing().size());
+
+    List<String> events = BarrierConnector.getEvents();
+    assertEquals(4, events.size());
+    assertTrue(events.subList(0, 2).containsAll(List.of("start:connector1", "start:connector2")));
+    assertTrue(events.subList(2, 4).containsAll(List.of("end:connector1", "end:connector2")));
+  }
+
+  /**
+   * Confirm that a connector is not run when a connector it depends on fails.
+   */
+  @Test
+  public void testConcurrentConnectorsWithFailure() throws Exception {
+    RunResult result =
+        Runner.run(ConfigFactory.load("RunnerTest/concurrentConnectorsWithFailure.conf"), Runner.RunType.TEST);
+    assertFalse(result.getStatus());
+    assertEquals(1, result.getHistory().size());
+    assertTrue(result.toString().contains("connector2: skipped."));
+  }
+
+  @Test
+  public void testConnectorDependencyCycle() {
+    assertThrows(ConnectorException.class,
+        () -> Runner.run(ConfigFactory.load("RunnerTest/connectorDependencyCycle.conf"), Runner.RunType.TEST));
+  }
+
   @Test
   public void testRunStatus() throws Exception {
     // successful run
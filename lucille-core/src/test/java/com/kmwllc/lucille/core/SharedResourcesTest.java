@@ -0,0 +1,149 @@
+package com.kmwllc.lucille.core;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class SharedResourcesTest {
+
+  @Test
+  public void testAcquireAndRelease() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    AtomicInteger closes = new AtomicInteger();
+    SharedResources.Loader<AutoCloseable> loader = () -> {
+      loads.incrementAndGet();
+      return closes::incrementAndGet;
+    };
+
+    AutoCloseable first = SharedResources.acquire("testAcquireAndRelease", loader);
+    AutoCloseable second = SharedResources.acquire("testAcquireAndRelease", loader);
+    assertSame(first, second);
+    assertEquals(1, loads.get());
+    assertEquals(2, SharedResources.getRefCount("testAcquireAndRelease"));
+
+    assertFalse(SharedResources.release("testAcquireAndRelease"));
+    assertEquals(0, closes.get());
+    assertTrue(SharedResources.release("testAcquireAndRelease"));
+    assertEquals(1, closes.get());
+    assertEquals(0, SharedResources.getRefCount("testAcquireAndRelease"));
+
+    // releasing an unregistered key has no effect
+    assertFalse(SharedResources.release("testAcquireAndRelease"));
+
+    // once released, the resource is loaded again on the next acquire
+    assertNotSame(first, SharedResources.acquire("testAcquireAndRelease", loader));
+    assertEquals(2, loads.get());
+    assertTrue(SharedResources.release("testAcquireAndRelease"));
+  }
+
+  @Test
+  public void testLoadFailure() {
+    StageException e = assertThrows(StageException.class, () -> SharedResources.acquire("testLoadFailure", () -> {
+      throw new IllegalStateException("Expected");
+    }));
+    assertTrue(e.getCause() instanceof IllegalStateException);
+    assertEquals(0, SharedResources.getRefCount("testLoadFailure"));
+
+    assertThrows(StageException.class, () -> SharedResources.acquire("testLoadFailure", () -> null));
+    assertEquals(0, SharedResources.getRefCount("testLoadFailure"));
+  }
+
+  @Test
+  public void testConcurrentAcquire() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    List<Object> results = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          Object resource = SharedResources.acquire("testConcurrentAcquire", () -> {
+            loads.incrementAndGet();
+            Thread.sleep(50);
+            return new Object();
+          });
+          synchronized (results) {
+            results.add(resource);
+          }
+        } catch (StageException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, loads.get());
+    assertEquals(8, results.size());
+    assertTrue(results.stream().allMatch(r -> r == results.get(0)));
+    assertEquals(8, SharedResources.getRefCount("testConcurrentAcquire"));
+
+    for (int i = 0; i < 7; i++) {
+      assertFalse(SharedResources.release("testConcurrentAcquire"));
+    }
+    assertTrue(SharedResources.release("testConcurrentAcquire"));
+  }
+
+  @Test
+  public void testStagesShareResource() throws Exception {
+    String key = SharedResourceStage.class.getName() + ":resource";
+    Stage stage1 = new SharedResourceStage(ConfigFactory.empty());
+    Stage stage2 = new SharedResourceStage(ConfigFactory.empty());
+    stage1.start();
+    stage2.start();
+    assertEquals(2, SharedResources.getRefCount(key));
+
+    // starting a stage again does not take a second reference
+    stage1.start();
+    assertEquals(2, SharedResources.getRefCount(key));
+
+    Document doc1 = Document.create("doc1");
+    Document doc2 = Document.create("doc2");
+    stage1.processDocument(doc1);
+    stage2.processDocument(doc2);
+    assertEquals(doc1.getString("resource"), doc2.getString("resource"));
+
+    // resources still held when the Pipeline stops a stage are released automatically
+    stage1.stop();
+    stage1.releaseSharedResources();
+    assertEquals(1, SharedResources.getRefCount(key));
+    stage2.releaseSharedResources();
+    assertEquals(0, SharedResources.getRefCount(key));
+  }
+
+  /**
+   * Sets a "resource" field to the identity of a shared Object.
+   */
+  public static class SharedResourceStage extends Stage {
+
+    private Object resource;
+
+    public SharedResourceStage(Config config) {
+      super(config);
+    }
+
+    @Override
+    public void start() throws StageException {
+      resource = acquireSharedResource("resource", Object::new);
+    }
+
+    @Override
+    public Iterator<Document> processDocument(Document doc) throws StageException {
+      doc.setField("resource", System.identityHashCode(resource));
+      return null;
+    }
+  }
+}
@@ -134,4 +134,45 @@ public class SingleBatchTest {
     assertEquals(100, batch.getCapacity());
   }
 
+  /**
+   * Test that a batch is flushed before its estimated size would exceed the policy's byte limit, and that a document
+   * larger than the limit is sent on its own.
+   */
+  @Test
+  public void testByteLimit() {
+    Document small = Document.create("small");
+    small.setField("text", "x".repeat(100));
+    long smallBytes = BatchPolicy.estimateBytes(small);
+    Document large = Document.create("large");
+    large.setField("text", "x".repeat(1000));
+
+    SingleBatch batch = new SingleBatch(100000, new BatchPolicy(100, 1, smallBytes * 2, false, 1000, null));
+    assertTrue(batch.add(small).isEmpty());
+    assertTrue(batch.add(Document.create("tiny")).isEmpty());
+
+    List<Document> docs = batch.add(large);
+    assertEquals(2, docs.size());
+    assertEquals("small", docs.get(0).getId());
+
+    docs = batch.add(Document.create("tiny2"));
+    assertEquals(1, docs.size());
+    assertEquals("large", docs.get(0).getId());
+    assertEquals(1, batch.flush().size());
+  }
+
+  /**
+   * Test that a batch sharing an adaptive policy is flushed at the policy's current limit.
+   */
+  @Test
+  public void testAdaptiveLimit() {
+    BatchPolicy policy = new BatchPolicy(4, 1, 0, true, 1000, null);
+    SingleBatch batch = new SingleBatch(100000, policy);
+    assertEquals(4, batch.getCapacity());
+
+    policy.recordFailed();
+    assertEquals(2, policy.getLimit());
+    assertTrue(batch.add(Document.create("doc1")).isEmpty());
+    assertTrue(batch.add(Document.create("doc2")).isEmpty());
+    assertEquals(2, batch.add(Document.create("doc3")).size());
+  }
 }
@@ -0,0 +1,90 @@
+package com.kmwllc.lucille.core;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class StagedPipelineTest {
+
+  @Test
+  public void testSegmentsRunOnSeparateThreads() throws Exception {
+    Config config = ConfigFactory.load("StagedPipelineTest/config.conf");
+    assertTrue(StagedPipeline.isStaged(config, "pipeline1"));
+
+    StagedPipeline pipeline = new StagedPipeline(config, "pipeline1", "StagedPipelineTest");
+    try {
+      List<CompletableFuture<List<Document>>> futures = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        futures.add(pipeline.submit(Document.create("doc" + i)));
+      }
+
+      for (int i = 0; i < 10; i++) {
+        List<Document> results = futures.get(i).get();
+
+        // children precede the parent, as with Pipeline.processDocument()
+        assertEquals(List.of("doc" + i + "_child1", "doc" + i + "_child2", "doc" + i),
+            results.stream().map(Document::getId).collect(Collectors.toList()));
+
+        Document doc = results.get(2);
+        assertTrue(doc.getString("thread_first").startsWith("Lucille-Segment-first-"));
+        assertTrue(doc.getString("thread_second").startsWith("Lucille-Segment-second-"));
+      }
+    } finally {
+      pipeline.stop();
+    }
+  }
+
+  @Test
+  public void testStageFailureCompletesExceptionally() throws Exception {
+    Config config = ConfigFactory.load("StagedPipelineTest/config.conf");
+    StagedPipeline pipeline = new StagedPipeline(config, "pipeline1", "StagedPipelineTest");
+    try {
+      Document doc = Document.create("doc1");
+      doc.setField("fail", true);
+      CompletableFuture<List<Document>> future = pipeline.submit(doc);
+      assertThrows(ExecutionException.class, future::get);
+
+      // a failure does not prevent later documents from being processed
+      assertEquals(3, pipeline.submit(Document.create("doc2")).get().size());
+    } finally {
+      pipeline.stop();
+    }
+  }
+
+  @Test
+  public void testUnknownSegmentStage() {
+    Config config = ConfigFactory.load("StagedPipelineTest/unknownStage.conf");
+    assertThrows(PipelineException.class, () -> new StagedPipeline(config, "pipeline1", "StagedPipelineTest"));
+  }
+
+  /**
+   * Records the name of the thread it runs on, and fails on documents that have a "fail" field.
+   */
+  public static class ThreadNameStage extends Stage {
+
+    public ThreadNameStage(Config config) {
+      super(config);
+    }
+
+    @Override
+    public Iterator<Document> processDocument(Document doc) throws StageException {
+      if (doc.has("fail")) {
+        throw new StageException("Expected");
+      }
+      doc.setField("thread_" + getName(), Thread.currentThread().getName());
+      return null;
+    }
+  }
+}
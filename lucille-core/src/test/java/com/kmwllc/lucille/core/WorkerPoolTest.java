@@ -13,6 +13,7 @@ import static com.kmwllc.lucille.util.ThreadNameUtils.areLucilleThreadsRunning;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -62,6 +63,102 @@ public class WorkerPoolTest {
     verify(messenger, times(1)).close();
   }
 
+  @Test
+  public void testGetScaleStep() {
+    // grow while more docs are waiting than there are workers
+    assertEquals(1, WorkerPool.getScaleStep(2, 1, 4, 10, 0, 0.5, 0.9, 0, 3));
+    assertEquals(0, WorkerPool.getScaleStep(2, 1, 4, 2, 0, 0.5, 0.9, 0, 3));
+    assertEquals(0, WorkerPool.getScaleStep(4, 1, 4, 10, 4, 0.5, 0.9, 0, 3));
+
+    // shrink when nothing is waiting or the CPU is saturated, but never below the minimum
+    assertEquals(-1, WorkerPool.getScaleStep(2, 1, 4, 0, 0, 0.5, 0.9, 3, 3));
+    assertEquals(-1, WorkerPool.getScaleStep(2, 1, 4, 10, 2, 0.95, 0.9, 3, 3));
+    assertEquals(0, WorkerPool.getScaleStep(1, 1, 4, 0, 0, 0.95, 0.9, 3, 3));
+
+    // shrink only once the pool has looked idle or saturated for scaleDownChecks checks in a row, and do not grow
+    // in the meantime
+    assertEquals(0, WorkerPool.getScaleStep(2, 1, 4, 0, 0, 0.5, 0.9, 1, 3));
+    assertEquals(0, WorkerPool.getScaleStep(2, 1, 4, 0, 0, 0.5, 0.9, 2, 3));
+    assertEquals(0, WorkerPool.getScaleStep(2, 1, 4, 10, 2, 0.95, 0.9, 1, 3));
+    assertTrue(WorkerPool.isShrinkSignal(0, 0.5, 0.9));
+    assertTrue(WorkerPool.isShrinkSignal(10, 0.95, 0.9));
+    assertFalse(WorkerPool.isShrinkSignal(10, 0.5, 0.9));
+
+    // without a queue depth, grow only when every worker is busy
+    assertEquals(1, WorkerPool.getScaleStep(2, 1, 4, -1, 2, -1, 0.9, 0, 3));
+    assertEquals(0, WorkerPool.getScaleStep(2, 1, 4, -1, 1, -1, 0.9, 0, 3));
+  }
+
+  @Test
+  public void testAdaptivePool() throws Exception {
+    TestMessenger messenger = new TestMessenger();
+    WorkerMessengerFactory factory = WorkerMessengerFactory.getConstantFactory(messenger);
+    WorkerPool pool = new WorkerPool(ConfigFactory.load("WorkerPoolTest/adaptive.conf"),
+        "pipeline1", factory, "adaptive");
+    assertEquals(1, pool.getNumWorkers());
+
+    for (int i = 0; i < 200; i++) {
+      Document doc = Document.create("doc" + i);
+      doc.setField("delay", 50);
+      messenger.sendForProcessing(doc);
+    }
+
+    pool.start();
+    try {
+      // the backlog should cause the pool to grow to its maximum
+      long deadline = System.currentTimeMillis() + 10000;
+      while (pool.getCurrentNumWorkers() < 3 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(100);
+      }
+      assertEquals(3, pool.getCurrentNumWorkers());
+
+      // once the backlog is drained, the pool should shrink back to its minimum
+      deadline = System.currentTimeMillis() + 20000;
+      while (pool.getCurrentNumWorkers() > 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(100);
+      }
+      assertEquals(1, pool.getCurrentNumWorkers());
+      assertEquals(200, messenger.getDocsSentForIndexing().size());
+    } finally {
+      pool.stop();
+      pool.join();
+    }
+    assertFalse(areLucilleThreadsRunning());
+  }
+
+  /**
+   * Confirm that the Workers in a pool share one set of segment threads rather than each starting their own.
+   */
+  @Test
+  public void testWorkersShareStagedPipeline() throws Exception {
+    TestMessenger messenger = new TestMessenger();
+    WorkerMessengerFactory factory = WorkerMessengerFactory.getConstantFactory(messenger);
+    WorkerPool pool = new WorkerPool(ConfigFactory.load("WorkerPoolTest/staged.conf"), "pipeline1", factory, "staged");
+    assertEquals(3, pool.getNumWorkers());
+
+    for (int i = 0; i < 10; i++) {
+      messenger.sendForProcessing(Document.create("doc" + i));
+    }
+
+    pool.start();
+    try {
+      // one thread for the initial segment plus four for the second, regardless of the number of Workers
+      assertEquals(5, pool.getNumSegmentThreads());
+      assertEquals(5, Thread.getAllStackTraces().keySet().stream()
+          .filter(t -> t.getName().startsWith("Lucille-Segment-pooled")).count());
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (messenger.getDocsSentForIndexing().size() < 10 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(100);
+      }
+      assertEquals(10, messenger.getDocsSentForIndexing().size());
+    } finally {
+      pool.stop();
+      pool.join();
+    }
+    assertFalse(areLucilleThreadsRunning());
+  }
+
   @Test
   public void testThreadCleanupUponEncounteringConfigProblem() throws Exception {
 
@@ -2,14 +2,27 @@ package com.kmwllc.lucille.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.TopicPartition;
 import org.junit.Test;
 import org.mockito.MockedConstruction;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kmwllc.lucille.message.KafkaUtils;
+import com.kmwllc.lucille.message.KafkaWorkerMessenger;
 import com.kmwllc.lucille.message.WorkerMessenger;
 import com.kmwllc.lucille.message.WorkerMessengerFactory;
 import com.typesafe.config.Config;
@@ -84,4 +97,72 @@ public class WorkerTest {
       assertEquals(args.get(pool).get(3), "foo2");
     }
   }
+
+  /**
+   * Confirm that when a send for indexing fails asynchronously, the Worker rewinds its consumer and processes the
+   * uncommitted document again, rather than shutting down.
+   */
+  @Test
+  public void testWorkerContinuesAfterFailedSend() throws Exception {
+    Config config = ConfigFactory.load("WorkerPoolTest/onePipeline.conf");
+    ObjectMapper mapper = new ObjectMapper();
+    TopicPartition partition = new TopicPartition("source", 0);
+    AtomicReference<Worker> worker = new AtomicReference<>();
+    List<Callback> callbacks = new ArrayList<>();
+
+    try (MockedStatic<KafkaUtils> kafkaUtils = Mockito.mockStatic(KafkaUtils.class)) {
+      KafkaProducer<String, Document> mockProducer = (KafkaProducer<String, Document>) Mockito.mock(KafkaProducer.class);
+      KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentProducer(config, "pipeline1")).thenReturn(mockProducer);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentConsumer(Mockito.eq(config), Mockito.anyString()))
+          .thenReturn(mockConsumer);
+      kafkaUtils.when(() -> KafkaUtils.getDestTopicName("pipeline1")).thenReturn("pipeline1_dest");
+      Mockito.when(mockConsumer.assignment()).thenReturn(Set.of(partition));
+
+      // the producer acknowledges the third send, for the document processed again, as soon as it is made
+      Mockito.when(mockProducer.send(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+        Callback callback = invocation.getArgument(1);
+        callbacks.add(callback);
+        if (callbacks.size() == 3) {
+          callback.onCompletion(null, null);
+        }
+        return null;
+      });
+
+      // doc1 is polled, and then doc2 once doc1 has been acknowledged; doc2 is polled again after its send fails
+      Mockito.when(mockConsumer.poll(Mockito.any(Duration.class)))
+          .thenReturn(records(mapper, partition, 5, "doc1"))
+          .thenAnswer(invocation -> {
+            callbacks.get(0).onCompletion(null, null);
+            return records(mapper, partition, 6, "doc2");
+          })
+          .thenReturn(records(mapper, partition, 6, "doc2"))
+          .thenReturn(ConsumerRecords.empty());
+
+      // doc2's send fails once doc1 has been committed; the Worker stops once doc2 has been committed
+      Mockito.doAnswer(invocation -> {
+        Map<TopicPartition, OffsetAndMetadata> offsets = invocation.getArgument(0);
+        if (offsets.get(partition).offset() == 6) {
+          callbacks.get(1).onCompletion(null, new RuntimeException("broker unavailable"));
+        } else {
+          worker.get().terminate();
+        }
+        return null;
+      }).when(mockConsumer).commitAsync(Mockito.anyMap(), Mockito.any());
+
+      worker.set(new Worker(config, new KafkaWorkerMessenger(config, "pipeline1"), "pipeline1", "WorkerTest"));
+      worker.get().run();
+
+      Mockito.verify(mockConsumer).seek(partition, 6);
+      Mockito.verify(mockProducer, Mockito.times(3)).send(Mockito.any(), Mockito.any());
+      Mockito.verify(mockConsumer).commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(6))), Mockito.any());
+      Mockito.verify(mockConsumer).commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(7))), Mockito.any());
+    }
+  }
+
+  private static ConsumerRecords<String, KafkaDocument> records(ObjectMapper mapper, TopicPartition partition,
+      long offset, String id) throws DocumentException {
+    return new ConsumerRecords<>(Map.of(partition, List.of(new ConsumerRecord<>(partition.topic(),
+        partition.partition(), offset, id, new KafkaDocument(mapper.createObjectNode().put("id", id))))));
+  }
 }
@@ -0,0 +1,94 @@
+package com.kmwllc.lucille.indexer;
+
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kmwllc.lucille.core.Document;
+import jakarta.json.stream.JsonGenerator;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class BulkDocumentTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void testSerializesFilteredFields() throws Exception {
+    Document doc = Document.create("doc1");
+    doc.setField("field1", "value1");
+    doc.setField("ignored", "value2");
+    doc.addToField("multi", 1);
+    doc.addToField("multi", 2);
+    doc.setField("json", MAPPER.readTree("{\"a\":[1,2]}"));
+    doc.addChild(Document.create("child"));
+
+    BulkDocument bulkDoc = new BulkDocument(doc, List.of("ignored"), "override");
+
+    JsonNode expected = MAPPER.readTree(
+        "{\"id\":\"override\",\"field1\":\"value1\",\"multi\":[1,2],\"json\":{\"a\":[1,2]}}");
+    assertEquals(expected, MAPPER.readTree(MAPPER.writeValueAsString(bulkDoc)));
+  }
+
+  @Test
+  public void testIdLeftOut() throws Exception {
+    Document doc = Document.create("doc1");
+    doc.setField("field1", "value1");
+
+    BulkDocument bulkDoc = new BulkDocument(doc, null, null);
+
+    assertEquals(MAPPER.readTree("{\"field1\":\"value1\"}"), MAPPER.readTree(MAPPER.writeValueAsString(bulkDoc)));
+    assertFalse(bulkDoc.containsKey(Document.ID_FIELD));
+  }
+
+  /**
+   * Tests that serializing a BulkDocument, with Jackson directly or with the Elasticsearch client's mapper, writes the
+   * Document's fields without building its Map view or calling the Document's asMap().
+   */
+  @Test
+  public void testSerializesWithoutMapView() throws Exception {
+    Document doc = Mockito.spy(Document.create("doc1"));
+    doc.setField("field1", "value1");
+    doc.addToField("multi", 1);
+    doc.addToField("multi", 2);
+    Mockito.doThrow(new AssertionError("asMap() was called")).when(doc).asMap();
+
+    BulkDocument bulkDoc = new BulkDocument(doc, null, "doc1") {
+      @Override
+      public Set<Entry<String, Object>> entrySet() {
+        fail("the Map view was built");
+        return null;
+      }
+    };
+    JsonNode expected = MAPPER.readTree("{\"id\":\"doc1\",\"field1\":\"value1\",\"multi\":[1,2]}");
+
+    assertEquals(expected, MAPPER.readTree(MAPPER.writeValueAsString(bulkDoc)));
+
+    JacksonJsonpMapper jsonpMapper = new JacksonJsonpMapper();
+    StringWriter writer = new StringWriter();
+    try (JsonGenerator generator = jsonpMapper.jsonProvider().createGenerator(writer)) {
+      jsonpMapper.serialize(bulkDoc, generator);
+    }
+    assertEquals(expected, MAPPER.readTree(writer.toString()));
+  }
+
+  @Test
+  public void testMapViewMatchesAsMap() {
+    Document doc = Document.create("doc1");
+    doc.setField("field1", "value1");
+    doc.setField("long", 10000000000L);
+    doc.addToField("multi", "a");
+    doc.addToField("multi", "b");
+
+    Map<String, Object> expected = doc.asMap();
+    assertEquals(expected, new BulkDocument(doc, null, "doc1"));
+  }
+}
@@ -11,10 +11,17 @@ import org.junit.Test;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class CSVIndexerTest {
 
@@ -98,4 +105,89 @@ public class CSVIndexerTest {
     assertEquals("\"doc1\",\"123\",\"abc\"", lines.get(0));
     assertEquals("\"doc2\",\"456\",\"def\"", lines.get(1));
   }
+
+  @Test
+  public void testConcurrentSendThreads() throws Exception {
+    TestMessenger messenger = new TestMessenger();
+    Config config = ConfigFactory.parseMap(Map.of("indexer.sendThreads", 4, "indexer.maxInFlightBatches", 2))
+        .withFallback(ConfigFactory.load("CSVIndexerTest/config.conf"));
+
+    int numDocs = 50;
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = Document.create("doc" + i, "test_run");
+      doc.setField("f1", "value" + i);
+      doc.setField("f2", "abc");
+      messenger.sendForIndexing(doc);
+    }
+
+    CSVIndexer indexer = new CSVIndexer(config, messenger, false, "testing");
+    indexer.run(numDocs);
+
+    // every document is reported exactly once, whichever lane sent it
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(numDocs, events.size());
+    Set<String> ids = new HashSet<>();
+    for (Event event : events) {
+      assertEquals(Event.Type.FINISH, event.getType());
+      assertTrue(ids.add(event.getDocumentId()));
+    }
+
+    // lines written by different lanes are not interleaved
+    List<String> lines = Files.readAllLines(outputFile.toPath());
+    assertEquals(numDocs, lines.size());
+    for (int i = 0; i < numDocs; i++) {
+      assertTrue(lines.contains("\"doc" + i + "\",\"value" + i + "\",\"abc\""));
+    }
+  }
+
+  @Test
+  public void testBatchesCompletedInSubmissionOrder() throws Exception {
+    List<String> completed = new ArrayList<>();
+    TestMessenger messenger = new TestMessenger() {
+      @Override
+      public void batchComplete(List<Document> batch) throws Exception {
+        for (Document doc : batch) {
+          completed.add(doc.getId());
+        }
+        super.batchComplete(batch);
+      }
+    };
+    Config config = ConfigFactory.parseMap(Map.of("indexer.sendThreads", 2))
+        .withFallback(ConfigFactory.load("CSVIndexerTest/config.conf"));
+
+    // doc1 and doc3 go to one lane, doc2 and doc4 to the other; adding doc3 hands doc1's batch to its lane, then
+    // adding doc4 hands doc2's batch to the other lane
+    for (int i = 1; i <= 4; i++) {
+      messenger.sendForIndexing(Document.create("doc" + i, "test_run"));
+    }
+
+    // doc1's lane does not finish until doc2's lane has finished
+    CountDownLatch doc2Sent = new CountDownLatch(1);
+    CSVIndexer indexer = new CSVIndexer(config, messenger, false, "testing") {
+      @Override
+      protected void sendToIndex(List<Document> documents) throws Exception {
+        if (documents.get(0).getId().equals("doc1")) {
+          assertTrue(doc2Sent.await(10, TimeUnit.SECONDS));
+          Thread.sleep(200);
+        }
+        super.sendToIndex(documents);
+        if (documents.get(0).getId().equals("doc2")) {
+          doc2Sent.countDown();
+        }
+      }
+    };
+    // polls past the last document give the lanes time to finish
+    indexer.run(10);
+
+    // doc3 and doc4 are left in their batches until the final flush, which hands them to the lanes in lane order
+    assertEquals(4, completed.size());
+    assertEquals(List.of("doc1", "doc2"), completed.subList(0, 2));
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(4, events.size());
+    assertEquals("doc1", events.get(0).getDocumentId());
+    assertEquals("doc2", events.get(1).getDocumentId());
+    for (Event event : events) {
+      assertEquals(Event.Type.FINISH, event.getType());
+    }
+  }
 }
@@ -9,6 +9,8 @@ import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
 import co.elastic.clients.elasticsearch.core.bulk.IndexOperation;
 import co.elastic.clients.elasticsearch._types.VersionType;
 import co.elastic.clients.transport.endpoints.BooleanResponse;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kmwllc.lucille.core.Document;
@@ -16,11 +18,14 @@ import com.kmwllc.lucille.core.Event;
 import com.kmwllc.lucille.core.Event.Type;
 import com.kmwllc.lucille.core.IndexerException;
 import com.kmwllc.lucille.core.KafkaDocument;
+import com.kmwllc.lucille.core.PartialIndexingException;
 import com.kmwllc.lucille.message.IndexerMessenger;
 import com.kmwllc.lucille.message.TestMessenger;
+import com.kmwllc.lucille.util.LogUtils;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import java.util.Arrays;
+import java.util.Collections;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.junit.Assert;
 import org.junit.Before;
@@ -32,8 +37,10 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.times;
@@ -54,8 +61,16 @@ public class ElasticsearchIndexerTest {
     // make first call to validateConnection succeed but subsequent calls to fail
     Mockito.when(mockClient.ping()).thenReturn(new BooleanResponse(true), new BooleanResponse(false));
 
+    // answer each bulk request with a successful item for each of its operations
     BulkResponse mockResponse = Mockito.mock(BulkResponse.class);
-    Mockito.when(mockClient.bulk(any(BulkRequest.class))).thenReturn(mockResponse);
+    BulkResponseItem mockItem = Mockito.mock(BulkResponseItem.class);
+    Mockito.when(mockItem.status()).thenReturn(200);
+    AtomicInteger numOperations = new AtomicInteger();
+    Mockito.when(mockClient.bulk(any(BulkRequest.class))).thenAnswer(invocation -> {
+      numOperations.set(((BulkRequest) invocation.getArgument(0)).operations().size());
+      return mockResponse;
+    });
+    Mockito.when(mockResponse.items()).thenAnswer(invocation -> Collections.nCopies(numOperations.get(), mockItem));
   }
 
   /**
@@ -390,12 +405,16 @@ public class ElasticsearchIndexerTest {
     ErrorCause mockError = new ErrorCause.Builder().reason("mock reason").type("mock-type").build();
     Mockito.when(mockItemBuilder.build()).thenReturn(mockItemError);
     Mockito.when(mockItemError.error()).thenReturn(mockError);
+    Mockito.when(mockItemError.status()).thenReturn(400);
+    Mockito.when(mockItemNoError.status()).thenReturn(200);
 
     List<BulkResponseItem> bulkResponseItems = Arrays.asList(mockItemNoError, mockItemError, mockItemNoError);
     Mockito.when(mockResponse.items()).thenReturn(bulkResponseItems);
 
     TestMessenger messenger = new TestMessenger();
-    Config config = ConfigFactory.load("ElasticsearchIndexerTest/config.conf");
+    // send the three documents as one batch
+    Config config = ConfigFactory.parseMap(Map.of("indexer.batchSize", 3))
+        .withFallback(ConfigFactory.load("ElasticsearchIndexerTest/config.conf"));
 
     Document doc = Document.create("doc1", "test_run");
     Document doc2 = Document.create("doc2", "test_run");
@@ -408,17 +427,142 @@ public class ElasticsearchIndexerTest {
 
     indexer.run(3);
 
-    IndexerException exc = assertThrows(IndexerException.class, () -> indexer.sendToIndex(Arrays.asList(doc, doc2, doc3)));
-    assertEquals("mock reason", exc.getMessage());
+    PartialIndexingException exc =
+        assertThrows(PartialIndexingException.class, () -> indexer.sendToIndex(Arrays.asList(doc, doc2, doc3)));
+    assertEquals("Elasticsearch rejected 1 of 3 documents: mock reason", exc.getMessage());
+    assertEquals("mock reason", exc.getFailure(doc2));
 
+    // only the document whose item failed is reported as failed
     List<Event> events = messenger.getSentEvents();
     assertEquals(3, events.size());
-    for (int i = 1; i <= events.size(); i++) {
-      Assert.assertEquals("doc" + i, events.get(i - 1).getDocumentId());
-      Assert.assertEquals(Type.FAIL, events.get(i - 1).getType());
+    assertEquals("doc2", events.get(0).getDocumentId());
+    assertEquals(Type.FAIL, events.get(0).getType());
+    assertEquals("doc1", events.get(1).getDocumentId());
+    assertEquals(Type.FINISH, events.get(1).getType());
+    assertEquals("doc3", events.get(2).getDocumentId());
+    assertEquals(Type.FINISH, events.get(2).getType());
+  }
+
+  @Test
+  public void testBulkResponseRetry() throws Exception {
+    ElasticsearchClient mockClient2 = Mockito.mock(ElasticsearchClient.class);
+    BulkResponse rejectedResponse = Mockito.mock(BulkResponse.class);
+    BulkResponse retriedResponse = Mockito.mock(BulkResponse.class);
+    Mockito.when(mockClient2.bulk(any(BulkRequest.class))).thenReturn(rejectedResponse, retriedResponse);
+
+    // the second item is rejected under load, then accepted when it is resubmitted
+    BulkResponseItem mockItemNoError = Mockito.mock(BulkResponseItem.class);
+    BulkResponseItem mockItemRejected = Mockito.mock(BulkResponseItem.class);
+    ErrorCause mockError = new ErrorCause.Builder().reason("rejected execution").type("rejected_execution_exception").build();
+    Mockito.when(mockItemRejected.status()).thenReturn(429);
+    Mockito.when(mockItemNoError.status()).thenReturn(200);
+    Mockito.when(mockItemRejected.error()).thenReturn(mockError);
+    Mockito.when(rejectedResponse.items()).thenReturn(Arrays.asList(mockItemNoError, mockItemRejected, mockItemNoError));
+    Mockito.when(retriedResponse.items()).thenReturn(List.of(mockItemNoError));
+
+    TestMessenger messenger = new TestMessenger();
+    Config config = ConfigFactory.parseMap(Map.of("indexer.batchSize", 3, "indexer.adaptiveBatchSize", true,
+        "elasticsearch.initialRetryDelay", 1))
+        .withFallback(ConfigFactory.load("ElasticsearchIndexerTest/config.conf"));
+
+    ElasticsearchIndexer indexer = new ElasticsearchIndexer(config, messenger, mockClient2, "testing");
+    messenger.sendForIndexing(Document.create("doc1", "test_run"));
+    messenger.sendForIndexing(Document.create("doc2", "test_run"));
+    messenger.sendForIndexing(Document.create("doc3", "test_run"));
+    indexer.run(3);
+
+    ArgumentCaptor<BulkRequest> captor = ArgumentCaptor.forClass(BulkRequest.class);
+    verify(mockClient2, times(2)).bulk(captor.capture());
+    List<BulkOperation> resubmitted = captor.getAllValues().get(1).operations();
+    assertEquals(1, resubmitted.size());
+    assertEquals("doc2", resubmitted.get(0).index().id());
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(3, events.size());
+    for (Event event : events) {
+      assertEquals(Type.FINISH, event.getType());
     }
+
+    // the rejection under load shrinks the adaptive batch size, though the item was accepted on the retry
+    Gauge<?> batchLimit = SharedMetricRegistries.getOrCreate(LogUtils.METRICS_REG).getGauges()
+        .get("testing.indexer.batchLimit");
+    assertEquals(1, batchLimit.getValue());
   }
 
+  @Test
+  public void testBulkResponseErrorWithoutReason() throws Exception {
+    ElasticsearchClient mockClient2 = Mockito.mock(ElasticsearchClient.class);
+    BulkResponse mockResponse = Mockito.mock(BulkResponse.class);
+    Mockito.when(mockClient2.bulk(any(BulkRequest.class))).thenReturn(mockResponse);
+
+    // the first item has an error that gives no reason, the second has no error but a failing status
+    BulkResponseItem mockItemError = Mockito.mock(BulkResponseItem.class);
+    BulkResponseItem mockItemFailedStatus = Mockito.mock(BulkResponseItem.class);
+    ErrorCause mockError = new ErrorCause.Builder().type("mapper_parsing_exception").build();
+    Mockito.when(mockItemError.status()).thenReturn(400);
+    Mockito.when(mockItemError.error()).thenReturn(mockError);
+    Mockito.when(mockItemFailedStatus.status()).thenReturn(500);
+    Mockito.when(mockResponse.items()).thenReturn(Arrays.asList(mockItemError, mockItemFailedStatus));
+
+    TestMessenger messenger = new TestMessenger();
+    Config config = ConfigFactory.parseMap(Map.of("indexer.batchSize", 2))
+        .withFallback(ConfigFactory.load("ElasticsearchIndexerTest/config.conf"));
+
+    Document doc = Document.create("doc1", "test_run");
+    Document doc2 = Document.create("doc2", "test_run");
+
+    ElasticsearchIndexer indexer = new ElasticsearchIndexer(config, messenger, mockClient2, "testing");
+    messenger.sendForIndexing(doc);
+    messenger.sendForIndexing(doc2);
+    indexer.run(2);
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(2, events.size());
+    for (Event event : events) {
+      assertEquals(Type.FAIL, event.getType());
+    }
+
+    PartialIndexingException exc =
+        assertThrows(PartialIndexingException.class, () -> indexer.sendToIndex(Arrays.asList(doc, doc2)));
+    assertEquals("mapper_parsing_exception", exc.getFailure(doc));
+    assertEquals("bulk item failed with status 500", exc.getFailure(doc2));
+  }
+
+  @Test
+  public void testBulkResponseMissingItems() throws Exception {
+    ElasticsearchClient mockClient2 = Mockito.mock(ElasticsearchClient.class);
+    BulkResponse mockResponse = Mockito.mock(BulkResponse.class);
+    Mockito.when(mockClient2.bulk(any(BulkRequest.class))).thenReturn(mockResponse);
+
+    // the response has an item for only one of the two documents sent
+    BulkResponseItem mockItemNoError = Mockito.mock(BulkResponseItem.class);
+    Mockito.when(mockItemNoError.status()).thenReturn(200);
+    Mockito.when(mockResponse.items()).thenReturn(List.of(mockItemNoError));
+
+    TestMessenger messenger = new TestMessenger();
+    Config config = ConfigFactory.parseMap(Map.of("indexer.batchSize", 2))
+        .withFallback(ConfigFactory.load("ElasticsearchIndexerTest/config.conf"));
+
+    Document doc = Document.create("doc1", "test_run");
+    Document doc2 = Document.create("doc2", "test_run");
+
+    ElasticsearchIndexer indexer = new ElasticsearchIndexer(config, messenger, mockClient2, "testing");
+    messenger.sendForIndexing(doc);
+    messenger.sendForIndexing(doc2);
+    indexer.run(2);
+
+    // the items cannot be matched to the documents, so the whole batch fails
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(2, events.size());
+    for (Event event : events) {
+      assertEquals(Type.FAIL, event.getType());
+    }
+
+    IndexerException exc = assertThrows(IndexerException.class, () -> indexer.sendToIndex(Arrays.asList(doc, doc2)));
+    assertFalse(exc instanceof PartialIndexingException);
+  }
+
+
   /**
    * Tests that the indexer correctly ignores fields stated in the ignoreFields portion of the config file
    * Note that indexer would even ignore the "id" field if configured, removing the id field in the Lucille document.
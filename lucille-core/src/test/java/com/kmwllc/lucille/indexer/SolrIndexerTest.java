@@ -12,9 +12,11 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigValueFactory;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.impl.Http2SolrClient;
 import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.hamcrest.MatcherAssert;
 import org.junit.Test;
@@ -776,6 +778,26 @@ public class SolrIndexerTest {
         equalTo(events.get(0).getType()));
   }
 
+  @Test
+  public void testIndexerWithInvalidChildDoc() throws Exception {
+    Config config =
+        ConfigFactory.empty().withValue("indexer.batchSize", ConfigValueFactory.fromAnyRef(1));
+    TestMessenger messenger = new TestMessenger();
+
+    // the child has no id, so it is not a valid Document
+    Document doc = Document.createFromJson("{\"id\":\"doc1\",\".children\":[{\"field1\":\"val1\"}]}");
+
+    SolrClient solrClient = mock(SolrClient.class);
+    Indexer indexer = new SolrIndexer(config, messenger, solrClient, "");
+    messenger.sendForIndexing(doc);
+    indexer.run(1);
+
+    verify(solrClient, times(0)).add(any(Collection.class));
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(1, events.size());
+    assertEquals(Event.Type.FAIL, events.get(0).getType());
+  }
+
   @Test
   public void testIndexerWithNestedJsonMultivalued() throws Exception {
     Config config =
@@ -958,6 +980,252 @@ public class SolrIndexerTest {
     assertTrue(capturedDoc.containsKey("id"));
   }
 
+  /**
+   * Tests that field values reach Solr as the same Java types Document.asMap() would give them.
+   */
+  @Test
+  public void testFieldValueTypes() throws Exception {
+    Config config = ConfigFactory.empty();
+    TestMessenger messenger = new TestMessenger();
+
+    Document doc = Document.create("doc1", "test_run");
+    doc.setField("string", "a");
+    doc.setField("int", 1);
+    doc.setField("long", 10000000000L);
+    doc.setField("double", 1.5);
+    doc.setField("boolean", true);
+    doc.setField("bytes", new byte[] {1, 2});
+    doc.addToField("multi", 1);
+    doc.addToField("multi", 2);
+    doc.setField("json", new ObjectMapper().readTree("[[\"nested\"], {\"a\": 1}]"));
+    Document child = Document.create("child", "test_run");
+    child.setField("childField", 3L);
+    doc.addChild(child);
+
+    SolrClient solrClient = mock(SolrClient.class);
+    Indexer indexer = new SolrIndexer(config, messenger, solrClient, "");
+    messenger.sendForIndexing(doc);
+    indexer.run(1);
+
+    ArgumentCaptor<Collection<SolrInputDocument>> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(solrClient, times(1)).add(captor.capture());
+    SolrInputDocument solrDoc = captor.getValue().iterator().next();
+
+    assertEquals("a", solrDoc.getFieldValue("string"));
+    assertEquals(1, solrDoc.getFieldValue("int"));
+    assertEquals(10000000000L, solrDoc.getFieldValue("long"));
+    assertEquals(1.5, solrDoc.getFieldValue("double"));
+    assertEquals(true, solrDoc.getFieldValue("boolean"));
+    assertArrayEquals(new byte[] {1, 2}, (byte[]) solrDoc.getFieldValue("bytes"));
+    assertEquals(List.of(1, 2), solrDoc.getFieldValues("multi"));
+    assertEquals(List.of(List.of("nested"), Map.of("a", 1)), solrDoc.getFieldValues("json"));
+    assertFalse(solrDoc.containsKey(Document.CHILDREN_FIELD));
+
+    SolrInputDocument solrChild = solrDoc.getChildDocuments().get(0);
+    assertEquals("child", solrChild.getFieldValue("id"));
+    assertEquals(3L, solrChild.getFieldValue("childField"));
+  }
+
+  /**
+   * Tests that when solr.isolateFailures is enabled, a batch Solr rejects is split until the document Solr rejects is
+   * found, and that only that document is reported as failed.
+   */
+  @Test
+  public void testIsolateFailures() throws Exception {
+    Config config = ConfigFactory.empty()
+        .withValue("indexer.batchSize", ConfigValueFactory.fromAnyRef(5))
+        .withValue("solr.isolateFailures", ConfigValueFactory.fromAnyRef(true));
+    TestMessenger messenger = new TestMessenger();
+
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.add(anyCollection())).thenAnswer(invocation -> {
+      Collection<SolrInputDocument> docs = invocation.getArgument(0);
+      for (SolrInputDocument doc : docs) {
+        if ("bad".equals(doc.getFieldValue(Document.ID_FIELD))) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad field value");
+        }
+      }
+      return new UpdateResponse();
+    });
+
+    Indexer indexer = new SolrIndexer(config, messenger, solrClient, "");
+    for (String id : List.of("doc1", "doc2", "bad", "doc3", "doc4")) {
+      messenger.sendForIndexing(Document.create(id, "test_run"));
+    }
+    indexer.run(5);
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(5, events.size());
+    for (Event event : events) {
+      Event.Type expected = "bad".equals(event.getDocumentId()) ? Event.Type.FAIL : Event.Type.FINISH;
+      assertEquals(event.getDocumentId(), expected, event.getType());
+    }
+    // [doc1, doc2, bad, doc3, doc4] -> [doc1, doc2] [bad, doc3, doc4] -> [bad] [doc3, doc4]
+    verify(solrClient, times(5)).add(anyCollection());
+  }
+
+  /**
+   * Tests that when solr.isolateFailures is enabled, a document rejected with an exception that has no message is
+   * still reported as failed.
+   */
+  @Test
+  public void testIsolateFailureWithoutMessage() throws Exception {
+    Config config = ConfigFactory.empty()
+        .withValue("indexer.batchSize", ConfigValueFactory.fromAnyRef(2))
+        .withValue("solr.isolateFailures", ConfigValueFactory.fromAnyRef(true));
+    TestMessenger messenger = new TestMessenger();
+
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.add(anyCollection())).thenAnswer(invocation -> {
+      Collection<SolrInputDocument> docs = invocation.getArgument(0);
+      for (SolrInputDocument doc : docs) {
+        if ("bad".equals(doc.getFieldValue(Document.ID_FIELD))) {
+          throw new IllegalStateException();
+        }
+      }
+      return new UpdateResponse();
+    });
+
+    Indexer indexer = new SolrIndexer(config, messenger, solrClient, "");
+    messenger.sendForIndexing(Document.create("doc1", "test_run"));
+    messenger.sendForIndexing(Document.create("bad", "test_run"));
+    indexer.run(2);
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(2, events.size());
+    for (Event event : events) {
+      if ("bad".equals(event.getDocumentId())) {
+        assertEquals(Event.Type.FAIL, event.getType());
+        assertTrue(event.getMessage().contains("IllegalStateException"));
+      } else {
+        assertEquals(Event.Type.FINISH, event.getType());
+      }
+    }
+  }
+
+  /**
+   * Tests that when solr.isolateFailures is enabled, a batch that fails with a transient error is retried rather
+   * than split.
+   */
+  @Test
+  public void testRetryTransientFailure() throws Exception {
+    Config config = ConfigFactory.empty()
+        .withValue("indexer.batchSize", ConfigValueFactory.fromAnyRef(2))
+        .withValue("solr.isolateFailures", ConfigValueFactory.fromAnyRef(true))
+        .withValue("solr.retryBackoff", ConfigValueFactory.fromAnyRef(1));
+    TestMessenger messenger = new TestMessenger();
+
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.add(anyCollection()))
+        .thenThrow(new SolrServerException("connection refused"))
+        .thenThrow(new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "unavailable"))
+        .thenReturn(new UpdateResponse());
+
+    Indexer indexer = new SolrIndexer(config, messenger, solrClient, "");
+    messenger.sendForIndexing(Document.create("doc1", "test_run"));
+    messenger.sendForIndexing(Document.create("doc2", "test_run"));
+    indexer.run(2);
+
+    ArgumentCaptor<Collection<SolrInputDocument>> captor = ArgumentCaptor.forClass(Collection.class);
+    verify(solrClient, times(3)).add(captor.capture());
+    assertEquals(2, captor.getValue().size());
+    assertEquals(2, messenger.getSentEvents().size());
+    for (Event event : messenger.getSentEvents()) {
+      assertEquals(Event.Type.FINISH, event.getType());
+    }
+
+    // a transient error that outlasts the retries fails the whole batch
+    config = config.withValue("solr.maxRetries", ConfigValueFactory.fromAnyRef(1));
+    messenger = new TestMessenger();
+    solrClient = mock(SolrClient.class);
+    when(solrClient.add(anyCollection())).thenThrow(new SolrServerException("connection refused"));
+
+    indexer = new SolrIndexer(config, messenger, solrClient, "");
+    messenger.sendForIndexing(Document.create("doc1", "test_run"));
+    messenger.sendForIndexing(Document.create("doc2", "test_run"));
+    indexer.run(2);
+
+    verify(solrClient, times(2)).add(anyCollection());
+    assertEquals(2, messenger.getSentEvents().size());
+    for (Event event : messenger.getSentEvents()) {
+      assertEquals(Event.Type.FAIL, event.getType());
+    }
+  }
+
+  /**
+   * Tests that when part of a batch that is being split fails with a transient error that outlasts the retries, the
+   * documents already found to be rejected are still reported along with the documents in that part, and the rest of
+   * the batch is indexed.
+   */
+  @Test
+  public void testIsolateFailuresWithTransientFailure() throws Exception {
+    Config config = ConfigFactory.empty()
+        .withValue("indexer.batchSize", ConfigValueFactory.fromAnyRef(4))
+        .withValue("solr.isolateFailures", ConfigValueFactory.fromAnyRef(true))
+        .withValue("solr.maxRetries", ConfigValueFactory.fromAnyRef(1))
+        .withValue("solr.retryBackoff", ConfigValueFactory.fromAnyRef(1));
+    TestMessenger messenger = new TestMessenger();
+
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.add(anyCollection())).thenAnswer(invocation -> {
+      Collection<SolrInputDocument> docs = invocation.getArgument(0);
+      List<Object> ids = new ArrayList<>();
+      for (SolrInputDocument doc : docs) {
+        ids.add(doc.getFieldValue(Document.ID_FIELD));
+      }
+      if (ids.contains("bad")) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "bad field value");
+      }
+      if (ids.contains("doc3")) {
+        throw new SolrServerException("connection refused");
+      }
+      return new UpdateResponse();
+    });
+
+    Indexer indexer = new SolrIndexer(config, messenger, solrClient, "");
+    for (String id : List.of("bad", "doc2", "doc3", "doc4")) {
+      messenger.sendForIndexing(Document.create(id, "test_run"));
+    }
+    indexer.run(4);
+
+    List<Event> events = messenger.getSentEvents();
+    assertEquals(4, events.size());
+    for (Event event : events) {
+      switch (event.getDocumentId()) {
+        case "bad":
+          assertEquals(Event.Type.FAIL, event.getType());
+          assertTrue(event.getMessage().contains("bad field value"));
+          break;
+        case "doc2":
+          assertEquals(Event.Type.FINISH, event.getType());
+          break;
+        default:
+          assertEquals(event.getDocumentId(), Event.Type.FAIL, event.getType());
+          assertTrue(event.getMessage().contains("connection refused"));
+      }
+    }
+    // [bad, doc2, doc3, doc4] -> [bad, doc2] -> [bad] [doc2]; [doc3, doc4] twice, as it is retried once
+    verify(solrClient, times(6)).add(anyCollection());
+  }
+
+  /**
+   * Tests that the SolrIndexer treats the same statuses as transient as the bulk indexers do, so that a 500 is
+   * isolated rather than retried.
+   */
+  @Test
+  public void testTransientStatuses() {
+    for (SolrException.ErrorCode code : List.of(SolrException.ErrorCode.TOO_MANY_REQUESTS,
+        SolrException.ErrorCode.SERVICE_UNAVAILABLE)) {
+      assertTrue(code.toString(), SolrIndexer.isTransient(new SolrException(code, "transient")));
+    }
+    for (SolrException.ErrorCode code : List.of(SolrException.ErrorCode.BAD_REQUEST,
+        SolrException.ErrorCode.CONFLICT, SolrException.ErrorCode.SERVER_ERROR)) {
+      assertFalse(code.toString(), SolrIndexer.isTransient(new SolrException(code, "permanent")));
+    }
+    assertTrue(SolrIndexer.isTransient(new SolrServerException("connection refused")));
+    assertTrue(SolrIndexer.isTransient(new IOException("connection reset")));
+  }
+
   private static String getCapturedID(ArgumentCaptor<Collection<SolrInputDocument>> captor, int index, int arrIndex) {
     SolrInputDocument document = (SolrInputDocument) captor.getAllValues().get(index).toArray()[arrIndex];
     return (String) document.getFieldValue(Document.ID_FIELD);
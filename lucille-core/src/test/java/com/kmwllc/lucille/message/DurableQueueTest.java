@@ -0,0 +1,173 @@
+package com.kmwllc.lucille.message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class DurableQueueTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("DurableQueueTest");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(DurableQueue.Record record) {
+    return record == null ? null : new String(record.contents, StandardCharsets.UTF_8);
+  }
+
+  private long segmentCount() throws Exception {
+    try (Stream<Path> paths = Files.list(directory)) {
+      return paths.filter(p -> p.toString().endsWith(DurableQueue.SEGMENT_SUFFIX)).count();
+    }
+  }
+
+  @Test
+  public void testAppendAndPoll() throws Exception {
+    DurableQueue queue = new DurableQueue(directory, 1024, 10, false);
+    queue.append(bytes("a"));
+    queue.append(bytes("b"));
+    assertEquals(2, queue.size());
+
+    assertEquals("a", string(queue.poll(10)));
+    assertEquals("b", string(queue.poll(10)));
+    assertNull(queue.poll(10));
+    assertEquals(0, queue.size());
+    queue.close();
+  }
+
+  @Test
+  public void testUnacknowledgedRecordsReplayedOnReopen() throws Exception {
+    DurableQueue queue = new DurableQueue(directory, 1024, 10, false);
+    queue.append(bytes("a"));
+    queue.append(bytes("b"));
+    queue.append(bytes("c"));
+    DurableQueue.Record a = queue.poll(10);
+    DurableQueue.Record b = queue.poll(10);
+    queue.poll(10);
+    // b is acknowledged out of order, so the cursor can only pass a
+    queue.acknowledge(b.position);
+    queue.acknowledge(a.position);
+    queue.close();
+
+    queue = new DurableQueue(directory, 1024, 10, false);
+    assertEquals(1, queue.size());
+    assertEquals("c", string(queue.poll(10)));
+    queue.close();
+
+    // c was never acknowledged
+    queue = new DurableQueue(directory, 1024, 10, false);
+    List<String> unread = new ArrayList<>();
+    queue.forEachUnread(contents -> unread.add(new String(contents, StandardCharsets.UTF_8)));
+    assertEquals(List.of("c"), unread);
+    queue.close();
+  }
+
+  @Test
+  public void testSegmentsRolledAndDeleted() throws Exception {
+    // each record takes 8 bytes of header plus 10 bytes of contents, so three fit in a segment
+    DurableQueue queue = new DurableQueue(directory, 60, 100, false);
+    for (int i = 0; i < 10; i++) {
+      queue.append(bytes(String.format("record%04d", i)));
+    }
+    assertEquals(4, segmentCount());
+
+    for (int i = 0; i < 7; i++) {
+      DurableQueue.Record record = queue.poll(10);
+      assertEquals(String.format("record%04d", i), string(record));
+      queue.acknowledge(record.position);
+    }
+    // the first two segments have been handled entirely
+    assertEquals(2, segmentCount());
+    queue.close();
+
+    queue = new DurableQueue(directory, 60, 100, false);
+    assertEquals(3, queue.size());
+    assertEquals("record0007", string(queue.poll(10)));
+    queue.close();
+  }
+
+  @Test
+  public void testRecordLargerThanSegment() throws Exception {
+    DurableQueue queue = new DurableQueue(directory, 32, 10, false);
+    String large = "x".repeat(100);
+    queue.append(bytes("small"));
+    queue.append(bytes(large));
+    queue.append(bytes("small2"));
+    queue.close();
+
+    queue = new DurableQueue(directory, 32, 10, false);
+    assertEquals("small", string(queue.poll(10)));
+    assertEquals(large, string(queue.poll(10)));
+    assertEquals("small2", string(queue.poll(10)));
+    queue.close();
+  }
+
+  @Test
+  public void testTornRecordDiscarded() throws Exception {
+    DurableQueue queue = new DurableQueue(directory, 1024, 10, false);
+    queue.append(bytes("complete"));
+    long torn = queue.append(bytes("torn"));
+    queue.close();
+
+    // corrupt the contents of the second record, as if the write had been interrupted
+    Path segment = directory.resolve(String.format("%020d%s", 0, DurableQueue.SEGMENT_SUFFIX));
+    byte[] data = Files.readAllBytes(segment);
+    data[(int) torn + DurableQueue.HEADER_BYTES] = 'X';
+    Files.write(segment, data);
+
+    queue = new DurableQueue(directory, 1024, 10, false);
+    assertEquals(1, queue.size());
+    assertEquals("complete", string(queue.poll(10)));
+    // new records are written where the torn one was
+    queue.append(bytes("next"));
+    assertEquals("next", string(queue.poll(10)));
+    queue.close();
+  }
+
+  @Test
+  public void testAppendBlocksWhenFull() throws Exception {
+    DurableQueue queue = new DurableQueue(directory, 1024, 1, false);
+    queue.append(bytes("a"));
+    Thread appender = new Thread(() -> {
+      try {
+        queue.append(bytes("b"));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    appender.start();
+    appender.join(100);
+    assertTrue(appender.isAlive());
+
+    assertEquals("a", string(queue.poll(10)));
+    appender.join(1000);
+    assertFalse(appender.isAlive());
+    assertEquals("b", string(queue.poll(10)));
+    queue.close();
+  }
+}
@@ -0,0 +1,63 @@
+package com.kmwllc.lucille.message;
+
+import com.kmwllc.lucille.core.KafkaDocument;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+public class HybridOffsetTrackerTest {
+
+  private static final TopicPartition P0 = new TopicPartition("topic", 0);
+  private static final TopicPartition P1 = new TopicPartition("topic", 1);
+
+  private static KafkaDocument doc(TopicPartition partition, long offset) {
+    KafkaDocument doc = new KafkaDocument(new byte[0], null, "doc" + offset, null, false);
+    doc.setKafkaMetadata(new ConsumerRecord<>(partition.topic(), partition.partition(), offset, null, null));
+    return doc;
+  }
+
+  @Test
+  public void testOffsetsRoutedToOwner() {
+    HybridOffsetTracker tracker = new HybridOffsetTracker();
+    Queue<HybridOffsetTracker.IndexedOffset> worker1 = new ConcurrentLinkedQueue<>();
+    Queue<HybridOffsetTracker.IndexedOffset> worker2 = new ConcurrentLinkedQueue<>();
+    tracker.assign(List.of(P0), worker1);
+    tracker.assign(List.of(P1), worker2);
+
+    tracker.indexed(doc(P1, 7));
+    tracker.indexed(doc(P0, 3));
+
+    assertEquals(1, worker1.size());
+    HybridOffsetTracker.IndexedOffset indexed = worker1.poll();
+    assertEquals(P0, indexed.partition);
+    assertEquals(3, indexed.offset);
+
+    assertEquals(1, worker2.size());
+    assertEquals(7, worker2.poll().offset);
+  }
+
+  @Test
+  public void testRevokedPartitionDiscarded() {
+    HybridOffsetTracker tracker = new HybridOffsetTracker();
+    Queue<HybridOffsetTracker.IndexedOffset> worker1 = new ConcurrentLinkedQueue<>();
+    Queue<HybridOffsetTracker.IndexedOffset> worker2 = new ConcurrentLinkedQueue<>();
+    tracker.assign(List.of(P0), worker1);
+
+    // the new owner may be assigned the partition before the previous owner's revocation is processed
+    tracker.assign(List.of(P0), worker2);
+    tracker.revoke(List.of(P0), worker1);
+    tracker.indexed(doc(P0, 1));
+    assertTrue(worker1.isEmpty());
+    assertEquals(1, worker2.size());
+
+    tracker.revoke(List.of(P0), worker2);
+    tracker.indexed(doc(P0, 2));
+    assertEquals(1, worker2.size());
+  }
+}
@@ -1,10 +1,22 @@
 package com.kmwllc.lucille.message;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -17,9 +29,12 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import com.kmwllc.lucille.core.Document;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class KafkaMessengerTest {
 
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
   @Test
   public void testSendFailed() throws Exception {
     Config config = ConfigFactory.load("WorkerPoolTest/config.conf");
@@ -31,7 +46,7 @@ public class KafkaMessengerTest {
       KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
       randomUtils.when(() -> RandomStringUtils.randomAlphanumeric(8)).thenReturn("random");
       kafkaUtils.when(() -> {
-        KafkaUtils.createDocumentProducer(config);
+        KafkaUtils.createDocumentProducer(config, "foo");
       }).thenReturn(mockProducer);
       kafkaUtils.when(() -> {
         KafkaUtils.createDocumentConsumer(config, "com.kmwllc.lucille-worker-foo-random");
@@ -160,4 +175,229 @@ public class KafkaMessengerTest {
       assertEquals(doc.getRunId(), after.getRunId());
     }
   }
+
+  @Test
+  public void testOffsetsCommittedAfterSendAcknowledged() throws Exception {
+    Config config = ConfigFactory.load("WorkerPoolTest/config.conf");
+    try (MockedStatic<KafkaUtils> kafkaUtils = Mockito.mockStatic(KafkaUtils.class);
+        MockedStatic<RandomStringUtils> randomUtils = Mockito.mockStatic(RandomStringUtils.class)) {
+      KafkaProducer<String, Document> mockProducer = (KafkaProducer<String, Document>) Mockito.mock(KafkaProducer.class);
+      KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
+      randomUtils.when(() -> RandomStringUtils.randomAlphanumeric(8)).thenReturn("random");
+      kafkaUtils.when(() -> KafkaUtils.createDocumentProducer(config, "foo")).thenReturn(mockProducer);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentConsumer(config, "com.kmwllc.lucille-worker-foo-random"))
+          .thenReturn(mockConsumer);
+      kafkaUtils.when(() -> KafkaUtils.getDestTopicName("foo")).thenReturn("foo_dest");
+
+      // a single poll returns two records, which are handed out one at a time
+      TopicPartition partition = new TopicPartition("foo_source", 0);
+      List<ConsumerRecord<String, KafkaDocument>> records = List.of(
+          new ConsumerRecord<>("foo_source", 0, 5, "doc1", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1"))),
+          new ConsumerRecord<>("foo_source", 0, 6, "doc2", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc2"))));
+      Mockito.when(mockConsumer.poll(Mockito.any(Duration.class)))
+          .thenReturn(new ConsumerRecords<>(Map.of(partition, records)));
+
+      KafkaWorkerMessenger messenger = new KafkaWorkerMessenger(config, "foo");
+      Document doc1 = messenger.pollDocToProcess();
+      Document doc2 = messenger.pollDocToProcess();
+      assertEquals("doc1", doc1.getId());
+      assertEquals("doc2", doc2.getId());
+      Mockito.verify(mockConsumer, Mockito.times(1)).poll(Mockito.any(Duration.class));
+
+      messenger.sendForIndexing(doc1);
+      messenger.sendForIndexing(doc2);
+      ArgumentCaptor<Callback> callbacks = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer, Mockito.times(2)).send(Mockito.any(), callbacks.capture());
+      Mockito.verify(mockProducer, Mockito.never()).flush();
+
+      // nothing is committed while a send is unacknowledged
+      messenger.commitPendingDocOffsets();
+      callbacks.getAllValues().get(0).onCompletion(null, null);
+      messenger.commitPendingDocOffsets();
+      Mockito.verify(mockConsumer, Mockito.never()).commitAsync(Mockito.anyMap(), Mockito.any());
+
+      callbacks.getAllValues().get(1).onCompletion(null, null);
+      messenger.commitPendingDocOffsets();
+      Mockito.verify(mockConsumer, Mockito.times(1))
+          .commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(7))), Mockito.any());
+    }
+  }
+
+  @Test
+  public void testCommitDocOffsetsLeavesLaterDocsInFlight() throws Exception {
+    Config config = ConfigFactory.load("WorkerPoolTest/config.conf");
+    try (MockedStatic<KafkaUtils> kafkaUtils = Mockito.mockStatic(KafkaUtils.class);
+        MockedStatic<RandomStringUtils> randomUtils = Mockito.mockStatic(RandomStringUtils.class)) {
+      KafkaProducer<String, Document> mockProducer = (KafkaProducer<String, Document>) Mockito.mock(KafkaProducer.class);
+      KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
+      randomUtils.when(() -> RandomStringUtils.randomAlphanumeric(8)).thenReturn("random");
+      kafkaUtils.when(() -> KafkaUtils.createDocumentProducer(config, "foo")).thenReturn(mockProducer);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentConsumer(config, "com.kmwllc.lucille-worker-foo-random"))
+          .thenReturn(mockConsumer);
+      kafkaUtils.when(() -> KafkaUtils.getDestTopicName("foo")).thenReturn("foo_dest");
+
+      TopicPartition partition = new TopicPartition("foo_source", 0);
+      List<ConsumerRecord<String, KafkaDocument>> records = List.of(
+          new ConsumerRecord<>("foo_source", 0, 5, "doc1", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1"))),
+          new ConsumerRecord<>("foo_source", 0, 6, "doc2", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc2"))));
+      Mockito.when(mockConsumer.poll(Mockito.any(Duration.class)))
+          .thenReturn(new ConsumerRecords<>(Map.of(partition, records)));
+
+      KafkaWorkerMessenger messenger = new KafkaWorkerMessenger(config, "foo");
+      Document doc1 = messenger.pollDocToProcess();
+      Document doc2 = messenger.pollDocToProcess();
+
+      // doc1 completes while doc2 is still in flight; only doc1 is committed
+      messenger.sendForIndexing(doc1);
+      ArgumentCaptor<Callback> callbacks = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer, Mockito.times(1)).send(Mockito.any(), callbacks.capture());
+      callbacks.getValue().onCompletion(null, null);
+      assertTrue(messenger.commitDocOffsets(List.of(doc1)));
+      Mockito.verify(mockConsumer, Mockito.times(1))
+          .commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(6))), Mockito.any());
+
+      messenger.sendForIndexing(doc2);
+      callbacks = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer, Mockito.times(2)).send(Mockito.any(), callbacks.capture());
+      callbacks.getAllValues().get(1).onCompletion(null, null);
+      assertTrue(messenger.commitDocOffsets(List.of(doc2)));
+      Mockito.verify(mockConsumer, Mockito.times(1))
+          .commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(7))), Mockito.any());
+    }
+  }
+
+  @Test
+  public void testRevokedPartitionDroppedFromEpochs() throws Exception {
+    Config config = ConfigFactory.load("WorkerPoolTest/config.conf");
+    try (MockedStatic<KafkaUtils> kafkaUtils = Mockito.mockStatic(KafkaUtils.class);
+        MockedStatic<RandomStringUtils> randomUtils = Mockito.mockStatic(RandomStringUtils.class)) {
+      KafkaProducer<String, Document> mockProducer = (KafkaProducer<String, Document>) Mockito.mock(KafkaProducer.class);
+      KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
+      randomUtils.when(() -> RandomStringUtils.randomAlphanumeric(8)).thenReturn("random");
+      kafkaUtils.when(() -> KafkaUtils.createDocumentProducer(config, "foo")).thenReturn(mockProducer);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentConsumer(config, "com.kmwllc.lucille-worker-foo-random"))
+          .thenReturn(mockConsumer);
+      kafkaUtils.when(() -> KafkaUtils.getDestTopicName("foo")).thenReturn("foo_dest");
+
+      // the record at offset 5 is delivered again after its partition is revoked and assigned back
+      TopicPartition partition = new TopicPartition("foo_source", 0);
+      Mockito.when(mockConsumer.poll(Mockito.any(Duration.class)))
+          .thenReturn(new ConsumerRecords<>(Map.of(partition, List.of(new ConsumerRecord<>("foo_source", 0, 5, "doc1",
+              new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1")))))))
+          .thenReturn(new ConsumerRecords<>(Map.of(partition, List.of(new ConsumerRecord<>("foo_source", 0, 5, "doc1",
+              new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1")))))))
+          .thenReturn(ConsumerRecords.empty());
+
+      KafkaWorkerMessenger messenger = new KafkaWorkerMessenger(config, "foo");
+      ArgumentCaptor<ConsumerRebalanceListener> listener = ArgumentCaptor.forClass(ConsumerRebalanceListener.class);
+      Mockito.verify(mockConsumer).subscribe(Mockito.anyCollection(), listener.capture());
+
+      Document doc = messenger.pollDocToProcess();
+      messenger.sendForIndexing(doc);
+      messenger.commitPendingDocOffsets();
+      ArgumentCaptor<Callback> callbacks = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer).send(Mockito.any(), callbacks.capture());
+
+      listener.getValue().onPartitionsRevoked(List.of(partition));
+      listener.getValue().onPartitionsAssigned(List.of(partition));
+      Document redelivered = messenger.pollDocToProcess();
+      assertEquals("doc1", redelivered.getId());
+
+      // the send made before the revocation is acknowledged, but the redelivered document is not yet complete
+      callbacks.getValue().onCompletion(null, null);
+      assertNull(messenger.pollDocToProcess());
+      Mockito.verify(mockConsumer, Mockito.never()).commitAsync(Mockito.anyMap(), Mockito.any());
+
+      messenger.sendForIndexing(redelivered);
+      callbacks = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer, Mockito.times(2)).send(Mockito.any(), callbacks.capture());
+      callbacks.getAllValues().get(1).onCompletion(null, null);
+      messenger.commitPendingDocOffsets();
+      Mockito.verify(mockConsumer, Mockito.times(1))
+          .commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(6))), Mockito.any());
+    }
+  }
+
+  @Test
+  public void testFailedSendRewindsConsumer() throws Exception {
+    Config config = ConfigFactory.load("WorkerPoolTest/config.conf");
+    try (MockedStatic<KafkaUtils> kafkaUtils = Mockito.mockStatic(KafkaUtils.class);
+        MockedStatic<RandomStringUtils> randomUtils = Mockito.mockStatic(RandomStringUtils.class)) {
+      KafkaProducer<String, Document> mockProducer = (KafkaProducer<String, Document>) Mockito.mock(KafkaProducer.class);
+      KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
+      randomUtils.when(() -> RandomStringUtils.randomAlphanumeric(8)).thenReturn("random");
+      kafkaUtils.when(() -> KafkaUtils.createDocumentProducer(config, "foo")).thenReturn(mockProducer);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentConsumer(config, "com.kmwllc.lucille-worker-foo-random"))
+          .thenReturn(mockConsumer);
+      kafkaUtils.when(() -> KafkaUtils.getDestTopicName("foo")).thenReturn("foo_dest");
+
+      TopicPartition partition = new TopicPartition("foo_source", 0);
+      Mockito.when(mockConsumer.assignment()).thenReturn(Set.of(partition));
+      Mockito.when(mockConsumer.poll(Mockito.any(Duration.class))).thenReturn(new ConsumerRecords<>(Map.of(partition,
+          List.of(new ConsumerRecord<>("foo_source", 0, 5, "doc1",
+              new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1")))))));
+
+      KafkaWorkerMessenger messenger = new KafkaWorkerMessenger(config, "foo");
+      Document doc = messenger.pollDocToProcess();
+      messenger.sendForIndexing(doc);
+      ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer).send(Mockito.any(), callback.capture());
+      callback.getValue().onCompletion(null, new RuntimeException("broker unavailable"));
+
+      // the failure is not thrown to the Worker; the consumer is rewound so that the document is polled again
+      messenger.commitPendingDocOffsets();
+      Mockito.verify(mockConsumer).seek(partition, 5);
+      Mockito.verify(mockConsumer, Mockito.never()).commitAsync(Mockito.anyMap(), Mockito.any());
+      assertEquals("doc1", messenger.pollDocToProcess().getId());
+    }
+  }
+
+  @Test
+  public void testStaleDocCompletedAfterRewindIsIgnored() throws Exception {
+    Config config = ConfigFactory.load("WorkerPoolTest/config.conf");
+    try (MockedStatic<KafkaUtils> kafkaUtils = Mockito.mockStatic(KafkaUtils.class);
+        MockedStatic<RandomStringUtils> randomUtils = Mockito.mockStatic(RandomStringUtils.class)) {
+      KafkaProducer<String, Document> mockProducer = (KafkaProducer<String, Document>) Mockito.mock(KafkaProducer.class);
+      KafkaConsumer<String, KafkaDocument> mockConsumer = (KafkaConsumer<String, KafkaDocument>) Mockito.mock(KafkaConsumer.class);
+      randomUtils.when(() -> RandomStringUtils.randomAlphanumeric(8)).thenReturn("random");
+      kafkaUtils.when(() -> KafkaUtils.createDocumentProducer(config, "foo")).thenReturn(mockProducer);
+      kafkaUtils.when(() -> KafkaUtils.createDocumentConsumer(config, "com.kmwllc.lucille-worker-foo-random"))
+          .thenReturn(mockConsumer);
+      kafkaUtils.when(() -> KafkaUtils.getDestTopicName("foo")).thenReturn("foo_dest");
+
+      TopicPartition partition = new TopicPartition("foo_source", 0);
+      Mockito.when(mockConsumer.assignment()).thenReturn(Set.of(partition));
+      Mockito.when(mockConsumer.poll(Mockito.any(Duration.class)))
+          .thenReturn(new ConsumerRecords<>(Map.of(partition, List.of(
+              new ConsumerRecord<>("foo_source", 0, 5, "doc1", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1"))),
+              new ConsumerRecord<>("foo_source", 0, 6, "doc2", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc2")))))))
+          .thenReturn(new ConsumerRecords<>(Map.of(partition, List.of(
+              new ConsumerRecord<>("foo_source", 0, 5, "doc1", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc1"))),
+              new ConsumerRecord<>("foo_source", 0, 6, "doc2", new KafkaDocument(MAPPER.createObjectNode().put("id", "doc2")))))));
+
+      KafkaWorkerMessenger messenger = new KafkaWorkerMessenger(config, "foo");
+      Document doc1 = messenger.pollDocToProcess();
+      Document doc2 = messenger.pollDocToProcess();
+
+      // doc1's send fails while doc2 is still in flight; the failure rewinds the consumer on the next poll
+      messenger.sendForIndexing(doc1);
+      ArgumentCaptor<Callback> callback = ArgumentCaptor.forClass(Callback.class);
+      Mockito.verify(mockProducer).send(Mockito.any(), callback.capture());
+      callback.getValue().onCompletion(null, new RuntimeException("broker unavailable"));
+      Document redelivered = messenger.pollDocToProcess();
+      Mockito.verify(mockConsumer).seek(partition, 5);
+      assertEquals("doc1", redelivered.getId());
+
+      // doc2 was handed out before the rewind, so completing it must not mark doc1's redelivery complete
+      messenger.commitDocOffsets(List.of(doc2));
+      Mockito.verify(mockConsumer, Mockito.never()).commitAsync(Mockito.anyMap(), Mockito.any());
+
+      // the redelivered doc1 is committed once its send has been acknowledged
+      messenger.sendForIndexing(redelivered);
+      Mockito.verify(mockProducer, Mockito.times(2)).send(Mockito.any(), callback.capture());
+      callback.getValue().onCompletion(null, null);
+      messenger.commitDocOffsets(List.of(redelivered));
+      Mockito.verify(mockConsumer).commitAsync(Mockito.eq(Map.of(partition, new OffsetAndMetadata(6))), Mockito.any());
+    }
+  }
 }
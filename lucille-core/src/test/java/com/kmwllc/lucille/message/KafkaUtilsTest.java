@@ -6,16 +6,23 @@ import java.util.concurrent.ExecutionException;
 import org.apache.kafka.clients.admin.Admin;
 import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.CreateTopicsResult;
+import org.apache.kafka.clients.producer.internals.BuiltInPartitioner;
 import org.apache.kafka.common.KafkaFuture;
 import org.apache.kafka.common.errors.TopicExistsException;
 import org.junit.Test;
 
+import com.kmwllc.lucille.core.Document;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -87,4 +94,36 @@ public class KafkaUtilsTest {
       assertTrue(KafkaUtils.createEventTopic(directConfig, "pipeline1", "run1"));
     }
   }
+
+  @Test
+  public void testEventPartitionMatchesProducer() {
+    for (String docId : List.of("doc1", "doc2", "doc1-1", "a", "")) {
+      byte[] key = docId.getBytes(StandardCharsets.UTF_8);
+      assertEquals(BuiltInPartitioner.partitionForKey(key, 7), KafkaUtils.getEventPartition(docId, 7));
+      assertEquals(0, KafkaUtils.getEventPartition(docId, 1));
+    }
+  }
+
+  @Test
+  public void testPutDocumentFormats() {
+    Config config = ConfigFactory.parseMap(Map.of(
+        "kafka.documentFormat", "smile",
+        "kafka.destDocumentFormat", "json"));
+    Properties props = new Properties();
+    KafkaUtils.putDocumentFormats(config, "pipeline1", props);
+
+    assertEquals("SMILE", props.get(KafkaDocumentSerializer.FORMAT_CONFIG));
+    assertEquals("JSON", props.get(KafkaDocumentSerializer.TOPIC_FORMAT_CONFIG_PREFIX + "pipeline1_dest"));
+    assertFalse(props.containsKey(KafkaDocumentSerializer.TOPIC_FORMAT_CONFIG_PREFIX + "pipeline1_source"));
+
+    // the override applies to the pipeline's destination topic by name, not to any topic ending in "_dest"
+    KafkaDocumentSerializer serializer = new KafkaDocumentSerializer();
+    Map<String, Object> configs = new HashMap<>();
+    props.forEach((key, value) -> configs.put(key.toString(), value));
+    serializer.configure(configs, false);
+    Document doc = Document.create("doc1");
+    assertEquals('{', serializer.serialize("pipeline1_dest", doc)[0]);
+    assertEquals(':', serializer.serialize("pipeline2_dest", doc)[0]);
+    assertEquals(':', serializer.serialize("pipeline1_source", doc)[0]);
+  }
 }
@@ -0,0 +1,69 @@
+package com.kmwllc.lucille.message;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OffsetWatermarksTest {
+
+  private static final TopicPartition P0 = new TopicPartition("topic", 0);
+  private static final TopicPartition P1 = new TopicPartition("topic", 1);
+
+  @Test
+  public void testOutOfOrderCompletion() {
+    OffsetWatermarks watermarks = new OffsetWatermarks();
+    watermarks.track(P0, 10);
+    watermarks.track(P0, 11);
+    watermarks.track(P0, 13); // offsets may have gaps
+    assertTrue(watermarks.advance().isEmpty());
+
+    watermarks.complete(P0, 11);
+    watermarks.complete(P0, 13);
+    // the watermark cannot pass 10, which is still pending
+    assertTrue(watermarks.advance().isEmpty());
+
+    watermarks.complete(P0, 10);
+    assertEquals(Map.of(P0, new OffsetAndMetadata(14)), watermarks.advance());
+    // nothing has changed since the previous call
+    assertTrue(watermarks.advance().isEmpty());
+  }
+
+  @Test
+  public void testPartitionsAdvanceIndependently() {
+    OffsetWatermarks watermarks = new OffsetWatermarks();
+    watermarks.track(P0, 0);
+    watermarks.track(P1, 5);
+    watermarks.track(P0, 1);
+    watermarks.track(P1, 6);
+
+    watermarks.complete(P1, 5);
+    watermarks.completeThrough(P0, 1);
+    assertEquals(Map.of(P0, new OffsetAndMetadata(2), P1, new OffsetAndMetadata(6)), watermarks.advance());
+
+    // offsets in untracked partitions are ignored
+    watermarks.complete(new TopicPartition("other", 0), 3);
+    watermarks.remove(List.of(P1));
+    watermarks.complete(P1, 6);
+    assertTrue(watermarks.advance().isEmpty());
+  }
+
+  @Test
+  public void testReset() {
+    OffsetWatermarks watermarks = new OffsetWatermarks();
+    watermarks.track(P0, 3);
+    watermarks.track(P0, 4);
+    watermarks.track(P1, 7);
+    watermarks.complete(P0, 3);
+    watermarks.advance();
+    watermarks.complete(P0, 4);
+
+    // offset 4 was completed but never returned by advance(), so it must be delivered again
+    assertEquals(Map.of(P0, 4L, P1, 7L), watermarks.reset());
+    assertTrue(watermarks.advance().isEmpty());
+  }
+}
@@ -0,0 +1,120 @@
+package com.kmwllc.lucille.message;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+
+  @Test
+  public void testCapacityRoundedUp() {
+    assertEquals(1, new RingBuffer<Integer>(1, WaitStrategy.SPIN).capacity());
+    assertEquals(4, new RingBuffer<Integer>(3, WaitStrategy.SPIN).capacity());
+    assertEquals(16, new RingBuffer<Integer>(16, WaitStrategy.SPIN).capacity());
+  }
+
+  @Test
+  public void testOfferAndPollWrapAround() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4, WaitStrategy.SPIN);
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(buffer.offer(lap * 4 + i));
+      }
+      assertFalse(buffer.offer(-1));
+      assertEquals(4, buffer.size());
+      for (int i = 0; i < 4; i++) {
+        assertEquals(Integer.valueOf(lap * 4 + i), buffer.poll());
+      }
+      assertNull(buffer.poll());
+      assertEquals(0, buffer.size());
+    }
+  }
+
+  @Test
+  public void testDrainTo() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(8, WaitStrategy.SPIN);
+    for (int i = 0; i < 5; i++) {
+      buffer.offer(i);
+    }
+    List<Integer> drained = new ArrayList<>();
+    assertEquals(3, buffer.drainTo(drained, 3));
+    assertEquals(List.of(0, 1, 2), drained);
+    assertEquals(2, buffer.drainTo(drained, 10));
+    assertEquals(List.of(0, 1, 2, 3, 4), drained);
+    assertEquals(0, buffer.drainTo(drained, 10));
+  }
+
+  @Test
+  public void testPollTimesOut() throws Exception {
+    RingBuffer<Integer> buffer = new RingBuffer<>(2, WaitStrategy.PARK);
+    long start = System.nanoTime();
+    assertNull(buffer.poll(20, TimeUnit.MILLISECONDS));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void testConcurrentProducersAndConsumers() throws Exception {
+    int producers = 4;
+    int consumers = 4;
+    int perProducer = 5000;
+    // a small buffer keeps producers waiting on consumers and vice versa
+    RingBuffer<Integer> buffer = new RingBuffer<>(16, WaitStrategy.YIELD);
+    Set<Integer> received = ConcurrentHashMap.newKeySet();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      int first = p * perProducer;
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < perProducer; i++) {
+            buffer.put(first + i);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }));
+    }
+    for (int c = 0; c < consumers; c++) {
+      boolean drain = c % 2 == 0;
+      threads.add(new Thread(() -> {
+        List<Integer> batch = new ArrayList<>();
+        try {
+          while (received.size() < producers * perProducer) {
+            if (drain) {
+              batch.clear();
+              if (buffer.drainTo(batch, 8) == 0) {
+                Thread.yield();
+              }
+              for (Integer i : batch) {
+                assertTrue(received.add(i));
+              }
+            } else {
+              Integer i = buffer.poll(10, TimeUnit.MILLISECONDS);
+              if (i != null) {
+                assertTrue(received.add(i));
+              }
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join(30000);
+    }
+
+    assertEquals(producers * perProducer, received.size());
+    assertEquals(0, buffer.size());
+  }
+}
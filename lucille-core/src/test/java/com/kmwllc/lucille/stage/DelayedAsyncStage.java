@@ -0,0 +1,53 @@
+package com.kmwllc.lucille.stage;
+
+import com.kmwllc.lucille.core.AsyncStage;
+import com.kmwllc.lucille.core.Document;
+import com.kmwllc.lucille.core.StageException;
+import com.typesafe.config.Config;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous test stage that completes each document after the number of milliseconds given in its "delay" field,
+ * setting "async_thread" to the name of the thread that completed it. Documents with shouldFail=true complete
+ * exceptionally.
+ */
+public class DelayedAsyncStage extends AsyncStage {
+
+  private ScheduledExecutorService scheduler;
+
+  public DelayedAsyncStage(Config config) {
+    super(config);
+  }
+
+  @Override
+  public void start() throws StageException {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @Override
+  public void stop() throws StageException {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Override
+  public CompletableFuture<Iterator<Document>> processDocumentAsync(Document doc) throws StageException {
+    CompletableFuture<Iterator<Document>> future = new CompletableFuture<>();
+    long delay = doc.has("delay") ? Long.parseLong(doc.getString("delay")) : 0;
+    scheduler.schedule(() -> {
+      if (doc.has("shouldFail") && "true".equals(doc.getString("shouldFail"))) {
+        future.completeExceptionally(new StageException("Expected"));
+      } else {
+        doc.setField("async_thread", Thread.currentThread().getName());
+        future.complete(null);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+    return future;
+  }
+}